@@ -0,0 +1,429 @@
+package ru.gnusinay.client;
+
+import ru.gnusinay.protocol.BufferPool;
+import ru.gnusinay.protocol.Durability;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.PacketCompressor;
+import ru.gnusinay.protocol.PacketReader;
+import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.server.Config;
+import ru.gnusinay.server.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/** Класс реализует встраиваемый асинхронный клиент файловой системы.
+ * Клиент держит пул соединений с сервером, каждое соединение подключается
+ * от своего пользователя (имя userName, а при нескольких соединениях
+ * userName_1, userName_2, ...). Все соединения обслуживаются одним потоком
+ * ввода-вывода с селектором, методы команд можно вызывать из любых потоков.
+ * Сервер читает следующую команду соединения только после ответа на предыдущую,
+ * поэтому по соединению выполняется одна команда за раз, а следующая ждет ответа
+ * в очереди соединения. Команда помечается идентификатором запроса, ответ
+ * с идентификатором другой команды не завершает текущую. Команды клиента распределяются по соединению с самой короткой
+ * очередью, команды сеанса (openSession) выполняются по одному соединению.
+ * Потерянное соединение переподключается с задержкой Config.CLIENT_RECONNECT_DELAY,
+ * которая удваивается после каждой неудачной попытки. Команда, ответ на которую
+ * не получен, завершается исключением IOException, так как неизвестно, выполнил
+ * ли ее сервер; команды, ожидающие в очереди, отправляются после переподключения.
+ * CompletableFuture команд завершаются в потоке ввода-вывода, поэтому длительную
+ * обработку ответов нужно выполнять в методах *Async
+ * */
+public class AsyncClient extends AsyncCommands implements Closeable {
+    private final InetSocketAddress address;
+    private final ClientListener listener;
+    private final AsyncConnection[] connections;
+    private final Selector selector;
+    private final AtomicInteger nextSession = new AtomicInteger();
+    private volatile boolean closed;
+    private Thread thread;
+
+    /**
+     * @param listener обработчик событий сервера или null
+     * */
+    public AsyncClient(String host, int port, String userName, int connectionCount, ClientListener listener) throws IOException {
+        if (connectionCount < 1) {
+            throw new IllegalArgumentException("connectionCount must be positive");
+        }
+        this.address = new InetSocketAddress(host, port);
+        this.listener = listener;
+        this.selector = Selector.open();
+        this.connections = new AsyncConnection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new AsyncConnection(connectionCount == 1 ? userName : userName + "_" + (i + 1));
+        }
+    }
+
+    /** Метод запускает поток ввода-вывода, который подключает соединения пула
+     * */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "AsyncClient-" + address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Метод создает сеанс, команды которого выполняются по одному соединению.
+     * Соединения назначаются сеансам по кругу
+     * */
+    public AsyncSession openSession() {
+        return new AsyncSession(this, Math.floorMod(nextSession.getAndIncrement(), connections.length));
+    }
+
+    String getUserName(int connection) {
+        return connections[connection].userName;
+    }
+
+    @Override
+    protected CompletableFuture<String> submit(CommandType type, String text) {
+        int best = 0;
+        for (int i = 1; i < connections.length; i++) {
+            if (connections[i].pending.get() < connections[best].pending.get()) {
+                best = i;
+            }
+        }
+        return submit(best, type, text, getDurability());
+    }
+
+    CompletableFuture<String> submit(int connection, CommandType type, String text, Durability durability) {
+        AsyncConnection c = connections[connection];
+        AsyncRequest request = new AsyncRequest(type, text, durability);
+        c.pending.incrementAndGet();
+        c.requests.add(request);
+        if (closed) {
+            failRequests(c, new IOException("Client is closed"));
+        } else {
+            selector.wakeup();
+        }
+        return request.future;
+    }
+
+    /** Метод закрывает соединения пула. Команды, ожидающие ответа,
+     * завершаются исключением IOException
+     * */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Thread ioThread;
+        synchronized (this) {
+            ioThread = thread;
+        }
+        if (ioThread == null) {
+            shutdown();
+            return;
+        }
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Цикл потока ввода-вывода. На каждой итерации отключенные соединения
+     * переподключаются, если подошел срок, а подключенным отправляются
+     * очередные пакеты. Селектор ожидает событий не дольше, чем до ближайшей
+     * попытки переподключения
+     * */
+    private void run() {
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                long wait = Long.MAX_VALUE;
+                for (AsyncConnection c : connections) {
+                    try {
+                        if (c.channel == null) {
+                            if (now >= c.reconnectAt) {
+                                connect(c);
+                            } else {
+                                wait = Math.min(wait, c.reconnectAt - now);
+                            }
+                        } else if (c.channel.isConnected()) {
+                            flush(c);
+                        }
+                    } catch (IOException e) {
+                        disconnect(c, e);
+                        wait = Math.min(wait, Math.max(1, c.reconnectAt - now));
+                    }
+                }
+                selector.select(wait == Long.MAX_VALUE ? 0 : wait);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    AsyncConnection c = (AsyncConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            finishConnect(c);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(c);
+                        }
+                    } catch (IOException e) {
+                        disconnect(c, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closed = true;
+            shutdown();
+        }
+    }
+
+    private void connect(AsyncConnection c) throws IOException {
+        c.channel = SocketChannel.open();
+        c.channel.configureBlocking(false);
+        c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+        if (c.channel.connect(address)) {
+            finishConnect(c);
+        }
+    }
+
+    /** После подключения канала отправляется пакет подключения пользователя,
+     * команды отправляются только после ответа CONNECT_OK
+     * */
+    private void finishConnect(AsyncConnection c) throws IOException {
+        c.channel.finishConnect();
+        c.outgoing = Protocol.encodeToBuffer(Protocol.makeConnectPacket(new User(c.userName, c.channel)));
+        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        flush(c);
+    }
+
+    /** Метод записывает в канал очередные пакеты соединения: ответы на проверку
+     * соединения и, если ответ на предыдущую команду получен, следующую команду
+     * из очереди. Если канал не принял пакет целиком, соединение ожидает записи
+     * */
+    private void flush(AsyncConnection c) throws IOException {
+        while (true) {
+            if (c.outgoing == null) {
+                Packet packet = c.control.poll();
+                if (packet == null && c.ready && c.inFlight == null) {
+                    c.inFlight = c.requests.poll();
+                    if (c.inFlight != null) {
+                        c.inFlight.id = ++c.lastRequestId;
+                        packet = new Packet(c.inFlight.type, c.userName, c.inFlight.text);
+                        packet.setDurability(c.inFlight.durability);
+                        packet.setRequestId(c.inFlight.id);
+                    }
+                }
+                if (packet == null) {
+                    break;
+                }
+                c.outgoing = Protocol.encodeToBuffer(packet);
+                if (c.compressor != null) {
+                    c.outgoing = c.compressor.compress(c.outgoing);
+                }
+            }
+            c.channel.write(c.outgoing);
+            if (c.outgoing.hasRemaining()) {
+                break;
+            }
+            BufferPool.release(c.outgoing);
+            c.outgoing = null;
+        }
+        c.key.interestOps(c.outgoing == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read(AsyncConnection c) throws IOException {
+        Packet packet;
+        while ((packet = c.reader.read(c.channel)) != null) {
+            switch (packet.getCommandType()) {
+                case CONNECT_OK:
+                    String[] params = packet.getText().split(Protocol.SEPARATOR);
+                    if (params.length > 3 && "1".equals(params[3])) {
+                        c.compressor = Protocol.makeCompressor();
+                        c.reader.setCompressor(c.compressor);
+                    }
+                    c.ready = true;
+                    c.attempts = 0;
+                    fire(l -> l.onConnected(c.userName));
+                    break;
+                case CONNECT_NO:
+                    throw new IOException(packet.getText());
+                case SERVER_RESPONSE:
+                case CHANGE_HOME_DIR:
+                    complete(c, packet.getRequestId(), packet.getText(), null);
+                    break;
+                case SERVER_ERROR:
+                    complete(c, packet.getRequestId(), null, new CommandException(packet.getText()));
+                    break;
+                case SERVER_MESSAGE:
+                    String message = packet.getText();
+                    fire(l -> l.onServerMessage(c.userName, message));
+                    break;
+                case CHANGE_NOTIFY:
+                    for (String change : packet.getText().split("\n")) {
+                        fire(l -> l.onChangeNotify(c.userName, change));
+                    }
+                    break;
+                case HEARTBEAT:
+                    c.control.add(new Packet(CommandType.HEARTBEAT, c.userName));
+                    break;
+                default:;
+            }
+        }
+    }
+
+    /** Метод завершает команду, ожидающую ответа, ответом с идентификатором
+     * запроса requestId. Ответ с идентификатором другой команды пропускается,
+     * ответ без идентификатора (ошибка разбора пакета) относится к текущей команде
+     * */
+    private void complete(AsyncConnection c, long requestId, String text, Exception error) {
+        AsyncRequest request = c.inFlight;
+        if (request == null || requestId != 0 && requestId != request.id) {
+            return;
+        }
+        complete(c, text, error);
+    }
+
+    private void complete(AsyncConnection c, String text, Exception error) {
+        AsyncRequest request = c.inFlight;
+        if (request == null) {
+            return;
+        }
+        c.inFlight = null;
+        c.pending.decrementAndGet();
+        if (error == null) {
+            request.future.complete(text);
+        } else {
+            request.future.completeExceptionally(error);
+        }
+    }
+
+    /** Метод закрывает потерянное соединение и планирует переподключение.
+     * Если соединение не удалось восстановить за Config.CLIENT_RECONNECT_ATTEMPTS
+     * попыток, команды из его очереди завершаются исключением, а попытки
+     * переподключения продолжаются
+     * */
+    private void disconnect(AsyncConnection c, IOException cause) {
+        boolean wasReady = c.ready;
+        c.reset();
+        if (c.inFlight != null) {
+            complete(c, null, cause);
+        }
+        c.attempts++;
+        long delay = (long) Config.get().CLIENT_RECONNECT_DELAY << Math.min(c.attempts - 1, 5);
+        c.reconnectAt = System.currentTimeMillis() + delay;
+        if (Config.get().CLIENT_RECONNECT_ATTEMPTS > 0 && c.attempts >= Config.get().CLIENT_RECONNECT_ATTEMPTS) {
+            failRequests(c, cause);
+        }
+        if (wasReady) {
+            fire(l -> l.onDisconnected(c.userName, cause));
+        }
+    }
+
+    /** Метод передает событие обработчику. Исключение обработчика не должно
+     * останавливать поток ввода-вывода, поэтому оно только выводится
+     * */
+    private void fire(Consumer<ClientListener> event) {
+        if (listener != null) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void failRequests(AsyncConnection c, IOException cause) {
+        AsyncRequest request;
+        while ((request = c.requests.poll()) != null) {
+            c.pending.decrementAndGet();
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    private void shutdown() {
+        IOException cause = new IOException("Client is closed");
+        for (AsyncConnection c : connections) {
+            c.reset();
+            if (c.inFlight != null) {
+                complete(c, null, cause);
+            }
+            failRequests(c, cause);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/** Класс описывает соединение пула асинхронного клиента. Состояние соединения
+ * меняется только потоком ввода-вывода, очередь команд пополняется из любых потоков
+ * */
+class AsyncConnection {
+    final String userName;
+    final Queue<AsyncRequest> requests = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pending = new AtomicInteger();
+    final Queue<Packet> control = new ConcurrentLinkedQueue<>();
+    final PacketReader reader = new PacketReader();
+    SocketChannel channel;
+    SelectionKey key;
+    PacketCompressor compressor;
+    ByteBuffer outgoing;
+    AsyncRequest inFlight;
+    long lastRequestId;
+    boolean ready;
+    int attempts;
+    long reconnectAt;
+
+    AsyncConnection(String userName) {
+        this.userName = userName;
+    }
+
+    /** Метод закрывает канал и освобождает буферы соединения
+     * */
+    void reset() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        channel = null;
+        key = null;
+        ready = false;
+        control.clear();
+        BufferPool.release(outgoing);
+        outgoing = null;
+        reader.release();
+        reader.setCompressor(null);
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+    }
+}
+
+/** Класс описывает команду асинхронного клиента, ожидающую ответа
+ * */
+class AsyncRequest {
+    final CommandType type;
+    final String text;
+    final Durability durability;
+    final CompletableFuture<String> future = new CompletableFuture<>();
+    long id;
+
+    AsyncRequest(CommandType type, String text, Durability durability) {
+        this.type = type;
+        this.text = text;
+        this.durability = durability;
+    }
+}
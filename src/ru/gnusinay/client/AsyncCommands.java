@@ -0,0 +1,235 @@
+package ru.gnusinay.client;
+
+import ru.gnusinay.protocol.Durability;
+import ru.gnusinay.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/** Класс описывает команды файловой системы, доступные через асинхронный
+ * клиент AsyncClient. Каждый метод формирует параметры команды так же, как
+ * консольный клиент, и возвращает CompletableFuture, которая завершается
+ * текстом ответа сервера или исключением CommandException с текстом ошибки.
+ * Пути указываются полностью, начиная с имени диска (C:\dir), так как
+ * текущая директория соединения сбрасывается при переподключении.
+ * Ключи команд (/D, /FROM:Name, /LEASE:Seconds) передаются как параметры.
+ * Для команд, изменяющих файловую систему, можно задать уровень надежности
+ * сохранения изменений (setDurability), иначе используется уровень сервера
+ * */
+public abstract class AsyncCommands {
+    private volatile Durability durability;
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /** Метод задает уровень надежности для следующих команд или null для уровня сервера
+     * */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /** Метод отправляет команду с параметрами, уже разделенными Protocol.SEPARATOR
+     * */
+    protected abstract CompletableFuture<String> submit(CommandType type, String text);
+
+    /** Метод отправляет произвольную команду с параметрами
+     * */
+    public CompletableFuture<String> execute(CommandType type, String... params) {
+        StringBuilder builder = new StringBuilder();
+        for (String param : params) {
+            builder.append(param).append(Protocol.SEPARATOR);
+        }
+        return submit(type, builder.toString());
+    }
+
+    public CompletableFuture<String> md(String path) {
+        return execute(CommandType.MD, path);
+    }
+
+    /** Ответ содержит новую текущую директорию соединения
+     * */
+    public CompletableFuture<String> cd(String path) {
+        return execute(CommandType.CD, path);
+    }
+
+    public CompletableFuture<String> rd(String path) {
+        return execute(CommandType.RD, path);
+    }
+
+    public CompletableFuture<String> deltree(String path) {
+        return execute(CommandType.DELTREE, path);
+    }
+
+    public CompletableFuture<String> mf(String path) {
+        return execute(CommandType.MF, path);
+    }
+
+    public CompletableFuture<String> del(String path) {
+        return execute(CommandType.DEL, path);
+    }
+
+    public CompletableFuture<String> lock(String... paths) {
+        return execute(CommandType.LOCK, paths);
+    }
+
+    /** Метод берет файлы в аренду на leaseSeconds секунд
+     * */
+    public CompletableFuture<String> lock(int leaseSeconds, String... paths) {
+        String[] params = new String[paths.length + 1];
+        System.arraycopy(paths, 0, params, 0, paths.length);
+        params[paths.length] = "/LEASE:" + leaseSeconds;
+        return execute(CommandType.LOCK, params);
+    }
+
+    public CompletableFuture<String> unlock(String... paths) {
+        return execute(CommandType.UNLOCK, paths);
+    }
+
+    public CompletableFuture<String> renew() {
+        return execute(CommandType.RENEW);
+    }
+
+    public CompletableFuture<String> renew(int leaseSeconds) {
+        return execute(CommandType.RENEW, "/LEASE:" + leaseSeconds);
+    }
+
+    public CompletableFuture<String> copy(String source, String destination) {
+        return execute(CommandType.COPY, source, destination);
+    }
+
+    /** Если share = true, директория копируется разделяемой копией (ключ /SHARE)
+     * */
+    public CompletableFuture<String> copy(String source, String destination, boolean share) {
+        return share ? execute(CommandType.COPY, source, destination, "/SHARE") : copy(source, destination);
+    }
+
+    /** Метод создает снимок name диска drive (например, "C:")
+     * */
+    public CompletableFuture<String> snapshot(String drive, String name) {
+        return execute(CommandType.SNAPSHOT, drive, "/NAME:" + name);
+    }
+
+    /** Метод восстанавливает диск drive из снимка name
+     * */
+    public CompletableFuture<String> restore(String drive, String name) {
+        return execute(CommandType.RESTORE, drive, "/NAME:" + name);
+    }
+
+    /** Метод записывает содержимое директории path в архив archive на сервере
+     * */
+    public CompletableFuture<String> exportTo(String path, String archive) {
+        return execute(CommandType.EXPORT, path, "/FILE:" + archive);
+    }
+
+    /** Метод добавляет в директорию path содержимое архива archive на сервере
+     * */
+    public CompletableFuture<String> importFrom(String path, String archive) {
+        return execute(CommandType.IMPORT, path, "/FILE:" + archive);
+    }
+
+    /** Метод возвращает трассировки последних медленных команд сервера
+     * */
+    public CompletableFuture<String> trace() {
+        return execute(CommandType.TRACE);
+    }
+
+    /** Метод возвращает отчет о наиболее ожидаемых блокировках элементов
+     * за последние seconds секунд
+     * */
+    public CompletableFuture<String> contention(int seconds) {
+        return execute(CommandType.CONTENTION, "/TIME:" + seconds);
+    }
+
+    /** Метод перечитывает настройки сервера из файла config.properties
+     * */
+    public CompletableFuture<String> reload() {
+        return execute(CommandType.RELOAD);
+    }
+
+    public CompletableFuture<String> move(String source, String destination) {
+        return execute(CommandType.MOVE, source, destination);
+    }
+
+    public CompletableFuture<String> print() {
+        return execute(CommandType.PRINT);
+    }
+
+    public CompletableFuture<String> du(String path) {
+        return execute(CommandType.DU, path);
+    }
+
+    /** Ключи: /D, /F, /FROM:Name
+     * */
+    public CompletableFuture<String> dir(String path, String... keys) {
+        return execute(CommandType.DIR, prepend(path, keys));
+    }
+
+    /** Ключи: /C, /FROM:Path
+     * */
+    public CompletableFuture<String> find(String mask, String... keys) {
+        return execute(CommandType.FIND, prepend(mask, keys));
+    }
+
+    /** Позиция журнала в формате эпоха.номер или null для снимка всей файловой системы
+     * */
+    public CompletableFuture<String> sync(String position) {
+        return position == null ? execute(CommandType.SYNC) : execute(CommandType.SYNC, "/FROM:" + position);
+    }
+
+    /** Следующая страница снимка с позицией position после элемента с путем after
+     * (путь из первой строки предыдущей страницы)
+     * */
+    public CompletableFuture<String> sync(String position, String after) {
+        return execute(CommandType.SYNC, "/FROM:" + position, "/AFTER:" + after);
+    }
+
+    /** Метод выполняет сценарий команды RUN. Строки сценария разбираются так же,
+     * как строки файла сценария консольного клиента (см. ScriptBatch.parse):
+     * относительные пути разбираются от директории directory, команда CD меняет
+     * эту директорию. Сценарий передается частями по Config.RUN_BATCH_SIZE строк,
+     * каждая следующая часть отправляется после ответа на предыдущую. Результат
+     * содержит ответы на все части и ошибки разбора строк с их номерами. Если
+     * сервер отклонил часть сценария, не выполнив ее, сценарий останавливается,
+     * а команда завершается исключением CommandException с ответами на выполненные
+     * части и номерами невыполненных строк
+     * */
+    public CompletableFuture<String> run(String directory, List<String> lines) {
+        List<String> errors = new ArrayList<>();
+        List<ScriptBatch> batches = ScriptBatch.parse(lines, directory, errors);
+        StringBuilder done = new StringBuilder();
+        for (String error : errors) {
+            done.append(error).append('\n');
+        }
+        return runBatches(batches, 0, done.toString());
+    }
+
+    private CompletableFuture<String> runBatches(List<ScriptBatch> batches, int index, String done) {
+        if (index == batches.size()) {
+            return CompletableFuture.completedFuture(done);
+        }
+        return submit(CommandType.RUN, batches.get(index).getText()).handle((response, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                String text = done.isEmpty() || done.endsWith("\n") ? done + response : done + "\n" + response;
+                return runBatches(batches, index + 1, text);
+            }
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            if (cause instanceof CommandException && ScriptBatch.isRejected(cause.getMessage())) {
+                String text = done.isEmpty() || done.endsWith("\n") ? done : done + "\n";
+                cause = new CommandException(text + cause.getMessage() + "\n" + ScriptBatch.getStoppedMessage(batches, index));
+            }
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(result -> result);
+    }
+
+    private static String[] prepend(String first, String[] rest) {
+        String[] params = new String[rest.length + 1];
+        params[0] = first;
+        System.arraycopy(rest, 0, params, 1, rest.length);
+        return params;
+    }
+}
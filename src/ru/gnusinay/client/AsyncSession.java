@@ -0,0 +1,30 @@
+package ru.gnusinay.client;
+
+import java.util.concurrent.CompletableFuture;
+
+/** Класс описывает логический сеанс асинхронного клиента. Все команды
+ * сеанса выполняются по одному соединению пула в порядке отправки, поэтому
+ * блокировки файлов и текущая директория сеанса принадлежат одному
+ * пользователю сервера. Несколько сеансов могут делить одно соединение.
+ * Уровень надежности сеанса задается независимо от уровня клиента
+ * */
+public class AsyncSession extends AsyncCommands {
+    private final AsyncClient client;
+    private final int connection;
+
+    AsyncSession(AsyncClient client, int connection) {
+        this.client = client;
+        this.connection = connection;
+    }
+
+    /** Имя пользователя сервера, от которого выполняются команды сеанса
+     * */
+    public String getUserName() {
+        return client.getUserName(connection);
+    }
+
+    @Override
+    protected CompletableFuture<String> submit(CommandType type, String text) {
+        return client.submit(connection, type, text, getDurability());
+    }
+}
@@ -1,6 +1,9 @@
 package ru.gnusinay.client;
 
+import ru.gnusinay.protocol.BufferPool;
 import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.PacketCompressor;
+import ru.gnusinay.protocol.PacketReader;
 import ru.gnusinay.protocol.Protocol;
 import ru.gnusinay.server.Config;
 import ru.gnusinay.server.User;
@@ -11,10 +14,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 
 /** Класс реализует клиент-приложение. При подключении к серверу
@@ -23,12 +26,18 @@ import java.util.concurrent.Semaphore;
  * который опрашивает консоль на ввод новых команд от пользователя. Введенные команды
  * считываются из очереди и отправляются на сервер на выполнения.
  * Семафор позволяет реализовать режим запрос-ответ между двумя потоками.
+ * Каждая команда помечается идентификатором запроса, который сервер возвращает
+ * в ответе, по нему ответ сопоставляется с командой из очереди requests.
+ * Если сервер присылает уведомления об изменениях директорий, клиент ведет
+ * локальный кеш директорий (NamespaceCache) и выполняет по нему команду CD
+ * без ожидания ответа сервера. На проверку соединения (HEARTBEAT) клиент
+ * сразу отвечает тем же пакетом, не занимая семафор.
  * */
 public class Client {
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
         while (true) {
-            System.out.println(Config.WELCOME_CLIENT_MESSAGE);
+            System.out.println(Config.get().WELCOME_CLIENT_MESSAGE);
             scanner.reset();
             String line = scanner.nextLine();
             CommandType type = CommandParser.match(line);
@@ -39,7 +48,7 @@ public class Client {
                         new Client().run(param[0], Integer.valueOf(param[1]), param[2]);
                     } catch (IOException e) {
                         System.out.println();
-                        System.out.println(Config.NO_CONNECT_CLIENT_MESSAGE);
+                        System.out.println(Config.get().NO_CONNECT_CLIENT_MESSAGE);
                         continue;
                     }
                     break;
@@ -47,7 +56,7 @@ public class Client {
                     System.exit(0);
                     break;
                 case UNDEFINED:
-                    System.out.println(Config.INCORRECT_COMMAND_CLIENT_MESSAGE);
+                    System.out.println(Config.get().INCORRECT_COMMAND_CLIENT_MESSAGE);
                     break;
                 default:;
             }
@@ -55,6 +64,25 @@ public class Client {
     }
 
 
+    /** Метод возвращает команду, на которую получен ответ packet: команду с
+     * идентификатором запроса ответа или, если ответ без идентификатора, первую
+     * неотвеченную команду
+     * */
+    private static PendingRequest takeRequest(Queue<PendingRequest> requests, Packet packet) {
+        if (packet.getRequestId() == 0) {
+            return requests.poll();
+        }
+        Iterator<PendingRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            PendingRequest request = iterator.next();
+            if (request.getPacket().getRequestId() == packet.getRequestId()) {
+                iterator.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+
     /** Метод завершает процесс подключения к серверу и в случае успешного подключения
      * начинает опрашивать канал на возникновение событий. Если в канале появились данные,
      * метод выводит их на консоль. При появлении новой команды в очереди, формируется
@@ -63,10 +91,15 @@ public class Client {
     private void run(String address, int port, String userName) throws IOException {
         SocketChannel channel = SocketChannel.open();
         Selector selector = Selector.open();
-        Queue<Packet> queue = new ArrayDeque<>(1);
+        Queue<Packet> queue = new ConcurrentLinkedQueue<>();
+        Queue<PendingRequest> requests = new ConcurrentLinkedQueue<>();
+        NamespaceCache cache = new NamespaceCache();
         User user = new User(userName, channel);
         Semaphore semaphore = new Semaphore(1);
-        ConsoleListener consoleListener = new ConsoleListener(user, selector, queue, semaphore);
+        ConsoleListener consoleListener = new ConsoleListener(user, selector, queue, semaphore, requests, cache);
+        PacketReader reader = new PacketReader();
+        ByteBuffer outgoing = null;
+        PacketCompressor compressor = null;
         try {
             channel.configureBlocking(false);
             channel.register(selector, SelectionKey.OP_CONNECT);
@@ -87,7 +120,7 @@ public class Client {
 
                     } else if (selectionKey.isReadable()) {
 
-                        Packet packet = readPacket(channel);
+                        Packet packet = reader.read(channel);
 
                         if (packet != null) {
                             switch (packet.getCommandType()) {
@@ -96,6 +129,12 @@ public class Client {
 
                                     user.setConnect(true);
                                     user.setCurDirectory(params[0]);
+                                    cache.setEnabled(params.length > 2 && "1".equals(params[2]));
+                                    if (params.length > 3 && "1".equals(params[3])) {
+                                        compressor = Protocol.makeCompressor();
+                                        reader.setCompressor(compressor);
+                                    }
+                                    cache.put(params[0]);
                                     System.out.println(String.format("%s> %s", params[0], params[1]));
                                     System.out.print(params[0] + "> ");
                                     consoleListener.start();
@@ -104,11 +143,19 @@ public class Client {
                                     System.out.println(packet.getText());
                                     throw new IOException();
                                 case CHANGE_HOME_DIR:
-                                    user.setCurDirectory(packet.getText());
-                                    System.out.print(String.format("%s> ", user.getCurDirectory()));
-                                    semaphore.release();
+                                    PendingRequest request = takeRequest(requests, packet);
+                                    cache.put(packet.getText());
+                                    if (request == null || !request.isAnsweredLocally()) {
+                                        user.setCurDirectory(packet.getText());
+                                        System.out.print(String.format("%s> ", user.getCurDirectory()));
+                                        semaphore.release();
+                                    }
                                     break;
                                 case SERVER_RESPONSE:
+                                    request = takeRequest(requests, packet);
+                                    if (request != null && request.getPacket().getCommandType() == CommandType.DIR) {
+                                        cache.putListing(request.getPacket().getText().split(Protocol.SEPARATOR)[0], packet.getText());
+                                    }
                                     System.out.println(packet.getText());
                                     System.out.print(String.format("%s> ", user.getCurDirectory()));
                                     semaphore.release();
@@ -118,19 +165,50 @@ public class Client {
                                     System.out.print(String.format("%s> ", user.getCurDirectory()));
                                     break;
                                 case SERVER_ERROR:
+                                    request = takeRequest(requests, packet);
+                                    if (request != null && request.isAnsweredLocally()) {
+                                        cache.clear();
+                                        user.setCurDirectory(request.getPreviousDirectory());
+                                        System.out.println();
+                                        System.out.println(packet.getText());
+                                        System.out.print(String.format("%s> ", user.getCurDirectory()));
+                                        break;
+                                    }
+                                    if (request != null && request.getPacket().getCommandType() == CommandType.RUN) {
+                                        request.setRejected(ScriptBatch.isRejected(packet.getText()));
+                                    }
                                     System.out.println(packet.getText());
                                     System.out.print(String.format("%s> ", user.getCurDirectory()));
                                     semaphore.release();
                                     break;
+                                case CHANGE_NOTIFY:
+                                    cache.apply(packet.getText());
+                                    break;
+                                case HEARTBEAT:
+                                    queue.add(new Packet(CommandType.HEARTBEAT, user.getName()));
+                                    selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                                    break;
                                 default:;
                             }
                         }
                     } else if (selectionKey.isWritable()) {
-                        Packet packet = queue.poll();
-                        if (packet != null) {
-                            channel.write(ByteBuffer.wrap(Protocol.encode(packet)));
+                        if (outgoing == null) {
+                            Packet packet = queue.poll();
+                            if (packet != null) {
+                                outgoing = Protocol.encodeToBuffer(packet);
+                                if (compressor != null) {
+                                    outgoing = compressor.compress(outgoing);
+                                }
+                            }
                         }
-                        selectionKey.interestOps(SelectionKey.OP_READ);
+                        if (outgoing != null) {
+                            channel.write(outgoing);
+                            if (!outgoing.hasRemaining()) {
+                                BufferPool.release(outgoing);
+                                outgoing = null;
+                            }
+                        }
+                        selectionKey.interestOps(queue.isEmpty() && outgoing == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                     }
                 }
             }
@@ -139,27 +217,13 @@ public class Client {
             throw new IOException(e);
         } finally {
             user.setConnect(false);
+            BufferPool.release(outgoing);
+            reader.release();
+            if (compressor != null) {
+                compressor.close();
+            }
             channel.close();
             selector.close();
         }
     }
-
-    private Packet readPacket(SocketChannel channel) throws IOException {
-        ByteBuffer readBuffer = ByteBuffer.allocate(4);
-        int readByte = 0;
-        readByte = channel.read(readBuffer);
-        if (readByte > 0) {
-            int byteCount = Protocol.getPacketLength(readBuffer.array());
-            readBuffer = ByteBuffer.allocate(byteCount);
-            readByte = channel.read(readBuffer);
-        }
-        if (readByte > 0) {
-            return Protocol.decode(readBuffer.array());
-        }
-        return null;
-    }
 }
-
-
-
-
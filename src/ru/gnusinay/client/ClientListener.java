@@ -0,0 +1,29 @@
+package ru.gnusinay.client;
+
+/** Интерфейс описывает обработчик событий асинхронного клиента AsyncClient:
+ * сообщений сервера о действиях других пользователей, уведомлений об
+ * изменениях директорий и состояния соединений. Методы вызываются из
+ * потока ввода-вывода клиента, поэтому не должны блокироваться
+ * */
+public interface ClientListener {
+
+    /** Сообщение сервера (SERVER_MESSAGE) пользователю userName
+     * */
+    void onServerMessage(String userName, String text);
+
+    /** Уведомление об изменении директории (CHANGE_NOTIFY), формат описан в MutationLog.
+     * Уведомления, объединенные сервером в один пакет, передаются по одному
+     * */
+    default void onChangeNotify(String userName, String text) {
+    }
+
+    /** Соединение пользователя userName подключилось или переподключилось к серверу
+     * */
+    default void onConnected(String userName) {
+    }
+
+    /** Соединение пользователя userName потеряно, клиент попытается переподключиться
+     * */
+    default void onDisconnected(String userName, Exception cause) {
+    }
+}
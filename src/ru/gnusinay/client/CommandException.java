@@ -0,0 +1,13 @@
+package ru.gnusinay.client;
+
+/** Исключение, которым завершается команда асинхронного клиента,
+ * если сервер ответил ошибкой (SERVER_ERROR). Сообщение исключения -
+ * текст ошибки сервера
+ * */
+public class CommandException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CommandException(String message) {
+        super(message);
+    }
+}
@@ -1,27 +1,40 @@
 package ru.gnusinay.client;
 
 import ru.gnusinay.protocol.Protocol;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Класс позволяет проверить правильность
  * ввода команд пользователем и получить
- * параметры команд
+ * параметры команд.
+ * Строка разбирается за один проход: по первому слову определяется
+ * команда, и только ее заранее скомпилированное регулярное выражение
+ * проверяет синтаксис. Параметры выделяются без регулярных выражений.
+ * Методы класса не имеют состояния и могут вызываться из нескольких
+ * потоков, например, при выполнении пакета команд
  * */
 public class CommandParser {
 
 
     /** Метод разбирает входящую строку и возвращает массив параметров в
-     * виде полного пути к каждому элементу файловой системы
+     * виде полного пути к каждому элементу файловой системы. Ключи команды,
+     * начинающиеся с символа '/', передаются без изменений. Если путь не
+     * указан и команда начинается с ключа, первым параметром становится
+     * текущая директория
      * */
     static public String[] getParameters(CommandType type, String commandLine, String homeDirectory) {
         if (!"".equals(type.getParamSeparator())) {
-            String[] params = commandLine.replaceAll("(^\\s*\\w+\\s+)|(\\s+)", " ").trim().split(type.getParamSeparator());
-            if (params.length > 0 && type != CommandType.CONNECT_TO_SERVER) {
+            List<String> tokens = tokenize(commandLine, type == CommandType.CONNECT_TO_SERVER);
+            if (tokens.isEmpty() || tokens.get(0).startsWith("/")) {
+                tokens.add(0, "");
+            }
+            String[] params = tokens.toArray(new String[tokens.size()]);
+            if (type != CommandType.CONNECT_TO_SERVER) {
                 for (int i = 0; i < params.length; i++) {
                     if ("".equals(params[i])) {
                         params[i] = homeDirectory;
-                    } else if (!params[i].contains(":")) {
-                        params[i] = new String(homeDirectory + "\\" + params[i]).replaceAll("\\\\(?=\\\\)|(\\\\$)", "");
+                    } else if (params[i].indexOf(':') < 0 && !params[i].startsWith("/")) {
+                        params[i] = normalizePath(homeDirectory + "\\" + params[i]);
                     }
                 }
             }
@@ -44,21 +57,106 @@ public class CommandParser {
         return "";
     }
 
+    /** Метод добавляет к сценарию команды RUN строку вида
+     * "номер строки%код команды%параметры" и перевод строки
+     * */
+    static public void appendScriptLine(StringBuilder script, int number, CommandType type, String[] params) {
+        script.append(number).append(Protocol.SEPARATOR).append(type.getCode());
+        for (String param : params) {
+            script.append(Protocol.SEPARATOR).append(param);
+        }
+        script.append('\n');
+    }
+
     /** Метод проверяет правильность ввода команды и возвращает тип введенной команды.
      * Если не удалось поределить команду, то возвращается тип UNDEFINED
      * */
     static public CommandType match(String line) {
-        if (Pattern.compile("^[A-Za-z0-9 :._\\\\]+$").matcher(line).matches()) {
-            if (line != null && !line.isEmpty()) {
-                for (CommandType type : CommandType.values()) {
-                    if (Pattern.compile(type.getRegexp()).matcher(line).matches()) {
-                        return type;
-                    }
-                }
+        if (line == null || line.isEmpty()) {
+            return CommandType.UNDEFINED;
+        }
+        int end = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (!isAllowed(c)) {
+                return CommandType.UNDEFINED;
+            }
+            if (end == i && isLetter(c)) {
+                end++;
             }
         }
+        if (end == 0) {
+            return CommandType.UNDEFINED;
+        }
+        CommandType type = CommandType.getCommandTypeByKeyword(line.substring(0, end));
+        if (type != null && type.getPattern().matcher(line).matches()) {
+            return type;
+        }
         return CommandType.UNDEFINED;
     }
-}
 
+    /** Метод отбрасывает первое слово строки (имя команды) и делит остаток
+     * на параметры по пробельным символам, а для команды connect также по
+     * символу ':'. Если параметров нет, возвращается пустой список
+     * */
+    static private List<String> tokenize(String commandLine, boolean splitColon) {
+        List<String> tokens = new ArrayList<>();
+        int length = commandLine.length();
+        int i = 0;
+        while (i < length && isSpace(commandLine.charAt(i))) {
+            i++;
+        }
+        int word = i;
+        while (i < length && isWordChar(commandLine.charAt(i))) {
+            i++;
+        }
+        if (i < length && !isSpace(commandLine.charAt(i))) {
+            i = word;
+        }
+        int start = -1;
+        for (; i <= length; i++) {
+            char c = i < length ? commandLine.charAt(i) : ' ';
+            boolean separator = isSpace(c) || (splitColon && c == ':');
+            if (separator && start >= 0) {
+                tokens.add(commandLine.substring(start, i));
+                start = -1;
+            } else if (!separator && start < 0) {
+                start = i;
+            }
+        }
+        return tokens;
+    }
+
+    /** Метод заменяет повторяющиеся символы '\' одним и удаляет '\' в конце пути
+     * */
+    static private String normalizePath(String path) {
+        StringBuilder builder = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != '\\' || i + 1 == path.length() || path.charAt(i + 1) != '\\') {
+                builder.append(c);
+            }
+        }
+        int last = builder.length() - 1;
+        if (last >= 0 && builder.charAt(last) == '\\') {
+            builder.setLength(last);
+        }
+        return builder.toString();
+    }
 
+    static private boolean isAllowed(char c) {
+        return isWordChar(c) || c == ' ' || c == ':' || c == '.' || c == '*' || c == '?' || c == '/' || c == '\\';
+    }
+
+    static private boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    static private boolean isWordChar(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    static private boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -1,8 +1,14 @@
 package ru.gnusinay.client;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
 /** Класс описывает все доступные команды, которые может выполнять сервер.
  * Также хранится регулярное выражение для каждой команды, по которому
- * можно определить правильность ввода команды перед отправкой на сервер
+ * можно определить правильность ввода команды перед отправкой на сервер.
+ * Регулярные выражения компилируются один раз при загрузке класса, а поиск
+ * команды по ключевому слову и по коду выполняется по таблицам
  * */
 public enum CommandType {
     CONNECT_TO_SERVER("connect", "(?i)^(connect)\\s+\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}:{1}\\d{4,5}\\s+\\w+( ){0,}$", ":|\\s", "10"),
@@ -14,11 +20,24 @@ public enum CommandType {
     DELTREE("deltree", "(?i)^(deltree)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}( ){0,}$", "\\s", "14"),
     MF("mf", "(?i)^(mf)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){1}( ){0,}$", "\\s", "15"),
     DEL("del", "(?i)^(del)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){1}( ){0,}$", "\\s", "16"),
-    LOCK("lock", "(?i)^(lock)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){1}( ){0,}$", "\\s", "17"),
-    UNLOCK("unlock", "(?i)^(unlock)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){1}( ){0,}$", "\\s", "18"),
-    COPY("copy", "(?i)^(copy)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){0,}\\s+([A-Za-z]{1}:\\\\|\\\\|\\w|\\w\\\\){1}(\\w+\\\\|\\w){0,}( ){0,}$", "\\s", "19"),
+    LOCK("lock", "(?i)^(lock)(\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){1}){1,}(\\s+/lease:\\d+){0,1}( ){0,}$", "\\s", "17"),
+    UNLOCK("unlock", "(?i)^(unlock)(\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){1}){1,}( ){0,}$", "\\s", "18"),
+    RENEW("renew", "(?i)^(renew)(\\s+/lease:\\d+){0,1}( ){0,}$", "\\s", "38"),
+    COPY("copy", "(?i)^(copy)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){0,}\\s+([A-Za-z]{1}:\\\\|\\\\|\\w|\\w\\\\){1}(\\w+\\\\|\\w){0,}(\\s+/share){0,1}( ){0,}$", "\\s", "19"),
     MOVE("move", "(?i)^(move)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}(\\w+\\.\\w+){0,}\\s+([A-Za-z]{1}:\\\\|\\\\|\\w|\\w\\\\){1}(\\w+\\\\|\\w){0,}( ){0,}$", "\\s", "20"),
     PRINT("print", "(?i)^(print){0,}$", "", "21"),
+    DU("du", "(?i)^(du)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}( ){0,}$", "\\s", "33"),
+    DIR("dir", "(?i)^(dir)(\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}){0,1}(\\s+/d|\\s+/f|\\s+/from:[\\w.]+){0,2}( ){0,}$", "\\s", "35"),
+    SYNC("sync", "(?i)^(sync)(\\s+/from:\\d+\\.\\d+(\\s+/after:[A-Za-z]{1}:[\\w.\\\\]*){0,1}){0,1}( ){0,}$", "\\s", "36"),
+    RUN("run", "(?i)^(run)\\s+[\\w.:\\\\/]+( ){0,}$", "\\s", "40"),
+    SNAPSHOT("snapshot", "(?i)^(snapshot)(\\s+[A-Za-z]{1}:){0,1}(\\s+/name:\\w+(\\s+/d){0,1}){0,1}( ){0,}$", "\\s", "41"),
+    RESTORE("restore", "(?i)^(restore)(\\s+[A-Za-z]{1}:){0,1}\\s+/name:\\w+( ){0,}$", "\\s", "42"),
+    EXPORT("export", "(?i)^(export)(\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}){0,1}\\s+/file:\\w+( ){0,}$", "\\s", "43"),
+    IMPORT("import", "(?i)^(import)(\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\|\\w){0,}){0,1}\\s+/file:\\w+( ){0,}$", "\\s", "44"),
+    TRACE("trace", "(?i)^(trace)( ){0,}$", "", "45"),
+    RELOAD("reload", "(?i)^(reload)( ){0,}$", "", "47"),
+    CONTENTION("contention", "(?i)^(contention)(\\s+/time:\\d+){0,1}( ){0,}$", "\\s", "46"),
+    FIND("find", "(?i)^(find)\\s+([A-Za-z]{1}:\\\\|\\\\){0,1}(\\w+\\\\){0,}[\\w.*?]+(\\s+/c|\\s+/from:[A-Za-z]{1}:[\\w.\\\\]*){0,2}( ){0,}$", "\\s", "34"),
 
 
     QUIT("quit", "(?i)^(quit)$", "", "22"),
@@ -28,18 +47,41 @@ public enum CommandType {
     SERVER_MESSAGE("server_message", "", "", "26"),
     SERVER_ERROR("server_error", "", "", "27"),
     CHANGE_HOME_DIR("change_home_dir", "", "", "28"),
+    REPLICATE("replicate", "", "", "29"),
+    CLUSTER_FORWARD("cluster_forward", "", "", "30"),
+    CLUSTER_EXPORT("cluster_export", "", "", "31"),
+    CLUSTER_IMPORT("cluster_import", "", "", "32"),
+    CLUSTER_AUTH("cluster_auth", "", "", "48"),
+    CLUSTER_RELEASE("cluster_release", "", "", "49"),
+    CLUSTER_HOMES("cluster_homes", "", "", "50"),
+    CHANGE_NOTIFY("change_notify", "", "", "37"),
+    HEARTBEAT("heartbeat", "", "", "39"),
     UNDEFINED("", "", "", "0");
     
     private String name;
     private String regexp;
     private String paramSeparator;
     private String code;
+    private Pattern pattern;
+
+    private static final Map<String, CommandType> typesByKeyword = new HashMap<>();
+    private static final Map<String, CommandType> typesByCode = new HashMap<>();
+
+    static {
+        for (CommandType type : values()) {
+            if (type.pattern != null) {
+                typesByKeyword.put(type.name, type);
+            }
+            typesByCode.put(type.code, type);
+        }
+    }
 
     CommandType(String name, String regexp, String paramSeparator, String code) {
         this.name = name;
         this.regexp = regexp;
         this.paramSeparator = paramSeparator;
         this.code = code;
+        this.pattern = regexp.isEmpty() ? null : Pattern.compile(regexp);
     }
 
     public String getName() {
@@ -58,12 +100,21 @@ public enum CommandType {
         return code;
     }
 
+    /** Скомпилированное регулярное выражение команды или null, если команду
+     * нельзя ввести пользователю
+     * */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
     public static CommandType getCommandTypeByCode(String code) {
-        for(CommandType type : CommandType.values()) {
-            if (type.getCode().equals(code)) {
-                return type;
-            }
-        }
-        return null;
+        return typesByCode.get(code);
+    }
+
+    /** Метод возвращает команду, которую пользователь может ввести, по ее
+     * ключевому слову без учета регистра или null, если такой команды нет
+     * */
+    public static CommandType getCommandTypeByKeyword(String keyword) {
+        return typesByKeyword.get(keyword.toLowerCase());
     }
 }
@@ -5,11 +5,18 @@
 package ru.gnusinay.client;
 
 import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
 import ru.gnusinay.server.Config;
 import ru.gnusinay.server.User;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Scanner;
 import java.util.concurrent.Semaphore;
@@ -20,19 +27,27 @@ class ConsoleListener extends Thread {
     private Selector selector;
     private Queue<Packet> queue;
     private Semaphore semaphore;
+    private Queue<PendingRequest> requests;
+    private NamespaceCache cache;
+    private long lastRequestId;
 
-    ConsoleListener(User user, Selector selector, Queue<Packet> queue, Semaphore semaphore) {
+    ConsoleListener(User user, Selector selector, Queue<Packet> queue, Semaphore semaphore,
+                    Queue<PendingRequest> requests, NamespaceCache cache) {
         this.user = user;
         this.selector = selector;
         this.queue = queue;
         this.semaphore = semaphore;
+        this.requests = requests;
+        this.cache = cache;
     }
 
     /** Метод в цикле ждет ввода команд с консоли, записывает очередную
      * команду в очередь, переключает канал в режиме запись и инициирует
      * событие на запись. В методе используется семафор, который позволяет
      * реализовать режим запрос-ответ с основным потоком клиентского
-     * приложения
+     * приложения. Если директория команды CD есть в локальном кеше, текущая
+     * директория меняется сразу, команда отправляется серверу без ожидания
+     * ответа
      * */
     public void run() {
         Scanner scanner = new Scanner(System.in, "UTF-8");
@@ -57,20 +72,87 @@ class ConsoleListener extends Thread {
                         }
                     }
                     if (commandType == CommandType.UNDEFINED) {
-                        System.out.println(user.getCurDirectory() + "> " + Config.INCORRECT_COMMAND_CLIENT_MESSAGE);
+                        System.out.println(user.getCurDirectory() + "> " + Config.get().INCORRECT_COMMAND_CLIENT_MESSAGE);
                         System.out.print(user.getCurDirectory() + "> ");
                         semaphore.release();
+                    } else if (commandType == CommandType.RUN) {
+                        runScript(commandLine.trim().substring(3).trim(), key);
                     } else {
                         String text = CommandParser.getParametersAsLine(commandType, commandLine, user.getCurDirectory());
                         Packet packet = new Packet(commandType, user.getName(), text);
+                        String previousDirectory = null;
+                        if (commandType == CommandType.CD) {
+                            String directory = cache.resolve(text.split(Protocol.SEPARATOR)[0]);
+                            if (directory != null) {
+                                previousDirectory = user.getCurDirectory();
+                                user.setCurDirectory(directory);
+                                System.out.print(directory + "> ");
+                            }
+                        }
 
+                        packet.setRequestId(++lastRequestId);
+                        requests.add(new PendingRequest(packet, previousDirectory));
                         queue.add(packet);
                         key.interestOps(SelectionKey.OP_WRITE);
                         selector.wakeup();
+                        if (previousDirectory != null) {
+                            semaphore.release();
+                        }
                     }
                 } else {
                     break;
                 }
         }
     }
-}
\ No newline at end of file
+
+    /** Метод выполняет сценарий из локального файла fileName. Строки сценария
+     * разбираются клиентом (см. ScriptBatch.parse), текущая директория пользователя
+     * не меняется. Строки передаются серверу частями по Config.RUN_BATCH_SIZE строк,
+     * каждая следующая часть отправляется после ответа на предыдущую. Если сервер
+     * отклонил часть, не выполнив ее, сценарий останавливается и выводятся номера
+     * невыполненных строк
+     * */
+    private void runScript(String fileName, SelectionKey key) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println(String.format(Config.get().RUN_FILE_CLIENT_MESSAGE, fileName));
+            System.out.print(user.getCurDirectory() + "> ");
+            semaphore.release();
+            return;
+        }
+        List<String> errors = new ArrayList<>();
+        List<ScriptBatch> batches = ScriptBatch.parse(lines, user.getCurDirectory(), errors);
+        for (String error : errors) {
+            System.out.println(error);
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            PendingRequest request = sendBatch(batches.get(i), key);
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                System.out.println(e.getMessage());
+            }
+            if (request.isRejected()) {
+                System.out.println(ScriptBatch.getStoppedMessage(batches, i));
+                break;
+            }
+        }
+        System.out.print(user.getCurDirectory() + "> ");
+        semaphore.release();
+    }
+
+    /** Метод отправляет часть сценария и возвращает команду, ожидающую ответа
+     * */
+    private PendingRequest sendBatch(ScriptBatch batch, SelectionKey key) {
+        Packet packet = new Packet(CommandType.RUN, user.getName(), batch.getText());
+        packet.setRequestId(++lastRequestId);
+        PendingRequest request = new PendingRequest(packet, null);
+        requests.add(request);
+        queue.add(packet);
+        key.interestOps(SelectionKey.OP_WRITE);
+        selector.wakeup();
+        return request;
+    }
+}
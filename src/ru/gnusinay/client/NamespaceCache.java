@@ -0,0 +1,121 @@
+package ru.gnusinay.client;
+
+import java.util.ArrayList;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/** Класс описывает локальный кеш директорий, которые клиент уже видел:
+ * текущие директории, полученные от сервера, и директории из ответов
+ * команды DIR. Ключом служит путь в нижнем регистре, значением - путь
+ * в том виде, в котором его вернул сервер. Кеш не хранит сведений об
+ * отсутствии директорий, поэтому путь, которого нет в кеше, проверяется
+ * сервером. Изменения файловой системы приходят от сервера пакетами
+ * CHANGE_NOTIFY и применяются к кешу методом apply. Сервер уведомляет
+ * только об изменениях, затрагивающих текущую директорию пользователя,
+ * поэтому другие директории кеша могут устареть: переход в удаленную
+ * директорию отклоняется сервером, после чего клиент очищает кеш
+ * */
+class NamespaceCache {
+    private final TreeMap<String, String> directories = new TreeMap<>();
+    private volatile boolean enabled;
+
+    /** Кеш используется, только если сервер присылает уведомления об изменениях
+     * */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /** Метод возвращает путь к директории в том виде, в котором его вернул
+     * сервер, или null, если директория в кеше не найдена
+     * */
+    synchronized String resolve(String path) {
+        if (!enabled) {
+            return null;
+        }
+        return directories.get(path.toLowerCase());
+    }
+
+    synchronized void put(String path) {
+        if (enabled) {
+            directories.put(path.toLowerCase(), path);
+        }
+    }
+
+    synchronized void clear() {
+        directories.clear();
+    }
+
+    /** Метод запоминает директории из ответа команды DIR для директории path
+     * */
+    void putListing(String path, String listing) {
+        for (String line : listing.split("\n")) {
+            if (line.startsWith("<DIR> ")) {
+                put(path + "\\" + line.substring(6));
+            }
+        }
+    }
+
+    /** Метод применяет к кешу изменения, полученные от сервера одним пакетом,
+     * по одному в строке. Строка изменения имеет вид
+     * "номер\tвид\tпользователь\tпуть[\tпуть]"
+     * */
+    synchronized void apply(String deltas) {
+        for (String delta : deltas.split("\n")) {
+            applyDelta(delta);
+        }
+    }
+
+    private void applyDelta(String delta) {
+        String[] parts = delta.split("\t");
+        if (parts.length < 2 || "RESET".equals(parts[1])) {
+            clear();
+            return;
+        }
+        switch (parts[1]) {
+            case "ADD_DIRECTORY":
+                if (parts.length > 3) {
+                    put(parts[3]);
+                }
+                break;
+            case "REMOVE":
+                if (parts.length > 3) {
+                    removeTree(parts[3]);
+                }
+                break;
+            case "MOVE":
+            case "COPY":
+                if (parts.length > 4) {
+                    String name = parts[3].substring(parts[3].lastIndexOf('\\') + 1);
+                    for (String directory : getTree(parts[3]).values()) {
+                        put(parts[4] + "\\" + name + directory.substring(parts[3].length()));
+                    }
+                    if ("MOVE".equals(parts[1])) {
+                        removeTree(parts[3]);
+                    }
+                }
+                break;
+            default:;
+        }
+    }
+
+    private void removeTree(String path) {
+        for (String key : new ArrayList<>(getTree(path).keySet())) {
+            directories.remove(key);
+        }
+    }
+
+    /** Метод возвращает директорию path и все известные кешу директории внутри нее
+     * */
+    private NavigableMap<String, String> getTree(String path) {
+        String key = path.toLowerCase();
+        NavigableMap<String, String> tree = new TreeMap<>(directories.subMap(key + "\\", true, key + "\\" + Character.MAX_VALUE, true));
+        String value = directories.get(key);
+        if (value != null) {
+            tree.put(key, value);
+        }
+        return tree;
+    }
+}
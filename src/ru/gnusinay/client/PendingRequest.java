@@ -0,0 +1,39 @@
+package ru.gnusinay.client;
+
+import ru.gnusinay.protocol.Packet;
+
+/** Класс описывает команду, отправленную серверу и ожидающую ответа.
+ * Для команды CD, выполненной по локальному кешу, хранится директория,
+ * которая была текущей до ее выполнения. Для части сценария RUN отмечается,
+ * что сервер отклонил ее, не выполнив (см. ScriptBatch.isRejected)
+ * */
+class PendingRequest {
+    private Packet packet;
+    private String previousDirectory;
+    private volatile boolean rejected;
+
+    PendingRequest(Packet packet, String previousDirectory) {
+        this.packet = packet;
+        this.previousDirectory = previousDirectory;
+    }
+
+    Packet getPacket() {
+        return packet;
+    }
+
+    String getPreviousDirectory() {
+        return previousDirectory;
+    }
+
+    boolean isAnsweredLocally() {
+        return previousDirectory != null;
+    }
+
+    boolean isRejected() {
+        return rejected;
+    }
+
+    void setRejected(boolean rejected) {
+        this.rejected = rejected;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.gnusinay.client;
+
+import ru.gnusinay.server.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Класс описывает часть сценария команды RUN: текст, передаваемый серверу,
+ * и номера строк файла сценария, вошедших в часть. Номера строк нужны, чтобы
+ * сообщить пользователю, какие строки не выполнены, если сервер отклонил
+ * часть сценария (сервер занят или не начал ее выполнять вовремя)
+ * */
+class ScriptBatch {
+    private final String text;
+    private final List<Integer> lines;
+
+    private ScriptBatch(String text, List<Integer> lines) {
+        this.text = text;
+        this.lines = lines;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /** Метод разбирает строки сценария и делит их на части по Config.RUN_BATCH_SIZE
+     * строк. Пустые строки и строки, начинающиеся с символа '#', пропускаются,
+     * команда CD меняет директорию, относительно которой разбираются следующие
+     * строки (начиная с directory). Ошибки разбора с номерами строк добавляются
+     * в errors
+     * */
+    static List<ScriptBatch> parse(List<String> script, String directory, List<String> errors) {
+        List<ScriptBatch> batches = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        List<Integer> lines = new ArrayList<>();
+        for (int i = 0; i < script.size(); i++) {
+            String line = script.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            CommandType type = CommandParser.match(line);
+            if (type == CommandType.UNDEFINED) {
+                errors.add(String.format("%d: %s", i + 1, Config.get().INCORRECT_COMMAND_CLIENT_MESSAGE));
+                continue;
+            }
+            String[] params = CommandParser.getParameters(type, line, directory);
+            if (type == CommandType.CD) {
+                directory = params[0];
+                continue;
+            }
+            CommandParser.appendScriptLine(batch, i + 1, type, params);
+            lines.add(i + 1);
+            if (lines.size() == Config.get().RUN_BATCH_SIZE) {
+                batches.add(new ScriptBatch(batch.substring(0, batch.length() - 1), lines));
+                batch.setLength(0);
+                lines = new ArrayList<>();
+            }
+        }
+        if (!lines.isEmpty()) {
+            batches.add(new ScriptBatch(batch.substring(0, batch.length() - 1), lines));
+        }
+        return batches;
+    }
+
+    /** Метод возвращает сообщение об остановке сценария с номерами строк частей
+     * batches, начиная с части from, которые не были выполнены. Идущие подряд
+     * номера записываются диапазоном (3-7)
+     * */
+    static String getStoppedMessage(List<ScriptBatch> batches, int from) {
+        StringBuilder builder = new StringBuilder();
+        int start = -1;
+        int last = -1;
+        for (ScriptBatch batch : batches.subList(from, batches.size())) {
+            for (int line : batch.lines) {
+                if (line != last + 1) {
+                    appendRange(builder, start, last);
+                    start = line;
+                }
+                last = line;
+            }
+        }
+        appendRange(builder, start, last);
+        return String.format(Config.get().RUN_STOPPED_CLIENT_MESSAGE, builder);
+    }
+
+    private static void appendRange(StringBuilder builder, int start, int end) {
+        if (start < 0) {
+            return;
+        }
+        if (builder.length() > 0) {
+            builder.append(", ");
+        }
+        builder.append(start);
+        if (end > start) {
+            builder.append('-').append(end);
+        }
+    }
+
+    /** Метод проверяет, отклонил ли сервер часть сценария целиком, не выполнив
+     * ни одной строки: ответ об ошибке error - занятость сервера или истечение
+     * срока ожидания в очереди
+     * */
+    static boolean isRejected(String error) {
+        return Config.get().SERVER_BUSY_MESSAGE.equals(error) || Config.get().COMMAND_TIMEOUT_MESSAGE.equals(error);
+    }
+}
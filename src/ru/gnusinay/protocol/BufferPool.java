@@ -0,0 +1,148 @@
+package ru.gnusinay.protocol;
+
+import ru.gnusinay.server.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Класс реализует пул прямых (direct) буферов для сетевого ввода-вывода.
+ * Буферы разбиты на классы по размеру - степени двойки от MIN_SIZE до
+ * Config.BUFFER_POOL_MAX_SIZE. Буфер выдается из класса, в который помещается
+ * запрошенный размер, и после использования должен быть возвращен методом
+ * release. В каждом классе хранится не более Config.BUFFER_POOL_CLASS_LIMIT
+ * свободных буферов. Буферы больше максимального размера не кешируются и
+ * выделяются в куче.
+ * Если задан Config.BUFFER_POOL_LEAK_TIMEOUT, пул работает в режиме отладки
+ * и запоминает место выдачи каждого буфера: повторный возврат буфера приводит
+ * к исключению, а буферы, не возвращенные дольше заданного времени, можно
+ * получить методом getLeaks
+ * */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    private static final boolean debug = Config.get().BUFFER_POOL_LEAK_TIMEOUT > 0;
+    private static final int maxSize = Integer.highestOneBit(Math.max(MIN_SIZE, Config.get().BUFFER_POOL_MAX_SIZE));
+    private static final int classCount = Integer.numberOfTrailingZeros(maxSize) - MIN_SHIFT + 1;
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] classes = createClasses();
+    private static final AtomicInteger[] classSizes = new AtomicInteger[classCount];
+    private static final AtomicLong allocations = new AtomicLong();
+    private static final Map<ByteBuffer, Allocation> outstanding = new IdentityHashMap<>();
+
+    static {
+        for (int i = 0; i < classCount; i++) {
+            classSizes[i] = new AtomicInteger();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<ByteBuffer>[] createClasses() {
+        ConcurrentLinkedQueue<ByteBuffer>[] result = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[classCount];
+        for (int i = 0; i < classCount; i++) {
+            result[i] = new ConcurrentLinkedQueue<>();
+        }
+        return result;
+    }
+
+    /** Метод выдает буфер емкостью не меньше size байт. Позиция буфера равна 0,
+     * граница (limit) равна size
+     * */
+    public static ByteBuffer acquire(int size) {
+        int index = getClassIndex(size);
+        ByteBuffer buffer = null;
+        if (index < classCount) {
+            buffer = classes[index].poll();
+            if (buffer != null) {
+                classSizes[index].decrementAndGet();
+            } else {
+                buffer = ByteBuffer.allocateDirect(MIN_SIZE << index);
+                allocations.incrementAndGet();
+            }
+        } else {
+            buffer = ByteBuffer.allocate(size);
+            allocations.incrementAndGet();
+        }
+        buffer.clear().limit(size);
+        if (debug) {
+            synchronized (outstanding) {
+                outstanding.put(buffer, new Allocation());
+            }
+        }
+        return buffer;
+    }
+
+    /** Метод возвращает буфер в пул. После возврата буфер использовать нельзя
+     * */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (debug) {
+            synchronized (outstanding) {
+                if (outstanding.remove(buffer) == null) {
+                    throw new IllegalStateException("Buffer is released twice or was not acquired from the pool");
+                }
+            }
+        }
+        if (!buffer.isDirect()) {
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if (index < 0 || index >= classCount) {
+            return;
+        }
+        if (classSizes[index].incrementAndGet() <= Config.get().BUFFER_POOL_CLASS_LIMIT) {
+            classes[index].offer(buffer);
+        } else {
+            classSizes[index].decrementAndGet();
+        }
+    }
+
+    /** Количество буферов, выделенных пулом с момента запуска. В установившемся
+     * режиме значение не растет
+     * */
+    public static long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /** Метод возвращает описания буферов, выданных больше olderThan миллисекунд
+     * назад и не возвращенных в пул. Работает только в режиме отладки
+     * */
+    public static List<String> getLeaks(long olderThan) {
+        List<String> leaks = new ArrayList<>();
+        long time = System.currentTimeMillis() - olderThan;
+        synchronized (outstanding) {
+            for (Map.Entry<ByteBuffer, Allocation> entry : outstanding.entrySet()) {
+                if (entry.getValue().time < time) {
+                    StringBuilder builder = new StringBuilder();
+                    builder.append("Buffer of ").append(entry.getKey().capacity()).append(" bytes is not released, acquired at");
+                    for (StackTraceElement element : entry.getValue().site.getStackTrace()) {
+                        builder.append("\n\t").append(element);
+                    }
+                    leaks.add(builder.toString());
+                }
+            }
+        }
+        return leaks;
+    }
+
+    private static int getClassIndex(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /** Класс описывает место и время выдачи буфера
+     * */
+    private static class Allocation {
+        private final Throwable site = new Throwable();
+        private final long time = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,36 @@
+package ru.gnusinay.protocol;
+
+/** Перечисление описывает уровни надежности сохранения изменений файловой
+ * системы в журнал на диске (см. MutationJournal):
+ * ASYNC - ответ отправляется сразу, изменение сохраняется в течение окна группировки;
+ * GROUP - ответ отправляется после сохранения группы изменений, накопленной за окно;
+ * SYNC - ответ отправляется после немедленного сохранения изменения.
+ * Уровень задается настройкой сервера Config.DURABILITY и может быть переопределен
+ * для отдельной команды флагом пакета (см. Packet.setDurability)
+ * */
+public enum Durability {
+    ASYNC("async"),
+    GROUP("group"),
+    SYNC("sync");
+
+    private String name;
+
+    Durability(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Метод возвращает уровень по имени без учета регистра или null, если уровень не найден
+     * */
+    public static Durability getByName(String name) {
+        for (Durability durability : values()) {
+            if (durability.name.equalsIgnoreCase(name)) {
+                return durability;
+            }
+        }
+        return null;
+    }
+}
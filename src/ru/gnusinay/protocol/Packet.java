@@ -5,12 +5,18 @@ import ru.gnusinay.client.CommandType;
 /** Класс, описывающий сообщения, которыми
  * обмениваются клиент-сервер. Состоит из
  * кода команды, имени пользователя и текста
- * (параметров) команды
+ * (параметров) команды. Команда, изменяющая
+ * файловую систему, может содержать флаг уровня
+ * надежности сохранения изменения (Durability).
+ * Клиент может пометить команду идентификатором запроса,
+ * сервер возвращает его в ответе на команду
  * */
 public class Packet {
     private String commandCode;
     private String userName;
     private String text;
+    private Durability durability;
+    private long requestId;
 
     public Packet(CommandType commandType, String userName) {
         this.commandCode = commandType.getCode();
@@ -40,6 +46,27 @@ public class Packet {
         this.text = text;
     }
 
+    /** Уровень надежности, заданный для команды, или null, если используется уровень сервера
+     * */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /** Идентификатор запроса, заданный клиентом, или 0, если команда не помечена
+     * (и для пакетов, которые не являются ответами на команды)
+     * */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
     public CommandType getCommandType() {
         return CommandType.getCommandTypeByCode(commandCode);
     }
@@ -47,7 +74,7 @@ public class Packet {
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        builder.append(this.getCommandCode()).append(Protocol.SEPARATOR);
+        builder.append(Protocol.getCodeField(this)).append(Protocol.SEPARATOR);
         builder.append(this.getUserName());
         if (!this.getText().isEmpty()) {
             builder.append(Protocol.SEPARATOR).append(this.getText());
@@ -0,0 +1,123 @@
+package ru.gnusinay.protocol;
+
+import ru.gnusinay.server.Config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Класс сжимает и распаковывает пакеты одного соединения алгоритмом deflate.
+ * Сжатие согласуется при подключении: клиент предлагает алгоритм NAME в пакете
+ * CONNECT_TO_SERVER, сервер подтверждает его в ответе CONNECT_OK. Сжимаются
+ * только сообщения длиннее порога и только если сжатие уменьшает их размер.
+ * У сжатого сообщения установлен старший бит длины (COMPRESSED), а тело
+ * начинается с 4 байтов исходной длины, за которыми следуют сжатые данные.
+ * Объекты Deflater и Inflater создаются один раз на соединение и
+ * переиспользуются, после закрытия соединения их нужно освободить методом close
+ * */
+public class PacketCompressor {
+    static public final String NAME = "deflate";
+    static public final int COMPRESSED = 0x80000000;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final int threshold;
+    private boolean closed;
+
+    /**
+     * @param level уровень сжатия Deflater (1 - быстрее, 9 - сильнее)
+     * @param threshold минимальная длина сообщения (байт), которое сжимается
+     * */
+    public PacketCompressor(int level, int threshold) {
+        this.deflater = new Deflater(level);
+        this.threshold = threshold;
+    }
+
+    /** Метод сжимает сообщение, подготовленное методом Protocol.encodeToBuffer.
+     * Если сообщение сжато, исходный буфер возвращается в пул, иначе он же и
+     * возвращается методом
+     *
+     * @return буфер из пула BufferPool, подготовленный для записи в канал
+     * */
+    public synchronized ByteBuffer compress(ByteBuffer frame) {
+        int length = frame.remaining() - 4;
+        if (closed || length < threshold) {
+            return frame;
+        }
+        ByteBuffer compressed = BufferPool.acquire(frame.remaining());
+        compressed.position(8);
+        frame.position(frame.position() + 4);
+        deflater.setInput(frame);
+        deflater.finish();
+        while (!deflater.finished() && compressed.hasRemaining()) {
+            deflater.deflate(compressed);
+        }
+        boolean finished = deflater.finished();
+        deflater.reset();
+        frame.position(0);
+        if (!finished) {
+            BufferPool.release(compressed);
+            return frame;
+        }
+        compressed.putInt(0, COMPRESSED | (compressed.position() - 4));
+        compressed.putInt(4, length);
+        compressed.flip();
+        BufferPool.release(frame);
+        return compressed;
+    }
+
+    /** Метод распаковывает тело сжатого сообщения. Исходная длина, указанная
+     * отправителем, не может превышать Config.MAX_PACKET_SIZE, а распакованные
+     * данные должны совпадать с ней по длине
+     *
+     * @return буфер из пула BufferPool с исходным сообщением, после декодирования его нужно вернуть в пул
+     * */
+    public synchronized ByteBuffer decompress(ByteBuffer body) throws IOException {
+        if (closed) {
+            throw new IOException("Connection is closed");
+        }
+        int length = body.getInt();
+        if (length < 0 || length > Config.get().MAX_PACKET_SIZE) {
+            throw new IOException("Incorrect packet length " + length);
+        }
+        ByteBuffer message = BufferPool.acquire(length);
+        boolean valid;
+        try {
+            inflater.setInput(body);
+            while (message.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(message) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (!message.hasRemaining() && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                BufferPool.release(message);
+                throw new IOException("Compressed packet is longer than declared length " + length);
+            }
+            valid = !message.hasRemaining() && inflater.finished();
+        } catch (DataFormatException e) {
+            BufferPool.release(message);
+            throw new IOException(e);
+        } finally {
+            inflater.reset();
+        }
+        if (!valid) {
+            BufferPool.release(message);
+            throw new IOException("Compressed packet is truncated");
+        }
+        message.flip();
+        return message;
+    }
+
+    /** Метод освобождает ресурсы Deflater и Inflater. После закрытия сообщения
+     * не сжимаются
+     * */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            deflater.end();
+            inflater.end();
+        }
+    }
+}
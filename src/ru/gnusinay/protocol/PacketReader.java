@@ -0,0 +1,88 @@
+package ru.gnusinay.protocol;
+
+import ru.gnusinay.server.Config;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/** Класс собирает пакеты из неблокирующего канала. Канал может отдавать
+ * сообщение частями, поэтому прочитанная часть заголовка или тела пакета
+ * хранится до следующего вызова read. Тело пакета читается в буфер из пула
+ * BufferPool, который возвращается в пул сразу после декодирования.
+ * Сжатые сообщения распаковываются компрессором, заданным после
+ * согласования сжатия (см. PacketCompressor). Пакет длиннее
+ * Config.MAX_PACKET_SIZE (в том числе после распаковки) считается ошибкой
+ * протокола: буфер под него не выделяется, а соединение нужно закрыть.
+ * Объект создается для каждого соединения. Методы синхронизированы, чтобы
+ * буфер можно было вернуть в пул при закрытии соединения из другого потока
+ * */
+public class PacketReader {
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body;
+    private boolean compressed;
+    private volatile PacketCompressor compressor;
+
+    public void setCompressor(PacketCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /** Метод читает из канала доступные данные текущего пакета
+     *
+     * @return пакет, если он прочитан полностью, или null, если данных пока недостаточно
+     * @throws EOFException если канал закрыт удаленной стороной
+     * @throws IOException если длина пакета превышает Config.MAX_PACKET_SIZE
+     * */
+    public synchronized Packet read(ReadableByteChannel channel) throws IOException {
+        if (body == null) {
+            if (channel.read(header) < 0) {
+                throw new EOFException();
+            }
+            if (header.hasRemaining()) {
+                return null;
+            }
+            header.flip();
+            int length = header.getInt();
+            header.clear();
+            compressed = (length & PacketCompressor.COMPRESSED) != 0;
+            length &= ~PacketCompressor.COMPRESSED;
+            if (compressed && compressor == null) {
+                throw new IOException("Compressed packet without negotiated compression");
+            }
+            if (length > Config.get().MAX_PACKET_SIZE) {
+                throw new IOException("Packet length " + length + " exceeds MAX_PACKET_SIZE");
+            }
+            body = BufferPool.acquire(length);
+        }
+        if (body.hasRemaining() && channel.read(body) < 0) {
+            throw new EOFException();
+        }
+        if (body.hasRemaining()) {
+            return null;
+        }
+        body.flip();
+        try {
+            if (!compressed) {
+                return Protocol.decode(body);
+            }
+            ByteBuffer message = compressor.decompress(body);
+            try {
+                return Protocol.decode(message);
+            } finally {
+                BufferPool.release(message);
+            }
+        } finally {
+            BufferPool.release(body);
+            body = null;
+        }
+    }
+
+    /** Метод возвращает в пул буфер недочитанного пакета. Вызывается при закрытии соединения
+     * */
+    public synchronized void release() {
+        BufferPool.release(body);
+        body = null;
+        header.clear();
+    }
+}
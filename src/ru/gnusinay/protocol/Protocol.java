@@ -1,8 +1,16 @@
 package ru.gnusinay.protocol;
 
 import ru.gnusinay.client.CommandType;
+import ru.gnusinay.server.Config;
 import ru.gnusinay.server.User;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 /** Класс реализует протокол передачи сообщения между
  * клиентом и сервером. Содержит методы колдирования
@@ -10,7 +18,14 @@ import java.nio.charset.Charset;
  * */
 public class Protocol {
     static public final String SEPARATOR = "%";
+    static public final char DURABILITY_SEPARATOR = '/';
+    static public final char REQUEST_ID_SEPARATOR = '#';
 
+    static private final ThreadLocal<CharsetDecoder> decoders = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    static private final ThreadLocal<CharBuffer> charBuffers = new ThreadLocal<>();
 
     /** Метод кодирует сообщение в масссив байтов
      * В первые 4 байта кодированого сообщения
@@ -29,7 +44,7 @@ public class Protocol {
     static public byte[] encode(Packet packet) {
         StringBuilder builder = new StringBuilder();
         builder.append("0000");
-        builder.append(packet.getCommandCode()).append(SEPARATOR);
+        builder.append(getCodeField(packet)).append(SEPARATOR);
         builder.append(packet.getUserName());
         if (!packet.getText().isEmpty()) {
             builder.append(SEPARATOR).append(packet.getText());
@@ -42,24 +57,102 @@ public class Protocol {
         return message;
     }
 
+    /** Метод кодирует сообщение так же, как encode, но записывает его в буфер
+     * из пула BufferPool без промежуточного массива. Буфер подготовлен для записи
+     * в канал, после записи его нужно вернуть в пул
+     * */
+    static public ByteBuffer encodeToBuffer(Packet packet) {
+        String code = getCodeField(packet);
+        String userName = packet.getUserName();
+        String text = packet.getText();
+        int length = getUtf8Length(code) + 1 + getUtf8Length(userName);
+        if (!text.isEmpty()) {
+            length += 1 + getUtf8Length(text);
+        }
+        ByteBuffer buffer = BufferPool.acquire(4 + length);
+        buffer.putInt(length);
+        putUtf8(buffer, code);
+        buffer.put((byte) SEPARATOR.charAt(0));
+        putUtf8(buffer, userName);
+        if (!text.isEmpty()) {
+            buffer.put((byte) SEPARATOR.charAt(0));
+            putUtf8(buffer, text);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     /** Метод декодирует полученный поток байтов в сообщение
      * */
     static public Packet decode(byte[] buffer) {
-        String message = new String(buffer, Charset.forName("UTF-8"));
-        String[] parts = message.split(SEPARATOR);
-        try {
-            Packet packet = new Packet(CommandType.getCommandTypeByCode(parts[0]), parts[1]);
-            if (parts.length > 2) {
-                StringBuilder builder = new StringBuilder(parts[2]);
-                for(int i = 3; i < parts.length; i++) {
-                    builder.append(SEPARATOR).append(parts[i]);
-                }
-                packet.setText(builder.toString());
+        return decode(ByteBuffer.wrap(buffer));
+    }
+
+    /** Метод декодирует сообщение из оставшихся байтов буфера. Разделители
+     * в конце сообщения отбрасываются
+     * */
+    static public Packet decode(ByteBuffer buffer) {
+        String message = getUtf8(buffer);
+        int end = message.length();
+        while (end > 0 && message.charAt(end - 1) == SEPARATOR.charAt(0)) {
+            end--;
+        }
+        int codeEnd = message.indexOf(SEPARATOR);
+        if (codeEnd < 0 || codeEnd >= end) {
+            return new Packet(CommandType.UNDEFINED, "", Config.get().NOT_RECEIVED_COMMAND);
+        }
+        int idStart = message.lastIndexOf(REQUEST_ID_SEPARATOR, codeEnd);
+        int flagEnd = idStart < 0 ? codeEnd : idStart;
+        long requestId = 0;
+        if (idStart >= 0) {
+            try {
+                requestId = Long.parseLong(message.substring(idStart + 1, codeEnd));
+            } catch (NumberFormatException e) {
+                return new Packet(CommandType.UNDEFINED, "", Config.get().NOT_RECEIVED_COMMAND);
             }
-            return packet;
-        } catch (Exception e) {
-            return new Packet(CommandType.UNDEFINED, "", e.getMessage());
         }
+        int flag = message.lastIndexOf(DURABILITY_SEPARATOR, flagEnd);
+        CommandType type = CommandType.getCommandTypeByCode(message.substring(0, flag < 0 ? flagEnd : flag));
+        if (type == null) {
+            return new Packet(CommandType.UNDEFINED, "", Config.get().NOT_RECEIVED_COMMAND);
+        }
+        Packet packet;
+        int nameEnd = message.indexOf(SEPARATOR, codeEnd + 1);
+        if (nameEnd < 0 || nameEnd >= end) {
+            packet = new Packet(type, message.substring(codeEnd + 1, end));
+        } else {
+            packet = new Packet(type, message.substring(codeEnd + 1, nameEnd), message.substring(nameEnd + 1, end));
+        }
+        if (flag >= 0) {
+            packet.setDurability(Durability.getByName(message.substring(flag + 1, flagEnd)));
+        }
+        packet.setRequestId(requestId);
+        return packet;
+    }
+
+    /** Метод возвращает поле кода команды пакета. Если для команды задан уровень
+     * надежности, он передается после кода через DURABILITY_SEPARATOR (11/sync),
+     * идентификатор запроса - последним через REQUEST_ID_SEPARATOR (11/sync#42)
+     * */
+    static String getCodeField(Packet packet) {
+        Durability durability = packet.getDurability();
+        String code = durability == null ? packet.getCommandCode() :
+                packet.getCommandCode() + DURABILITY_SEPARATOR + durability.getName();
+        return packet.getRequestId() == 0 ? code : code + REQUEST_ID_SEPARATOR + packet.getRequestId();
+    }
+
+    /** Метод считывает очередной пакет из блокирующего потока. Используется
+     * при обмене данными между серверами. Пакет длиннее Config.MAX_PACKET_SIZE
+     * не читается
+     * */
+    static public Packet readPacket(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Config.get().MAX_PACKET_SIZE) {
+            throw new IOException("Packet length " + length + " exceeds MAX_PACKET_SIZE");
+        }
+        byte[] buffer = new byte[length];
+        in.readFully(buffer);
+        return decode(buffer);
     }
 
     /** Метод декодирует переданные байты, в которых хранится количество
@@ -69,10 +162,22 @@ public class Protocol {
         return byteArrayToInt(num);
     }
 
-    /** Медот-хелпер, генерирующий пакет для подключения к серверу
+    /** Медот-хелпер, генерирующий пакет для подключения к серверу.
+     * Если сжатие включено (Config.COMPRESSION_THRESHOLD), в пакете
+     * предлагается алгоритм сжатия PacketCompressor.NAME
      * */
     static public Packet makeConnectPacket(User user) {
-        return new Packet(CommandType.CONNECT_TO_SERVER, user.getName(), user.getName());
+        String text = user.getName();
+        if (Config.get().COMPRESSION_THRESHOLD > 0) {
+            text += SEPARATOR + PacketCompressor.NAME;
+        }
+        return new Packet(CommandType.CONNECT_TO_SERVER, user.getName(), text);
+    }
+
+    /** Метод-хелпер, создающий компрессор соединения с настройками из конфигурации
+     * */
+    static public PacketCompressor makeCompressor() {
+        return new PacketCompressor(Config.get().COMPRESSION_LEVEL, Config.get().COMPRESSION_THRESHOLD);
     }
 
     /** Метод-хелпер, генерирующий пакет отключения от сервера
@@ -81,6 +186,72 @@ public class Protocol {
         return new Packet(CommandType.QUIT, user.getName());
     }
 
+    /** Метод декодирует оставшиеся байты буфера из UTF-8. Для декодирования
+     * используется буфер символов потока, поэтому промежуточных массивов не создается
+     * */
+    static private String getUtf8(ByteBuffer buffer) {
+        CharBuffer chars = charBuffers.get();
+        if (chars == null || chars.capacity() < buffer.remaining()) {
+            chars = CharBuffer.allocate(Math.max(256, buffer.remaining()));
+            if (chars.capacity() <= Config.get().BUFFER_POOL_MAX_SIZE) {
+                charBuffers.set(chars);
+            }
+        }
+        CharsetDecoder decoder = decoders.get().reset();
+        chars.clear();
+        decoder.decode(buffer, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+
+    static private int getUtf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /** Метод записывает строку в буфер в кодировке UTF-8. Непарные суррогатные
+     * символы заменяются символом '?', как и при String.getBytes
+     * */
+    static private void putUtf8(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
     static private int byteArrayToInt(byte[] b) {
         int dt = 0;
         if ((b[0] & 0x80) != 0)
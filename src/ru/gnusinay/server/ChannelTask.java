@@ -1,6 +1,7 @@
 package ru.gnusinay.server;
 
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /** Класс описывает задачу на чтение/запись данных из канала.
@@ -8,8 +9,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  * какому пользователлю относится задача, тип задачи - чтение/запись,
  * экземпляр сервера, с которого поступила задач.
  * Для идентификации каждой отдельной задачи предназначено поле id.
- * При формировании здачи на запись, к задаче прикрепляется пакет
- * который необходимо отправить пользователю
+ * К задаче на выполнение команды прикрепляется полученный пакет, задача
+ * на запись отправляет пакеты из очереди отправки пользователя (OutboundQueue).
+ * Задача на выполнение команды может иметь срок (deadline): если до его
+ * истечения задача не начала выполняться, сервер отвечает пользователю
+ * ошибкой, а сама задача пропускается. Кто первым захватит задачу методом
+ * claim - обработчик или таймер, тот ее и завершает.
+ * Задача хранит отметки времени (System.nanoTime) создания, выбора из
+ * планировщика и начала обработки, по которым трассировка команды
+ * (RequestTrace) определяет время ожидания в очереди и пуле потоков
  * */
 public class ChannelTask {
     private static AtomicInteger count = new AtomicInteger(0);
@@ -19,6 +27,13 @@ public class ChannelTask {
     private Server server;
     private ChannelTaskType type;
     private Object attachment;
+    private TaskLane lane;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private volatile HashedWheelTimer.Timeout deadline;
+    private final long createdAt = System.nanoTime();
+    private volatile long takenAt;
+    private volatile long startedAt;
+    private RequestTrace trace;
 
     ChannelTask(User user, Server server, ChannelTaskType type) {
         this.id = count.incrementAndGet();
@@ -59,4 +74,59 @@ public class ChannelTask {
         return attachment;
     }
 
+    public TaskLane getLane() {
+        return lane;
+    }
+
+    void setLane(TaskLane lane) {
+        this.lane = lane;
+    }
+
+    /** Метод захватывает задачу для обработки
+     *
+     * @return false, если задача уже захвачена обработчиком или таймером
+     * */
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    HashedWheelTimer.Timeout getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(HashedWheelTimer.Timeout deadline) {
+        this.deadline = deadline;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    long getTakenAt() {
+        return takenAt;
+    }
+
+    void setTakenAt(long takenAt) {
+        this.takenAt = takenAt;
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    /** Трассировка команды, к которой относится задача, или null,
+     * если команда не трассируется
+     * */
+    RequestTrace getTrace() {
+        return trace;
+    }
+
+    void setTrace(RequestTrace trace) {
+        this.trace = trace;
+    }
+
 }
@@ -1,9 +1,10 @@
 package ru.gnusinay.server;
 
 
-/** Класс определяет тип задачи: запись/чтение
+/** Класс определяет тип задачи: запись/чтение/выполнение команды
  */
 public enum ChannelTaskType {
     WRITABLE,
-    READABLE;
+    READABLE,
+    EXECUTABLE;
 }
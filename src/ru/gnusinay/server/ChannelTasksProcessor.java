@@ -1,43 +1,93 @@
 package ru.gnusinay.server;
 
+import ru.gnusinay.client.CommandType;
 import ru.gnusinay.protocol.Packet;
 import ru.gnusinay.protocol.Protocol;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** Класс-поток для обработки задач на чтение/запись в канал.
  * Запускается отдельно от основного потока сервер-приложения.
- * Внутри класса хранится блокирующая очередь, передаваемая в конструктор
- * класса, откуда поток забирает вновь поступившие задачи. Очередь
- * синхронизирована с основным потоком сервер-приложения. Одновременно
+ * Внутри класса хранится планировщик задач, передаваемый в конструктор
+ * класса, откуда поток забирает вновь поступившие задачи. Задача забирается
+ * из планировщика только при наличии свободного потока-обработчика, поэтому
+ * порядок выполнения определяется приоритетами планировщика. Одновременно
  * может исполняться несколько задач, в зависимости от настроек в
- * конфигурационном файле
+ * конфигурационном файле. Число потоков-обработчиков можно изменить во время
+ * работы (см. resize)
  * */
 public class ChannelTasksProcessor extends Thread {
-    private BlockingQueue<ChannelTask> queue;
+    private ChannelTasksScheduler scheduler;
+    private final ThreadPoolExecutor executorService;
+    private final WorkerPermits freeWorkers;
+    private int workerCount;
 
-    public ChannelTasksProcessor(BlockingQueue<ChannelTask> queue) {
-        this.queue = queue;
+    public ChannelTasksProcessor(ChannelTasksScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.workerCount = Math.max(1, Config.get().TASK_WORKER_COUNT);
+        this.executorService = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.freeWorkers = new WorkerPermits(workerCount);
     }
 
-    /** Метод забирает задачи из очереди, определяет тип задач и запускает обработку задачи
+    /** Метод изменяет число потоков-обработчиков. При увеличении новые задачи
+     * сразу забираются из планировщика, при уменьшении лишние потоки завершаются
+     * после окончания выполняемых задач, а новые задачи не забираются, пока
+     * число занятых потоков не станет меньше count
+     * */
+    public synchronized void resize(int count) {
+        count = Math.max(1, count);
+        if (count > workerCount) {
+            executorService.setMaximumPoolSize(count);
+            executorService.setCorePoolSize(count);
+            freeWorkers.release(count - workerCount);
+        } else if (count < workerCount) {
+            executorService.setCorePoolSize(count);
+            executorService.setMaximumPoolSize(count);
+            freeWorkers.reduce(workerCount - count);
+        }
+        workerCount = count;
+    }
+
+    /** Метод выполняет фоновую задачу в пуле потоков-обработчиков (см.
+     * CommandDriver.setExecutor). Задача ожидает свободного потока в очереди пула
+     * */
+    public void execute(Runnable command) {
+        executorService.execute(command);
+    }
+
+    /** Метод забирает задачи из планировщика, определяет тип задач и запускает обработку задачи
      * в отдельном потоке. Метод может запускать параллельно несколько задач
      * */
     public void run() {
-        ExecutorService executorService = Executors.newFixedThreadPool(Config.TASK_WORKER_COUNT);
         while (true) {
             try {
-                ChannelTask task = queue.take();
-                if (task != null) {
-                    Thread thread = getProcessor(task);
-                    if (thread != null) {
-                        Server.logging(String.format("ID - %d. Запуск задачи, поток - %s", task.getId(), Thread.currentThread().getName()));
-                        executorService.execute(thread);
-                    }
+                freeWorkers.acquire();
+                ChannelTask task = scheduler.take();
+                task.setTakenAt(System.nanoTime());
+                Thread thread = getProcessor(task);
+                if (thread != null) {
+                    Server.debug("ID - %d. Запуск задачи, поток - %s", task.getId(), Thread.currentThread().getName());
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            task.setStartedAt(System.nanoTime());
+                            try {
+                                thread.run();
+                            } finally {
+                                scheduler.complete(task);
+                                freeWorkers.release();
+                            }
+                        }
+                    });
+                } else {
+                    scheduler.complete(task);
+                    freeWorkers.release();
                 }
             } catch (InterruptedException e) {
                 Server.logging("ChannelTasksProcessor - " + e.getMessage());
@@ -45,6 +95,21 @@ public class ChannelTasksProcessor extends Thread {
         }
     }
 
+    /** Класс описывает свободные потоки-обработчики. Число разрешений можно
+     * уменьшить, в том числе ниже нуля, если все потоки заняты
+     * */
+    private static class WorkerPermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        WorkerPermits(int permits) {
+            super(permits);
+        }
+
+        void reduce(int count) {
+            reducePermits(count);
+        }
+    }
+
     /** Метод по типу задачи выбирает соответствующую реализацию класса-обработчика
      * */
     public Thread getProcessor(ChannelTask task) {
@@ -53,6 +118,8 @@ public class ChannelTasksProcessor extends Thread {
                 return new ReadableThread(task);
             case WRITABLE:
                 return new WritableThread(task);
+            case EXECUTABLE:
+                return new ExecutableThread(task);
             default: return null;
         }
     }
@@ -68,38 +135,73 @@ class ReadableThread extends Thread {
         this.task = task;
     }
 
-    /** Метод считывает из канала данные. На первом этапе считываются
-     * первые 4 байта сообщения, в которых содержится информация о длине
-     * поступившего сообщения, затем создается буфер необходимого размера,
-     * в котороый записывается сообщение. Далее сообщение декодируется в
-     * пакет и обрабатывается.
+    /** Метод считывает из канала доступные данные пакета. Пакет может
+     * прийти по частям, поэтому недочитанная часть хранится в объекте
+     * PacketReader пользователя до следующего события чтения, а канал
+     * снова начинает опрашиваться на чтение. Полностью прочитанный пакет
+     * обрабатывается, для попавшей в выборку команды начинается трассировка
+     * (RequestTrace) с отметок задачи, прочитавшей последнюю часть пакета.
+     * При ошибке протокола (например, слишком длинном пакете) соединение закрывается
      * */
     @Override
     public void run() {
         User user = task.getUser();
         SocketChannel socketChannel = task.getChannel();
-        ByteBuffer readBuffer = ByteBuffer.allocate(4);
-        int readByte = 0;
+        Packet packet = null;
+        boolean closed = false;
         try {
-            readByte = socketChannel.read(readBuffer);
-            if (readByte > 0) {
-                int byteCount = Protocol.getPacketLength(readBuffer.array());
-                readBuffer = ByteBuffer.allocate(byteCount);
-                readByte = socketChannel.read(readBuffer);
-
-            }
+            packet = user.getReader().read(socketChannel);
+        } catch (EOFException e) {
+            closed = true;
         } catch (IOException e) {
-            readByte = -1;
+            Server.logging(String.format("ID - %d. Ошибка чтения пакета пользователя %s: %s", task.getId(), user.getName(), e.getMessage()));
+            closed = true;
         }
-        if (readByte > 0) {
-            Packet packet = Protocol.decode(readBuffer.array());
-            Server.logging(String.format("ID - %d. Получен пакет '%s' от пользователя %s", task.getId(), packet.toString(), task.getUser().getName()));
-            task.getServer().packetProcess(packet, user);
-        } else if (readByte == -1) {
+        if (packet != null) {
+            user.touch();
+            // Секрет узла кластера в журнал не выводится
+            Server.debug("ID - %d. Получен пакет '%s' от пользователя %s", task.getId(),
+                    packet.getCommandType() == CommandType.CLUSTER_AUTH ? packet.getCommandType() : packet, task.getUser().getName());
+            task.getServer().submitPacket(packet, user, RequestTrace.start(task, packet.getCommandType()));
+        } else if (closed) {
             Server.logging(String.format("Пользователь %s закрыл канал", user.getName()));
             task.getServer().packetProcess(Protocol.makeUnconnectedPacket(user), user);
+        } else {
+            user.touch();
+            task.getServer().resumeReading(user);
         }
-        Server.logging(String.format("ID - %d. Задача обработана, поток - %s", task.getId(), Thread.currentThread().getName()));
+        Server.debug("ID - %d. Задача обработана, поток - %s", task.getId(), Thread.currentThread().getName());
+    }
+}
+
+/** Класс-поток выполняющий пользовательскую команду, принятую
+ * планировщиком. Хранит внутри ссылку на обрабатываемую задачу.
+ * Задача, срок которой уже истек, не выполняется.
+ * */
+class ExecutableThread extends Thread {
+    private ChannelTask task;
+
+    ExecutableThread(ChannelTask task) {
+        this.task = task;
+    }
+
+    @Override
+    public void run() {
+        if (!task.claim()) {
+            Server.logging(String.format("ID - %d. Срок задачи истек, задача пропущена", task.getId()));
+            return;
+        }
+        HashedWheelTimer.Timeout deadline = task.getDeadline();
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        RequestTrace trace = task.getTrace();
+        if (trace != null) {
+            trace.mark(RequestTrace.Stage.TAKEN, task.getTakenAt());
+            trace.mark(RequestTrace.Stage.STARTED, task.getStartedAt());
+        }
+        task.getServer().packetProcess((Packet) task.getAttachment(), task.getUser(), trace);
+        Server.debug("ID - %d. Задача обработана, поток - %s", task.getId(), Thread.currentThread().getName());
     }
 }
 
@@ -113,25 +215,34 @@ class WritableThread extends Thread {
         this.task = task;
     }
 
-    /** Метод записывает в канала данные. На первом этапе передаваемый
-     * пакет кодируется и далее полученный поток байтов записывается в канал
+    /** Метод записывает в канал пакеты из очереди отправки пользователя
+     * (OutboundQueue), пока очередь не опустеет. Пакет кодируется в буфер из
+     * пула BufferPool (и сжимается, если сжатие согласовано при подключении).
+     * Канал неблокирующий: если он не принял буфер целиком, задача завершается,
+     * а запись продолжит следующая задача по событию записи канала
+     * (см. Server.awaitWritable), поэтому поток-обработчик не ждет медленного
+     * клиента. Для канала одновременно выполняется не более одной задачи на запись
      * */
     @Override
     public void run() {
         User user = task.getUser();
         SocketChannel socketChannel = task.getChannel();
-        Packet packet = (Packet) task.getAttachment();
+        OutboundQueue outbound = user.getOutbound();
         try {
-            if (socketChannel.isConnected()) {
-                socketChannel.write(ByteBuffer.wrap(Protocol.encode(packet)));
-                Server.logging(String.format("ID - %d. Пакет '%s' отправлен пользователю %s", task.getId(), packet.toString(), user.getName()));
+            ByteBuffer buffer;
+            while ((buffer = outbound.next(user.getCompressor())) != null) {
+                socketChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    task.getServer().awaitWritable(user);
+                    break;
+                }
+                Packet packet = outbound.written();
+                Server.debug("ID - %d. Пакет '%s' отправлен пользователю %s", task.getId(), packet, user.getName());
             }
         } catch (IOException e) {
-            {
-                Server.logging(String.format("ID - %d. Пакет '%s' не удалось отправить пользователю %s", task.getId(), packet.toString(), user.getName()));
-                e.printStackTrace();
-            }
+            Server.logging(String.format("ID - %d. Пакеты не удалось отправить пользователю %s: %s", task.getId(), user.getName(), e.getMessage()));
+            outbound.abort();
         }
-        Server.logging(String.format("ID - %d. Задача обработана, поток - %s", task.getId(), Thread.currentThread().getName()));
+        Server.debug("ID - %d. Задача обработана, поток - %s", task.getId(), Thread.currentThread().getName());
     }
 }
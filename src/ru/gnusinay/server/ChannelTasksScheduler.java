@@ -0,0 +1,166 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.protocol.Packet;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Класс-планировщик задач сервера. Вместо одной общей очереди задачи
+ * распределяются по полосам (TaskLane) с собственными ограничениями длины.
+ * Добавление задачи никогда не блокирует вызывающий поток: если полоса
+ * заполнена, задача отклоняется и сервер сразу отвечает пользователю, что он
+ * занят. Квота пользователя обеспечивается самим сервером: пока команда
+ * соединения не выполнена, следующая команда из канала не читается.
+ * Полоса CONTROL ограничена числом соединений: на каждое соединение в ней
+ * не больше одной задачи на чтение, одной задачи на запись (ответы, сообщения
+ * и уведомления ждут в ограниченной очереди отправки OutboundQueue), одной
+ * служебной команды клиента и одной команды отключения от таймера.
+ * Задачи выбираются в порядке приоритета CONTROL, INTERACTIVE, BULK.
+ * Тяжелые задачи одновременно занимают не более Config.BULK_WORKER_COUNT
+ * потоков, а чтобы они не голодали, после Config.BULK_TAKE_RATIO подряд
+ * выбранных интерактивных задач выбирается одна тяжелая.
+ * */
+public class ChannelTasksScheduler {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<TaskLane, ArrayDeque<ChannelTask>> lanes = new EnumMap<>(TaskLane.class);
+    private int runningBulk;
+    private int skippedBulk;
+
+    public ChannelTasksScheduler() {
+        for (TaskLane lane : TaskLane.values()) {
+            lanes.put(lane, new ArrayDeque<ChannelTask>());
+        }
+    }
+
+    /** Метод пытается поместить задачу в очередь. Задачи на чтение/запись
+     * в канал принимаются всегда: для каждого канала существует не более
+     * одной задачи на чтение и одной задачи на запись (см. OutboundQueue).
+     * Задачи на выполнение команд проходят проверку длины полосы.
+     *
+     * @return false, если задача отклонена
+     * */
+    public boolean offer(ChannelTask task) {
+        TaskLane lane = getLane(task);
+        task.setLane(lane);
+        lock.lock();
+        try {
+            ArrayDeque<ChannelTask> queue = lanes.get(lane);
+            if (lane != TaskLane.CONTROL && queue.size() >= getCapacity(lane)) {
+                return false;
+            }
+            queue.addLast(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод забирает следующую задачу в порядке приоритета. Если подходящих
+     * задач нет, поток ожидает их появления
+     * */
+    public ChannelTask take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                ChannelTask task = poll();
+                if (task != null) {
+                    return task;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод вызывается после завершения обработки задачи и освобождает
+     * занятые ей ресурсы планировщика
+     * */
+    public void complete(ChannelTask task) {
+        if (task.getType() != ChannelTaskType.EXECUTABLE || task.getLane() != TaskLane.BULK) {
+            return;
+        }
+        lock.lock();
+        try {
+            runningBulk--;
+            if (!lanes.get(TaskLane.BULK).isEmpty()) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод удаляет из полосы задачу, которая еще не выбрана обработчиком,
+     * например задачу с истекшим сроком, чтобы она не занимала место в полосе
+     * */
+    public void remove(ChannelTask task) {
+        lock.lock();
+        try {
+            lanes.get(task.getLane()).remove(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод будит потоки, ожидающие задачи, после изменения настроек
+     * планировщика (например, Config.BULK_WORKER_COUNT)
+     * */
+    public void reconfigure() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(TaskLane lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ChannelTask poll() {
+        ArrayDeque<ChannelTask> control = lanes.get(TaskLane.CONTROL);
+        ArrayDeque<ChannelTask> interactive = lanes.get(TaskLane.INTERACTIVE);
+        ArrayDeque<ChannelTask> bulk = lanes.get(TaskLane.BULK);
+
+        if (!control.isEmpty()) {
+            return control.pollFirst();
+        }
+        Config config = Config.get();
+        boolean bulkAvailable = !bulk.isEmpty() && runningBulk < config.BULK_WORKER_COUNT;
+        if (bulkAvailable && (interactive.isEmpty() || skippedBulk >= config.BULK_TAKE_RATIO)) {
+            skippedBulk = 0;
+            runningBulk++;
+            return bulk.pollFirst();
+        }
+        if (!interactive.isEmpty()) {
+            if (bulkAvailable) {
+                skippedBulk++;
+            }
+            return interactive.pollFirst();
+        }
+        return null;
+    }
+
+    private TaskLane getLane(ChannelTask task) {
+        if (task.getType() == ChannelTaskType.EXECUTABLE) {
+            return TaskLane.getLaneByCommand(((Packet) task.getAttachment()).getCommandType());
+        }
+        return TaskLane.CONTROL;
+    }
+
+    private int getCapacity(TaskLane lane) {
+        return lane == TaskLane.BULK ? Config.get().BULK_QUEUE_SIZE : Config.get().TASK_QUEUE_SIZE;
+    }
+}
@@ -0,0 +1,97 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.vfs.Directory;
+import ru.gnusinay.vfs.VirtualFileSystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/** Класс-поток периодически сохраняет снимки загруженных дисков в каталог
+ * Config.STORAGE_DIR. Интервал сохранения задается настройкой CHECKPOINT_INTERVAL,
+ * при значении 0 снимки сохраняются только при остановке сервера.
+ * Если передан журнал на диске, после сохранения снимков удаляются поколения
+ * журнала, изменения которых уже содержатся в снимках
+ * */
+public class CheckpointThread extends Thread {
+    private MutationJournal journal;
+    private MutationLog log;
+
+    public CheckpointThread(MutationJournal journal, MutationLog log) {
+        this.journal = journal;
+        this.log = log;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (Config.get().CHECKPOINT_INTERVAL > 0) {
+            try {
+                Thread.sleep(Config.get().CHECKPOINT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            checkpointAll(journal, log);
+        }
+    }
+
+    /** Метод сохраняет снимки всех загруженных дисков. Состояние дисков
+     * фиксируется под блокировками всех дисков журнала изменений log (может быть
+     * null): корни дисков копируются разделяемыми копиями (см.
+     * VirtualFileSystem.shareRoot) вместе с владельцами блокировок файлов (см.
+     * VirtualFileSystem.getLockOwners), начинается новое поколение журнала journal
+     * (может быть null) и запоминается номер последней записи. Снимки записываются
+     * после снятия блокировок, а после успешного сохранения всех снимков
+     * предыдущие поколения журнала удаляются
+     * */
+    public static void checkpointAll(MutationJournal journal, MutationLog log) {
+        List<Lock> driveLocks = log != null ? log.getAllDriveLocks() : Collections.emptyList();
+        List<VirtualFileSystem> fileSystems = new ArrayList<>();
+        List<Directory> roots = new ArrayList<>();
+        List<Map<String, Collection<String>>> locks = new ArrayList<>();
+        long generation = 0;
+        long seq;
+        for (Lock lock : driveLocks) {
+            lock.lock();
+        }
+        try {
+            if (journal != null) {
+                try {
+                    generation = journal.rotate();
+                } catch (IOException e) {
+                    Server.logging("Новое поколение журнала изменений не начато: " + e.getMessage());
+                    journal = null;
+                }
+            }
+            seq = log != null ? log.getLastSeq() : 0;
+            for (VirtualFileSystem fileSystem : VirtualFileSystem.getLoadedDrives()) {
+                fileSystems.add(fileSystem);
+                roots.add(fileSystem.shareRoot());
+                locks.add(fileSystem.getLockOwners());
+            }
+        } finally {
+            for (Lock lock : driveLocks) {
+                lock.unlock();
+            }
+        }
+        boolean saved = true;
+        for (int i = 0; i < fileSystems.size(); i++) {
+            VirtualFileSystem fileSystem = fileSystems.get(i);
+            long start = System.currentTimeMillis();
+            try {
+                fileSystem.checkpoint(roots.get(i), locks.get(i), seq);
+                Server.logging(String.format("Снимок диска %s сохранен за %d мс", fileSystem.getRootName(), System.currentTimeMillis() - start));
+            } catch (IOException e) {
+                Server.logging(String.format("Снимок диска %s не сохранен: %s", fileSystem.getRootName(), e.getMessage()));
+                saved = false;
+            }
+        }
+        if (journal != null && saved) {
+            journal.deleteBefore(generation);
+        }
+    }
+}
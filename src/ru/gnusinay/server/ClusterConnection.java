@@ -0,0 +1,73 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** Класс описывает соединение с другим узлом кластера. Соединение работает
+ * в режиме запрос-ответ: отправляется пакет и ожидается ответ на него.
+ * Сразу после подключения узел предъявляет секрет Config.CLUSTER_SECRET
+ * пакетом CLUSTER_AUTH, без этого другой узел не принимает пересланные команды.
+ * Уведомления об изменениях, приходящие в это соединение, пропускаются
+ * */
+class ClusterConnection {
+    private final String node;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+
+    ClusterConnection(String node) {
+        this.node = node;
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    Packet request(Packet packet) throws IOException {
+        if (socket == null) {
+            String[] address = node.split(":");
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(address[0], Integer.parseInt(address[1])), Config.get().CLUSTER_TIMEOUT);
+            socket.setSoTimeout(Config.get().CLUSTER_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            Packet auth = send(new Packet(CommandType.CLUSTER_AUTH, packet.getUserName(), Config.get().CLUSTER_SECRET));
+            if (auth.getCommandType() == CommandType.SERVER_ERROR) {
+                close();
+                throw new IOException(auth.getText());
+            }
+        }
+        return send(packet);
+    }
+
+    private Packet send(Packet packet) throws IOException {
+        out.write(Protocol.encode(packet));
+        out.flush();
+        while (true) {
+            Packet response = Protocol.readPacket(in);
+            if (response.getCommandType() != CommandType.SERVER_MESSAGE) {
+                return response;
+            }
+        }
+    }
+
+    void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Server.logging("ClusterConnection - " + e.getMessage());
+            }
+            socket = null;
+        }
+    }
+}
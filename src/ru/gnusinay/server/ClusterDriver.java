@@ -0,0 +1,642 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.vfs.PathTrie;
+import ru.gnusinay.vfs.VFSException;
+import ru.gnusinay.vfs.VirtualFileSystem;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Драйвер узла кластера. Поддеревья верхнего уровня (например, C:\proj)
+ * распределяются между узлами из настройки CLUSTER_NODES консистентным
+ * хешированием. Команда над своим поддеревом выполняется локальным драйвером,
+ * команда над чужим поддеревом пересылается узлу-владельцу пакетом
+ * CLUSTER_FORWARD, ответ владельца возвращается пользователю. Пересланные
+ * команды всегда выполняются локально и повторно не пересылаются.
+ * Пересланные команды принимаются только от узлов, предъявивших секрет
+ * Config.CLUSTER_SECRET (пакет CLUSTER_AUTH), служебные команды переноса
+ * (CLUSTER_EXPORT, CLUSTER_IMPORT, CLUSTER_RELEASE, CLUSTER_HOMES) напрямую от
+ * пользователей не принимаются.
+ * Команды, ожидающие другие узлы, выполняются пулом из Config.CLUSTER_WORKER_COUNT
+ * потоков (см. execCommandAsync), а не потоками-обработчиками сервера: узлы,
+ * пересылающие команды друг другу, не занимают все потоки-обработчики ожиданием
+ * ответа и продолжают выполнять пересланные им команды.
+ * Перемещение и копирование между узлами выполняется в две фазы:
+ * подготовка (проверка и выгрузка источника, проверка приемника) и
+ * фиксация (создание копии на приемнике, затем удаление источника при
+ * перемещении). Выгруженный источник резервируется до конца переноса: команды,
+ * изменяющие его, отклоняются. Если удалить источник не удалось, копия на
+ * приемнике удаляется.
+ * Каждый узел знает текущие директории только своих пользователей, поэтому
+ * перед удалением или перемещением директории (RD, DELTREE, MOVE) все узлы
+ * проверяют, нет ли внутри нее текущих директорий их пользователей (см.
+ * checkHomeDirectories)
+ * */
+public class ClusterDriver implements CommandDriver {
+    private final CommandDriver driver;
+    private final String self;
+    private final List<String> nodes;
+    private final ConsistentHashRing ring;
+    private final Map<String, Queue<ClusterConnection>> connections = new ConcurrentHashMap<>();
+    private final ExecutorService forwarder;
+    private final ReentrantReadWriteLock reservationLock = new ReentrantReadWriteLock();
+    private final Map<String, Reservation> reservations = new HashMap<>();
+
+    public ClusterDriver(CommandDriver driver) {
+        if (Config.get().CLUSTER_SECRET.isEmpty()) {
+            throw new IllegalArgumentException("CLUSTER_SECRET is not set");
+        }
+        this.driver = driver;
+        this.self = Config.get().SERVER_ADDRESS + ":" + Config.get().SERVER_PORT;
+        this.nodes = Arrays.asList(Config.get().CLUSTER_NODES);
+        this.ring = new ConsistentHashRing(nodes, Config.get().CLUSTER_VIRTUAL_NODES);
+        AtomicInteger number = new AtomicInteger();
+        this.forwarder = Executors.newFixedThreadPool(Math.max(1, Config.get().CLUSTER_WORKER_COUNT), task -> {
+            Thread thread = new Thread(task, "cluster-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Packet execCommand(User user, CommandType type, String params) {
+        switch (type) {
+            case CLUSTER_AUTH:
+                return authenticate(user, params);
+            case CLUSTER_FORWARD:
+                if (!user.isClusterPeer()) {
+                    return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().CLUSTER_AUTH_ERROR_MESSAGE);
+                }
+                return execForwarded(user, params);
+            case CLUSTER_EXPORT:
+            case CLUSTER_IMPORT:
+            case CLUSTER_RELEASE:
+            case CLUSTER_HOMES:
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_SUPPORTED_COMMAND);
+            case PRINT:
+                return print(user);
+            case SYNC:
+                return driver.execCommand(user, type, params);
+            case RUN:
+                return run(user, params);
+            case LOCK:
+            case UNLOCK:
+                return execByOwners(user, type, params);
+            case RENEW:
+            case SNAPSHOT:
+            case RESTORE:
+                return execOnAllNodes(user, type, params);
+            case FIND:
+            case DIR:
+                return execInSubtree(user, type, params, getSubtree(type, params));
+            case MOVE:
+            case COPY:
+                String[] nodeParams = params.split(Protocol.SEPARATOR);
+                if (type == CommandType.MOVE) {
+                    Packet rejected = checkHomeDirectories(user, nodeParams[0]);
+                    if (rejected != null) {
+                        return rejected;
+                    }
+                }
+                if (isTransfer(type, nodeParams)) {
+                    return transfer(user, type, nodeParams[0], nodeParams[1], params);
+                }
+                return execOwned(user, type, params);
+            case RD:
+            case DELTREE:
+                Packet rejected = checkHomeDirectories(user, params);
+                if (rejected != null) {
+                    return rejected;
+                }
+                return exec(getOwner(params), user, type, params);
+            default:
+                String owner = getOwner(params);
+                if (owner.equals(self)) {
+                    return execOwned(user, type, params);
+                }
+                return forward(owner, user, type, params);
+        }
+    }
+
+    /** Метод выполняет команду, не занимая поток-обработчик сервера ожиданием
+     * других узлов: команда, которая выполняется только на этом узле (см. isLocal),
+     * выполняется сразу, остальные - в пуле потоков пересылки
+     * */
+    public CompletableFuture<Packet> execCommandAsync(User user, CommandType type, String params) {
+        if (isLocal(type, params)) {
+            return CompletableFuture.completedFuture(execCommand(user, type, params));
+        }
+        return CompletableFuture.supplyAsync(() -> execCommand(user, type, params), forwarder).exceptionally(e -> {
+            Server.logging("ClusterDriver - " + e.getMessage());
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+        });
+    }
+
+    /** Метод определяет, выполняется ли команда только на этом узле: служебные
+     * команды кластера (пересланные команды повторно не пересылаются), SYNC и
+     * команды над своими поддеревьями, кроме удаления и перемещения, которые
+     * опрашивают все узлы (см. checkHomeDirectories)
+     * */
+    private boolean isLocal(CommandType type, String params) {
+        switch (type) {
+            case CLUSTER_AUTH:
+            case CLUSTER_FORWARD:
+            case CLUSTER_EXPORT:
+            case CLUSTER_IMPORT:
+            case CLUSTER_RELEASE:
+            case CLUSTER_HOMES:
+            case SYNC:
+                return true;
+            case PRINT:
+            case RUN:
+            case RD:
+            case DELTREE:
+            case LOCK:
+            case UNLOCK:
+            case RENEW:
+            case SNAPSHOT:
+            case RESTORE:
+                return false;
+            case FIND:
+            case DIR:
+                String path = getSubtree(type, params);
+                return getPartitionKey(path) != null && getOwner(path).equals(self);
+            case MOVE:
+            case COPY:
+                String[] nodeParams = params.split(Protocol.SEPARATOR);
+                if (type == CommandType.MOVE) {
+                    return false;
+                }
+                if (!isTransfer(type, nodeParams)) {
+                    return true;
+                }
+                String name = nodeParams[0].substring(nodeParams[0].lastIndexOf('\\') + 1);
+                return getOwner(nodeParams[0]).equals(self) && getOwner(nodeParams[1] + "\\" + name).equals(self);
+            default:
+                return getOwner(params).equals(self);
+        }
+    }
+
+    /** Метод возвращает директорию, над которой выполняется команда FIND или DIR
+     * */
+    private static String getSubtree(CommandType type, String params) {
+        String target = params.split(Protocol.SEPARATOR)[0];
+        if (type == CommandType.FIND) {
+            return target.substring(0, Math.max(0, target.lastIndexOf('\\')));
+        }
+        return target;
+    }
+
+    private static boolean isTransfer(CommandType type, String[] nodeParams) {
+        return nodeParams.length == 2 || (nodeParams.length == 3 && type == CommandType.COPY);
+    }
+
+    /** Метод проверяет секрет узла кластера, открывшего соединение user. После
+     * проверки соединение принимает пересланные команды
+     * */
+    private Packet authenticate(User user, String secret) {
+        if (!MessageDigest.isEqual(Config.get().CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) {
+            Server.logging(String.format("Узел кластера %s не прошел проверку", user.getRemoteAddress()));
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().CLUSTER_AUTH_ERROR_MESSAGE);
+        }
+        user.setClusterPeer(true);
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName());
+    }
+
+    /** Метод выполняет команду над своим поддеревом локальным драйвером. Команда,
+     * изменяющая зарезервированный элемент (выгруженный для переноса на другой
+     * узел, см. exportNode), отклоняется до снятия резерва
+     * */
+    private Packet execOwned(User user, CommandType type, String params) {
+        if (!MutationLog.isMutation(type, params)) {
+            return driver.execCommand(user, type, params);
+        }
+        reservationLock.readLock().lock();
+        try {
+            String reserved = getReserved(type == CommandType.RESTORE ? null : params);
+            if (reserved != null) {
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), String.format(Config.get().CLUSTER_RESERVED_MESSAGE, reserved));
+            }
+            return driver.execCommand(user, type, params);
+        } finally {
+            reservationLock.readLock().unlock();
+        }
+    }
+
+    /** Метод возвращает путь действующего резерва, который содержит один из
+     * путей параметров params или находится внутри него, либо null. Если
+     * params = null (восстановление снимка диска), подходит любой резерв.
+     * Вызывается под блокировкой reservationLock
+     * */
+    private String getReserved(String params) {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            if (entry.getValue().deadline - now <= 0) {
+                continue;
+            }
+            if (params == null) {
+                return entry.getKey();
+            }
+            for (String param : params.split(Protocol.SEPARATOR)) {
+                if (!param.isEmpty() && !param.startsWith("/") &&
+                        (PathTrie.isInside(param, entry.getKey()) || PathTrie.isInside(entry.getKey(), param))) {
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Метод выполняет часть сценария команды RUN построчно: каждая строка
+     * направляется узлу-владельцу как отдельная команда
+     * */
+    private Packet run(User user, String params) {
+        Script script = new Script(params);
+        for (Script.Line line : script.getLines()) {
+            if (Script.isAllowed(line.getType())) {
+                script.complete(line, execCommand(user, line.getType(), line.getParams()));
+            } else {
+                script.complete(line, Config.get().NOT_SUPPORTED_COMMAND);
+            }
+        }
+        return script.toPacket(user);
+    }
+
+    public void setExecutor(Executor executor) {
+        driver.setExecutor(executor);
+    }
+
+    /** Метод снимает блокировки пользователя на всех узлах кластера. Другим
+     * узлам команда передается в пуле потоков пересылки
+     * */
+    public void releaseUser(User user) {
+        driver.releaseUser(user);
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                forwarder.execute(() -> forward(node, user, CommandType.QUIT, ""));
+            }
+        }
+    }
+
+    /** Метод возвращает ключ раздела - путь к поддереву верхнего уровня.
+     * Для корня диска возвращается null
+     * */
+    static String getPartitionKey(String path) {
+        String[] parts = path.split("\\\\");
+        if (parts.length < 2 || parts[1].isEmpty()) {
+            return null;
+        }
+        return parts[0].toUpperCase() + "\\" + parts[1].toLowerCase();
+    }
+
+    private String getOwner(String path) {
+        String key = getPartitionKey(path);
+        return key == null ? self : ring.getNode(key);
+    }
+
+    /** Метод переносит или копирует элемент. Если источник и получатель принадлежат
+     * одному узлу, команда выполняется им с исходными параметрами params (в том числе
+     * с ключом /SHARE), иначе элемент переносится между узлами полной копией.
+     * Выгрузка резервирует источник с токеном переноса, резерв снимается на
+     * любом исходе, при перемещении - вместе с удалением источника
+     * */
+    private Packet transfer(User user, CommandType type, String pathFrom, String pathTo, String params) {
+        String name = pathFrom.substring(pathFrom.lastIndexOf('\\') + 1);
+        String source = getOwner(pathFrom);
+        String target = getOwner(pathTo + "\\" + name);
+        if (source.equals(target)) {
+            if (source.equals(self)) {
+                return execOwned(user, type, params);
+            }
+            return forward(source, user, type, params);
+        }
+        String failMessage = type == CommandType.MOVE ? Config.get().NOT_MOVED_NODE_MESSAGE : Config.get().NOT_COPIED_NODE_MESSAGE;
+        String token = UUID.randomUUID().toString();
+
+        // Фаза подготовки
+        Packet exported = exec(source, user, CommandType.CLUSTER_EXPORT,
+                token + Protocol.SEPARATOR + (type == CommandType.MOVE) + Protocol.SEPARATOR + pathFrom);
+        if (exported.getCommandType() == CommandType.SERVER_ERROR) {
+            return exported;
+        }
+        User probe = new User(user.getName(), null);
+        probe.setCurDirectory(user.getCurDirectory());
+        Packet checked = exec(target, probe, CommandType.CD, pathTo);
+        if (checked.getCommandType() == CommandType.SERVER_ERROR) {
+            release(source, user, token, pathFrom, null);
+            return checked;
+        }
+
+        // Фаза фиксации
+        Packet imported = exec(target, user, CommandType.CLUSTER_IMPORT, pathTo + Protocol.SEPARATOR + exported.getText());
+        if (imported.getCommandType() == CommandType.SERVER_ERROR) {
+            release(source, user, token, pathFrom, null);
+            return imported;
+        }
+        if (type == CommandType.MOVE) {
+            CommandType deleteType = exported.getText().startsWith("D") ? CommandType.DELTREE : CommandType.DEL;
+            Packet deleted = release(source, user, token, pathFrom, deleteType);
+            if (deleted.getCommandType() == CommandType.SERVER_ERROR) {
+                exec(target, user, deleteType, pathTo + "\\" + name);
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), failMessage);
+            }
+            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().MOVE_NODE_MESSAGE);
+        }
+        release(source, user, token, pathFrom, null);
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().COPY_NODE_MESSAGE);
+    }
+
+    /** Метод проверяет на всех узлах кластера, в том числе на этом, нет ли
+     * внутри удаляемой или перемещаемой директории path текущей директории
+     * какого-либо пользователя. Узел-владелец поддерева знает только своих
+     * пользователей и пользователя, переславшего команду, поэтому пользователи
+     * других узлов проверяются командой CLUSTER_HOMES. Недоступный узел
+     * проверить нельзя, и команда отклоняется. Как и на одном узле (см.
+     * FileSystemDriver.isHomeDirectoryInside), проверка выполняется до удаления,
+     * а не вместе с ним: пользователь, перешедший в директорию после проверки,
+     * не учитывается
+     *
+     * @return ответ с ошибкой или null, если директория ничья
+     * */
+    private Packet checkHomeDirectories(User user, String path) {
+        for (String node : nodes) {
+            Packet packet = exec(node, user, CommandType.CLUSTER_HOMES, path);
+            if (packet.getCommandType() == CommandType.SERVER_ERROR) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    /** Метод снимает на узле node резерв элемента path, поставленный выгрузкой
+     * с токеном token. Если задана команда удаления deleteType, элемент удаляется
+     * до снятия резерва
+     * */
+    private Packet release(String node, User user, String token, String path, CommandType deleteType) {
+        String params = token + Protocol.SEPARATOR + path;
+        if (deleteType != null) {
+            params += Protocol.SEPARATOR + deleteType.getCode();
+        }
+        return exec(node, user, CommandType.CLUSTER_RELEASE, params);
+    }
+
+    /** Метод выполняет команду на указанном узле, локально или пересылкой
+     * */
+    private Packet exec(String node, User user, CommandType type, String params) {
+        if (node.equals(self)) {
+            return execLocal(user, type, params);
+        }
+        return forward(node, user, type, params);
+    }
+
+    private Packet print(User user) {
+        StringBuilder builder = new StringBuilder();
+        for (String node : nodes) {
+            Packet packet = exec(node, user, CommandType.PRINT, "");
+            builder.append('\n').append('[').append(node).append(']').append(packet.getText());
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), builder.toString());
+    }
+
+    /** Метод выполняет команду с несколькими путями: пути группируются по
+     * узлам-владельцам, каждому узлу команда передается один раз со своими
+     * путями и всеми ключами команды
+     * */
+    private Packet execByOwners(User user, CommandType type, String params) {
+        Map<String, StringBuilder> groups = new LinkedHashMap<>();
+        StringBuilder switches = new StringBuilder();
+        for (String param : params.split(Protocol.SEPARATOR)) {
+            if (param.startsWith("/")) {
+                switches.append(param).append(Protocol.SEPARATOR);
+            } else if (!param.isEmpty()) {
+                groups.computeIfAbsent(getOwner(param), k -> new StringBuilder()).append(param).append(Protocol.SEPARATOR);
+            }
+        }
+        if (groups.size() <= 1) {
+            return exec(groups.isEmpty() ? self : groups.keySet().iterator().next(), user, type, params);
+        }
+        StringBuilder message = new StringBuilder();
+        boolean failed = true;
+        for (Map.Entry<String, StringBuilder> group : groups.entrySet()) {
+            Packet packet = exec(group.getKey(), user, type, group.getValue().toString() + switches);
+            failed &= packet.getCommandType() == CommandType.SERVER_ERROR;
+            message.append('\n').append('[').append(group.getKey()).append("] ").append(packet.getText());
+        }
+        return new Packet(failed ? CommandType.SERVER_ERROR : CommandType.SERVER_RESPONSE, user.getName(), message.toString());
+    }
+
+    private Packet execOnAllNodes(User user, CommandType type, String params) {
+        StringBuilder message = new StringBuilder();
+        for (String node : nodes) {
+            Packet packet = exec(node, user, type, params);
+            message.append('\n').append('[').append(node).append("] ").append(packet.getText());
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), message.toString());
+    }
+
+    /** Команда над директорией path (поиск, просмотр) выполняется владельцем
+     * поддерева. Для корня диска команда выполняется на всех узлах, результаты
+     * выводятся по узлам, как в PRINT
+     * */
+    private Packet execInSubtree(User user, CommandType type, String params, String path) {
+        if (getPartitionKey(path) != null) {
+            return exec(getOwner(path), user, type, params);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String node : nodes) {
+            Packet packet = exec(node, user, type, params);
+            if (packet.getCommandType() == CommandType.SERVER_ERROR) {
+                return packet;
+            }
+            builder.append('\n').append('[').append(node).append(']');
+            if (!packet.getText().startsWith("\n")) {
+                builder.append('\n');
+            }
+            builder.append(packet.getText());
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), builder.toString());
+    }
+
+    /** Метод пересылает команду узлу-владельцу. Вместе с командой передается
+     * имя пользователя и его текущая директория
+     * */
+    private Packet forward(String node, User user, CommandType type, String params) {
+        String text = user.getName() + Protocol.SEPARATOR + user.getCurDirectory() + Protocol.SEPARATOR +
+                type.getCode() + Protocol.SEPARATOR + params;
+        Packet request = new Packet(CommandType.CLUSTER_FORWARD, user.getName(), text);
+        Queue<ClusterConnection> pool = connections.computeIfAbsent(node, k -> new ConcurrentLinkedQueue<ClusterConnection>());
+        ClusterConnection connection = pool.poll();
+        if (connection == null) {
+            connection = new ClusterConnection(node);
+        }
+        try {
+            Packet response = connection.request(request);
+            pool.offer(connection);
+            if (response.getCommandType() == CommandType.CHANGE_HOME_DIR) {
+                user.setCurDirectory(response.getText());
+            }
+            return new Packet(response.getCommandType(), user.getName(), response.getText());
+        } catch (IOException e) {
+            connection.close();
+            Server.logging(String.format("Узел %s недоступен: %s", node, e.getMessage()));
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), String.format(Config.get().CLUSTER_NODE_UNAVAILABLE_MESSAGE, node));
+        }
+    }
+
+    /** Метод выполняет команду, пересланную другим узлом кластера
+     * */
+    private Packet execForwarded(User connectionUser, String params) {
+        String[] parts = params.split(Protocol.SEPARATOR, 4);
+        if (parts.length < 3) {
+            return new Packet(CommandType.SERVER_ERROR, connectionUser.getName(), Config.get().NOT_EXECUTED_COMMAND);
+        }
+        User user = new User(parts[0], null);
+        user.setCurDirectory(parts[1]);
+        CommandType type = CommandType.getCommandTypeByCode(parts[2]);
+        if (type == null || type == CommandType.CLUSTER_FORWARD || type == CommandType.CLUSTER_AUTH) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_SUPPORTED_COMMAND);
+        }
+        return execLocal(user, type, parts.length > 3 ? parts[3] : "");
+    }
+
+    private Packet execLocal(User user, CommandType type, String params) {
+        switch (type) {
+            case QUIT:
+                driver.releaseUser(user);
+                return new Packet(CommandType.SERVER_RESPONSE, user.getName());
+            case CLUSTER_EXPORT:
+                return exportNode(user, params);
+            case CLUSTER_IMPORT:
+                return importNodes(user, params);
+            case CLUSTER_RELEASE:
+                return releaseReserved(user, params);
+            case CLUSTER_HOMES:
+                if (UserDirectoryIndex.hasUsersInside(params)) {
+                    return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
+                }
+                return new Packet(CommandType.SERVER_RESPONSE, user.getName());
+            default:
+                return execOwned(user, type, params);
+        }
+    }
+
+    /** Метод выгружает элемент (параметры: токен переноса, признак проверки
+     * блокировок, путь) и резервирует его с токеном переноса. Резерв действует
+     * 4 * Config.CLUSTER_TIMEOUT - столько переносящий узел ждет ответов на
+     * выгрузку, проверку приемника, создание копии и снятие резерва. Истекшие
+     * резервы удаляются при выгрузке
+     * */
+    private Packet exportNode(User user, String params) {
+        String[] parts = params.split(Protocol.SEPARATOR, 3);
+        if (parts.length < 3) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+        }
+        reservationLock.writeLock().lock();
+        try {
+            String reserved = getReserved(parts[2]);
+            if (reserved != null) {
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), String.format(Config.get().CLUSTER_RESERVED_MESSAGE, reserved));
+            }
+            List<String> lines = VirtualFileSystem.getDriveByPath(parts[2]).exportNode(parts[2], Boolean.parseBoolean(parts[1]));
+            long now = System.nanoTime();
+            reservations.values().removeIf(reservation -> reservation.deadline - now <= 0);
+            reservations.put(parts[2], new Reservation(parts[0], now + TimeUnit.MILLISECONDS.toNanos(4L * Config.get().CLUSTER_TIMEOUT)));
+            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.join("\n", lines));
+        } catch (VFSException e) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), e.getMessage());
+        } catch (InterruptedException e) {
+            Server.logging("ClusterDriver - " + e.getMessage());
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().RUN_COMMAND_INTERRUPTED_EXCEPTION);
+        } finally {
+            reservationLock.writeLock().unlock();
+        }
+    }
+
+    /** Метод снимает резерв элемента (параметры: токен переноса, путь и, при
+     * перемещении, код команды удаления). Элемент удаляется под той же
+     * блокировкой, что и снятие резерва, поэтому между выгрузкой и удалением
+     * его никто не изменяет. Истекший резерв не снимается с удалением: за это
+     * время элемент могли изменить, и перемещение отменяется
+     * */
+    private Packet releaseReserved(User user, String params) {
+        String[] parts = params.split(Protocol.SEPARATOR, 3);
+        reservationLock.writeLock().lock();
+        try {
+            Reservation reservation = parts.length < 2 ? null : reservations.get(parts[1]);
+            if (reservation == null || !reservation.token.equals(parts[0])) {
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+            }
+            reservations.remove(parts[1]);
+            if (reservation.deadline - System.nanoTime() <= 0) {
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+            }
+            if (parts.length < 3) {
+                return new Packet(CommandType.SERVER_RESPONSE, user.getName());
+            }
+            CommandType deleteType = CommandType.getCommandTypeByCode(parts[2]);
+            if (deleteType != CommandType.DELTREE && deleteType != CommandType.DEL) {
+                return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_SUPPORTED_COMMAND);
+            }
+            return driver.execCommand(user, deleteType, parts[1]);
+        } finally {
+            reservationLock.writeLock().unlock();
+        }
+    }
+
+    /** Метод создает в директории выгруженное поддерево. Если создать поддерево
+     * целиком не удалось, созданная часть удаляется
+     * */
+    private Packet importNodes(User user, String params) {
+        String[] parts = params.split(Protocol.SEPARATOR, 2);
+        String pathTo = parts[0];
+        List<String[]> nodeLines = new ArrayList<>();
+        for (String line : parts[1].split("\n")) {
+            nodeLines.add(line.split("\t", 2));
+        }
+        for (int i = 0; i < nodeLines.size(); i++) {
+            String[] line = nodeLines.get(i);
+            CommandType type = "D".equals(line[0]) ? CommandType.MD : CommandType.MF;
+            Packet packet = execOwned(user, type, pathTo + "\\" + line[1]);
+            if (packet.getCommandType() == CommandType.SERVER_ERROR) {
+                if (i > 0) {
+                    String[] root = nodeLines.get(0);
+                    execOwned(user, "D".equals(root[0]) ? CommandType.DELTREE : CommandType.DEL, pathTo + "\\" + root[1]);
+                }
+                return packet;
+            }
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().COPY_NODE_MESSAGE);
+    }
+
+    /** Резерв выгруженного элемента: токен переноса и срок (System.nanoTime)
+     * */
+    private static class Reservation {
+        private final String token;
+        private final long deadline;
+
+        Reservation(String token, long deadline) {
+            this.token = token;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -3,10 +3,33 @@ package ru.gnusinay.server;
 import ru.gnusinay.client.CommandType;
 import ru.gnusinay.protocol.Packet;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /** Интерфейс описывает API драйверов, используемых сервером
  * для выполнения пользовательских команд
  * */
 public interface CommandDriver {
 
     Packet execCommand(User user, CommandType type, String params);
+
+    /** Метод выполняет команду, не занимая поток-обработчик сервера ожиданием
+     * других узлов. По умолчанию команда выполняется в вызывающем потоке
+     * и возвращается завершенный результат
+     * */
+    default CompletableFuture<Packet> execCommandAsync(User user, CommandType type, String params) {
+        return CompletableFuture.completedFuture(execCommand(user, type, params));
+    }
+
+    /** Метод освобождает ресурсы файловой системы, занятые пользователем,
+     * при его отключении от сервера
+     * */
+    void releaseUser(User user);
+
+    /** Метод передает драйверу пул потоков-обработчиков сервера, в котором
+     * выполняются фоновые задачи драйвера (например, снятие блокировок с
+     * истекшей арендой), чтобы они не занимали поток таймера
+     * */
+    default void setExecutor(Executor executor) {
+    }
 }
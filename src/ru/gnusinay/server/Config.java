@@ -1,107 +1,450 @@
 package ru.gnusinay.server;
 
-import java.io.FileInputStream;
+import ru.gnusinay.protocol.Durability;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+/** Класс содержит настройки сервера и клиента, загруженные из файла
+ * config.properties (см. read). Объект настроек неизменяем, текущие настройки
+ * возвращает метод get. Настройки можно перечитать во время работы сервера
+ * командой RELOAD (см. reload): новый объект сначала разбирается целиком и
+ * только затем публикуется одной записью, поэтому другие потоки видят либо
+ * прежние, либо новые значения, но не их смесь. Значения, которые используются
+ * при каждом обращении (длины очередей, сроки ожидания, уровень журнала и т.п.),
+ * начинают действовать сразу, число потоков-обработчиков меняется сервером.
+ * Связанные значения читаются из одного объекта, полученного методом get
+ * */
 public class Config {
 
-    public static int      SERVER_PORT;
-    public static String   SERVER_ADDRESS;
-    public static int      TASK_QUEUE_SIZE;
-    public static String   WELCOME_MESSAGE;
-    public static String   CONNECT_NO_MESSAGE;
-    public static String   NOT_RECEIVED_COMMAND;
-    public static int      TASK_WORKER_COUNT;
-    public static String   CREATE_DIRECTORY_MESSAGE;
-    public static String   CREATE_FILE_MESSAGE;
-    public static String   REMOVE_DIRECTORY_MESSAGE;
-    public static String   REMOVE_TREE_DIRECTORY_MESSAGE;
-    public static String   REMOVE_FILE_MESSAGE;
-    public static String   LOCK_FILE_MESSAGE;
-    public static String   UNLOCK_FILE_MESSAGE;
-    public static String   MOVE_NODE_MESSAGE;
-    public static String   NOT_MOVED_NODE_MESSAGE;
-    public static String   COPY_NODE_MESSAGE;
-    public static String   NOT_COPIED_NODE_MESSAGE;
-    public static String   NOT_SUPPORTED_COMMAND;
-    public static String   NOT_EXECUTED_COMMAND;
-    public static String   ROOT;
-    public static String   DOUBLE_DIRECTORY_EXCEPTION_MESSAGE;
-    public static String   DOUBLE_FILE_EXCEPTION_MESSAGE;
-    public static String   LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE;
-    public static String   LOCKED_FILE_EXCEPTION_MESSAGE;
-    public static String   NOT_FOUND_NODE_EXCEPTION_MESSAGE;
-    public static String   ROOT_NODE_CHANGE_EXCEPTION_MESSAGE;
-    public static String   REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE;
-    public static String   WELCOME_CLIENT_MESSAGE;
-    public static String   NO_CONNECT_CLIENT_MESSAGE;
-    public static String   INCORRECT_COMMAND_CLIENT_MESSAGE;
-    public static String   NOT_SENT_PACKET_CLIENT_EXCEPTION_MESSAGE;
-    public static String   DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE;
-    public static String   NOT_LOCKED_FILE_EXCEPTION_MESSAGE;
-    public static String   RUN_COMMAND_INTERRUPTED_EXCEPTION;
-    public static String   FILE_LOCKED_EXCEPTION_MESSAGE;
+    public final int      SERVER_PORT;
+    public final String   SERVER_ADDRESS;
+    public final int      TASK_QUEUE_SIZE;
+    public final String   WELCOME_MESSAGE;
+    public final String   CONNECT_NO_MESSAGE;
+    public final String   NOT_RECEIVED_COMMAND;
+    public final int      TASK_WORKER_COUNT;
+    public final int      BULK_QUEUE_SIZE;
+    public final int      BULK_WORKER_COUNT;
+    public final int      BULK_TAKE_RATIO;
+    public final int      OUTBOUND_QUEUE_SIZE;
+    public final String   SERVER_BUSY_MESSAGE;
+    public final String   REPLICATION_MODE;
+    public final int      REPLICATION_PORT;
+    public final String   REPLICATION_PRIMARY_ADDRESS;
+    public final int      REPLICATION_PRIMARY_PORT;
+    public final int      REPLICATION_LOG_SIZE;
+    public final int      REPLICATION_HEARTBEAT;
+    public final String   READ_ONLY_REPLICA_MESSAGE;
+    public final String[] CLUSTER_NODES;
+    public final int      CLUSTER_VIRTUAL_NODES;
+    public final int      CLUSTER_TIMEOUT;
+    public final String   CLUSTER_NODE_UNAVAILABLE_MESSAGE;
+    public final String   CLUSTER_SECRET;
+    public final int      CLUSTER_WORKER_COUNT;
+    public final String   CLUSTER_AUTH_ERROR_MESSAGE;
+    public final String   CLUSTER_RESERVED_MESSAGE;
+    public final String   CREATE_DIRECTORY_MESSAGE;
+    public final String   CREATE_FILE_MESSAGE;
+    public final String   REMOVE_DIRECTORY_MESSAGE;
+    public final String   REMOVE_TREE_DIRECTORY_MESSAGE;
+    public final String   REMOVE_FILE_MESSAGE;
+    public final String   LOCK_FILE_MESSAGE;
+    public final String   UNLOCK_FILE_MESSAGE;
+    public final String   MOVE_NODE_MESSAGE;
+    public final String   NOT_MOVED_NODE_MESSAGE;
+    public final String   COPY_NODE_MESSAGE;
+    public final String   NOT_COPIED_NODE_MESSAGE;
+    public final String   SNAPSHOT_CREATE_MESSAGE;
+    public final String   SNAPSHOT_DELETE_MESSAGE;
+    public final String   SNAPSHOT_EMPTY_MESSAGE;
+    public final String   RESTORE_MESSAGE;
+    public final String   DOUBLE_SNAPSHOT_EXCEPTION_MESSAGE;
+    public final String   NOT_FOUND_SNAPSHOT_EXCEPTION_MESSAGE;
+    public final String   EXPORT_MESSAGE;
+    public final String   IMPORT_MESSAGE;
+    public final String   ARCHIVE_EXCEPTION_MESSAGE;
+    public final String   NOT_SUPPORTED_COMMAND;
+    public final String   NOT_EXECUTED_COMMAND;
+    public final String   ROOT;
+    public final String[] DRIVES;
+    public final int      NODE_LOCK_TIMEOUT;
+    public final String   STORAGE_DIR;
+    public final String   ARCHIVE_DIR;
+    public final int      IMPORT_WORKER_COUNT;
+    public final int      CHECKPOINT_INTERVAL;
+    public final String   DOUBLE_DIRECTORY_EXCEPTION_MESSAGE;
+    public final String   DOUBLE_FILE_EXCEPTION_MESSAGE;
+    public final String   LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE;
+    public final String   LOCKED_FILE_EXCEPTION_MESSAGE;
+    public final String   NOT_FOUND_NODE_EXCEPTION_MESSAGE;
+    public final String   ROOT_NODE_CHANGE_EXCEPTION_MESSAGE;
+    public final String   INVALID_NAME_EXCEPTION_MESSAGE;
+    public final String   REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE;
+    public final String   RESTORE_HOME_DIRECTORY_EXCEPTION_MESSAGE;
+    public final String   WELCOME_CLIENT_MESSAGE;
+    public final String   NO_CONNECT_CLIENT_MESSAGE;
+    public final String   INCORRECT_COMMAND_CLIENT_MESSAGE;
+    public final String   NOT_SENT_PACKET_CLIENT_EXCEPTION_MESSAGE;
+    public final String   DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE;
+    public final String   NOT_LOCKED_FILE_EXCEPTION_MESSAGE;
+    public final String   RUN_COMMAND_INTERRUPTED_EXCEPTION;
+    public final String   FILE_LOCKED_EXCEPTION_MESSAGE;
+    public final String   CROSS_DRIVE_EXCEPTION_MESSAGE;
+    public final String   USAGE_MESSAGE;
+    public final int      DIR_PAGE_SIZE;
+    public final String   DIR_EMPTY_MESSAGE;
+    public final String   DIR_MORE_MESSAGE;
+    public final int      FIND_PAGE_SIZE;
+    public final int      SYNC_BATCH_SIZE;
+    public final int      TIMER_TICK;
+    public final int      TIMER_WHEEL_SIZE;
+    public final int      IDLE_TIMEOUT;
+    public final int      HEARTBEAT_INTERVAL;
+    public final int      COMMAND_TIMEOUT;
+    public final String   COMMAND_TIMEOUT_MESSAGE;
+    public final String   RENEW_MESSAGE;
+    public final String   FIND_NOTHING_MESSAGE;
+    public final String   FIND_MORE_MESSAGE;
+    public final int      RUN_BATCH_SIZE;
+    public final String   RUN_SUMMARY_MESSAGE;
+    public final String   RUN_FILE_CLIENT_MESSAGE;
+    public final String   RUN_STOPPED_CLIENT_MESSAGE;
+    public final int      BUFFER_POOL_MAX_SIZE;
+    public final int      BUFFER_POOL_CLASS_LIMIT;
+    public final int      BUFFER_POOL_LEAK_TIMEOUT;
+    public final int      MAX_PACKET_SIZE;
+    public final int      COMPRESSION_THRESHOLD;
+    public final int      COMPRESSION_LEVEL;
+    public final int      CLIENT_RECONNECT_DELAY;
+    public final int      CLIENT_RECONNECT_ATTEMPTS;
+    public final Durability DURABILITY;
+    public final int      DURABILITY_GROUP_WINDOW;
+    public final String   DURABILITY_ERROR_MESSAGE;
+    public final int      TRACE_SAMPLE_RATE;
+    public final int      TRACE_SLOW_THRESHOLD;
+    public final int      TRACE_BUFFER_SIZE;
+    public final String   TRACE_EMPTY_MESSAGE;
+    public final int      LOCK_STATS_WINDOW;
+    public final int      LOCK_REPORT_SIZE;
+    public final String   CONTENTION_MESSAGE;
+    public final String   CONTENTION_EMPTY_MESSAGE;
+    public final LogLevel LOG_LEVEL;
+    public final String   RELOAD_MESSAGE;
+    public final String   RELOAD_UNCHANGED_MESSAGE;
+    public final String   RELOAD_RESTART_MESSAGE;
+    public final String   RELOAD_ERROR_MESSAGE;
 
-    private static final String PROPERTIES_FILE = ".\\ru\\gnusinay\\server\\config.properties";
+    private static final String CONFIG_FILE_KEY = "VFS_CONFIG";
+    private static final String ENV_PREFIX = "VFS_";
+    private static final String ARG_PREFIX = "--";
+    private static final Set<String> RESTART_KEYS = new HashSet<>(Arrays.asList(
+            "SERVER_PORT", "SERVER_ADDRESS", "ROOT", "DRIVES", "STORAGE_DIR", "CHECKPOINT_INTERVAL",
+            "REPLICATION_MODE", "REPLICATION_PORT", "REPLICATION_PRIMARY_ADDRESS", "REPLICATION_PRIMARY_PORT",
+            "REPLICATION_LOG_SIZE", "CLUSTER_NODES", "CLUSTER_VIRTUAL_NODES", "CLUSTER_SECRET",
+            "CLUSTER_WORKER_COUNT", "TIMER_TICK", "TIMER_WHEEL_SIZE",
+            "BUFFER_POOL_MAX_SIZE", "BUFFER_POOL_LEAK_TIMEOUT", "TRACE_BUFFER_SIZE", "LOCK_STATS_WINDOW"));
+    private static final Properties arguments = new Properties();
+    private static final Set<String> reportedOverrides = new HashSet<>();
+    private static volatile Config current;
 
-    static {
-        Properties properties = new Properties();
-        FileInputStream propertiesFile = null;
+    private final Properties properties;
 
+    static {
         try {
-            propertiesFile = new FileInputStream(PROPERTIES_FILE);
-            properties.load(propertiesFile);
-
-            SERVER_PORT = Integer.parseInt(properties.getProperty("SERVER_PORT"));
-            SERVER_ADDRESS = properties.getProperty("SERVER_ADDRESS");
-            ROOT = properties.getProperty("ROOT");
-            TASK_QUEUE_SIZE = Integer.parseInt(properties.getProperty("TASK_QUEUE_SIZE"));
-            WELCOME_MESSAGE = properties.getProperty("WELCOME_MESSAGE");
-            CONNECT_NO_MESSAGE = properties.getProperty("CONNECT_NO_MESSAGE");
-            NOT_RECEIVED_COMMAND = properties.getProperty("NOT_RECEIVED_COMMAND");
-            TASK_WORKER_COUNT = Integer.parseInt(properties.getProperty("TASK_WORKER_COUNT"));
-            CREATE_DIRECTORY_MESSAGE = properties.getProperty("CREATE_DIRECTORY_MESSAGE");
-            CREATE_FILE_MESSAGE = properties.getProperty("CREATE_FILE_MESSAGE");
-            REMOVE_DIRECTORY_MESSAGE = properties.getProperty("REMOVE_DIRECTORY_MESSAGE");
-            REMOVE_TREE_DIRECTORY_MESSAGE = properties.getProperty("REMOVE_TREE_DIRECTORY_MESSAGE");
-            REMOVE_FILE_MESSAGE = properties.getProperty("REMOVE_FILE_MESSAGE");
-            LOCK_FILE_MESSAGE = properties.getProperty("LOCK_FILE_MESSAGE");
-            UNLOCK_FILE_MESSAGE = properties.getProperty("UNLOCK_FILE_MESSAGE");
-            MOVE_NODE_MESSAGE = properties.getProperty("MOVE_NODE_MESSAGE");
-            NOT_MOVED_NODE_MESSAGE = properties.getProperty("NOT_MOVED_NODE_MESSAGE");
-            COPY_NODE_MESSAGE = properties.getProperty("COPY_NODE_MESSAGE");
-            NOT_COPIED_NODE_MESSAGE = properties.getProperty("NOT_COPIED_NODE_MESSAGE");
-            NOT_SUPPORTED_COMMAND = properties.getProperty("NOT_SUPPORTED_COMMAND");
-            NOT_EXECUTED_COMMAND = properties.getProperty("NOT_EXECUTED_COMMAND");
-            DOUBLE_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("DOUBLE_DIRECTORY_EXCEPTION_MESSAGE");
-            DOUBLE_FILE_EXCEPTION_MESSAGE = properties.getProperty("DOUBLE_FILE_EXCEPTION_MESSAGE");
-            LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE");
-            LOCKED_FILE_EXCEPTION_MESSAGE = properties.getProperty("LOCKED_FILE_EXCEPTION_MESSAGE");
-            NOT_FOUND_NODE_EXCEPTION_MESSAGE = properties.getProperty("NOT_FOUND_NODE_EXCEPTION_MESSAGE");
-            ROOT_NODE_CHANGE_EXCEPTION_MESSAGE = properties.getProperty("ROOT_NODE_CHANGE_EXCEPTION_MESSAGE");
-            REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE");
-            WELCOME_CLIENT_MESSAGE = properties.getProperty("WELCOME_CLIENT_MESSAGE");
-            NO_CONNECT_CLIENT_MESSAGE = properties.getProperty("NO_CONNECT_CLIENT_MESSAGE");
-            INCORRECT_COMMAND_CLIENT_MESSAGE = properties.getProperty("INCORRECT_COMMAND_CLIENT_MESSAGE");
-            NOT_SENT_PACKET_CLIENT_EXCEPTION_MESSAGE = properties.getProperty("NOT_SENT_PACKET_CLIENT_EXCEPTION_MESSAGE");
-            DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE = properties.getProperty("DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE");
-            NOT_LOCKED_FILE_EXCEPTION_MESSAGE = properties.getProperty("NOT_LOCKED_FILE_EXCEPTION_MESSAGE");
-            RUN_COMMAND_INTERRUPTED_EXCEPTION = properties.getProperty("RUN_COMMAND_INTERRUPTED_EXCEPTION");
-            FILE_LOCKED_EXCEPTION_MESSAGE = properties.getProperty("FILE_LOCKED_EXCEPTION_MESSAGE");
-
-
+            current = new Config(read());
         } catch (FileNotFoundException e) {
             System.out.println("Error! File 'config.properties' not found! " + e.getMessage());
         } catch (IOException e) {
             System.out.println("Error! File 'config.properties' can not be read! " + e.getMessage());
-        } finally {
-            try {
-                propertiesFile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        }
+    }
+
+    /** Метод задает настройки из аргументов командной строки вида --КЛЮЧ=значение
+     * и применяет их. Аргументы с неизвестными ключами пропускаются с сообщением
+     * (см. reportUnknownOverrides)
+     * */
+    public static synchronized void setArguments(String[] args) throws IOException {
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (arg.startsWith(ARG_PREFIX) && index > ARG_PREFIX.length()) {
+                arguments.setProperty(arg.substring(ARG_PREFIX.length(), index), arg.substring(index + 1));
+            } else {
+                System.out.println("Error! Argument '" + arg + "' is skipped, expected --KEY=value");
+            }
+        }
+        current = new Config(read());
+    }
+
+    /** Метод возвращает текущие настройки
+     * */
+    public static Config get() {
+        return current;
+    }
+
+    /** Метод перечитывает настройки и публикует новый объект настроек. Настройки
+     * из RESTART_KEYS определяют структуры, созданные при запуске сервера (порты,
+     * диски, размеры таблиц), поэтому их новые значения не применяются, а ключи
+     * добавляются в restartRequired. Новый объект разбирается целиком до
+     * публикации: если значение не удалось разобрать, остаются прежние настройки,
+     * и ни один поток не видит частично примененных значений. Команда RELOAD
+     * доступна любому подключенному пользователю (как TRACE и CONTENTION), но
+     * только перечитывает файл и переопределения на сервере, задать значения
+     * через нее нельзя. Если при загрузке класса настройки прочитать не
+     * удалось, прочитанные настройки применяются целиком.
+     *
+     * @return ключи примененных настроек: изменившихся, добавленных и удаленных
+     * */
+    public static synchronized List<String> reload(List<String> restartRequired) throws IOException {
+        Config previousConfig = current;
+        Properties previous = previousConfig != null ? previousConfig.properties : new Properties();
+        Properties properties = read();
+        Set<String> keys = new TreeSet<>(properties.stringPropertyNames());
+        keys.addAll(previous.stringPropertyNames());
+        List<String> changed = new ArrayList<>();
+        for (String key : keys) {
+            String value = properties.getProperty(key);
+            String previousValue = previous.getProperty(key);
+            if (Objects.equals(previousValue, value)) {
+                continue;
+            }
+            if (RESTART_KEYS.contains(key) && previousConfig != null) {
+                restartRequired.add(key);
+                if (previousValue == null) {
+                    properties.remove(key);
+                } else {
+                    properties.setProperty(key, previousValue);
+                }
+            } else {
+                changed.add(key);
+            }
+        }
+        Config candidate;
+        try {
+            candidate = new Config(properties);
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        current = candidate;
+        return changed;
+    }
+
+    /** Метод читает файл настроек и накладывает на его значения переопределения:
+     * переменные окружения VFS_КЛЮЧ, затем системные свойства -DКЛЮЧ=значение,
+     * затем аргументы командной строки (см. setArguments). Файл задается
+     * системным свойством или переменной окружения VFS_CONFIG, по умолчанию это
+     * ru/gnusinay/server/config.properties относительно рабочего каталога.
+     * Значения по умолчанию берутся из ресурса config.properties рядом с классом
+     * Config, поэтому ключи, которых нет в файле, получают значения из ресурса,
+     * а если файла нет, применяется один ресурс
+     * */
+    private static Properties read() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream defaults = Config.class.getResourceAsStream("config.properties")) {
+            if (defaults != null) {
+                properties.load(defaults);
+            }
+        }
+        String name = System.getProperty(CONFIG_FILE_KEY, System.getenv(CONFIG_FILE_KEY));
+        Path file = name != null ? Paths.get(name) : Paths.get("ru", "gnusinay", "server", "config.properties");
+        if (Files.exists(file) || name != null) {
+            try (InputStream propertiesFile = Files.newInputStream(file)) {
+                properties.load(propertiesFile);
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        } else if (properties.isEmpty()) {
+            throw new FileNotFoundException(file.toAbsolutePath().toString());
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String value = System.getenv(ENV_PREFIX + key);
+            value = System.getProperty(key, value);
+            value = arguments.getProperty(key, value);
+            if (value != null) {
+                properties.setProperty(key, value);
+            }
+        }
+        reportUnknownOverrides(properties);
+        return properties;
+    }
+
+    /** Метод сообщает о переопределениях, ключей которых нет в настройках
+     * properties: такие значения не применяются, и без сообщения опечатка в
+     * ключе осталась бы незамеченной. Системными свойствами считаются только
+     * ключи из заглавных букв, цифр и '_' (как ключи настроек), остальные
+     * свойства принадлежат JVM и библиотекам. О каждом переопределении
+     * сообщается один раз
+     * */
+    private static void reportUnknownOverrides(Properties properties) {
+        Map<String, String> overrides = new TreeMap<>();
+        for (String variable : System.getenv().keySet()) {
+            if (variable.startsWith(ENV_PREFIX) && !variable.equals(CONFIG_FILE_KEY)) {
+                overrides.put("environment variable " + variable, variable.substring(ENV_PREFIX.length()));
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.matches("[A-Z][A-Z0-9_]*") && !key.equals(CONFIG_FILE_KEY)) {
+                overrides.put("system property -D" + key, key);
+            }
+        }
+        for (String key : arguments.stringPropertyNames()) {
+            overrides.put("argument " + ARG_PREFIX + key, key);
+        }
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            if (!properties.containsKey(override.getValue()) && reportedOverrides.add(override.getKey())) {
+                System.out.println("Error! Setting '" + override.getValue() + "' of " + override.getKey() + " is unknown and skipped");
             }
         }
     }
-}
\ No newline at end of file
+
+    private Config(Properties properties) {
+        SERVER_PORT = getInt(properties, "SERVER_PORT");
+        SERVER_ADDRESS = properties.getProperty("SERVER_ADDRESS");
+        ROOT = properties.getProperty("ROOT");
+        DRIVES = properties.getProperty("DRIVES", ROOT).split("\\s*,\\s*");
+        NODE_LOCK_TIMEOUT = getInt(properties, "NODE_LOCK_TIMEOUT");
+        STORAGE_DIR = properties.getProperty("STORAGE_DIR").trim();
+        ARCHIVE_DIR = properties.getProperty("ARCHIVE_DIR").trim();
+        IMPORT_WORKER_COUNT = getInt(properties, "IMPORT_WORKER_COUNT");
+        CHECKPOINT_INTERVAL = getInt(properties, "CHECKPOINT_INTERVAL");
+        TASK_QUEUE_SIZE = getInt(properties, "TASK_QUEUE_SIZE");
+        WELCOME_MESSAGE = properties.getProperty("WELCOME_MESSAGE");
+        CONNECT_NO_MESSAGE = properties.getProperty("CONNECT_NO_MESSAGE");
+        NOT_RECEIVED_COMMAND = properties.getProperty("NOT_RECEIVED_COMMAND");
+        TASK_WORKER_COUNT = getInt(properties, "TASK_WORKER_COUNT");
+        BULK_QUEUE_SIZE = getInt(properties, "BULK_QUEUE_SIZE");
+        BULK_WORKER_COUNT = getInt(properties, "BULK_WORKER_COUNT");
+        BULK_TAKE_RATIO = getInt(properties, "BULK_TAKE_RATIO");
+        OUTBOUND_QUEUE_SIZE = getInt(properties, "OUTBOUND_QUEUE_SIZE");
+        SERVER_BUSY_MESSAGE = properties.getProperty("SERVER_BUSY_MESSAGE");
+        REPLICATION_MODE = properties.getProperty("REPLICATION_MODE").toUpperCase();
+        REPLICATION_PORT = getInt(properties, "REPLICATION_PORT");
+        REPLICATION_PRIMARY_ADDRESS = properties.getProperty("REPLICATION_PRIMARY_ADDRESS");
+        REPLICATION_PRIMARY_PORT = getInt(properties, "REPLICATION_PRIMARY_PORT");
+        REPLICATION_LOG_SIZE = getInt(properties, "REPLICATION_LOG_SIZE");
+        REPLICATION_HEARTBEAT = getInt(properties, "REPLICATION_HEARTBEAT");
+        READ_ONLY_REPLICA_MESSAGE = properties.getProperty("READ_ONLY_REPLICA_MESSAGE");
+        String clusterNodes = properties.getProperty("CLUSTER_NODES").trim();
+        CLUSTER_NODES = clusterNodes.isEmpty() ? new String[0] : clusterNodes.split("\\s*,\\s*");
+        CLUSTER_VIRTUAL_NODES = getInt(properties, "CLUSTER_VIRTUAL_NODES");
+        CLUSTER_TIMEOUT = getInt(properties, "CLUSTER_TIMEOUT");
+        CLUSTER_NODE_UNAVAILABLE_MESSAGE = properties.getProperty("CLUSTER_NODE_UNAVAILABLE_MESSAGE");
+        CLUSTER_SECRET = properties.getProperty("CLUSTER_SECRET").trim();
+        CLUSTER_WORKER_COUNT = getInt(properties, "CLUSTER_WORKER_COUNT");
+        CLUSTER_AUTH_ERROR_MESSAGE = properties.getProperty("CLUSTER_AUTH_ERROR_MESSAGE");
+        CLUSTER_RESERVED_MESSAGE = properties.getProperty("CLUSTER_RESERVED_MESSAGE");
+        CREATE_DIRECTORY_MESSAGE = properties.getProperty("CREATE_DIRECTORY_MESSAGE");
+        CREATE_FILE_MESSAGE = properties.getProperty("CREATE_FILE_MESSAGE");
+        REMOVE_DIRECTORY_MESSAGE = properties.getProperty("REMOVE_DIRECTORY_MESSAGE");
+        REMOVE_TREE_DIRECTORY_MESSAGE = properties.getProperty("REMOVE_TREE_DIRECTORY_MESSAGE");
+        REMOVE_FILE_MESSAGE = properties.getProperty("REMOVE_FILE_MESSAGE");
+        LOCK_FILE_MESSAGE = properties.getProperty("LOCK_FILE_MESSAGE");
+        UNLOCK_FILE_MESSAGE = properties.getProperty("UNLOCK_FILE_MESSAGE");
+        MOVE_NODE_MESSAGE = properties.getProperty("MOVE_NODE_MESSAGE");
+        NOT_MOVED_NODE_MESSAGE = properties.getProperty("NOT_MOVED_NODE_MESSAGE");
+        COPY_NODE_MESSAGE = properties.getProperty("COPY_NODE_MESSAGE");
+        NOT_COPIED_NODE_MESSAGE = properties.getProperty("NOT_COPIED_NODE_MESSAGE");
+        SNAPSHOT_CREATE_MESSAGE = properties.getProperty("SNAPSHOT_CREATE_MESSAGE");
+        SNAPSHOT_DELETE_MESSAGE = properties.getProperty("SNAPSHOT_DELETE_MESSAGE");
+        SNAPSHOT_EMPTY_MESSAGE = properties.getProperty("SNAPSHOT_EMPTY_MESSAGE");
+        RESTORE_MESSAGE = properties.getProperty("RESTORE_MESSAGE");
+        DOUBLE_SNAPSHOT_EXCEPTION_MESSAGE = properties.getProperty("DOUBLE_SNAPSHOT_EXCEPTION_MESSAGE");
+        NOT_FOUND_SNAPSHOT_EXCEPTION_MESSAGE = properties.getProperty("NOT_FOUND_SNAPSHOT_EXCEPTION_MESSAGE");
+        EXPORT_MESSAGE = properties.getProperty("EXPORT_MESSAGE");
+        IMPORT_MESSAGE = properties.getProperty("IMPORT_MESSAGE");
+        ARCHIVE_EXCEPTION_MESSAGE = properties.getProperty("ARCHIVE_EXCEPTION_MESSAGE");
+        NOT_SUPPORTED_COMMAND = properties.getProperty("NOT_SUPPORTED_COMMAND");
+        NOT_EXECUTED_COMMAND = properties.getProperty("NOT_EXECUTED_COMMAND");
+        DOUBLE_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("DOUBLE_DIRECTORY_EXCEPTION_MESSAGE");
+        DOUBLE_FILE_EXCEPTION_MESSAGE = properties.getProperty("DOUBLE_FILE_EXCEPTION_MESSAGE");
+        LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE");
+        LOCKED_FILE_EXCEPTION_MESSAGE = properties.getProperty("LOCKED_FILE_EXCEPTION_MESSAGE");
+        NOT_FOUND_NODE_EXCEPTION_MESSAGE = properties.getProperty("NOT_FOUND_NODE_EXCEPTION_MESSAGE");
+        ROOT_NODE_CHANGE_EXCEPTION_MESSAGE = properties.getProperty("ROOT_NODE_CHANGE_EXCEPTION_MESSAGE");
+        INVALID_NAME_EXCEPTION_MESSAGE = properties.getProperty("INVALID_NAME_EXCEPTION_MESSAGE");
+        REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE");
+        RESTORE_HOME_DIRECTORY_EXCEPTION_MESSAGE = properties.getProperty("RESTORE_HOME_DIRECTORY_EXCEPTION_MESSAGE");
+        WELCOME_CLIENT_MESSAGE = properties.getProperty("WELCOME_CLIENT_MESSAGE");
+        NO_CONNECT_CLIENT_MESSAGE = properties.getProperty("NO_CONNECT_CLIENT_MESSAGE");
+        INCORRECT_COMMAND_CLIENT_MESSAGE = properties.getProperty("INCORRECT_COMMAND_CLIENT_MESSAGE");
+        NOT_SENT_PACKET_CLIENT_EXCEPTION_MESSAGE = properties.getProperty("NOT_SENT_PACKET_CLIENT_EXCEPTION_MESSAGE");
+        DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE = properties.getProperty("DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE");
+        NOT_LOCKED_FILE_EXCEPTION_MESSAGE = properties.getProperty("NOT_LOCKED_FILE_EXCEPTION_MESSAGE");
+        RUN_COMMAND_INTERRUPTED_EXCEPTION = properties.getProperty("RUN_COMMAND_INTERRUPTED_EXCEPTION");
+        FILE_LOCKED_EXCEPTION_MESSAGE = properties.getProperty("FILE_LOCKED_EXCEPTION_MESSAGE");
+        CROSS_DRIVE_EXCEPTION_MESSAGE = properties.getProperty("CROSS_DRIVE_EXCEPTION_MESSAGE");
+        USAGE_MESSAGE = properties.getProperty("USAGE_MESSAGE");
+        DIR_PAGE_SIZE = getInt(properties, "DIR_PAGE_SIZE");
+        DIR_EMPTY_MESSAGE = properties.getProperty("DIR_EMPTY_MESSAGE");
+        DIR_MORE_MESSAGE = properties.getProperty("DIR_MORE_MESSAGE");
+        FIND_PAGE_SIZE = getInt(properties, "FIND_PAGE_SIZE");
+        SYNC_BATCH_SIZE = getInt(properties, "SYNC_BATCH_SIZE");
+        TIMER_TICK = getInt(properties, "TIMER_TICK");
+        TIMER_WHEEL_SIZE = getInt(properties, "TIMER_WHEEL_SIZE");
+        IDLE_TIMEOUT = getInt(properties, "IDLE_TIMEOUT");
+        HEARTBEAT_INTERVAL = getInt(properties, "HEARTBEAT_INTERVAL");
+        COMMAND_TIMEOUT = getInt(properties, "COMMAND_TIMEOUT");
+        COMMAND_TIMEOUT_MESSAGE = properties.getProperty("COMMAND_TIMEOUT_MESSAGE");
+        RENEW_MESSAGE = properties.getProperty("RENEW_MESSAGE");
+        FIND_NOTHING_MESSAGE = properties.getProperty("FIND_NOTHING_MESSAGE");
+        FIND_MORE_MESSAGE = properties.getProperty("FIND_MORE_MESSAGE");
+        RUN_BATCH_SIZE = getInt(properties, "RUN_BATCH_SIZE");
+        RUN_SUMMARY_MESSAGE = properties.getProperty("RUN_SUMMARY_MESSAGE");
+        RUN_FILE_CLIENT_MESSAGE = properties.getProperty("RUN_FILE_CLIENT_MESSAGE");
+        RUN_STOPPED_CLIENT_MESSAGE = properties.getProperty("RUN_STOPPED_CLIENT_MESSAGE");
+        BUFFER_POOL_MAX_SIZE = getInt(properties, "BUFFER_POOL_MAX_SIZE");
+        BUFFER_POOL_CLASS_LIMIT = getInt(properties, "BUFFER_POOL_CLASS_LIMIT");
+        BUFFER_POOL_LEAK_TIMEOUT = getInt(properties, "BUFFER_POOL_LEAK_TIMEOUT");
+        MAX_PACKET_SIZE = getInt(properties, "MAX_PACKET_SIZE");
+        COMPRESSION_THRESHOLD = getInt(properties, "COMPRESSION_THRESHOLD");
+        COMPRESSION_LEVEL = getInt(properties, "COMPRESSION_LEVEL");
+        CLIENT_RECONNECT_DELAY = getInt(properties, "CLIENT_RECONNECT_DELAY");
+        CLIENT_RECONNECT_ATTEMPTS = getInt(properties, "CLIENT_RECONNECT_ATTEMPTS");
+        Durability durability = Durability.getByName(properties.getProperty("DURABILITY").trim());
+        DURABILITY = durability != null ? durability : Durability.ASYNC;
+        DURABILITY_GROUP_WINDOW = getInt(properties, "DURABILITY_GROUP_WINDOW");
+        DURABILITY_ERROR_MESSAGE = properties.getProperty("DURABILITY_ERROR_MESSAGE");
+        LogLevel logLevel = LogLevel.getByName(properties.getProperty("LOG_LEVEL").trim());
+        LOG_LEVEL = logLevel != null ? logLevel : LogLevel.DEBUG;
+        TRACE_SAMPLE_RATE = getInt(properties, "TRACE_SAMPLE_RATE");
+        TRACE_SLOW_THRESHOLD = getInt(properties, "TRACE_SLOW_THRESHOLD");
+        TRACE_BUFFER_SIZE = getInt(properties, "TRACE_BUFFER_SIZE");
+        TRACE_EMPTY_MESSAGE = properties.getProperty("TRACE_EMPTY_MESSAGE");
+        LOCK_STATS_WINDOW = getInt(properties, "LOCK_STATS_WINDOW");
+        LOCK_REPORT_SIZE = getInt(properties, "LOCK_REPORT_SIZE");
+        CONTENTION_MESSAGE = properties.getProperty("CONTENTION_MESSAGE");
+        CONTENTION_EMPTY_MESSAGE = properties.getProperty("CONTENTION_EMPTY_MESSAGE");
+        RELOAD_MESSAGE = properties.getProperty("RELOAD_MESSAGE");
+        RELOAD_UNCHANGED_MESSAGE = properties.getProperty("RELOAD_UNCHANGED_MESSAGE");
+        RELOAD_RESTART_MESSAGE = properties.getProperty("RELOAD_RESTART_MESSAGE");
+        RELOAD_ERROR_MESSAGE = properties.getProperty("RELOAD_ERROR_MESSAGE");
+        this.properties = properties;
+    }
+
+    private static int getInt(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException(key + " is not set");
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + ": " + value + " is not a number");
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ru.gnusinay.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Класс реализует кольцо консистентного хеширования. Каждый узел кластера
+ * размещается на кольце несколькими виртуальными узлами, ключ принадлежит
+ * первому узлу, следующему за хешем ключа по кольцу. При добавлении или
+ * удалении узла меняется владелец только у части ключей
+ * */
+public class ConsistentHashRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /** Метод возвращает узел, которому принадлежит ключ, или null, если кольцо пустое
+     * */
+    public String getNode(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /** Хеш-функция FNV-1a (64 бита) с финальным перемешиванием битов
+     * */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
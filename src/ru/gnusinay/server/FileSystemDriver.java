@@ -3,97 +3,595 @@ package ru.gnusinay.server;
 import ru.gnusinay.client.CommandType;
 import ru.gnusinay.protocol.Packet;
 import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.vfs.DirectoryPage;
+import ru.gnusinay.vfs.File;
+import ru.gnusinay.vfs.NodeType;
+import ru.gnusinay.vfs.PathTrie;
+import ru.gnusinay.vfs.RunningCommand;
 import ru.gnusinay.vfs.VFSException;
 import ru.gnusinay.vfs.VirtualFileSystem;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
 /** Класс является связкой между сервером и файловой системой.
  * Предназначен для выполнения пользовтельских команд над
  * файловой системой и генерации соответствующих сообщений для
- * пользователей.
+ * пользователей. Команда направляется на диск, указанный в начале пути.
+ * Если драйверу передан журнал изменений, каждая успешно выполненная
+ * команда, изменяющая файловую систему, записывается в журнал. Команда
+ * записывается в журнал до снятия блокировок измененных ею элементов (см.
+ * VirtualFileSystem.holdNodeLocks), поэтому порядок записей журнала совпадает
+ * с порядком изменений одних и тех же элементов, а команды над разными
+ * элементами одного диска не ждут друг друга (см. MutationLog).
+ * Команда RUN выполняет часть сценария, загруженного клиентом (см. Script).
  */
 public class FileSystemDriver implements CommandDriver {
+    private MutationLog log;
+    private LeaseTable leases;
+    private volatile boolean replica;
+
+    public FileSystemDriver() {
+        this(null);
+    }
+
+    public FileSystemDriver(MutationLog log) {
+        this.log = log;
+    }
 
-    /** Метод выполняет команду и возвращает пакет с результатом выполнения
+    /** Если драйверу передан таймер, блокировки файлов можно брать с арендой
+     * (ключ /LEASE:секунды команды LOCK). Блокировка, аренда которой не была
+     * продлена командой RENEW, снимается по истечении срока
+     * */
+    public FileSystemDriver(MutationLog log, HashedWheelTimer timer) {
+        this.log = log;
+        this.leases = new LeaseTable(timer, this);
+    }
+
+    /** Метод выполняет команду и возвращает пакет с результатом выполнения.
+     * Описание команды передается файловой системе для диагностики ожидания
+     * блокировок элементов (см. VirtualFileSystem.setCurrentCommand)
      * */
     public Packet execCommand(User user, CommandType type, String params) {
+        VirtualFileSystem.setCurrentCommand(new RunningCommand(type.getName(), params, user.getName()));
+        try {
+            return execLogged(user, type, params);
+        } finally {
+            VirtualFileSystem.setCurrentCommand(null);
+        }
+    }
+
+    private Packet execLogged(User user, CommandType type, String params) {
+        if (log == null || !MutationLog.isMutation(type, params)) {
+            return execute(user, type, params);
+        }
+        ReadWriteLock driveLock = log.getDriveLock(MutationLog.getDriveName(params));
+        Lock lock = MutationLog.isDriveWide(type) ? driveLock.writeLock() : driveLock.readLock();
+        lock.lock();
+        boolean hold = VirtualFileSystem.holdNodeLocks();
+        try {
+            Packet packet = execute(user, type, params);
+            if (packet.getCommandType() != CommandType.SERVER_ERROR && type != CommandType.IMPORT) {
+                log.append(type, user.getName(), params);
+            }
+            return packet;
+        } finally {
+            if (hold) {
+                VirtualFileSystem.releaseNodeLocks();
+            }
+            lock.unlock();
+        }
+    }
+
+    MutationLog getLog() {
+        return log;
+    }
+
+    /** Драйвер реплики применяет записи журнала основного сервера, которые
+     * уже прошли там все проверки. Текущие директории пользователей реплики
+     * не препятствуют удалению, перемещению и восстановлению диска (см.
+     * isHomeDirectoryInside), иначе реплика разошлась бы с основным сервером
+     * */
+    void setReplica(boolean replica) {
+        this.replica = replica;
+    }
+
+    public void setExecutor(Executor executor) {
+        if (leases != null) {
+            leases.setExecutor(executor);
+        }
+    }
+
+    /** Метод снимает блокировку файла file пользователя userName, аренда которой
+     * истекла. Путь файла определяется в момент снятия под блокировкой диска на
+     * запись, поэтому аренда действует и после перемещения директории с файлом
+     *
+     * @return ответ на команду UNLOCK или null, если файл удален
+     * */
+    Packet unlockExpired(String userName, VirtualFileSystem fileSystem, File file) throws InterruptedException {
+        Lock lock = log != null ? log.getDriveLock(fileSystem.getRootName()).writeLock() : null;
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            String path = fileSystem.getPath(file);
+            return path == null ? null : execCommand(new User(userName, null), CommandType.UNLOCK, path);
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Метод снимает все блокировки файлов пользователя на всех дисках
+     * */
+    public void releaseUser(User user) {
+        List<Lock> locks = new ArrayList<>();
+        if (log != null) {
+            locks = log.getAllDriveLocks();
+        }
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            for (VirtualFileSystem fileSystem : VirtualFileSystem.getLoadedDrives()) {
+                fileSystem.unlockAllFilesByUser(user);
+            }
+            if (leases != null) {
+                leases.releaseAll(user);
+            }
+            if (log != null) {
+                log.append(CommandType.QUIT, user.getName(), "");
+            }
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Packet execute(User user, CommandType type, String params) {
         try {
             switch (type) {
                 case CD:
-                    String homeDir = VirtualFileSystem.getInstance().checkPath(params);
+                    String homeDir = VirtualFileSystem.getDriveByPath(params).checkPath(params);
                     user.setCurDirectory(homeDir);
                     return new Packet(CommandType.CHANGE_HOME_DIR, user.getName(), homeDir);
                 case MD:
-                    if (VirtualFileSystem.getInstance().addDirectory(params)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.CREATE_DIRECTORY_MESSAGE);
+                    if (VirtualFileSystem.getDriveByPath(params).addDirectory(params)) {
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().CREATE_DIRECTORY_MESSAGE);
                     }
                     break;
                 case MF:
-                    if (VirtualFileSystem.getInstance().addFile(params)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.CREATE_FILE_MESSAGE);
+                    if (VirtualFileSystem.getDriveByPath(params).addFile(params)) {
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().CREATE_FILE_MESSAGE);
                     }
                     break;
                 case RD:
-                    if (user.getCurDirectory().toLowerCase().contains(params.toLowerCase())) {
-                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
-                    } else if (VirtualFileSystem.getInstance().deleteDirectory(params)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.REMOVE_DIRECTORY_MESSAGE);
+                    if (isHomeDirectoryInside(user, params)) {
+                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
+                    } else if (VirtualFileSystem.getDriveByPath(params).deleteDirectory(params)) {
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().REMOVE_DIRECTORY_MESSAGE);
                     }
                     break;
                 case DELTREE:
-                    if (user.getCurDirectory().toLowerCase().contains(params.toLowerCase())) {
-                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
-                    } else if (VirtualFileSystem.getInstance().deleteDirectoryTree(params)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.REMOVE_TREE_DIRECTORY_MESSAGE);
+                    if (isHomeDirectoryInside(user, params)) {
+                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
+                    } else if (VirtualFileSystem.getDriveByPath(params).deleteDirectoryTree(params)) {
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().REMOVE_TREE_DIRECTORY_MESSAGE);
                     }
                     break;
                 case DEL:
-                    if (VirtualFileSystem.getInstance().deleteFile(params)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.REMOVE_FILE_MESSAGE);
+                    if (VirtualFileSystem.getDriveByPath(params).deleteFile(params)) {
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().REMOVE_FILE_MESSAGE);
                     }
                     break;
                 case LOCK:
-                    if (VirtualFileSystem.getInstance().lockFile(params, user)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.LOCK_FILE_MESSAGE);
-                    }
-                    break;
                 case UNLOCK:
-                    if (VirtualFileSystem.getInstance().unlockFile(params, user)) {
-                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.UNLOCK_FILE_MESSAGE);
-                    }
-                    break;
+                    return changeLocks(user, type, params);
+                case RENEW:
+                    int renewed = leases == null ? 0 : leases.renew(user, getLeaseDuration(params));
+                    return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().RENEW_MESSAGE, renewed));
                 case MOVE:
                     String[] moveParams = params.split(Protocol.SEPARATOR);
                     if (moveParams.length == 2) {
-                        if (user.getCurDirectory().toLowerCase().contains(moveParams[0].toLowerCase())) {
-                            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
-                        } else if (VirtualFileSystem.getInstance().moveNode(moveParams[0], moveParams[1])) {
-                            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.MOVE_NODE_MESSAGE);
+                        if (isHomeDirectoryInside(user, moveParams[0])) {
+                            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().REMOVE_HOME_DIRECTORY_EXCEPTION_MESSAGE);
+                        } else if (getSameDrive(moveParams[0], moveParams[1]).moveNode(moveParams[0], moveParams[1])) {
+                            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().MOVE_NODE_MESSAGE);
                         }
-                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.NOT_MOVED_NODE_MESSAGE);
+                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_MOVED_NODE_MESSAGE);
                     }
                     break;
                 case COPY:
                     String[] copyParams = params.split(Protocol.SEPARATOR);
-                    if (copyParams.length == 2) {
-                        if (VirtualFileSystem.getInstance().copyNode(copyParams[0], copyParams[1])) {
-                            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.COPY_NODE_MESSAGE);
+                    boolean share = copyParams.length == 3 && copyParams[2].equalsIgnoreCase("/SHARE");
+                    if (copyParams.length == 2 || share) {
+                        if (getSameDrive(copyParams[0], copyParams[1]).copyNode(copyParams[0], copyParams[1], share)) {
+                            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().COPY_NODE_MESSAGE);
                         }
-                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.NOT_COPIED_NODE_MESSAGE);
+                        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_COPIED_NODE_MESSAGE);
+                    }
+                    break;
+                case SNAPSHOT:
+                    return snapshot(user, params);
+                case RESTORE:
+                    String restoreName = MutationLog.getKey(params, "/NAME:");
+                    if (restoreName != null) {
+                        VirtualFileSystem fileSystem = VirtualFileSystem.getDriveByPath(params);
+                        List<String> homeDirectories = replica ? Collections.emptyList() : UserDirectoryIndex.getDirectoriesInside(fileSystem.getRootName());
+                        fileSystem.restoreSnapshot(restoreName, homeDirectories);
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().RESTORE_MESSAGE, fileSystem.getRootName(), restoreName));
                     }
                     break;
+                case EXPORT:
+                    String exportName = MutationLog.getKey(params, "/FILE:");
+                    if (exportName != null) {
+                        String exportPath = params.split(Protocol.SEPARATOR)[0];
+                        long exported = VirtualFileSystem.getDriveByPath(exportPath).exportArchive(exportPath, exportName);
+                        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().EXPORT_MESSAGE, exported, exportName));
+                    }
+                    break;
+                case IMPORT:
+                    return importArchive(user, params);
+                case DU:
+                    int[] usage = VirtualFileSystem.getDriveByPath(params).getUsage(params);
+                    return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().USAGE_MESSAGE, usage[0], usage[1], usage[2]));
+                case DIR:
+                    return list(user, params);
+                case FIND:
+                    return find(user, params);
+                case SYNC:
+                    return sync(user, params);
+                case RUN:
+                    return run(user, params);
                 case PRINT:
-                    String message = VirtualFileSystem.getInstance().print();
-                    return new Packet(CommandType.SERVER_RESPONSE, user.getName(), '\n' + message);
+                    StringBuilder message = new StringBuilder();
+                    for (VirtualFileSystem fileSystem : VirtualFileSystem.getDrives()) {
+                        message.append(fileSystem.print());
+                    }
+                    return new Packet(CommandType.SERVER_RESPONSE, user.getName(), '\n' + message.toString());
                 default:
-                    return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.NOT_SUPPORTED_COMMAND);
+                    return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_SUPPORTED_COMMAND);
             }
         } catch (VFSException e) {
             return new Packet(CommandType.SERVER_ERROR, user.getName(), e.getMessage());
         } catch (InterruptedException e) {
             Server.logging("FileSystemDriver - " + e.getMessage());
-            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.RUN_COMMAND_INTERRUPTED_EXCEPTION);
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().RUN_COMMAND_INTERRUPTED_EXCEPTION);
+        }
+
+        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+    }
+
+    /** Метод блокирует или разблокирует один или несколько файлов одного диска.
+     * Если задан ключ /LEASE, блокировки берутся с арендой. Если часть файлов
+     * обработать не удалось, ответ содержит ошибки по этим файлам
+     * */
+    private Packet changeLocks(User user, CommandType type, String params) throws VFSException, InterruptedException {
+        List<String> paths = new ArrayList<>();
+        for (String param : params.split(Protocol.SEPARATOR)) {
+            if (!param.isEmpty() && !param.startsWith("/")) {
+                paths.add(param);
+            }
         }
+        if (paths.isEmpty()) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+        }
+        VirtualFileSystem fileSystem = VirtualFileSystem.getDriveByPath(paths.get(0));
+        for (String path : paths) {
+            if (VirtualFileSystem.getDriveByPath(path) != fileSystem) {
+                throw new VFSException(String.format(Config.get().CROSS_DRIVE_EXCEPTION_MESSAGE, paths.get(0), path));
+            }
+        }
+        Map<String, String> failures = type == CommandType.LOCK ? fileSystem.lockFiles(paths, user) : fileSystem.unlockFiles(paths, user);
+        long lease = getLeaseDuration(params);
+        if (leases != null && (type == CommandType.UNLOCK ? leases.hasLeases(user) : lease > 0)) {
+            for (String path : paths) {
+                File file = failures.containsKey(path) ? null : fileSystem.getFile(path);
+                if (file == null) {
+                    continue;
+                }
+                if (type == CommandType.UNLOCK) {
+                    leases.release(user, file);
+                } else {
+                    leases.grant(user, fileSystem, file, lease);
+                }
+            }
+        }
+        if (failures.isEmpty()) {
+            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), type == CommandType.LOCK ? Config.get().LOCK_FILE_MESSAGE : Config.get().UNLOCK_FILE_MESSAGE);
+        }
+        String errors = String.join("\n", failures.values());
+        if (failures.size() == paths.size()) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), errors);
+        }
+        String message = type == CommandType.LOCK ? Config.get().LOCK_FILE_MESSAGE : Config.get().UNLOCK_FILE_MESSAGE;
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), message + '\n' + errors);
+    }
 
-        return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.NOT_EXECUTED_COMMAND);
+    /** Метод выполняет часть сценария команды RUN. Идущие подряд команды MD, MF
+     * или DEL над элементами одной директории выполняются группой: путь к директории
+     * проходится и блокируется один раз, блокировка диска тоже берется один раз на
+     * всю группу, а записи группы добавляются в журнал до снятия блокировок элементов. Остальные строки выполняются как обычные команды. Каждая
+     * выполненная строка записывается в журнал отдельной записью
+     * */
+    private Packet run(User user, String params) throws InterruptedException {
+        Script script = new Script(params);
+        List<Script.Line> lines = script.getLines();
+        int i = 0;
+        while (i < lines.size()) {
+            Script.Line line = lines.get(i);
+            int end = i + 1;
+            if (line.getType() == CommandType.MD || line.getType() == CommandType.MF || line.getType() == CommandType.DEL) {
+                while (end < lines.size() && lines.get(end).getType() == line.getType() &&
+                       lines.get(end).getParentPath().equalsIgnoreCase(line.getParentPath())) {
+                    end++;
+                }
+            }
+            if (end - i > 1) {
+                runGroup(user, script, lines.subList(i, end));
+            } else if (Script.isAllowed(line.getType())) {
+                script.complete(line, execCommand(user, line.getType(), line.getParams()));
+            } else {
+                script.complete(line, Config.get().NOT_SUPPORTED_COMMAND);
+            }
+            i = end;
+        }
+        return script.toPacket(user);
+    }
+
+    private void runGroup(User user, Script script, List<Script.Line> group) throws InterruptedException {
+        CommandType type = group.get(0).getType();
+        String parentPath = group.get(0).getParentPath();
+        List<String> names = new ArrayList<>(group.size());
+        for (Script.Line line : group) {
+            names.add(line.getName());
+        }
+        Lock lock = log == null ? null : log.getDriveLock(MutationLog.getDriveName(parentPath)).readLock();
+        if (lock != null) {
+            lock.lock();
+        }
+        boolean hold = VirtualFileSystem.holdNodeLocks();
+        try {
+            String[] errors;
+            try {
+                VirtualFileSystem fileSystem = VirtualFileSystem.getDriveByPath(parentPath);
+                if (type == CommandType.DEL) {
+                    errors = fileSystem.deleteFiles(parentPath, names);
+                } else {
+                    errors = fileSystem.addNodes(parentPath, names, type == CommandType.MD ? NodeType.DIRECTORY : NodeType.FILE);
+                }
+            } catch (VFSException e) {
+                errors = new String[group.size()];
+                Arrays.fill(errors, e.getMessage());
+            }
+            for (int i = 0; i < group.size(); i++) {
+                if (errors[i] == null && log != null) {
+                    log.append(type, user.getName(), group.get(i).getParams());
+                }
+                script.complete(group.get(i), errors[i]);
+            }
+        } finally {
+            if (hold) {
+                VirtualFileSystem.releaseNodeLocks();
+            }
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Метод загружает архив, указанный ключом /FILE:имя, в директорию из первого
+     * параметра. Архив загружается целиком или не загружается совсем. В журнал
+     * изменений записывается не команда IMPORT, а записи MD и MF для каждого
+     * добавленного элемента, поэтому журнал на диске и реплики не зависят от
+     * файла архива (записи добавляются до снятия блокировок элементов, см. execLogged)
+     * */
+    private Packet importArchive(User user, String params) throws VFSException, InterruptedException {
+        String name = MutationLog.getKey(params, "/FILE:");
+        if (name == null) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+        }
+        String path = params.split(Protocol.SEPARATOR)[0];
+        List<String> added = new ArrayList<>();
+        long imported = VirtualFileSystem.getDriveByPath(path).importArchive(path, name, added);
+        if (log != null) {
+            for (String line : added) {
+                log.append(line.charAt(0) == 'D' ? CommandType.MD : CommandType.MF, user.getName(), line.substring(2));
+            }
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().IMPORT_MESSAGE, imported, name));
+    }
+
+    /** Метод создает (ключ /NAME:имя) или удаляет (ключи /NAME:имя /D) снимок диска,
+     * указанного первым параметром. Без имени выводится список снимков диска
+     * */
+    private Packet snapshot(User user, String params) throws VFSException {
+        VirtualFileSystem fileSystem = VirtualFileSystem.getDriveByPath(params);
+        String name = MutationLog.getKey(params, "/NAME:");
+        if (name == null) {
+            List<String> names = fileSystem.getSnapshotNames();
+            if (names.isEmpty()) {
+                return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().SNAPSHOT_EMPTY_MESSAGE);
+            }
+            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), '\n' + String.join("\n", names));
+        }
+        for (String param : params.split(Protocol.SEPARATOR)) {
+            if (param.equalsIgnoreCase("/D")) {
+                fileSystem.deleteSnapshot(name);
+                return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().SNAPSHOT_DELETE_MESSAGE, name));
+            }
+        }
+        fileSystem.createSnapshot(name);
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), String.format(Config.get().SNAPSHOT_CREATE_MESSAGE, name));
+    }
+
+    /** Метод возвращает срок аренды из ключа /LEASE:секунды в миллисекундах или 0
+     * */
+    private static long getLeaseDuration(String params) {
+        for (String param : params.split(Protocol.SEPARATOR)) {
+            if (param.regionMatches(true, 0, "/LEASE:", 0, 7)) {
+                try {
+                    return Long.parseLong(param.substring(7)) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Метод выводит содержимое директории постранично. Первый параметр содержит
+     * директорию, далее могут идти ключи /D - только директории, /F - только файлы
+     * и /FROM:имя - вывести элементы, следующие за указанным. За один раз выводится
+     * не более Config.DIR_PAGE_SIZE элементов
+     * */
+    private Packet list(User user, String params) throws VFSException, InterruptedException {
+        String[] dirParams = params.split(Protocol.SEPARATOR);
+        String type = null;
+        String after = null;
+        for (int i = 1; i < dirParams.length; i++) {
+            if (dirParams[i].equalsIgnoreCase("/D") || dirParams[i].equalsIgnoreCase("/F")) {
+                type = dirParams[i].substring(1);
+            } else if (dirParams[i].regionMatches(true, 0, "/FROM:", 0, 6)) {
+                after = dirParams[i].substring(6);
+            }
+        }
+        VirtualFileSystem fileSystem = VirtualFileSystem.getDriveByPath(dirParams[0]);
+        DirectoryPage page = fileSystem.list(dirParams[0], type, after, Config.get().DIR_PAGE_SIZE);
+        if (page.getLines().isEmpty()) {
+            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().DIR_EMPTY_MESSAGE);
+        }
+        StringBuilder message = new StringBuilder();
+        for (String line : page.getLines()) {
+            message.append('\n').append(line);
+        }
+        if (page.hasMore()) {
+            message.append('\n').append(String.format(Config.get().DIR_MORE_MESSAGE, page.getLast()));
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), message.toString());
+    }
+
+    /** Метод возвращает изменения файловой системы, выполненные после позиции
+     * журнала, указанной ключом /FROM:эпоха.номер. Первая строка ответа содержит
+     * вид ответа, новую позицию журнала и количество еще не переданных изменений,
+     * далее идут изменения (см. MutationLog.Entry.toDelta), не более
+     * Config.SYNC_BATCH_SIZE за один раз. Если позиция не указана, относится к
+     * другой эпохе или уже удалена из журнала, возвращается снимок (SNAPSHOT)
+     * постранично, по Config.SYNC_BATCH_SIZE элементов. Вместо количества
+     * изменений первая строка страницы снимка содержит 1 и путь последнего
+     * элемента, если снимок не закончен, или 0. Следующая страница запрашивается
+     * с позицией снимка и ключом /AFTER:путь, а после последней страницы
+     * запрашиваются изменения с позиции снимка, в том числе сделанные во время
+     * передачи страниц. Если позиция снимка уже удалена из журнала, снимок
+     * передается заново с новой позицией
+     * */
+    private Packet sync(User user, String params) throws InterruptedException {
+        if (log == null) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_SUPPORTED_COMMAND);
+        }
+        long epoch = -1;
+        long seq = -1;
+        String after = null;
+        for (String param : params.split(Protocol.SEPARATOR)) {
+            if (param.regionMatches(true, 0, "/AFTER:", 0, 7)) {
+                after = param.substring(7);
+            } else if (param.regionMatches(true, 0, "/FROM:", 0, 6)) {
+                String[] position = param.substring(6).split("\\.");
+                try {
+                    epoch = Long.parseLong(position[0]);
+                    seq = Long.parseLong(position[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    epoch = -1;
+                }
+            }
+        }
+        List<MutationLog.Entry> entries = null;
+        boolean current = epoch == log.getEpoch() && seq >= 0;
+        if (current && after == null) {
+            entries = log.getEntries(seq, 0, Config.get().SYNC_BATCH_SIZE);
+        }
+        StringBuilder message = new StringBuilder();
+        if (entries == null) {
+            if (!current || !log.contains(seq)) {
+                after = null;
+                seq = log.getLastSeq();
+            }
+            entries = new ArrayList<>();
+            String last = log.makeSnapshotPage(entries, after, Config.get().SYNC_BATCH_SIZE);
+            message.append("\nSNAPSHOT\t").append(log.getEpoch()).append('.').append(seq)
+                    .append(last == null ? "\t0" : "\t1\t" + last);
+        } else {
+            if (!entries.isEmpty()) {
+                seq = entries.get(entries.size() - 1).getSeq();
+            }
+            message.append("\nDELTA\t").append(epoch).append('.').append(seq).append('\t').append(Math.max(0, log.getLastSeq() - seq));
+        }
+        for (MutationLog.Entry entry : entries) {
+            message.append('\n').append(entry.toDelta());
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), message.toString());
+    }
+
+    /** Метод выполняет поиск по имени. Первый параметр содержит директорию поиска
+     * и шаблон имени (например, C:\\docs\\*.txt), далее могут идти ключи /C - учитывать
+     * регистр и /FROM:путь - вывести результаты, следующие за указанным путем.
+     * За один раз возвращается не более Config.FIND_PAGE_SIZE путей
+     * */
+    private Packet find(User user, String params) throws VFSException, InterruptedException {
+        String[] findParams = params.split(Protocol.SEPARATOR);
+        int index = findParams[0].lastIndexOf('\\');
+        if (index < 0 || index == findParams[0].length() - 1) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_EXECUTED_COMMAND);
+        }
+        String path = findParams[0].substring(0, index);
+        String pattern = findParams[0].substring(index + 1);
+        boolean caseSensitive = false;
+        String after = null;
+        for (int i = 1; i < findParams.length; i++) {
+            if (findParams[i].equalsIgnoreCase("/C")) {
+                caseSensitive = true;
+            } else if (findParams[i].regionMatches(true, 0, "/FROM:", 0, 6)) {
+                after = findParams[i].substring(6);
+            }
+        }
+        List<String> paths = VirtualFileSystem.getDriveByPath(path).find(path, pattern, caseSensitive, after, Config.get().FIND_PAGE_SIZE + 1);
+        if (paths.isEmpty()) {
+            return new Packet(CommandType.SERVER_RESPONSE, user.getName(), Config.get().FIND_NOTHING_MESSAGE);
+        }
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < paths.size() && i < Config.get().FIND_PAGE_SIZE; i++) {
+            message.append('\n').append(paths.get(i));
+        }
+        if (paths.size() > Config.get().FIND_PAGE_SIZE) {
+            message.append('\n').append(String.format(Config.get().FIND_MORE_MESSAGE, paths.get(Config.get().FIND_PAGE_SIZE - 1)));
+        }
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), message.toString());
+    }
+
+    /** Метод проверяет, находится ли текущая директория пользователя или
+     * любого другого подключенного пользователя внутри директории path.
+     * Реплика эту проверку не выполняет (см. setReplica)
+     * */
+    private boolean isHomeDirectoryInside(User user, String path) {
+        return !replica && (PathTrie.isInside(user.getCurDirectory(), path) || UserDirectoryIndex.hasUsersInside(path));
+    }
+
+    /** Метод возвращает диск, на котором находятся оба элемента. Перемещение и
+     * копирование между разными дисками не поддерживается
+     * */
+    private VirtualFileSystem getSameDrive(String pathFrom, String pathTo) throws VFSException {
+        VirtualFileSystem fileSystem = VirtualFileSystem.getDriveByPath(pathFrom);
+        if (fileSystem != VirtualFileSystem.getDriveByPath(pathTo)) {
+            throw new VFSException(String.format(Config.get().CROSS_DRIVE_EXCEPTION_MESSAGE, pathFrom, pathTo));
+        }
+        return fileSystem;
     }
-}
\ No newline at end of file
+}
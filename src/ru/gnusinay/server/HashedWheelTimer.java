@@ -0,0 +1,122 @@
+package ru.gnusinay.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Класс-поток реализует таймер на основе хешированного колеса. Колесо
+ * состоит из wheelSize ячеек, каждая ячейка соответствует одному такту
+ * длительностью tickMillis. Таймер попадает в ячейку по номеру такта, в
+ * котором он должен сработать, и хранит количество полных оборотов колеса
+ * до срабатывания. Добавление и отмена таймера выполняются за O(1), поток
+ * таймера на каждом такте просматривает только одну ячейку. Новые таймеры
+ * передаются потоку через очередь, ячейки изменяет только поток таймера.
+ * Задачи таймеров выполняются в потоке таймера и должны быть короткими
+ * */
+public class HashedWheelTimer extends Thread {
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private long tick;
+
+    public HashedWheelTimer(long tickMillis, int wheelSize) {
+        super("HashedWheelTimer");
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheel = new Timeout[Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1];
+        this.mask = wheel.length - 1;
+        setDaemon(true);
+    }
+
+    /** Метод планирует выполнение задачи через delayMillis миллисекунд
+     * */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferPending();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / wheel.length;
+            int index = (int) (ticks & mask);
+            timeout.next = wheel[index];
+            wheel[index] = timeout;
+        }
+    }
+
+    private void expire(long index) {
+        Timeout previous = null;
+        Timeout timeout = wheel[(int) index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.rounds == 0) {
+                if (previous == null) {
+                    wheel[(int) index] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        Server.logging("HashedWheelTimer - " + e.getMessage());
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    /** Класс описывает запланированную задачу таймера
+     * */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private long rounds;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** Отмененная задача удаляется из колеса, когда поток таймера дойдет до ее ячейки
+         * */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.vfs.File;
+import ru.gnusinay.vfs.VirtualFileSystem;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/** Класс хранит аренды блокировок файлов. Блокировка, взятая с арендой,
+ * снимается командой UNLOCK от имени пользователя, если аренда не была
+ * продлена до истечения срока. Для каждой аренды в таймере хранится одна
+ * задача: продление аренды только переносит срок ее окончания, а задача
+ * таймера при срабатывании до нового срока планируется заново.
+ * Аренды хранятся по элементам файлов, а не по путям: путь файла определяется
+ * при снятии блокировки, поэтому перемещение директории с файлом не теряет
+ * аренду. Блокировка с истекшей арендой снимается в пуле потоков-обработчиков
+ * сервера (см. setExecutor), поток таймера только передает туда задачу
+ * */
+class LeaseTable {
+    private final HashedWheelTimer timer;
+    private final FileSystemDriver driver;
+    private final Map<String, Map<File, Lease>> leases = new ConcurrentHashMap<>();
+    private volatile Executor executor;
+
+    LeaseTable(HashedWheelTimer timer, FileSystemDriver driver) {
+        this.timer = timer;
+        this.driver = driver;
+    }
+
+    /** Пул потоков, в котором снимаются блокировки с истекшей арендой. Пока пул
+     * не задан, блокировки снимаются в потоке таймера
+     * */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /** Метод выдает пользователю аренду блокировки файла file диска fileSystem
+     * на duration миллисекунд
+     * */
+    void grant(User user, VirtualFileSystem fileSystem, File file, long duration) {
+        Lease lease = new Lease(user.getName(), fileSystem, file, duration);
+        lease.timeout = timer.schedule(() -> expire(lease), duration);
+        Lease previous = getUserLeases(user.getName()).put(file, lease);
+        if (previous != null) {
+            previous.timeout.cancel();
+        }
+    }
+
+    /** Метод удаляет аренду блокировки файла file, например, после ее снятия пользователем
+     * */
+    void release(User user, File file) {
+        Map<File, Lease> userLeases = leases.get(user.getName().toLowerCase());
+        if (userLeases != null) {
+            Lease lease = userLeases.remove(file);
+            if (lease != null) {
+                lease.timeout.cancel();
+            }
+        }
+    }
+
+    /** Метод проверяет, есть ли у пользователя аренды
+     * */
+    boolean hasLeases(User user) {
+        Map<File, Lease> userLeases = leases.get(user.getName().toLowerCase());
+        return userLeases != null && !userLeases.isEmpty();
+    }
+
+    /** Метод удаляет все аренды пользователя
+     * */
+    void releaseAll(User user) {
+        Map<File, Lease> userLeases = leases.remove(user.getName().toLowerCase());
+        if (userLeases != null) {
+            for (Lease lease : userLeases.values()) {
+                lease.timeout.cancel();
+            }
+        }
+    }
+
+    /** Метод продлевает все аренды пользователя на duration миллисекунд или, если
+     * duration не задан, на их исходный срок. Возвращает количество продленных аренд
+     * */
+    int renew(User user, long duration) {
+        Map<File, Lease> userLeases = leases.get(user.getName().toLowerCase());
+        if (userLeases == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Lease lease : userLeases.values()) {
+            if (duration > 0) {
+                lease.duration = duration;
+            }
+            lease.expiresAt = now + lease.duration;
+            count++;
+        }
+        return count;
+    }
+
+    private Map<File, Lease> getUserLeases(String userName) {
+        return leases.computeIfAbsent(userName.toLowerCase(), k -> new ConcurrentHashMap<>());
+    }
+
+    private void expire(Lease lease) {
+        long remaining = lease.expiresAt - System.currentTimeMillis();
+        if (remaining > 0) {
+            lease.timeout = timer.schedule(() -> expire(lease), remaining);
+            return;
+        }
+        Map<File, Lease> userLeases = leases.get(lease.userName.toLowerCase());
+        if (userLeases == null || !userLeases.remove(lease.file, lease)) {
+            return;
+        }
+        Executor current = executor;
+        if (current != null) {
+            current.execute(() -> unlock(lease));
+        } else {
+            unlock(lease);
+        }
+    }
+
+    private void unlock(Lease lease) {
+        try {
+            Packet packet = driver.unlockExpired(lease.userName, lease.fileSystem, lease.file);
+            if (packet != null) {
+                Server.logging(String.format("Истек срок аренды блокировки файла %s пользователя %s: %s", lease.file, lease.userName, packet.getText()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Lease {
+        private final String userName;
+        private final VirtualFileSystem fileSystem;
+        private final File file;
+        private volatile long duration;
+        private volatile long expiresAt;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        Lease(String userName, VirtualFileSystem fileSystem, File file, long duration) {
+            this.userName = userName;
+            this.fileSystem = fileSystem;
+            this.file = file;
+            this.duration = duration;
+            this.expiresAt = System.currentTimeMillis() + duration;
+        }
+    }
+}
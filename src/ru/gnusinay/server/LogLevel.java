@@ -0,0 +1,24 @@
+package ru.gnusinay.server;
+
+/** Перечисление описывает уровни журнала сервера (см. Server.logging):
+ * OFF - сообщения не выводятся;
+ * INFO - события сервера: подключения пользователей, снимки, отказы и ошибки;
+ * DEBUG - дополнительно прохождение каждой задачи через планировщик.
+ * Уровень задается настройкой Config.LOG_LEVEL и меняется командой RELOAD
+ * */
+public enum LogLevel {
+    OFF,
+    INFO,
+    DEBUG;
+
+    /** Метод возвращает уровень по имени без учета регистра или null, если уровень не найден
+     * */
+    public static LogLevel getByName(String name) {
+        for (LogLevel level : values()) {
+            if (level.name().equalsIgnoreCase(name)) {
+                return level;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,427 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.vfs.VirtualFileSystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Класс описывает журнал изменений файловой системы на диске. Записи журнала
+ * изменений (MutationLog) копируются в буфер и сохраняются в файл отдельным
+ * потоком группами: поток ждет окно Config.DURABILITY_GROUP_WINDOW после первой
+ * несохраненной записи, записывает все накопленные записи и выполняет fsync.
+ * Команда с уровнем SYNC прерывает ожидание окна. Ответ команде с уровнем GROUP
+ * или SYNC отправляется после сохранения ее записи (см. whenSynced).
+ * Журнал делится на поколения (файлы journal-N.log в каталоге Config.STORAGE_DIR).
+ * Снимки дисков фиксируются под блокировками всех дисков (см.
+ * CheckpointThread.checkpointAll): в этот момент начинается новое поколение,
+ * а номер последней записи сохраняется в заголовке снимка (см. NodeStore).
+ * После сохранения снимков старые поколения удаляются. При запуске сервера
+ * к снимку диска применяются только записи с номерами больше номера снимка,
+ * а номера новых записей продолжают номера сохраненных. Запись, которую не
+ * удалось применить, останавливает запуск сервера: продолжение работы с
+ * пропущенным изменением разошлось бы с подтвержденными клиентам командами.
+ * Пропускается только поврежденная последняя запись, которая могла быть
+ * записана не полностью при аварийной остановке.
+ * Каждая запись занимает одну строку, поэтому переводы строк в имени
+ * пользователя и параметрах записываются escape-последовательностями (см. escape)
+ * */
+public class MutationJournal extends Thread {
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final char ESCAPE = '\u0010';
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private StringBuilder pending = new StringBuilder();
+    private long pendingSince;
+    private long appendedSeq;
+    private long syncedSeq;
+    private boolean syncRequested;
+    private boolean closed;
+    private FileChannel channel;
+    private long generation;
+
+    public MutationJournal(Path directory) {
+        this.directory = directory;
+        setDaemon(true);
+    }
+
+    /** Метод применяет к файловой системе записи сохраненных поколений журнала,
+     * которых нет в снимках дисков, и открывает новое поколение. Номера следующих
+     * записей журнала изменений log продолжают номера сохраненных записей.
+     *
+     * @return количество примененных записей
+     * @throws IOException если запись повреждена или не может быть применена
+     * */
+    public int open(CommandDriver driver, MutationLog log) throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> files = listGenerations();
+        List<String> lines = new ArrayList<>();
+        for (Path file : files.values()) {
+            lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        long lastSeq = 0;
+        for (VirtualFileSystem fileSystem : VirtualFileSystem.getDrives()) {
+            lastSeq = Math.max(lastSeq, fileSystem.getCheckpointSeq());
+        }
+        List<String[]> records = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String[] parts = lines.get(i).split(Protocol.SEPARATOR, 5);
+            long seq = parts.length < 4 || CommandType.getCommandTypeByCode(parts[2]) == null ? -1 : parseSeq(parts[0]);
+            if (seq < 0) {
+                if (i < lines.size() - 1) {
+                    throw new IOException("Запись журнала повреждена: " + lines.get(i));
+                }
+                Server.logging("Последняя запись журнала записана не полностью и пропущена: " + lines.get(i));
+                break;
+            }
+            parts[3] = unescape(parts[3]);
+            if (parts.length > 4) {
+                parts[4] = unescape(parts[4]);
+            }
+            records.add(parts);
+            lastSeq = Math.max(lastSeq, seq);
+        }
+        log.startAt(lastSeq);
+        int applied = 0;
+        for (String[] parts : records) {
+            if (apply(driver, parts)) {
+                applied++;
+            }
+        }
+        generation = files.isEmpty() ? 1 : files.lastKey() + 1;
+        channel = openGeneration(generation);
+        return applied;
+    }
+
+    /** Метод применяет запись журнала, если ее нет в снимке диска
+     *
+     * @return false, если запись уже содержится в снимке
+     * */
+    private boolean apply(CommandDriver driver, String[] parts) throws IOException {
+        CommandType type = CommandType.getCommandTypeByCode(parts[2]);
+        User user = new User(parts[3], null);
+        if (type == CommandType.QUIT) {
+            driver.releaseUser(user);
+            return true;
+        }
+        String params = parts.length > 4 ? parts[4] : "";
+        VirtualFileSystem fileSystem = VirtualFileSystem.getDrive(MutationLog.getDriveName(params));
+        if (fileSystem == null) {
+            throw new IOException(String.format("Запись журнала %s не применена: диск не объявлен", parts[0]));
+        }
+        if (parseSeq(parts[0]) <= fileSystem.getCheckpointSeq()) {
+            return false;
+        }
+        Packet result = driver.execCommand(user, type, params);
+        if (result.getCommandType() == CommandType.SERVER_ERROR) {
+            throw new IOException(String.format("Запись журнала %s не применена: %s", parts[0], result.getText()));
+        }
+        return true;
+    }
+
+    /** Метод заменяет символы конца строки \n и \r последовательностями
+     * ESCAPE n и ESCAPE r, а сам символ ESCAPE - двумя такими символами.
+     * Строки без этих символов не копируются
+     * */
+    static String escape(String text) {
+        int i = 0;
+        while (i < text.length() && !isEscaped(text.charAt(i))) {
+            i++;
+        }
+        if (i == text.length()) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length() + 8).append(text, 0, i);
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!isEscaped(c)) {
+                builder.append(c);
+            } else {
+                builder.append(ESCAPE).append(c == '\n' ? 'n' : c == '\r' ? 'r' : ESCAPE);
+            }
+        }
+        return builder.toString();
+    }
+
+    /** Метод восстанавливает строку, записанную методом escape
+     * */
+    static String unescape(String text) {
+        int i = text.indexOf(ESCAPE);
+        if (i < 0) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length()).append(text, 0, i);
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ESCAPE && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isEscaped(char c) {
+        return c == '\n' || c == '\r' || c == ESCAPE;
+    }
+
+    private static long parseSeq(String seq) {
+        try {
+            return Long.parseLong(seq);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Метод задает номер записи журнала изменений, начиная с которого
+     * записи сохраняются в файл. Более ранние записи считаются сохраненными
+     * */
+    void init(long seq) {
+        lock.lock();
+        try {
+            appendedSeq = seq;
+            syncedSeq = seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод добавляет запись в буфер журнала. Вызывается журналом изменений
+     * под его блокировкой, поэтому записи добавляются в порядке номеров
+     * */
+    void append(MutationLog.Entry entry) {
+        lock.lock();
+        try {
+            if (pending.length() == 0) {
+                pendingSince = System.currentTimeMillis();
+                changed.signal();
+            }
+            pending.append(entry.getSeq()).append(Protocol.SEPARATOR)
+                    .append(entry.getTime()).append(Protocol.SEPARATOR)
+                    .append(entry.getType().getCode()).append(Protocol.SEPARATOR)
+                    .append(escape(entry.getUserName())).append(Protocol.SEPARATOR)
+                    .append(escape(entry.getParams())).append('\n');
+            appendedSeq = entry.getSeq();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод возвращает CompletableFuture, которая завершается после сохранения
+     * записей с номерами до seq включительно. Значение false означает, что записи
+     * не удалось сохранить. Если urgent, сохранение начинается без ожидания окна
+     * */
+    public CompletableFuture<Boolean> whenSynced(long seq, boolean urgent) {
+        lock.lock();
+        try {
+            if (seq <= syncedSeq) {
+                return CompletableFuture.completedFuture(true);
+            }
+            if (closed) {
+                return CompletableFuture.completedFuture(false);
+            }
+            Waiter waiter = new Waiter(seq);
+            waiters.add(waiter);
+            if (urgent) {
+                syncRequested = true;
+                changed.signal();
+            }
+            return waiter.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Поток сохранения журнала. Записи сохраняются группами, накопленными за окно
+     * Config.DURABILITY_GROUP_WINDOW или до запроса срочного сохранения
+     * */
+    @Override
+    public void run() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.length() == 0 && !closed) {
+                    changed.await();
+                }
+                if (pending.length() == 0) {
+                    return;
+                }
+                long wait = pendingSince + Config.get().DURABILITY_GROUP_WINDOW - System.currentTimeMillis();
+                while (!syncRequested && !closed && wait > 0) {
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                    wait = pendingSince + Config.get().DURABILITY_GROUP_WINDOW - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            sync();
+        }
+    }
+
+    /** Метод записывает накопленные записи в текущее поколение и выполняет fsync.
+     * Ожидающие команды уведомляются о результате сохранения
+     * */
+    private void sync() {
+        fileLock.lock();
+        try {
+            String text;
+            long seq;
+            lock.lock();
+            try {
+                text = pending.toString();
+                seq = appendedSeq;
+                pending = new StringBuilder();
+                syncRequested = false;
+            } finally {
+                lock.unlock();
+            }
+            boolean saved = true;
+            if (!text.isEmpty()) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                } catch (IOException e) {
+                    Server.logging("Журнал изменений не сохранен: " + e.getMessage());
+                    saved = false;
+                }
+            }
+            complete(seq, saved);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void complete(long seq, boolean saved) {
+        List<Waiter> done = new ArrayList<>();
+        lock.lock();
+        try {
+            if (saved) {
+                syncedSeq = Math.max(syncedSeq, seq);
+            }
+            Iterator<Waiter> iterator = waiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                if (waiter.seq <= seq) {
+                    iterator.remove();
+                    done.add(waiter);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Waiter waiter : done) {
+            waiter.future.complete(saved);
+        }
+    }
+
+    /** Метод сохраняет накопленные записи и начинает новое поколение журнала.
+     * Вызывается под блокировками всех дисков при фиксации снимков дисков
+     *
+     * @return номер нового поколения
+     * */
+    public long rotate() throws IOException {
+        fileLock.lock();
+        try {
+            sync();
+            FileChannel next = openGeneration(generation + 1);
+            channel.close();
+            channel = next;
+            return ++generation;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /** Метод удаляет поколения журнала с номерами меньше generation. Вызывается
+     * после сохранения снимков всех дисков
+     * */
+    public void deleteBefore(long generation) {
+        try {
+            for (Path file : listGenerations().headMap(generation).values()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            Server.logging("Старые файлы журнала изменений не удалены: " + e.getMessage());
+        }
+    }
+
+    /** Метод сохраняет накопленные записи и закрывает журнал
+     * */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        fileLock.lock();
+        try {
+            sync();
+            channel.close();
+        } catch (IOException e) {
+            Server.logging("Журнал изменений не закрыт: " + e.getMessage());
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private FileChannel openGeneration(long generation) throws IOException {
+        return FileChannel.open(directory.resolve(PREFIX + generation + SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private TreeMap<Long, Path> listGenerations() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    Server.logging("Файл " + name + " не является файлом журнала изменений");
+                }
+            }
+        }
+        return files;
+    }
+
+    /** Класс описывает команду, ожидающую сохранения записи с номером seq
+     * */
+    private static class Waiter {
+        private final long seq;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+}
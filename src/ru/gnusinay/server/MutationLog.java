@@ -0,0 +1,531 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Durability;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.vfs.Directory;
+import ru.gnusinay.vfs.File;
+import ru.gnusinay.vfs.Node;
+import ru.gnusinay.vfs.VirtualFileSystem;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/** Класс описывает упорядоченный журнал изменений файловой системы.
+ * Каждая запись получает возрастающий порядковый номер. Журнал хранит
+ * в памяти не более заданного количества последних записей, более старые
+ * записи удаляются. Также класс хранит блокировки дисков. Изменения элементов
+ * выполняются под блокировкой диска на чтение и записываются в журнал, пока
+ * измененные элементы еще заблокированы (см. VirtualFileSystem.holdNodeLocks),
+ * поэтому изменения разных элементов одного диска выполняются параллельно, а
+ * порядок записей совпадает с порядком изменений одних и тех же элементов.
+ * Блокировку диска на запись берут операции над диском целиком: снимки
+ * дисков, команды SNAPSHOT и RESTORE, снятие всех блокировок пользователя.
+ * Журнал имеет эпоху - время его создания или последнего сброса. Номер записи
+ * имеет смысл только вместе с эпохой: после перезапуска сервера или сброса
+ * журнала клиенты и реплики должны заново получить снимок файловой системы.
+ * */
+public class MutationLog {
+    private final int capacity;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final ConcurrentSkipListMap<String, ReadWriteLock> driveLocks = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private long lastSeq;
+    private volatile long epoch = System.currentTimeMillis();
+    private volatile Consumer<Entry> listener;
+    private volatile MutationJournal journal;
+
+    public MutationLog(int capacity) {
+        this.capacity = capacity;
+        getDriveLock(Config.get().ROOT);
+        for (String drive : Config.get().DRIVES) {
+            getDriveLock(drive);
+        }
+    }
+
+    /** Метод определяет, изменяет ли команда файловую систему
+     * */
+    public static boolean isMutation(CommandType type) {
+        switch (type) {
+            case MD:
+            case MF:
+            case RD:
+            case DELTREE:
+            case DEL:
+            case LOCK:
+            case UNLOCK:
+            case MOVE:
+            case COPY:
+            case SNAPSHOT:
+            case RESTORE:
+            case IMPORT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Метод определяет, изменяет ли команда с параметрами params файловую систему.
+     * Команда SNAPSHOT без имени снимка только выводит список снимков
+     * */
+    public static boolean isMutation(CommandType type, String params) {
+        if (type == CommandType.SNAPSHOT) {
+            return getKey(params, "/NAME:") != null;
+        }
+        return isMutation(type);
+    }
+
+    /** Метод возвращает значение ключа вида /KEY:значение из параметров команды
+     * без учета регистра или null, если ключа нет
+     * */
+    public static String getKey(String params, String key) {
+        for (String param : params.split(Protocol.SEPARATOR)) {
+            if (param.regionMatches(true, 0, key, 0, key.length())) {
+                return param.substring(key.length());
+            }
+        }
+        return null;
+    }
+
+    /** Метод возвращает имя диска, к которому относится первый параметр команды
+     * */
+    public static String getDriveName(String params) {
+        int index = params.indexOf(':');
+        return index > 0 ? params.substring(0, index + 1) : Config.get().ROOT;
+    }
+
+    public ReadWriteLock getDriveLock(String drive) {
+        return driveLocks.computeIfAbsent(drive.toUpperCase(), k -> new ReentrantReadWriteLock());
+    }
+
+    /** Метод возвращает блокировки на запись всех дисков, упорядоченные по имени
+     * диска. Под ними изменения файловой системы не выполняются
+     * */
+    public List<Lock> getAllDriveLocks() {
+        List<Lock> locks = new ArrayList<>();
+        for (ReadWriteLock lock : driveLocks.values()) {
+            locks.add(lock.writeLock());
+        }
+        return locks;
+    }
+
+    /** Метод определяет, изменяет ли команда диск целиком. Такая команда
+     * выполняется под блокировкой диска на запись
+     * */
+    public static boolean isDriveWide(CommandType type) {
+        return type == CommandType.SNAPSHOT || type == CommandType.RESTORE;
+    }
+
+    /** Метод назначает получателя новых записей журнала. Получатель вызывается
+     * в потоке, выполнившем изменение, пока измененные элементы заблокированы,
+     * поэтому изменения одних и тех же элементов передаются ему в порядке их
+     * выполнения. При сбросе журнала получатель получает запись с типом UNDEFINED
+     * */
+    public void setListener(Consumer<Entry> listener) {
+        this.listener = listener;
+    }
+
+    /** Метод задает номер последней записи не меньше seq. Применяется при запуске
+     * сервера, чтобы номера записей журнала на диске продолжали номера записей,
+     * сохраненных до перезапуска (см. MutationJournal.open)
+     * */
+    public void startAt(long seq) {
+        lock.lock();
+        try {
+            lastSeq = Math.max(lastSeq, seq);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод подключает журнал на диске, в который сохраняются все следующие записи
+     * */
+    public void setJournal(MutationJournal journal) {
+        lock.lock();
+        try {
+            journal.init(lastSeq);
+            this.journal = journal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод возвращает CompletableFuture, которая завершается, когда все уже
+     * добавленные записи сохранены с уровнем надежности durability. Значение
+     * false означает, что записи не удалось сохранить. Без журнала на диске
+     * и для уровня ASYNC CompletableFuture завершается сразу
+     * */
+    public CompletableFuture<Boolean> whenDurable(Durability durability) {
+        MutationJournal current = journal;
+        if (current == null || durability == Durability.ASYNC) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return current.whenSynced(getLastSeq(), durability == Durability.SYNC);
+    }
+
+    /** Метод добавляет запись в журнал и возвращает ее порядковый номер
+     * */
+    public long append(CommandType type, String userName, String params) {
+        Entry entry;
+        lock.lock();
+        try {
+            entry = new Entry(++lastSeq, System.currentTimeMillis(), type, userName, params);
+            entries.addLast(entry);
+            if (entries.size() > capacity) {
+                entries.pollFirst();
+            }
+            MutationJournal current = journal;
+            if (current != null) {
+                current.append(entry);
+            }
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        notifyListener(entry);
+        return entry.getSeq();
+    }
+
+    private void notifyListener(Entry entry) {
+        Consumer<Entry> current = listener;
+        if (current != null) {
+            current.accept(entry);
+        }
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /** Метод удаляет все записи журнала и начинает новую эпоху. Применяется,
+     * когда файловая система заменяется снимком
+     * */
+    public void reset() {
+        lock.lock();
+        try {
+            entries.clear();
+            epoch = Math.max(epoch + 1, System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        notifyListener(new Entry(0, System.currentTimeMillis(), CommandType.UNDEFINED, "", ""));
+    }
+
+    /** Метод формирует снимок всех дисков в виде записей MD, MF и LOCK с номером 0.
+     * На время формирования снимка изменения файловой системы приостанавливаются.
+     *
+     * @return номер записи журнала, которой соответствует снимок
+     * */
+    public long makeSnapshot(List<Entry> snapshot) {
+        List<Lock> locks = getAllDriveLocks();
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            long time = System.currentTimeMillis();
+            for (VirtualFileSystem fileSystem : VirtualFileSystem.getDrives()) {
+                addToSnapshot(fileSystem.getRootNode(), snapshot, time);
+            }
+            return getLastSeq();
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Метод формирует страницу снимка всех дисков: записи MD, MF и LOCK с номером 0
+     * не более чем для limit элементов, следующих в порядке обхода за элементом
+     * с путем after (с начала снимка, если after равен null). Диски обходятся в
+     * порядке VirtualFileSystem.getDrives, элементы - в глубину, элементы одной
+     * директории - в алфавитном порядке, поэтому обход продолжается с пути after,
+     * даже если сам элемент уже удален. На время формирования страницы изменения
+     * файловой системы приостанавливаются, между страницами файловая система
+     * может измениться, такие изменения передаются журналом после снимка.
+     *
+     * @return путь последнего элемента страницы или null, если снимок закончен
+     * */
+    public String makeSnapshotPage(List<Entry> snapshot, String after, int limit) {
+        List<Lock> locks = getAllDriveLocks();
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            SnapshotPage page = new SnapshotPage(snapshot, Math.max(1, limit));
+            boolean started = after == null;
+            for (VirtualFileSystem fileSystem : VirtualFileSystem.getDrives()) {
+                Directory root = fileSystem.getRootNode();
+                if (!started) {
+                    if (!after.regionMatches(true, 0, root.getName(), 0, root.getName().length()) ||
+                            after.length() > root.getName().length() && after.charAt(root.getName().length()) != '\\') {
+                        continue;
+                    }
+                    started = true;
+                    if (!page.resume(root, after)) {
+                        return page.last;
+                    }
+                } else if (!page.add(root, null)) {
+                    return page.last;
+                }
+            }
+            return null;
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void addToSnapshot(Directory directory, List<Entry> snapshot, long time) {
+        for (Node node : directory.getChildren()) {
+            if (node instanceof Directory) {
+                snapshot.add(new Entry(0, time, CommandType.MD, "", node.toString()));
+                addToSnapshot((Directory) node, snapshot, time);
+            } else {
+                snapshot.add(new Entry(0, time, CommandType.MF, "", node.toString()));
+                for (User user : ((File) node).getLockUsers()) {
+                    snapshot.add(new Entry(0, time, CommandType.LOCK, user.getName(), node.toString()));
+                }
+            }
+        }
+    }
+
+    /** Класс описывает формируемую страницу снимка (см. makeSnapshotPage)
+     * */
+    private static class SnapshotPage {
+        private final List<Entry> snapshot;
+        private final int limit;
+        private final long time = System.currentTimeMillis();
+        private int count;
+        private String last;
+
+        SnapshotPage(List<Entry> snapshot, int limit) {
+            this.snapshot = snapshot;
+            this.limit = limit;
+        }
+
+        /** Метод продолжает обход диска с корнем root после элемента с путем after:
+         * сначала элементы внутри after (если это директория), затем на каждом
+         * уровне пути - элементы, следующие за очередной частью пути
+         *
+         * @return false, если страница заполнена
+         * */
+        boolean resume(Directory root, String after) {
+            String[] parts = after.split("\\\\");
+            List<Directory> path = new ArrayList<>();
+            path.add(root);
+            Node node = root;
+            for (int i = 1; i < parts.length && node instanceof Directory; i++) {
+                node = ((Directory) node).getChild(parts[i]);
+                if (node instanceof Directory && i < parts.length - 1) {
+                    path.add((Directory) node);
+                }
+            }
+            if (node instanceof Directory && path.size() == parts.length - 1 && !add((Directory) node, null)) {
+                return false;
+            }
+            for (int i = Math.min(path.size(), parts.length - 1); i > 0; i--) {
+                if (!add(path.get(i - 1), parts[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Метод добавляет на страницу элементы директории, следующие за элементом
+         * с именем after (все элементы, если after равен null), вместе с их поддеревьями
+         *
+         * @return false, если страница заполнена
+         * */
+        boolean add(Directory directory, String after) {
+            for (Node node : directory.getChildrenAfter(after)) {
+                if (count == limit) {
+                    return false;
+                }
+                String path = node.toString();
+                if (node instanceof Directory) {
+                    snapshot.add(new Entry(0, time, CommandType.MD, "", path));
+                } else {
+                    snapshot.add(new Entry(0, time, CommandType.MF, "", path));
+                    for (User user : ((File) node).getLockUsers()) {
+                        snapshot.add(new Entry(0, time, CommandType.LOCK, user.getName(), path));
+                    }
+                }
+                count++;
+                last = path;
+                if (node instanceof Directory && !add((Directory) node, null)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public long getLastSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод проверяет, можно ли продолжить чтение журнала после записи с номером seq
+     * */
+    public boolean contains(long seq) {
+        lock.lock();
+        try {
+            long firstSeq = entries.isEmpty() ? lastSeq + 1 : entries.peekFirst().getSeq();
+            return seq >= firstSeq - 1 && seq <= lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Метод возвращает записи с номерами больше afterSeq. Если таких записей нет,
+     * метод ожидает их появления не дольше timeout миллисекунд.
+     *
+     * @return список записей или null, если нужные записи уже удалены из журнала
+     * */
+    public List<Entry> getEntries(long afterSeq, long timeout) throws InterruptedException {
+        return getEntries(afterSeq, timeout, Integer.MAX_VALUE);
+    }
+
+    /** Метод возвращает не более limit записей с номерами больше afterSeq,
+     * аналогично getEntries(afterSeq, timeout). Копируются только возвращаемые записи
+     * */
+    public List<Entry> getEntries(long afterSeq, long timeout, int limit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (lastSeq <= afterSeq && nanos > 0) {
+                nanos = appended.awaitNanos(nanos);
+            }
+            if (!contains(afterSeq)) {
+                return null;
+            }
+            List<Entry> result = new ArrayList<>((int) Math.min(limit, lastSeq - afterSeq));
+            for (Entry entry : entries) {
+                if (result.size() == limit) {
+                    break;
+                }
+                if (entry.getSeq() > afterSeq) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Класс описывает запись журнала изменений: порядковый номер, время
+     * изменения, команду, имя пользователя и параметры команды.
+     * Записи с номером 0 не относятся к журналу: это записи снимка
+     * файловой системы и служебные сообщения о текущем номере журнала
+     * */
+    public static class Entry {
+        private long seq;
+        private long time;
+        private CommandType type;
+        private String userName;
+        private String params;
+
+        public Entry(long seq, long time, CommandType type, String userName, String params) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.userName = userName;
+            this.params = params;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public CommandType getType() {
+            return type;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public String getParams() {
+            return params;
+        }
+
+        /** Метод возвращает запись в виде строки изменения для команды SYNC:
+         * номер, вид изменения, пользователь и пути, разделенные табуляцией.
+         * Виды изменений: ADD_DIRECTORY, ADD_FILE, REMOVE, MOVE, COPY, LOCK,
+         * UNLOCK, SNAPSHOT, RELEASE (сняты все блокировки пользователя) и RESET
+         * (журнал сброшен или диск восстановлен из снимка командой RESTORE,
+         * файловая система заменена снимком)
+         * */
+        public String toDelta() {
+            String kind;
+            switch (type) {
+                case MD:
+                    kind = "ADD_DIRECTORY";
+                    break;
+                case MF:
+                    kind = "ADD_FILE";
+                    break;
+                case RD:
+                case DELTREE:
+                case DEL:
+                    kind = "REMOVE";
+                    break;
+                case QUIT:
+                    kind = "RELEASE";
+                    break;
+                case UNDEFINED:
+                case RESTORE:
+                    kind = "RESET";
+                    break;
+                default:
+                    kind = type.name();
+            }
+            return seq + "\t" + kind + "\t" + userName + "\t" + params.replace(Protocol.SEPARATOR, "\t");
+        }
+
+        /** Метод упаковывает запись в пакет. Вместе с записью передается
+         * номер последней записи журнала headSeq
+         * */
+        public Packet toPacket(long headSeq) {
+            String text = seq + Protocol.SEPARATOR + headSeq + Protocol.SEPARATOR + time + Protocol.SEPARATOR +
+                    type.getCode() + Protocol.SEPARATOR + params;
+            return new Packet(CommandType.REPLICATE, userName, text);
+        }
+
+        /** Метод распаковывает запись из пакета
+         * */
+        public static Entry fromPacket(Packet packet) {
+            String[] parts = packet.getText().split(Protocol.SEPARATOR, 5);
+            return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[2]),
+                    CommandType.getCommandTypeByCode(parts[3]), packet.getUserName(), parts.length > 4 ? parts[4] : "");
+        }
+
+        /** Метод возвращает номер последней записи журнала, переданный в пакете
+         * */
+        public static long getHeadSeq(Packet packet) {
+            return Long.parseLong(packet.getText().split(Protocol.SEPARATOR, 3)[1]);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.BufferPool;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.PacketCompressor;
+import ru.gnusinay.protocol.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/** Класс описывает очередь пакетов, ожидающих отправки по соединению
+ * пользователя. Пакеты записываются в канал строго в порядке добавления
+ * одной задачей на запись (WritableThread): задача планируется при добавлении
+ * пакета в пустую очередь и записывает пакеты, пока очередь не опустеет.
+ * Если канал не принимает данные, недописанный буфер остается в очереди,
+ * а канал регистрируется на событие записи (OP_WRITE), по которому сервер
+ * планирует следующую задачу. Поток-обработчик при этом не ждет канал.
+ * Очередь ограничена Config.OUTBOUND_QUEUE_SIZE пакетами: клиент, который не
+ * читает ответы, не может накопить на сервере неограниченный объем данных.
+ * При переполнении очередь закрывается, а соединение нужно закрыть (см.
+ * takeOverflow).
+ * Уведомление CHANGE_NOTIFY, добавленное за неотправленным уведомлением,
+ * присоединяется к нему новой строкой (до NOTIFY_BATCH_LENGTH символов), поэтому
+ * серия изменений передается клиенту одним пакетом.
+ * Состояние очереди:
+ * IDLE - очередь пуста, задача на запись не нужна;
+ * SCHEDULED - задача на запись запланирована или выполняется;
+ * WAITING - канал ожидает события записи.
+ * */
+class OutboundQueue {
+    private enum State { IDLE, SCHEDULED, WAITING }
+
+    private static final int NOTIFY_BATCH_LENGTH = 65536;
+
+    private final ArrayDeque<Outgoing> packets = new ArrayDeque<>();
+    private State state = State.IDLE;
+    private ByteBuffer buffer;
+    private Outgoing current;
+    private boolean closed;
+    private boolean overflow;
+
+    /** Метод добавляет пакет в очередь. Трассировка trace (или null)
+     * завершается после записи пакета в канал
+     *
+     * @return true, если вызывающий должен запланировать задачу на запись
+     * */
+    synchronized boolean offer(Packet packet, RequestTrace trace) {
+        if (closed) {
+            return false;
+        }
+        if (packets.size() >= Config.get().OUTBOUND_QUEUE_SIZE) {
+            close();
+            overflow = true;
+            return false;
+        }
+        Outgoing last = packets.peekLast();
+        if (last != null && isNotify(last.packet) && isNotify(packet) &&
+                last.packet.getText().length() + packet.getText().length() < NOTIFY_BATCH_LENGTH) {
+            last.packet = new Packet(CommandType.CHANGE_NOTIFY, packet.getUserName(),
+                    last.packet.getText() + "\n" + packet.getText());
+            return false;
+        }
+        packets.addLast(new Outgoing(packet, trace));
+        if (state != State.IDLE) {
+            return false;
+        }
+        state = State.SCHEDULED;
+        return true;
+    }
+
+    /** Метод возвращает буфер очередного пакета для записи в канал: недописанный
+     * буфер или следующий пакет, закодированный (и сжатый компрессором compressor,
+     * если он задан) в буфер из пула BufferPool. Вызывается только задачей на запись
+     *
+     * @return null, если очередь пуста или закрыта, задача на запись завершается
+     * */
+    synchronized ByteBuffer next(PacketCompressor compressor) {
+        if (closed) {
+            releaseBuffer();
+            state = State.IDLE;
+            return null;
+        }
+        if (buffer == null) {
+            current = packets.pollFirst();
+            if (current == null) {
+                state = State.IDLE;
+                return null;
+            }
+            current.startedAt = System.nanoTime();
+            buffer = Protocol.encodeToBuffer(current.packet);
+            if (compressor != null) {
+                buffer = compressor.compress(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    /** Метод вызывается задачей на запись после того, как буфер, полученный
+     * методом next, записан в канал целиком
+     *
+     * @return записанный пакет
+     * */
+    synchronized Packet written() {
+        Outgoing outgoing = current;
+        releaseBuffer();
+        if (outgoing.trace != null) {
+            outgoing.trace.finish(outgoing.startedAt);
+        }
+        return outgoing.packet;
+    }
+
+    /** Метод переводит очередь в ожидание события записи канала
+     *
+     * @return false, если очередь уже закрыта и ждать записи не нужно
+     * */
+    synchronized boolean await() {
+        if (closed) {
+            releaseBuffer();
+            state = State.IDLE;
+            return false;
+        }
+        state = State.WAITING;
+        return true;
+    }
+
+    /** Метод вызывается сервером по событию записи канала
+     *
+     * @return true, если нужно запланировать задачу на запись
+     * */
+    synchronized boolean resume() {
+        if (state != State.WAITING) {
+            return false;
+        }
+        state = State.SCHEDULED;
+        return true;
+    }
+
+    /** Метод сообщает о переполнении очереди один раз
+     *
+     * @return true, если очередь закрыта из-за переполнения после предыдущего вызова
+     * */
+    synchronized boolean takeOverflow() {
+        boolean result = overflow;
+        overflow = false;
+        return result;
+    }
+
+    /** Метод вызывается задачей на запись при ошибке записи в канал. Очередь
+     * закрывается, неотправленные пакеты отбрасываются
+     * */
+    synchronized void abort() {
+        closed = true;
+        packets.clear();
+        releaseBuffer();
+        state = State.IDLE;
+    }
+
+    /** Метод закрывает очередь при отключении пользователя. Неотправленные пакеты
+     * отбрасываются, буфер возвращается в пул, если его не использует задача на запись
+     * */
+    synchronized void close() {
+        closed = true;
+        packets.clear();
+        if (state != State.SCHEDULED) {
+            releaseBuffer();
+            state = State.IDLE;
+        }
+    }
+
+    private static boolean isNotify(Packet packet) {
+        return packet.getCommandType() == CommandType.CHANGE_NOTIFY;
+    }
+
+    private void releaseBuffer() {
+        BufferPool.release(buffer);
+        buffer = null;
+        current = null;
+    }
+
+    /** Класс описывает пакет в очереди и время (System.nanoTime) начала его записи
+     * */
+    private static class Outgoing {
+        private Packet packet;
+        private final RequestTrace trace;
+        private long startedAt;
+
+        Outgoing(Packet packet, RequestTrace trace) {
+            this.packet = packet;
+            this.trace = trace;
+        }
+    }
+}
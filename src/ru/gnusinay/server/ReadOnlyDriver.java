@@ -0,0 +1,28 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+
+/** Драйвер сервера-реплики. Передает на выполнение только команды,
+ * не изменяющие файловую систему, остальные команды отклоняет:
+ * файловая система реплики изменяется только журналом основного сервера
+ * */
+public class ReadOnlyDriver implements CommandDriver {
+    private CommandDriver driver;
+
+    public ReadOnlyDriver(CommandDriver driver) {
+        this.driver = driver;
+    }
+
+    public Packet execCommand(User user, CommandType type, String params) {
+        if (MutationLog.isMutation(type, params) || type == CommandType.RUN) {
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().READ_ONLY_REPLICA_MESSAGE);
+        }
+        return driver.execCommand(user, type, params);
+    }
+
+    /** Пользователи реплики не блокируют файлы, поэтому освобождать нечего
+     * */
+    public void releaseUser(User user) {
+    }
+}
@@ -0,0 +1,126 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+
+import javax.management.ObjectName;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Класс-поток основного сервера репликации. Принимает подключения реплик
+ * и для каждой реплики запускает поток, передающий ей журнал изменений.
+ * При подключении реплика сообщает идентификатор основного сервера и номер
+ * последней примененной записи. Если журнал содержит все записи после
+ * этого номера, передача продолжается с него, иначе реплике передается
+ * снимок файловой системы в виде команд MD, MF и LOCK, после которого
+ * передаются записи журнала.
+ * */
+public class ReplicationPrimary extends Thread implements ReplicationPrimaryMBean {
+    private final MutationLog log;
+    private final AtomicInteger replicaCount = new AtomicInteger(0);
+
+    public ReplicationPrimary(MutationLog log) {
+        this.log = log;
+        setDaemon(true);
+    }
+
+    public long getLastSequence() {
+        return log.getLastSeq();
+    }
+
+    public int getReplicaCount() {
+        return replicaCount.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ru.gnusinay.server:type=ReplicationPrimary"));
+        } catch (Exception e) {
+            Server.logging("ReplicationPrimary - " + e.getMessage());
+        }
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(Config.get().SERVER_ADDRESS, Config.get().REPLICATION_PORT));
+            Server.logging(String.format("Ожидание подключения реплик на порту %d", Config.get().REPLICATION_PORT));
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread stream = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stream(socket);
+                    }
+                }, "replica-" + socket.getRemoteSocketAddress());
+                stream.setDaemon(true);
+                stream.start();
+            }
+        } catch (IOException e) {
+            Server.logging("ReplicationPrimary - " + e.getMessage());
+        }
+    }
+
+    /** Метод передает реплике журнал изменений. При отсутствии изменений реплике
+     * периодически отправляется номер последней записи журнала
+     * */
+    private void stream(Socket socket) {
+        replicaCount.incrementAndGet();
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            String[] handshake = Protocol.readPacket(in).getText().split(Protocol.SEPARATOR);
+            long replicaEpoch = Long.parseLong(handshake[0]);
+            long seq = Long.parseLong(handshake[1]);
+            Server.logging(String.format("Подключена реплика %s, номер записи - %d", s.getRemoteSocketAddress(), seq));
+
+            List<MutationLog.Entry> snapshot = null;
+            if (replicaEpoch != log.getEpoch() || !log.contains(seq)) {
+                snapshot = new ArrayList<>();
+                seq = log.makeSnapshot(snapshot);
+            }
+            write(out, new Packet(CommandType.REPLICATE, "", log.getEpoch() + Protocol.SEPARATOR + seq));
+            if (snapshot != null) {
+                for (MutationLog.Entry entry : snapshot) {
+                    write(out, entry.toPacket(seq));
+                }
+            }
+            out.flush();
+
+            while (true) {
+                List<MutationLog.Entry> entries = log.getEntries(seq, Config.get().REPLICATION_HEARTBEAT);
+                if (entries == null) {
+                    Server.logging(String.format("Реплика %s отстала от журнала изменений", s.getRemoteSocketAddress()));
+                    break;
+                }
+                long headSeq = log.getLastSeq();
+                if (entries.isEmpty()) {
+                    write(out, new MutationLog.Entry(0, System.currentTimeMillis(), CommandType.UNDEFINED, "", "").toPacket(headSeq));
+                }
+                for (MutationLog.Entry entry : entries) {
+                    write(out, entry.toPacket(headSeq));
+                    seq = entry.getSeq();
+                }
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            Server.logging("ReplicationPrimary - " + e.getMessage());
+        } catch (InterruptedException e) {
+            Server.logging("ReplicationPrimary - " + e.getMessage());
+        } finally {
+            replicaCount.decrementAndGet();
+            Server.logging(String.format("Реплика %s отключена", socket.getRemoteSocketAddress()));
+        }
+    }
+
+    private void write(OutputStream out, Packet packet) throws IOException {
+        out.write(Protocol.encode(packet));
+    }
+}
@@ -0,0 +1,10 @@
+package ru.gnusinay.server;
+
+/** Метрики основного сервера репликации, доступные через JMX
+ * */
+public interface ReplicationPrimaryMBean {
+
+    long getLastSequence();
+
+    int getReplicaCount();
+}
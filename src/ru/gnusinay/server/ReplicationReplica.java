@@ -0,0 +1,135 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.vfs.VirtualFileSystem;
+
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** Класс-поток сервера-реплики. Подключается к основному серверу, получает
+ * журнал изменений и применяет его к файловой системе реплики тем же
+ * драйвером, которым команды выполняются на основном сервере. При разрыве
+ * соединения поток переподключается и продолжает чтение журнала с последней
+ * примененной записи.
+ * */
+public class ReplicationReplica extends Thread implements ReplicationReplicaMBean {
+    private final FileSystemDriver driver;
+    private volatile boolean connected;
+    private volatile long epoch;
+    private volatile long appliedSeq;
+    private volatile long primarySeq;
+    private volatile long lagMillis;
+
+    public ReplicationReplica(FileSystemDriver driver) {
+        this.driver = driver;
+        driver.setReplica(true);
+        setDaemon(true);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getAppliedSequence() {
+        return appliedSeq;
+    }
+
+    public long getPrimarySequence() {
+        return primarySeq;
+    }
+
+    public long getLagEntries() {
+        return Math.max(0, primarySeq - appliedSeq);
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Override
+    public void run() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ru.gnusinay.server:type=ReplicationReplica"));
+        } catch (Exception e) {
+            Server.logging("ReplicationReplica - " + e.getMessage());
+        }
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(Config.get().REPLICATION_PRIMARY_ADDRESS, Config.get().REPLICATION_PRIMARY_PORT));
+                replicate(socket);
+            } catch (IOException | RuntimeException e) {
+                Server.logging("ReplicationReplica - " + e.getMessage());
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(Config.get().REPLICATION_HEARTBEAT);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void replicate(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        out.write(Protocol.encode(new Packet(CommandType.REPLICATE, "", epoch + Protocol.SEPARATOR + appliedSeq)));
+        out.flush();
+
+        String[] handshake = Protocol.readPacket(in).getText().split(Protocol.SEPARATOR);
+        long primaryEpoch = Long.parseLong(handshake[0]);
+        long seq = Long.parseLong(handshake[1]);
+        if (primaryEpoch != epoch || seq != appliedSeq) {
+            Server.logging(String.format("Загрузка снимка файловой системы, номер записи - %d", seq));
+            for (VirtualFileSystem fileSystem : VirtualFileSystem.getDrives()) {
+                fileSystem.clear();
+            }
+            if (driver.getLog() != null) {
+                driver.getLog().reset();
+            }
+            epoch = primaryEpoch;
+            appliedSeq = seq;
+        }
+        connected = true;
+        Server.logging(String.format("Реплика подключена к основному серверу, номер записи - %d", appliedSeq));
+
+        while (true) {
+            Packet packet = Protocol.readPacket(in);
+            MutationLog.Entry entry = MutationLog.Entry.fromPacket(packet);
+            primarySeq = MutationLog.Entry.getHeadSeq(packet);
+            if (entry.getType() == CommandType.UNDEFINED) {
+                if (appliedSeq >= primarySeq) {
+                    lagMillis = 0;
+                }
+                continue;
+            }
+            apply(entry);
+        }
+    }
+
+    /** Метод применяет запись журнала к файловой системе реплики
+     * */
+    private void apply(MutationLog.Entry entry) {
+        User user = new User(entry.getUserName(), null);
+        if (entry.getType() == CommandType.QUIT) {
+            driver.releaseUser(user);
+        } else {
+            Packet result = driver.execCommand(user, entry.getType(), entry.getParams());
+            if (result.getCommandType() == CommandType.SERVER_ERROR) {
+                Server.logging(String.format("Запись журнала %d не применена: %s", entry.getSeq(), result.getText()));
+            }
+        }
+        if (entry.getSeq() > 0) {
+            appliedSeq = entry.getSeq();
+            lagMillis = Math.max(0, System.currentTimeMillis() - entry.getTime());
+        }
+    }
+}
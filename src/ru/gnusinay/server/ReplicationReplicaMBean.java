@@ -0,0 +1,18 @@
+package ru.gnusinay.server;
+
+/** Метрики сервера-реплики, доступные через JMX. Отставание реплики
+ * измеряется в количестве непримененных записей журнала и в миллисекундах
+ * между изменением на основном сервере и его применением на реплике
+ * */
+public interface ReplicationReplicaMBean {
+
+    boolean isConnected();
+
+    long getAppliedSequence();
+
+    long getPrimarySequence();
+
+    long getLagEntries();
+
+    long getLagMillis();
+}
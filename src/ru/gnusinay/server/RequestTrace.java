@@ -0,0 +1,193 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Класс описывает трассировку выполнения одной команды пользователя - отметки
+ * времени (System.nanoTime) этапов от события чтения канала до записи ответа.
+ * Трассируется каждая Config.TRACE_SAMPLE_RATE-я полученная команда, трассировка
+ * передается от задачи к задаче планировщика (ChannelTask), которые выполняют
+ * команду, а отметки постановки задачи в очередь, выбора ее из планировщика и
+ * начала обработки берутся из самих задач. Время ожидания блокировок элементов
+ * файловой системы учитывается отдельно внутри этапа выполнения.
+ * Команда, выполнявшаяся дольше Config.TRACE_SLOW_THRESHOLD мс, сохраняется
+ * в кольцевой буфер последних Config.TRACE_BUFFER_SIZE медленных команд, который
+ * выводится командой TRACE, и записывается событием JFR (см. SlowRequestEvent)
+ * */
+public class RequestTrace {
+
+    /** Перечисление описывает отметки трассировки в порядке их следования. Этап
+     * с названием label длится от предыдущей отметки до данной:
+     * dispatch - ожидание потоком-обработчиком события чтения канала;
+     * read - чтение пакета из канала;
+     * queue - ожидание задачи на выполнение в полосе планировщика;
+     * pool - передача задачи свободному потоку пула;
+     * exec - выполнение команды драйвером, включая ожидание блокировок;
+     * durability - сохранение изменения в журнал с уровнем надежности команды;
+     * write queue - ожидание записи ответа в очереди отправки соединения;
+     * write - запись ответа в канал
+     * */
+    public enum Stage {
+        SELECTED(""),
+        DISPATCHED("dispatch"),
+        RECEIVED("read"),
+        TAKEN("queue"),
+        STARTED("pool"),
+        EXECUTED("exec"),
+        DURABLE("durability"),
+        WRITE_STARTED("write queue"),
+        WRITTEN("write");
+
+        private String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong recorded = new AtomicLong();
+    private static final AtomicReferenceArray<RequestTrace> slowTraces =
+            new AtomicReferenceArray<>(Math.max(1, Config.get().TRACE_BUFFER_SIZE));
+
+    private final CommandType type;
+    private final String userName;
+    private final long[] marks = new long[Stage.values().length];
+    private long lockWait;
+    private long finishedAt;
+
+    private RequestTrace(CommandType type, String userName) {
+        this.type = type;
+        this.userName = userName;
+    }
+
+    /** Метод начинает трассировку команды type, пакет которой прочитан задачей
+     * на чтение task
+     *
+     * @return null, если команда не попала в выборку или трассировка отключена
+     * */
+    static RequestTrace start(ChannelTask task, CommandType type) {
+        int rate = Config.get().TRACE_SAMPLE_RATE;
+        if (rate <= 0 || received.incrementAndGet() % rate != 0) {
+            return null;
+        }
+        RequestTrace trace = new RequestTrace(type, task.getUser().getName());
+        trace.mark(Stage.SELECTED, task.getCreatedAt());
+        trace.mark(Stage.DISPATCHED, task.getStartedAt());
+        trace.mark(Stage.RECEIVED);
+        return trace;
+    }
+
+    void mark(Stage stage) {
+        mark(stage, System.nanoTime());
+    }
+
+    void mark(Stage stage, long time) {
+        marks[stage.ordinal()] = time;
+    }
+
+    /** Метод отмечает окончание выполнения команды драйвером, lockWait - время
+     * ожидания блокировок элементов файловой системы во время выполнения, нс
+     * */
+    void executed(long lockWait) {
+        mark(Stage.EXECUTED);
+        this.lockWait = lockWait;
+    }
+
+    /** Метод отмечает запись ответа в канал, начатую в момент writeStartedAt
+     * (System.nanoTime), и сохраняет трассировку медленной команды
+     * */
+    void finish(long writeStartedAt) {
+        mark(Stage.WRITE_STARTED, writeStartedAt);
+        mark(Stage.WRITTEN);
+        finishedAt = System.currentTimeMillis();
+        long total = getTotal();
+        if (total < Config.get().TRACE_SLOW_THRESHOLD * 1_000_000L) {
+            return;
+        }
+        slowTraces.set((int) (recorded.getAndIncrement() % slowTraces.length()), this);
+        SlowRequestEvent event = new SlowRequestEvent();
+        if (event.isEnabled()) {
+            event.command = type.getName();
+            event.user = userName;
+            event.total = total;
+            event.dispatch = getDuration(Stage.DISPATCHED);
+            event.read = getDuration(Stage.RECEIVED);
+            event.queue = getDuration(Stage.TAKEN);
+            event.pool = getDuration(Stage.STARTED);
+            event.exec = getDuration(Stage.EXECUTED);
+            event.lockWait = lockWait;
+            event.durability = getDuration(Stage.DURABLE);
+            event.writeQueue = getDuration(Stage.WRITE_STARTED);
+            event.write = getDuration(Stage.WRITTEN);
+            event.commit();
+        }
+    }
+
+    /** Длительность этапа, заканчивающегося отметкой stage, нс. Для этапа без
+     * отметки, например durability у команды без изменений, возвращается 0
+     * */
+    long getDuration(Stage stage) {
+        long end = marks[stage.ordinal()];
+        if (end == 0) {
+            return 0;
+        }
+        for (int i = stage.ordinal() - 1; i >= 0; i--) {
+            if (marks[i] != 0) {
+                return Math.max(0, end - marks[i]);
+            }
+        }
+        return 0;
+    }
+
+    long getTotal() {
+        return marks[Stage.WRITTEN.ordinal()] - marks[Stage.SELECTED.ordinal()];
+    }
+
+    /** Метод возвращает трассировки медленных команд из кольцевого буфера,
+     * по одной в строке, начиная с последней
+     * */
+    public static String dump() {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder builder = new StringBuilder();
+        long last = recorded.get();
+        long first = Math.max(0, last - slowTraces.length());
+        for (long i = last - 1; i >= first; i--) {
+            RequestTrace trace = slowTraces.get((int) (i % slowTraces.length()));
+            if (trace == null) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(format.format(trace.finishedAt)).append(' ')
+                    .append(trace.userName).append(' ')
+                    .append(trace.type.getName().toUpperCase()).append(' ')
+                    .append(toMillis(trace.getTotal())).append(" ms:");
+            for (Stage stage : Stage.values()) {
+                if (stage == Stage.SELECTED) {
+                    continue;
+                }
+                builder.append(stage == Stage.DISPATCHED ? " " : ", ")
+                        .append(stage.getLabel()).append(' ').append(toMillis(trace.getDuration(stage)));
+                if (stage == Stage.EXECUTED && trace.lockWait > 0) {
+                    builder.append(" (lock ").append(toMillis(trace.lockWait)).append(')');
+                }
+            }
+        }
+        return builder.length() == 0 ? Config.get().TRACE_EMPTY_MESSAGE : builder.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,105 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Класс описывает часть сценария команды RUN и результат ее выполнения.
+ * Клиент разбирает сценарий сам и передает строки вида
+ * "номер строки%код команды%параметры", разделенные символом перевода строки.
+ * Сценарий может содержать только команды, изменяющие файловую систему.
+ * Ответ содержит количество выполненных и невыполненных строк и ошибки
+ * невыполненных строк с их номерами
+ * */
+class Script {
+    private final List<Line> lines = new ArrayList<>();
+    private final StringBuilder errors = new StringBuilder();
+    private int executed;
+    private int failed;
+
+    Script(String text) {
+        for (String line : text.split("\n")) {
+            String[] parts = line.split(Protocol.SEPARATOR, 3);
+            try {
+                CommandType type = CommandType.getCommandTypeByCode(parts[1]);
+                lines.add(new Line(Integer.parseInt(parts[0]), type, parts.length > 2 ? parts[2] : ""));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                lines.add(new Line(0, null, ""));
+            }
+        }
+    }
+
+    List<Line> getLines() {
+        return lines;
+    }
+
+    /** Метод проверяет, может ли команда выполняться в сценарии
+     * */
+    static boolean isAllowed(CommandType type) {
+        return type != null && MutationLog.isMutation(type);
+    }
+
+    /** Метод учитывает результат выполнения строки сценария
+     * */
+    void complete(Line line, Packet packet) {
+        complete(line, packet.getCommandType() == CommandType.SERVER_ERROR ? packet.getText() : null);
+    }
+
+    /** Метод учитывает результат выполнения строки сценария, error - текст ошибки
+     * или null, если строка выполнена
+     * */
+    void complete(Line line, String error) {
+        if (error == null) {
+            executed++;
+        } else {
+            failed++;
+            errors.append('\n').append(line.getNumber()).append(": ").append(error.replace('\n', ' '));
+        }
+    }
+
+    Packet toPacket(User user) {
+        int first = lines.isEmpty() ? 0 : lines.get(0).getNumber();
+        int last = lines.isEmpty() ? 0 : lines.get(lines.size() - 1).getNumber();
+        String summary = String.format(Config.get().RUN_SUMMARY_MESSAGE, first, last, executed, failed);
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), summary + errors);
+    }
+
+    /** Класс описывает строку сценария
+     * */
+    static class Line {
+        private final int number;
+        private final CommandType type;
+        private final String params;
+
+        Line(int number, CommandType type, String params) {
+            this.number = number;
+            this.type = type;
+            this.params = params;
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        CommandType getType() {
+            return type;
+        }
+
+        String getParams() {
+            return params;
+        }
+
+        /** Путь к родительской директории элемента, указанного в первом параметре
+         * */
+        String getParentPath() {
+            return params.substring(0, Math.max(0, params.lastIndexOf('\\')));
+        }
+
+        String getName() {
+            return params.substring(params.lastIndexOf('\\') + 1);
+        }
+    }
+}
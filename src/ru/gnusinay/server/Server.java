@@ -1,12 +1,19 @@
 package ru.gnusinay.server;
 
 import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.BufferPool;
+import ru.gnusinay.protocol.Durability;
 import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.PacketCompressor;
 import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.vfs.LockContention;
+import ru.gnusinay.vfs.PathTrie;
 import ru.gnusinay.vfs.VirtualFileSystem;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -18,37 +25,136 @@ import java.util.concurrent.atomic.AtomicInteger;
  * соединения с клиентами, формирует задачи на чтение/запись
  * и добавляет их в очередь на выполнение. Содержит
  * список активных пользователей и их количество.
+ * Все отложенные действия сервера выполняет один таймер HashedWheelTimer:
+ * проверка простоя соединений с отправкой HEARTBEAT и закрытием соединений,
+ * не отвечающих дольше Config.IDLE_TIMEOUT, сроки ожидания команд в очереди
+ * (Config.COMMAND_TIMEOUT) и сроки аренды блокировок.
  * */
 public class Server {
     private Selector selector;
     private CommandDriver driver;
     private AtomicInteger countActiveUsers = new AtomicInteger(0);
-    private BlockingQueue<ChannelTask> channelTasks = new ArrayBlockingQueue<ChannelTask>(Config.TASK_QUEUE_SIZE);
+    private ChannelTasksScheduler scheduler = new ChannelTasksScheduler();
+    private ChannelTasksProcessor processor;
     private ConcurrentSkipListSet<User> activeUsers = new ConcurrentSkipListSet<>(new UserComparator());
+    private boolean notifyChanges;
+    private HashedWheelTimer timer;
+    private MutationLog log;
 
     /** Конструктор принимает объект типа CommandDriver, который реализует
-     * логику обработки пользовательских команд
+     * логику обработки пользовательских команд, и журнал изменений, о записях
+     * которого сервер уведомляет пользователей (см. notifyChange). В режиме
+     * кластера журнал узла содержит не все изменения, поэтому уведомления
+     * не отправляются. Таймер timer должен быть запущен
      * */
-    Server(CommandDriver driver) throws IOException {
+    Server(CommandDriver driver, MutationLog log, HashedWheelTimer timer) throws IOException {
         ServerSocketChannel serverChannel = ServerSocketChannel.open();
         serverChannel.configureBlocking(false);
-        serverChannel.socket().bind(new InetSocketAddress(Config.SERVER_ADDRESS, Config.SERVER_PORT));
+        serverChannel.socket().bind(new InetSocketAddress(Config.get().SERVER_ADDRESS, Config.get().SERVER_PORT));
         selector = Selector.open();
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         this.driver = driver;
+        this.log = log;
+        this.timer = timer;
+        if (log != null && Config.get().CLUSTER_NODES.length == 0) {
+            log.setListener(this::notifyChange);
+            notifyChanges = true;
+        }
+        if (Config.get().BUFFER_POOL_LEAK_TIMEOUT > 0) {
+            timer.schedule(this::checkBufferLeaks, Config.get().BUFFER_POOL_LEAK_TIMEOUT);
+        }
     }
 
+    /** Аргументы командной строки вида --КЛЮЧ=значение переопределяют
+     * настройки файла config.properties (см. Config.setArguments). Диски
+     * загружаются до открытия портов: если снимок диска поврежден, сервер
+     * не запускается (см. VirtualFileSystem.load)
+     * */
     public static void main(String[] args) {
         try {
-            new Server(new FileSystemDriver()).run();
+            Config.setArguments(args);
+            VirtualFileSystem.getDrives();
+            CommandDriver driver;
+            MutationLog log = new MutationLog(Config.get().REPLICATION_LOG_SIZE);
+            HashedWheelTimer timer = new HashedWheelTimer(Config.get().TIMER_TICK, Config.get().TIMER_WHEEL_SIZE);
+            timer.start();
+            MutationJournal journal = null;
+            switch (Config.get().REPLICATION_MODE) {
+                case "PRIMARY":
+                    new ReplicationPrimary(log).start();
+                    driver = new FileSystemDriver(log, timer);
+                    journal = openJournal(driver, log);
+                    break;
+                case "REPLICA":
+                    FileSystemDriver replicaDriver = new FileSystemDriver(log);
+                    new ReplicationReplica(replicaDriver).start();
+                    driver = new ReadOnlyDriver(replicaDriver);
+                    break;
+                default:
+                    driver = new FileSystemDriver(log, timer);
+                    journal = openJournal(driver, log);
+            }
+            if (Config.get().CLUSTER_NODES.length > 0) {
+                driver = new ClusterDriver(driver);
+            }
+            if (!Config.get().STORAGE_DIR.isEmpty()) {
+                MutationJournal checkpointJournal = journal;
+                new CheckpointThread(journal, log).start();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    CheckpointThread.checkpointAll(checkpointJournal, log);
+                    if (checkpointJournal != null) {
+                        checkpointJournal.close();
+                    }
+                }));
+            }
+            new Server(driver, log, timer).run();
         } catch (Exception e) {
             e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /** Метод открывает журнал изменений на диске в каталоге Config.STORAGE_DIR.
+     * Изменения, сохраненные в журнале после последних снимков дисков, применяются
+     * к файловой системе, после чего снимки сохраняются заново. Ошибка применения
+     * журнала останавливает запуск сервера. Реплика журнал не ведет, так как
+     * получает изменения от основного сервера
+     * */
+    private static MutationJournal openJournal(CommandDriver driver, MutationLog log) throws IOException {
+        if (Config.get().STORAGE_DIR.isEmpty()) {
+            return null;
+        }
+        MutationJournal journal = new MutationJournal(Paths.get(Config.get().STORAGE_DIR));
+        int applied = journal.open(driver, log);
+        if (applied > 0) {
+            logging(String.format("Из журнала изменений применено записей: %d", applied));
+            CheckpointThread.checkpointAll(journal, log);
         }
+        log.setJournal(journal);
+        journal.start();
+        return journal;
     }
 
-    /** Метод используется для логирования событий происходящих в сервер-приложении
+    /** Метод используется для логирования событий происходящих в сервер-приложении.
+     * Сообщения выводятся, если уровень журнала Config.LOG_LEVEL не ниже INFO
      */
     public static void logging(String message) {
+        if (Config.get().LOG_LEVEL == LogLevel.OFF) {
+            return;
+        }
+        print(message);
+    }
+
+    /** Метод выводит отладочное сообщение о прохождении задачи через планировщик
+     * при уровне журнала DEBUG. Сообщение форматируется только на этом уровне
+     * */
+    static void debug(String format, Object... args) {
+        if (Config.get().LOG_LEVEL == LogLevel.DEBUG) {
+            print(String.format(format, args));
+        }
+    }
+
+    private static void print(String message) {
         String time = SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM).format(System.currentTimeMillis());
         System.out.println(time + ": " + message);
     }
@@ -59,13 +165,22 @@ public class Server {
      * это запрос на подключение от нового пользователя - проверяется доступность имени и
      * формируется ответ. После пакет на отправку добавляется в очередь задач, откуда ее
      * заберет поток обрабатывающий задачи.
-     * Данный метод вызывается из потоков-обработчиков задач: ReadableThread, WritableThread
+     * Данный метод вызывается из потока-обработчика задач ExecutableThread
      * */
     public void packetProcess(Packet packet, User user) {
+        packetProcess(packet, user, null);
+    }
+
+    /** Метод обрабатывает входящий пакет с трассировкой trace (см. RequestTrace),
+     * которая передается задаче на запись ответа. Если trace = null, команда
+     * не трассируется
+     * */
+    void packetProcess(Packet packet, User user, RequestTrace trace) {
         if (packet != null) {
             switch (packet.getCommandType()) {
                 case CONNECT_TO_SERVER:
-                    user.setName(packet.getText());
+                    String[] connectParams = packet.getText().split(Protocol.SEPARATOR);
+                    user.setName(connectParams[0]);
                     boolean add = false;
                     if (!activeUsers.contains(user)) {
                         add = activeUsers.add(user);
@@ -76,17 +191,42 @@ public class Server {
                         user.setCurDirectory(VirtualFileSystem.getInstance().getRootName());
                         logging(String.format("В системе зарегистрировался новый пользователь - %s (%s), всего - %d", user.getName(), user.getRemoteAddress(), countActiveUsers.get()));
 
-                        String message = user.getCurDirectory() + Protocol.SEPARATOR + String.format(Config.WELCOME_MESSAGE, countActiveUsers.get());
+                        boolean compress = Config.get().COMPRESSION_THRESHOLD > 0 && connectParams.length > 1 &&
+                                PacketCompressor.NAME.equals(connectParams[1]);
+                        if (compress) {
+                            user.setCompressor(Protocol.makeCompressor());
+                        }
+                        String message = user.getCurDirectory() + Protocol.SEPARATOR + String.format(Config.get().WELCOME_MESSAGE, countActiveUsers.get()) +
+                                Protocol.SEPARATOR + (notifyChanges ? "1" : "0") + Protocol.SEPARATOR + (compress ? "1" : "0");
                         Packet packetServer = new Packet(CommandType.CONNECT_OK, user.getName(), message);
+                        packetServer.setRequestId(packet.getRequestId());
                         sendPacket(user, packetServer);
                     } else {
                         logging(String.format("Пользователю - %s (%s) отказано в регистрации, всего - %d", user.getName(), user.getRemoteAddress(), countActiveUsers.get()));
-                        Packet packetServer = new Packet(CommandType.CONNECT_NO, user.getName(), String.format(Config.CONNECT_NO_MESSAGE, user.getName()));
+                        Packet packetServer = new Packet(CommandType.CONNECT_NO, user.getName(), String.format(Config.get().CONNECT_NO_MESSAGE, user.getName()));
+                        packetServer.setRequestId(packet.getRequestId());
                         sendPacket(user, packetServer);
                     }
-                    user.getChannel().keyFor(selector).interestOps(SelectionKey.OP_READ);
+                    resumeReading(user);
                     break;
+                case HEARTBEAT:
+                    resumeReading(user);
+                    break;
+                case TRACE:
+                    completeCommand(user, packet, new Packet(CommandType.SERVER_RESPONSE, user.getName(), RequestTrace.dump()), trace);
+                    return;
+                case RELOAD:
+                    completeCommand(user, packet, reloadConfig(user), trace);
+                    return;
+                case CONTENTION:
+                    completeCommand(user, packet, new Packet(CommandType.SERVER_RESPONSE, user.getName(),
+                            LockContention.report(getContentionWindow(packet.getText()))), trace);
+                    return;
                 case QUIT:
+                    HashedWheelTimer.Timeout idleTimeout = user.getIdleTimeout();
+                    if (idleTimeout != null) {
+                        idleTimeout.cancel();
+                    }
                     SocketChannel channel = user.getChannel();
                     if (channel != null) {
                         try {
@@ -95,39 +235,268 @@ public class Server {
                             e.printStackTrace();
                         }
                     }
+                    user.getReader().release();
+                    user.getOutbound().close();
+                    PacketCompressor compressor = user.getCompressor();
+                    if (compressor != null) {
+                        compressor.close();
+                    }
 
                     if (user.isConnect()) {
                         user.setConnect(false);
                         activeUsers.remove(user);
                         countActiveUsers.decrementAndGet();
-                        VirtualFileSystem.getInstance().unlockAllFilesByUser(user);
+                        driver.releaseUser(user);
                         logging(String.format("Из системы вышел пользователь - %s (%s), всего - %d", user.getName(), user.getRemoteAddress(), countActiveUsers.get()));
                     }
                     break;
                 default:
-                    Packet packetServer = driver.execCommand(user, packet.getCommandType(), packet.getText());
-                    sendPacket(user, packetServer);
-                    if (packet.getCommandType() != CommandType.CD && packet.getCommandType() != CommandType.PRINT &&
-                        packetServer.getCommandType() != CommandType.SERVER_ERROR) {
-                        broadcastPacket(user, packet);
+                    if (trace != null) {
+                        VirtualFileSystem.takeLockWaitTime();
                     }
-                    user.getChannel().keyFor(selector).interestOps(SelectionKey.OP_READ);
+                    CompletableFuture<Packet> result = driver.execCommandAsync(user, packet.getCommandType(), packet.getText());
+                    if (result.isDone()) {
+                        finishCommand(user, packet, result.join(), trace, trace != null ? VirtualFileSystem.takeLockWaitTime() : 0);
+                        return;
+                    }
+                    result.thenAccept(packetServer -> finishCommand(user, packet, packetServer, trace, 0));
+                    return;
             }
             selector.wakeup();
         } else {
-            Packet packetServer = new Packet(CommandType.SERVER_ERROR, user.getName(), Config.NOT_RECEIVED_COMMAND);
+            Packet packetServer = new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().NOT_RECEIVED_COMMAND);
             sendPacket(user, packetServer);
         }
     }
 
+    /** Метод завершает выполненную драйвером команду: ответ packetServer на команду,
+     * изменившую файловую систему, отправляется после сохранения изменения с уровнем
+     * надежности команды. Время ожидания блокировок lockWait учитывается в трассировке.
+     * Вызывается в потоке-обработчике или, если драйвер ждал другой узел кластера,
+     * в потоке, завершившем команду
+     * */
+    private void finishCommand(User user, Packet packet, Packet packetServer, RequestTrace trace, long lockWait) {
+        if (trace != null) {
+            trace.executed(lockWait);
+        }
+        boolean changed = (MutationLog.isMutation(packet.getCommandType(), packet.getText()) || packet.getCommandType() == CommandType.RUN) &&
+                packetServer.getCommandType() != CommandType.SERVER_ERROR;
+        if (changed && log != null) {
+            Durability durability = packet.getDurability() != null ? packet.getDurability() : Config.get().DURABILITY;
+            log.whenDurable(durability).thenAccept(saved -> {
+                if (trace != null) {
+                    trace.mark(RequestTrace.Stage.DURABLE);
+                }
+                completeCommand(user, packet, saved ? packetServer :
+                        new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().DURABILITY_ERROR_MESSAGE), trace);
+            });
+            return;
+        }
+        completeCommand(user, packet, packetServer, trace);
+    }
+
+    /** Метод отправляет пользователю ответ на выполненную команду, сообщает остальным
+     * пользователям об изменении файловой системы и возобновляет опрос канала на чтение.
+     * Для команды, изменяющей файловую систему, вызывается после сохранения изменения
+     * с уровнем надежности команды, поэтому следующая команда пользователя читается
+     * только после ответа на предыдущую. Ответ помечается идентификатором запроса
+     * команды
+     * */
+    private void completeCommand(User user, Packet packet, Packet response, RequestTrace trace) {
+        response.setRequestId(packet.getRequestId());
+        sendPacket(user, response, trace);
+        if (MutationLog.isMutation(packet.getCommandType(), packet.getText()) && response.getCommandType() != CommandType.SERVER_ERROR) {
+            broadcastPacket(user, packet);
+        }
+        resumeReading(user);
+    }
+
+    /** Метод передает полученный пакет планировщику на выполнение. Если планировщик
+     * отклонил команду, пользователь сразу получает ответ о занятости сервера, а канал
+     * снова начинает опрашиваться на чтение. Для принятой пользовательской команды
+     * планируется срок ожидания в очереди (см. expireTask). Трассировка trace
+     * команды (или null) передается задаче на выполнение.
+     * Данный метод вызывается из потока-обработчика задач ReadableThread
+     * */
+    public void submitPacket(Packet packet, User user, RequestTrace trace) {
+        if (packet == null) {
+            packetProcess(null, user);
+            return;
+        }
+        user.setExecuting(true);
+        ChannelTask task = new ChannelTask(user, this, ChannelTaskType.EXECUTABLE, packet);
+        task.setTrace(trace);
+        if (scheduler.offer(task)) {
+            debug("В очередь %s добавлена задача на выполнение, ID - %d", task.getLane(), task.getId());
+            int commandTimeout = Config.get().COMMAND_TIMEOUT;
+            if (commandTimeout > 0 && task.getLane() != TaskLane.CONTROL) {
+                task.setDeadline(timer.schedule(() -> expireTask(task), commandTimeout));
+            }
+        } else {
+            logging(String.format("Очередь %s переполнена, задача отклонена, ID - %d", task.getLane(), task.getId()));
+            Packet busy = new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().SERVER_BUSY_MESSAGE);
+            busy.setRequestId(packet.getRequestId());
+            sendPacket(user, busy);
+            resumeReading(user);
+        }
+    }
+
+    /** Метод перечитывает настройки (см. Config.reload) и применяет те из них,
+     * которые сервер не читает при каждом обращении: число потоков-обработчиков
+     * и число потоков для тяжелых задач. Команда не требует прав администратора,
+     * поэтому в журнал записывается адрес пользователя, перечитавшего настройки
+     * */
+    private Packet reloadConfig(User user) {
+        List<String> restartRequired = new ArrayList<>();
+        List<String> changed;
+        try {
+            changed = Config.reload(restartRequired);
+        } catch (IOException e) {
+            logging("Настройки не перечитаны: " + e.getMessage());
+            return new Packet(CommandType.SERVER_ERROR, user.getName(), String.format(Config.get().RELOAD_ERROR_MESSAGE, e.getMessage()));
+        }
+        Config config = Config.get();
+        processor.resize(config.TASK_WORKER_COUNT);
+        scheduler.reconfigure();
+        String message = changed.isEmpty() ? config.RELOAD_UNCHANGED_MESSAGE :
+                String.format(config.RELOAD_MESSAGE, String.join(", ", changed));
+        if (!restartRequired.isEmpty()) {
+            message += "\n" + String.format(config.RELOAD_RESTART_MESSAGE, String.join(", ", restartRequired));
+        }
+        logging(String.format("Пользователь %s (%s) перечитал настройки: %s", user.getName(), user.getRemoteAddress(), message));
+        return new Packet(CommandType.SERVER_RESPONSE, user.getName(), message);
+    }
+
+    /** Метод возвращает период отчета команды CONTENTION (ключ /TIME:секунды),
+     * по умолчанию Config.LOCK_STATS_WINDOW
+     * */
+    private static int getContentionWindow(String params) {
+        String time = MutationLog.getKey(params, "/TIME:");
+        try {
+            return time == null ? Config.get().LOCK_STATS_WINDOW : Integer.parseInt(time.trim());
+        } catch (NumberFormatException e) {
+            return Config.get().LOCK_STATS_WINDOW;
+        }
+    }
+
+    /** Метод вызывается таймером по истечении срока задачи на выполнение команды.
+     * Если задача еще не начала выполняться, она удаляется из полосы планировщика,
+     * а пользователь получает ответ об ошибке. Начатую команду прервать нельзя, так
+     * как изменения файловой системы не откатываются, поэтому срок ограничивает
+     * только ожидание в очереди
+     * */
+    private void expireTask(ChannelTask task) {
+        if (!task.claim()) {
+            return;
+        }
+        scheduler.remove(task);
+        User user = task.getUser();
+        logging(String.format("ID - %d. Задача не начала выполняться за %d мс и отменена", task.getId(), Config.get().COMMAND_TIMEOUT));
+        Packet timeout = new Packet(CommandType.SERVER_ERROR, user.getName(), Config.get().COMMAND_TIMEOUT_MESSAGE);
+        timeout.setRequestId(((Packet) task.getAttachment()).getRequestId());
+        sendPacket(user, timeout);
+        resumeReading(user);
+    }
+
+    /** Метод проверяет простой соединения пользователя. Если от пользователя
+     * не поступало пакетов дольше Config.HEARTBEAT_INTERVAL, ему отправляется
+     * пакет HEARTBEAT, на который клиент отвечает таким же пакетом. Соединение,
+     * простаивающее дольше Config.IDLE_TIMEOUT, закрывается командой QUIT, как
+     * если бы пользователь закрыл канал. Получение пакета только обновляет время
+     * активности пользователя, а проверка сама планирует следующий запуск, поэтому
+     * на каждое соединение в таймере приходится одна задача. Пока выполняется
+     * команда пользователя, канал не читается, поэтому простой не отсчитывается,
+     * а после ответа на команду отсчитывается заново
+     * */
+    private void checkIdle(User user) {
+        if (!user.getChannel().isOpen()) {
+            return;
+        }
+        long idle = user.isExecuting() ? 0 : System.currentTimeMillis() - user.getLastActivity();
+        Config config = Config.get();
+        if (config.IDLE_TIMEOUT > 0 && idle >= config.IDLE_TIMEOUT) {
+            logging(String.format("Соединение пользователя %s (%s) простаивает %d мс и будет закрыто", user.getName(), user.getRemoteAddress(), idle));
+            scheduler.offer(new ChannelTask(user, this, ChannelTaskType.EXECUTABLE, Protocol.makeUnconnectedPacket(user)));
+            return;
+        }
+        long delay = config.IDLE_TIMEOUT > 0 ? config.IDLE_TIMEOUT - idle : Long.MAX_VALUE;
+        if (config.HEARTBEAT_INTERVAL > 0) {
+            if (idle >= config.HEARTBEAT_INTERVAL) {
+                if (user.isConnect()) {
+                    sendPacket(user, new Packet(CommandType.HEARTBEAT, user.getName()));
+                }
+                delay = Math.min(delay, config.HEARTBEAT_INTERVAL);
+            } else {
+                delay = Math.min(delay, config.HEARTBEAT_INTERVAL - idle);
+            }
+        }
+        if (delay != Long.MAX_VALUE) {
+            user.setIdleTimeout(timer.schedule(() -> checkIdle(user), delay));
+        }
+    }
+
+    /** Метод выводит в журнал буферы пула, не возвращенные дольше
+     * Config.BUFFER_POOL_LEAK_TIMEOUT, и планирует следующую проверку.
+     * Вызывается таймером только в режиме отладки пула
+     * */
+    private void checkBufferLeaks() {
+        for (String leak : BufferPool.getLeaks(Config.get().BUFFER_POOL_LEAK_TIMEOUT)) {
+            logging(leak);
+        }
+        timer.schedule(this::checkBufferLeaks, Config.get().BUFFER_POOL_LEAK_TIMEOUT);
+    }
+
+    /** Метод возобновляет опрос канала пользователя на чтение после выполнения
+     * команды. Время активности пользователя обновляется, чтобы простой
+     * отсчитывался с момента ответа
+     * */
+    void resumeReading(User user) {
+        user.setExecuting(false);
+        user.touch();
+        setInterest(user, SelectionKey.OP_READ, true);
+    }
+
+    /** Метод переводит очередь отправки пользователя в ожидание события записи
+     * канала. Вызывается задачей на запись, если канал не принял данные целиком
+     * */
+    void awaitWritable(User user) {
+        if (user.getOutbound().await()) {
+            setInterest(user, SelectionKey.OP_WRITE, true);
+        }
+    }
+
+    /** Метод включает или выключает опрос канала пользователя на событие ops.
+     * Чтение и запись канала включаются независимо из разных потоков, поэтому
+     * набор событий изменяется атомарно
+     * */
+    private void setInterest(User user, int ops, boolean enable) {
+        SelectionKey key = user.getChannel().keyFor(selector);
+        if (key == null) {
+            return;
+        }
+        try {
+            if (enable) {
+                key.interestOpsOr(ops);
+            } else {
+                key.interestOpsAnd(~ops);
+            }
+        } catch (CancelledKeyException e) {
+            return;
+        }
+        selector.wakeup();
+    }
+
     /** Метод реализует работу серверного-приложения. В цикле опрашиваются каналы передачи данных на возникновение
      * новых событий. Если поступил запрос на новое подключение метод создает соответствующий канал на стороне
      * сервера, на остальные события заводятся задачи и помещаются в очередь, откуда их забирает отдельный поток
-     * ChannelTasksProcessor
+     * ChannelTasksProcessor. Событие записи возникает только у канала, который не принял данные целиком, и
+     * продолжает запись его очереди отправки. Добавление задачи в планировщик не блокирует основной поток
      * */
-    private void run() throws IOException, InterruptedException {
+    private void run() throws IOException {
         logging("Сервер запущен!");
-        new ChannelTasksProcessor(channelTasks).start();
+        processor = new ChannelTasksProcessor(scheduler);
+        processor.start();
+        driver.setExecutor(processor::execute);
         while (true) {
             selector.select();
             Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
@@ -140,22 +509,27 @@ public class Server {
                             SocketChannel channel = serverSocketChannel.accept();
                             logging(String.format("Адрес %s запросил доступ к серверу", channel.getRemoteAddress()));
                             channel.configureBlocking(false);
+                            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
                             channel.register(selector, SelectionKey.OP_READ);
                             User user = new User(channel.getRemoteAddress().toString(), channel);
                             channel.keyFor(selector).attach(user);
+                            checkIdle(user);
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
                     } else {
-                        try {
-                            if (selectionKey.isReadable()) {
-                                ChannelTask task= new ChannelTask((User) selectionKey.attachment(), this, ChannelTaskType.READABLE);
-                                channelTasks.put(task);
-                                selectionKey.interestOps(0);
-                                logging(String.format("В очередь добавлена задача на чтение, ID - %d", task.getId()));
+                        User user = (User) selectionKey.attachment();
+                        if (selectionKey.isWritable()) {
+                            selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+                            if (user.getOutbound().resume()) {
+                                scheduleWrite(user);
                             }
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isReadable()) {
+                            ChannelTask task = new ChannelTask(user, this, ChannelTaskType.READABLE);
+                            selectionKey.interestOpsAnd(~SelectionKey.OP_READ);
+                            scheduler.offer(task);
+                            debug("В очередь добавлена задача на чтение, ID - %d", task.getId());
                         }
                     }
                 }
@@ -177,18 +551,89 @@ public class Server {
         }
     }
 
+    /** Метод уведомляет пользователей об изменении структуры директорий
+     * пакетом CHANGE_NOTIFY со строкой изменения (см. MutationLog.Entry.toDelta).
+     * По этим уведомлениям клиент поддерживает локальный кеш директорий, поэтому
+     * изменения файлов и блокировок не передаются. Уведомление получают только
+     * пользователи, текущую директорию которых затрагивает изменение (см.
+     * isAffected). Уведомления, ожидающие отправки, объединяются очередью
+     * отправки пользователя (OutboundQueue)
+     * */
+    private void notifyChange(MutationLog.Entry entry) {
+        switch (entry.getType()) {
+            case MD:
+            case RD:
+            case DELTREE:
+            case MOVE:
+            case COPY:
+            case RESTORE:
+            case UNDEFINED:
+                String delta = entry.toDelta();
+                String[] paths = entry.getParams().split(Protocol.SEPARATOR);
+                for (User u : activeUsers) {
+                    if (isAffected(u.getCurDirectory(), entry.getType(), paths)) {
+                        sendPacket(u, new Packet(CommandType.CHANGE_NOTIFY, u.getName(), delta));
+                    }
+                }
+                break;
+            default:;
+        }
+    }
+
+    /** Метод проверяет, затрагивает ли изменение type с путями paths текущую
+     * директорию directory пользователя: в директории появился или пропал элемент
+     * либо сама директория удалена или перемещена. Сброс файловой системы
+     * (RESTORE) затрагивает всех пользователей
+     * */
+    private static boolean isAffected(String directory, CommandType type, String[] paths) {
+        switch (type) {
+            case MD:
+                return directory.equalsIgnoreCase(getParent(paths[0]));
+            case RD:
+            case DELTREE:
+                return directory.equalsIgnoreCase(getParent(paths[0])) || PathTrie.isInside(directory, paths[0]);
+            case MOVE:
+                return directory.equalsIgnoreCase(getParent(paths[0])) || PathTrie.isInside(directory, paths[0]) ||
+                        paths.length > 1 && directory.equalsIgnoreCase(paths[1]);
+            case COPY:
+                return paths.length > 1 && directory.equalsIgnoreCase(paths[1]);
+            default:
+                return true;
+        }
+    }
+
+    private static String getParent(String path) {
+        int index = path.lastIndexOf('\\');
+        return index < 0 ? path : path.substring(0, index);
+    }
+
     /** Метод помещает пакет в очередь на отправку
      * */
     private void sendPacket(User user, Packet packet) {
-        ChannelTask task = new ChannelTask(user, this, ChannelTaskType.WRITABLE, packet);
-        try {
-            channelTasks.put(task);
-            logging(String.format("В очередь добавлена задача на запись, ID = %d", task.getId()));
-        } catch (InterruptedException e) {
-            logging(String.format("В очередь не удалось добавить задачу на запись, ID = %d", task.getId()));
-            e.printStackTrace();
+        sendPacket(user, packet, null);
+    }
+
+    /** Метод помещает ответ на команду в очередь отправки пользователя
+     * (OutboundQueue). Трассировка trace команды (или null) завершается после
+     * записи ответа в канал. Если очередь переполнена, пользователь не читает
+     * ответы сервера и его соединение закрывается командой QUIT
+     * */
+    private void sendPacket(User user, Packet packet, RequestTrace trace) {
+        OutboundQueue outbound = user.getOutbound();
+        if (outbound.offer(packet, trace)) {
+            scheduleWrite(user);
+        } else if (outbound.takeOverflow()) {
+            logging(String.format("Пользователь %s (%s) не читает ответы сервера, соединение будет закрыто", user.getName(), user.getRemoteAddress()));
+            scheduler.offer(new ChannelTask(user, this, ChannelTaskType.EXECUTABLE, Protocol.makeUnconnectedPacket(user)));
         }
+    }
 
+    /** Метод добавляет в планировщик задачу на запись очереди отправки пользователя
+     * */
+    private void scheduleWrite(User user) {
+        ChannelTask task = new ChannelTask(user, this, ChannelTaskType.WRITABLE);
+        scheduler.offer(task);
+        debug("В очередь добавлена задача на запись, ID = %d", task.getId());
     }
 
     private class UserComparator implements Comparator<User> {
@@ -0,0 +1,64 @@
+package ru.gnusinay.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** Событие Java Flight Recorder о команде, выполнявшейся дольше
+ * Config.TRACE_SLOW_THRESHOLD. Поля содержат длительности этапов
+ * трассировки (см. RequestTrace.Stage). Событие записывается только
+ * во время записи JFR с включенным событием ru.gnusinay.SlowRequest
+ * */
+@Name("ru.gnusinay.SlowRequest")
+@Label("Slow Request")
+@Category({"VFS Server", "Requests"})
+@Description("Command that took longer than TRACE_SLOW_THRESHOLD from socket read to response write")
+class SlowRequestEvent extends jdk.jfr.Event {
+    @Label("Command")
+    String command;
+
+    @Label("User")
+    String user;
+
+    @Label("Total")
+    @Timespan
+    long total;
+
+    @Label("Dispatch")
+    @Timespan
+    long dispatch;
+
+    @Label("Read")
+    @Timespan
+    long read;
+
+    @Label("Queue")
+    @Timespan
+    long queue;
+
+    @Label("Pool")
+    @Timespan
+    long pool;
+
+    @Label("Execution")
+    @Timespan
+    long exec;
+
+    @Label("Lock Wait")
+    @Timespan
+    long lockWait;
+
+    @Label("Durability")
+    @Timespan
+    long durability;
+
+    @Label("Write Queue")
+    @Timespan
+    long writeQueue;
+
+    @Label("Write")
+    @Timespan
+    long write;
+}
@@ -0,0 +1,40 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.client.CommandType;
+
+/** Класс определяет очередь (полосу) планировщика, в которую попадает задача.
+ * CONTROL - служебные задачи: чтение/запись в канал, подключение и отключение
+ * пользователей, ответы на проверку соединения, команды от других узлов кластера. INTERACTIVE - короткие
+ * пользовательские команды. BULK - тяжелые команды, обрабатывающие целые поддеревья,
+ * сценарии команды RUN и архивы команд EXPORT и IMPORT
+ */
+public enum TaskLane {
+    CONTROL,
+    INTERACTIVE,
+    BULK;
+
+    /** Метод определяет полосу для выполнения пользовательской команды
+     * */
+    public static TaskLane getLaneByCommand(CommandType type) {
+        if (type == null) {
+            return INTERACTIVE;
+        }
+        switch (type) {
+            case CONNECT_TO_SERVER:
+            case QUIT:
+            case HEARTBEAT:
+            case CLUSTER_FORWARD:
+            case CLUSTER_AUTH:
+                return CONTROL;
+            case DELTREE:
+            case COPY:
+            case PRINT:
+            case RUN:
+            case EXPORT:
+            case IMPORT:
+                return BULK;
+            default:
+                return INTERACTIVE;
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package ru.gnusinay.server;
 
+import ru.gnusinay.protocol.PacketCompressor;
+import ru.gnusinay.protocol.PacketReader;
+
 import java.nio.channels.SocketChannel;
 import java.util.Objects;
 
 /** Класс описывающий пользователя сервер-приложения. Хранит
  * в себе имя пользователя, его текущую директорию, канал передачи
- * данных, удаленный адрес и состояние подключения.
+ * данных, удаленный адрес, состояние подключения и время последней
+ * активности.
  * */
 public class User {
     private String name;
@@ -13,6 +17,13 @@ public class User {
     private boolean isConnect;
     private SocketChannel channel;
     private String remoteAddress;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean executing;
+    private volatile boolean clusterPeer;
+    private volatile HashedWheelTimer.Timeout idleTimeout;
+    private final PacketReader reader = new PacketReader();
+    private final OutboundQueue outbound = new OutboundQueue();
+    private volatile PacketCompressor compressor;
 
     public User() {
         this("", null);
@@ -34,7 +45,14 @@ public class User {
         return curDirectory;
     }
 
-    public void setCurDirectory(String curDirectory) {
+    /** Для подключенного пользователя смена текущей директории
+     * отражается в индексе UserDirectoryIndex
+     * */
+    public synchronized void setCurDirectory(String curDirectory) {
+        if (isConnect) {
+            UserDirectoryIndex.remove(this.curDirectory);
+            UserDirectoryIndex.add(curDirectory);
+        }
         this.curDirectory = curDirectory;
     }
 
@@ -46,11 +64,41 @@ public class User {
         return name;
     }
 
+    /** Объект, собирающий пакеты из канала пользователя
+     * */
+    public PacketReader getReader() {
+        return reader;
+    }
+
+    /** Очередь пакетов, ожидающих отправки пользователю
+     * */
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /** Компрессор соединения или null, если сжатие не согласовано
+     * */
+    public PacketCompressor getCompressor() {
+        return compressor;
+    }
+
+    /** Метод включает сжатие пакетов соединения в обе стороны
+     * */
+    public void setCompressor(PacketCompressor compressor) {
+        this.compressor = compressor;
+        reader.setCompressor(compressor);
+    }
+
     public boolean isConnect() {
         return isConnect;
     }
 
-    public void setConnect(boolean connect) {
+    public synchronized void setConnect(boolean connect) {
+        if (connect && !isConnect) {
+            UserDirectoryIndex.add(curDirectory);
+        } else if (!connect && isConnect) {
+            UserDirectoryIndex.remove(curDirectory);
+        }
         isConnect = connect;
     }
 
@@ -62,6 +110,49 @@ public class User {
         return remoteAddress;
     }
 
+    /** Время (мс) последнего пакета, полученного от пользователя
+     * */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /** Признак того, что полученная от пользователя команда еще выполняется
+     * (или ждет выполнения) и канал пользователя не читается
+     * */
+    boolean isExecuting() {
+        return executing;
+    }
+
+    void setExecuting(boolean executing) {
+        this.executing = executing;
+    }
+
+    /** Признак соединения другого узла кластера, прошедшего проверку секретом
+     * Config.CLUSTER_SECRET (см. ClusterDriver). Только по такому соединению
+     * принимаются пересланные команды
+     * */
+    boolean isClusterPeer() {
+        return clusterPeer;
+    }
+
+    void setClusterPeer(boolean clusterPeer) {
+        this.clusterPeer = clusterPeer;
+    }
+
+    /** Задача таймера, проверяющая простой соединения пользователя (см. Server.checkIdle)
+     * */
+    HashedWheelTimer.Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(HashedWheelTimer.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
@@ -0,0 +1,45 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.vfs.PathTrie;
+
+import java.util.List;
+
+/** Класс хранит индекс текущих директорий подключенных пользователей.
+ * Для каждой директории хранится количество пользователей, находящихся в ней.
+ * Индекс позволяет за время, пропорциональное длине пути, проверить, является
+ * ли директория или ее поддиректория текущей хотя бы для одного пользователя
+ * */
+public class UserDirectoryIndex {
+    private static final PathTrie<Integer> index = new PathTrie<>();
+
+    static void add(String directory) {
+        synchronized (index) {
+            Integer count = index.get(directory);
+            index.put(directory, count == null ? 1 : count + 1);
+        }
+    }
+
+    static void remove(String directory) {
+        synchronized (index) {
+            Integer count = index.get(directory);
+            if (count == null || count <= 1) {
+                index.remove(directory);
+            } else {
+                index.put(directory, count - 1);
+            }
+        }
+    }
+
+    /** Метод проверяет, находится ли текущая директория какого-либо пользователя
+     * внутри директории path
+     * */
+    public static boolean hasUsersInside(String path) {
+        return index.hasValuesInside(path);
+    }
+
+    /** Метод возвращает текущие директории пользователей внутри директории path
+     * */
+    public static List<String> getDirectoriesInside(String path) {
+        return index.keysInside(path);
+    }
+}
@@ -1,50 +1,485 @@
 package ru.gnusinay.vfs;
 
-import java.util.Comparator;
-import java.util.NavigableSet;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.lang.ref.WeakReference;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 
 /** Класс описывающий директории в файловой системе. Хранит
  * список всех поддиректорий и файлов в директории в
- * алфавитном порядке
+ * алфавитном порядке без учета регистра.
+ * Небольшие директории хранят элементы в отсортированном массиве,
+ * который заменяется новым массивом при каждом изменении, поэтому
+ * чтение и обход не требуют блокировок. Когда количество элементов
+ * превышает LARGE_DIRECTORY_SIZE, массив заменяется упорядоченными
+ * индексами по имени, отдельными для поддиректорий и файлов (см. TypedIndex),
+ * поэтому элементы одного типа перечисляются без просмотра элементов другого
+ * типа. Поле children хранит либо массив, либо индекс.
+ * Директория хранит счетчики: количество поддиректорий первого уровня,
+ * количество всех потомков, количество директорий среди потомков и
+ * количество заблокированных файлов среди потомков. Счетчики изменяются
+ * при добавлении и удалении элементов и при блокировке файлов, изменения
+ * передаются всем родительским директориям.
+ * Директория может быть разделяемой копией другой директории (см. share):
+ * копия хранит ссылку на источник и его счетчики, а собственные элементы
+ * создает только при первом обращении к ним или перед изменением источника.
+ * Элементы создаются на один уровень, поддиректории снова становятся
+ * разделяемыми копиями, поэтому копирование поддерева выполняется за O(1),
+ * а память расходуется только на просмотренные и измененные директории.
+ * Источник хранит слабые ссылки на свои копии, и любое изменение внутри
+ * источника сначала разворачивает копии на пути от корня к изменяемой
+ * директории, поэтому копия всегда видит источник в момент копирования.
+ * Блокировки файлов в разделяемые копии не переносятся
  */
 public class Directory extends Node {
-    private NavigableSet<Node> children;
+    static final int LARGE_DIRECTORY_SIZE = 32;
+    private static final Node[] EMPTY = new Node[0];
+    private static final Object COPIES_LOCK = new Object();
+    private static final AtomicIntegerFieldUpdater<Directory> DESCENDANTS =
+            AtomicIntegerFieldUpdater.newUpdater(Directory.class, "descendants");
+    private static final AtomicIntegerFieldUpdater<Directory> DESCENDANT_DIRECTORIES =
+            AtomicIntegerFieldUpdater.newUpdater(Directory.class, "descendantDirectories");
+    private static final AtomicIntegerFieldUpdater<Directory> LOCKED_FILES =
+            AtomicIntegerFieldUpdater.newUpdater(Directory.class, "lockedFiles");
+
+    private volatile Object children = EMPTY;
+    private volatile int childDirectories;
+    private volatile int descendants;
+    private volatile int descendantDirectories;
+    private volatile int lockedFiles;
+    private volatile Directory origin;
+    private volatile List<WeakReference<Directory>> copies;
+    private NameIndex index;
 
     public Directory(String name, Directory parent) {
         super(name, parent);
-        this.children = new ConcurrentSkipListSet<>(new Comparator<Node>() {
-            @Override
-            public int compare(Node o1, Node o2) {
-                return o1.getName().toLowerCase().compareTo(o2.getName().toLowerCase());
+    }
+
+    /** Метод создает разделяемую копию директории source. Копия не присоединена
+     * к дереву. Если задан индекс имен, в него добавляются элементы копии при их
+     * создании (см. NameIndex.expand)
+     * */
+    static Directory share(Directory source, NameIndex index) {
+        Directory copy = new Directory(source.getName(), null);
+        copy.shareFrom(source, index);
+        return copy;
+    }
+
+    /** Метод делает новую пустую директорию разделяемой копией директории source
+     * */
+    private synchronized void shareFrom(Directory source, NameIndex index) {
+        this.index = index;
+        childDirectories = source.childDirectories;
+        updateCounters(source.descendantDirectories, source.descendants, 0);
+        origin = source;
+        source.addCopy(this);
+    }
+
+    /** Директория является разделяемой копией, элементы которой еще не созданы
+     * */
+    boolean isShared() {
+        return origin != null;
+    }
+
+    /** Метод создает элементы разделяемой копии: поддиректории становятся
+     * разделяемыми копиями поддиректорий источника, файлы создаются заново
+     * */
+    void expand() {
+        if (origin == null) {
+            return;
+        }
+        List<Node> added = new ArrayList<>();
+        synchronized (this) {
+            Directory source = origin;
+            if (source == null) {
+                return;
+            }
+            for (Node node : source.getContent()) {
+                Node copy = node.getType() == NodeType.DIRECTORY ? share((Directory) node, index) : new File(node.getName(), null);
+                copy.setParent(this);
+                added.add(copy);
+            }
+            if (added.size() <= LARGE_DIRECTORY_SIZE) {
+                children = added.isEmpty() ? EMPTY : added.toArray(new Node[0]);
+            } else {
+                children = new TypedIndex(added);
             }
-        });
+            origin = null;
+            source.removeCopy(this);
+        }
+        if (index != null) {
+            index.expand(this, added);
+        }
     }
 
+    /** Метод возвращает элементы директории, не создавая элементы разделяемой
+     * копии: для копии возвращаются элементы источника. Применяется для обхода
+     * дерева только для чтения (сохранение снимка, поиск)
+     * */
+    Collection<Node> getContent() {
+        Directory source = origin;
+        if (source != null) {
+            return source.getContent();
+        }
+        return view(children);
+    }
+
+    /** Метод возвращает уже созданные элементы директории, для разделяемой копии -
+     * пустой список
+     * */
+    Collection<Node> getLoadedChildren() {
+        return origin != null ? Collections.emptyList() : view(children);
+    }
+
+    private void addCopy(Directory copy) {
+        synchronized (COPIES_LOCK) {
+            List<WeakReference<Directory>> list = new ArrayList<>();
+            if (copies != null) {
+                for (WeakReference<Directory> reference : copies) {
+                    if (reference.get() != null) {
+                        list.add(reference);
+                    }
+                }
+            }
+            list.add(new WeakReference<>(copy));
+            copies = list;
+        }
+    }
+
+    private void removeCopy(Directory copy) {
+        synchronized (COPIES_LOCK) {
+            if (copies == null) {
+                return;
+            }
+            List<WeakReference<Directory>> list = new ArrayList<>(copies);
+            Iterator<WeakReference<Directory>> iterator = list.iterator();
+            while (iterator.hasNext()) {
+                Directory d = iterator.next().get();
+                if (d == null || d == copy) {
+                    iterator.remove();
+                }
+            }
+            copies = list.isEmpty() ? null : list;
+        }
+    }
+
+    /** Метод вызывается перед изменением элементов директории. Копии директории и
+     * всех ее родителей разворачиваются от корня к директории, чтобы изменение
+     * не стало видно в копиях
+     * */
+    private void beforeChange() {
+        boolean shared = false;
+        for (Directory directory = this; directory != null && !shared; directory = directory.getParent()) {
+            shared = directory.copies != null;
+        }
+        if (!shared) {
+            return;
+        }
+        List<Directory> path = new ArrayList<>();
+        for (Directory directory = this; directory != null; directory = directory.getParent()) {
+            path.add(directory);
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            List<WeakReference<Directory>> list = path.get(i).copies;
+            if (list != null) {
+                for (WeakReference<Directory> reference : list) {
+                    Directory copy = reference.get();
+                    if (copy != null) {
+                        copy.expand();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Метод добавляет элемент в директорию и делает директорию его родителем
+     * */
     public boolean addChild(Node node) {
-        return children.add(node);
+        beforeChange();
+        if (!insert(node)) {
+            return false;
+        }
+        node.setParent(this);
+        if (node.getType() == NodeType.DIRECTORY) {
+            Directory directory = (Directory) node;
+            updateChildDirectories(1);
+            updateCounters(1 + directory.descendantDirectories, 1 + directory.descendants, directory.lockedFiles);
+        } else {
+            updateCounters(0, 1, ((File) node).isLock() ? 1 : 0);
+        }
+        return true;
     }
 
-    public boolean removeChild(Node node) {
-        return children.remove(node);
+    /** Метод заменяет элементы директории разделяемыми копиями элементов
+     * директории source (файлы создаются заново). Новые элементы записываются
+     * в директорию одной заменой поля children (см. load), поэтому читатели видят
+     * либо прежнее, либо новое содержимое, но не пустую директорию. Прежние
+     * элементы не отсоединяются, чтобы читатели, которые уже их обходят,
+     * получали согласованные пути. Применяется для восстановления диска из снимка
+     *
+     * @return новые элементы директории
+     * */
+    Collection<Node> restore(Directory source, NameIndex index) {
+        beforeChange();
+        List<Node> nodes = new ArrayList<>();
+        for (Node node : source.getContent()) {
+            nodes.add(node.getType() == NodeType.DIRECTORY ? share((Directory) node, index) : new File(node.getName(), null));
+        }
+        load(nodes);
+        return getLoadedChildren();
     }
 
-    public boolean hasChildrenDirectory() {
-        for (Node node : children) {
+    /** Метод заполняет директорию элементами nodes, заменяя прежние. Элементы
+     * упорядочиваются по имени, из элементов с одинаковыми именами остается
+     * первый. Счетчики директории вычисляются один раз по счетчикам элементов
+     * и не передаются родителям, поэтому метод применяется для построения
+     * отсоединенного дерева снизу вверх (см. NamespaceArchive) и для замены
+     * содержимого корня (см. restore)
+     * */
+    synchronized void load(List<Node> nodes) {
+        List<Node> sorted = new ArrayList<>(nodes);
+        sorted.sort((o1, o2) -> String.CASE_INSENSITIVE_ORDER.compare(o1.getName(), o2.getName()));
+        int directories = 0;
+        int nodeCount = 0;
+        int directoryCount = 0;
+        int locked = 0;
+        int size = 0;
+        for (Node node : sorted) {
+            if (size > 0 && sorted.get(size - 1).getName().equalsIgnoreCase(node.getName())) {
+                continue;
+            }
+            sorted.set(size++, node);
+            node.setParent(this);
+            nodeCount++;
             if (node.getType() == NodeType.DIRECTORY) {
+                Directory directory = (Directory) node;
+                directories++;
+                directoryCount += 1 + directory.descendantDirectories;
+                nodeCount += directory.descendants;
+                locked += directory.lockedFiles;
+            } else if (((File) node).isLock()) {
+                locked++;
+            }
+        }
+        List<Node> loaded = sorted.subList(0, size);
+        if (size <= LARGE_DIRECTORY_SIZE) {
+            children = size == 0 ? EMPTY : loaded.toArray(new Node[0]);
+        } else {
+            children = new TypedIndex(loaded);
+        }
+        childDirectories = directories;
+        descendants = nodeCount;
+        descendantDirectories = directoryCount;
+        lockedFiles = locked;
+    }
+
+    /** Метод удаляет элемент из директории. У удаленного элемента нет родителя
+     * */
+    public boolean removeChild(Node node) {
+        beforeChange();
+        if (!delete(node)) {
+            return false;
+        }
+        if (node.getType() == NodeType.DIRECTORY) {
+            Directory directory = (Directory) node;
+            updateChildDirectories(-1);
+            updateCounters(-1 - directory.descendantDirectories, -1 - directory.descendants, -directory.lockedFiles);
+        } else {
+            updateCounters(0, -1, ((File) node).isLock() ? -1 : 0);
+        }
+        node.setParent(null);
+        return true;
+    }
+
+    private synchronized boolean insert(Node node) {
+        expand();
+        Object current = children;
+        if (current instanceof Node[]) {
+            Node[] array = (Node[]) current;
+            int index = indexOf(array, node.getName());
+            if (index >= 0) {
+                return false;
+            }
+            if (array.length < LARGE_DIRECTORY_SIZE) {
+                int position = -index - 1;
+                Node[] result = new Node[array.length + 1];
+                System.arraycopy(array, 0, result, 0, position);
+                result[position] = node;
+                System.arraycopy(array, position, result, position + 1, array.length - position);
+                children = result;
                 return true;
             }
+            current = new TypedIndex(Arrays.asList(array));
+            children = current;
+        }
+        TypedIndex index = (TypedIndex) current;
+        if (index.get(node.getName()) != null) {
+            return false;
+        }
+        index.of(node).put(node.getName(), node);
+        return true;
+    }
+
+    private synchronized boolean delete(Node node) {
+        expand();
+        Object current = children;
+        if (current instanceof Node[]) {
+            Node[] array = (Node[]) current;
+            int index = indexOf(array, node.getName());
+            if (index < 0 || array[index] != node) {
+                return false;
+            }
+            Node[] result = new Node[array.length - 1];
+            System.arraycopy(array, 0, result, 0, index);
+            System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+            children = result.length == 0 ? EMPTY : result;
+            return true;
+        }
+        return ((TypedIndex) current).of(node).remove(node.getName(), node);
+    }
+
+    /** Метод удаляет все элементы директории
+     * */
+    public synchronized void clear() {
+        for (Node node : getChildren()) {
+            removeChild(node);
+        }
+    }
+
+    /** Метод возвращает элемент директории по имени без учета регистра или null
+     * */
+    public Node getChild(String name) {
+        expand();
+        return lookup(name);
+    }
+
+    /** Метод возвращает элемент директории по имени, не создавая элементов
+     * разделяемой копии: для копии возвращается элемент ее источника
+     * */
+    Node peekChild(String name) {
+        Directory source = origin;
+        if (source != null) {
+            return source.peekChild(name);
+        }
+        return lookup(name);
+    }
+
+    private Node lookup(String name) {
+        Object current = children;
+        if (current instanceof Node[]) {
+            Node[] array = (Node[]) current;
+            int index = indexOf(array, name);
+            return index >= 0 ? array[index] : null;
+        }
+        return ((TypedIndex) current).get(name);
+    }
+
+    public boolean hasChildrenDirectory() {
+        return childDirectories > 0;
+    }
+
+    /** Количество всех элементов внутри директории
+     * */
+    public int getDescendantCount() {
+        return descendants;
+    }
+
+    /** Количество директорий внутри директории
+     * */
+    public int getDescendantDirectoryCount() {
+        return descendantDirectories;
+    }
+
+    /** Количество заблокированных файлов внутри директории
+     * */
+    public int getLockedFileCount() {
+        return lockedFiles;
+    }
+
+    /** Метод изменяет счетчики директории и всех ее родителей
+     * */
+    void updateCounters(int directories, int nodes, int locked) {
+        for (Directory directory = this; directory != null; directory = directory.getParent()) {
+            if (directories != 0) {
+                DESCENDANT_DIRECTORIES.addAndGet(directory, directories);
+            }
+            if (nodes != 0) {
+                DESCENDANTS.addAndGet(directory, nodes);
+            }
+            if (locked != 0) {
+                LOCKED_FILES.addAndGet(directory, locked);
+            }
         }
-        return false;
     }
 
     public boolean hasChildren() {
-        return !children.isEmpty();
+        return getChildCount() > 0;
     }
 
-    public NavigableSet<Node> getChildren() {
-        return children;
+    public int getChildCount() {
+        expand();
+        Object current = children;
+        if (current instanceof Node[]) {
+            return ((Node[]) current).length;
+        }
+        return ((TypedIndex) current).size();
+    }
+
+    /** Метод возвращает элементы директории в алфавитном порядке. Изменения
+     * директории во время обхода не влияют на обход небольших директорий и
+     * могут быть частично видны при обходе больших
+     * */
+    public Collection<Node> getChildren() {
+        expand();
+        return view(children);
+    }
+
+    /** Метод возвращает элементы директории, следующие в алфавитном порядке
+     * за элементом с именем after. Если after равен null, возвращаются все элементы.
+     * Поиск начальной позиции выполняется двоичным поиском по массиву или по
+     * упорядоченному индексу, поэтому обход страницы не зависит от размера директории
+     * */
+    public Collection<Node> getChildrenAfter(String after) {
+        return getChildrenAfter(after, null);
+    }
+
+    /** Метод возвращает элементы типа type (все элементы, если type равен null),
+     * следующие в алфавитном порядке за элементом с именем after. Большая
+     * директория перечисляет элементы из индекса нужного типа, небольшая
+     * отбирает их из массива не более чем из LARGE_DIRECTORY_SIZE элементов
+     * */
+    public Collection<Node> getChildrenAfter(String after, NodeType type) {
+        expand();
+        Object current = children;
+        if (current instanceof Node[]) {
+            Node[] array = (Node[]) current;
+            int from = 0;
+            if (after != null) {
+                int index = indexOf(array, after);
+                from = index >= 0 ? index + 1 : -index - 1;
+            }
+            List<Node> list = Arrays.asList(array).subList(from, array.length);
+            if (type != null) {
+                list = new ArrayList<>(list);
+                list.removeIf(node -> node.getType() != type);
+            }
+            return Collections.unmodifiableList(list);
+        }
+        TypedIndex index = (TypedIndex) current;
+        if (type != null) {
+            ConcurrentNavigableMap<String, Node> nodes = type == NodeType.DIRECTORY ? index.directories : index.files;
+            return Collections.unmodifiableCollection(after == null ? nodes.values() : nodes.tailMap(after, false).values());
+        }
+        return after == null ? index : index.after(after);
     }
 
     public boolean isRoot() {
@@ -60,4 +495,106 @@ public class Directory extends Node {
     NodeType getType() {
         return NodeType.DIRECTORY;
     }
+
+    private synchronized void updateChildDirectories(int delta) {
+        childDirectories += delta;
+    }
+
+    private static Collection<Node> view(Object children) {
+        if (children instanceof Node[]) {
+            return Collections.unmodifiableList(Arrays.asList((Node[]) children));
+        }
+        return (TypedIndex) children;
+    }
+
+    private static int indexOf(Node[] array, String name) {
+        int low = 0;
+        int high = array.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = String.CASE_INSENSITIVE_ORDER.compare(array[middle].getName(), name);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /** Класс описывает индекс элементов большой директории: поддиректории и файлы
+     * хранятся в отдельных упорядоченных индексах по имени без учета регистра.
+     * Имя встречается только в одном из индексов (см. insert). Индекс является
+     * коллекцией всех элементов в алфавитном порядке: обход сливает оба индекса
+     * */
+    private static final class TypedIndex extends AbstractCollection<Node> {
+        private final ConcurrentNavigableMap<String, Node> directories;
+        private final ConcurrentNavigableMap<String, Node> files;
+
+        TypedIndex(Collection<Node> nodes) {
+            this(new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER), new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER));
+            for (Node node : nodes) {
+                of(node).put(node.getName(), node);
+            }
+        }
+
+        private TypedIndex(ConcurrentNavigableMap<String, Node> directories, ConcurrentNavigableMap<String, Node> files) {
+            this.directories = directories;
+            this.files = files;
+        }
+
+        ConcurrentNavigableMap<String, Node> of(Node node) {
+            return node.getType() == NodeType.DIRECTORY ? directories : files;
+        }
+
+        Node get(String name) {
+            Node node = directories.get(name);
+            return node != null ? node : files.get(name);
+        }
+
+        /** Метод возвращает представление элементов, следующих за именем after
+         * */
+        TypedIndex after(String after) {
+            return new TypedIndex(directories.tailMap(after, false), files.tailMap(after, false));
+        }
+
+        @Override
+        public int size() {
+            return directories.size() + files.size();
+        }
+
+        @Override
+        public Iterator<Node> iterator() {
+            Iterator<Node> first = directories.values().iterator();
+            Iterator<Node> second = files.values().iterator();
+            return new Iterator<Node>() {
+                private Node nextFirst = first.hasNext() ? first.next() : null;
+                private Node nextSecond = second.hasNext() ? second.next() : null;
+
+                @Override
+                public boolean hasNext() {
+                    return nextFirst != null || nextSecond != null;
+                }
+
+                @Override
+                public Node next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Node result;
+                    if (nextSecond == null || nextFirst != null &&
+                            String.CASE_INSENSITIVE_ORDER.compare(nextFirst.getName(), nextSecond.getName()) <= 0) {
+                        result = nextFirst;
+                        nextFirst = first.hasNext() ? first.next() : null;
+                    } else {
+                        result = nextSecond;
+                        nextSecond = second.hasNext() ? second.next() : null;
+                    }
+                    return result;
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package ru.gnusinay.vfs;
+
+import java.util.List;
+
+/** Класс описывает страницу содержимого директории (см. VirtualFileSystem.list):
+ * строки элементов, имя последнего элемента страницы, с которого продолжается
+ * перечисление следующей страницы, и признак того, что за страницей есть
+ * еще элементы. Имя хранится отдельно от строк, поэтому продолжение не
+ * зависит от формата строки и пробелов в имени
+ * */
+public final class DirectoryPage {
+    private final List<String> lines;
+    private final String last;
+    private final boolean more;
+
+    DirectoryPage(List<String> lines, String last, boolean more) {
+        this.lines = lines;
+        this.last = last;
+        this.more = more;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /** Имя последнего элемента страницы или null, если страница пуста
+     * */
+    public String getLast() {
+        return last;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+}
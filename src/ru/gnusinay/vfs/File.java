@@ -2,41 +2,86 @@ package ru.gnusinay.vfs;
 
 import ru.gnusinay.server.User;
 
-import java.util.Comparator;
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeSet;
 
 /** Класс описывающий файл в файловой системе. Хранит
- * список всех пользователей, которые заблокировали файл
+ * список всех пользователей, которые заблокировали файл.
+ * Обычно файл не заблокирован или заблокирован одним пользователем,
+ * поэтому набор пользователей создается только при блокировке файла
+ * несколькими пользователями: поле lockOwner хранит null, пользователя
+ * или набор пользователей. При блокировке и снятии блокировки
+ * изменяется счетчик заблокированных файлов родительских директорий
  */
 public class File extends Node {
-    private Set<User> lockUsers;
+    private Object lockOwner;
 
     public File(String name, Directory parent) {
         super(name, parent);
-        this.lockUsers = new ConcurrentSkipListSet<>(new Comparator<User>() {
-            @Override
-            public int compare(User o1, User o2) {
-                return o1.getName().toLowerCase().compareTo(o2.getName().toLowerCase());
-            }
-        });
+    }
 
+    @SuppressWarnings("unchecked")
+    public synchronized boolean lock(User user) {
+        if (lockOwner == null) {
+            lockOwner = user;
+            updateParentCounters(1);
+            return true;
+        }
+        if (lockOwner instanceof User) {
+            if (lockOwner.equals(user)) {
+                return false;
+            }
+            TreeSet<User> users = new TreeSet<>((o1, o2) -> o1.getName().compareToIgnoreCase(o2.getName()));
+            users.add((User) lockOwner);
+            lockOwner = users;
+        }
+        return ((TreeSet<User>) lockOwner).add(user);
     }
 
-    public boolean lock(User user) {
-        return lockUsers.add(user);
+    @SuppressWarnings("unchecked")
+    public synchronized boolean unlock(User user) {
+        if (lockOwner == null) {
+            return false;
+        }
+        if (lockOwner instanceof User) {
+            if (lockOwner.equals(user)) {
+                lockOwner = null;
+                updateParentCounters(-1);
+                return true;
+            }
+            return false;
+        }
+        TreeSet<User> users = (TreeSet<User>) lockOwner;
+        boolean removed = users.remove(user);
+        if (users.size() == 1) {
+            lockOwner = users.iterator().next();
+        }
+        return removed;
     }
 
-    public boolean unlock(User user) {
-        return lockUsers.remove(user);
+    public synchronized boolean isLock() {
+        return lockOwner != null;
     }
 
-    public boolean isLock() {
-        return !lockUsers.isEmpty();
+    /** Метод возвращает копию набора пользователей, заблокировавших файл
+     * */
+    @SuppressWarnings("unchecked")
+    public synchronized Collection<User> getLockUsers() {
+        if (lockOwner == null) {
+            return Collections.emptyList();
+        }
+        if (lockOwner instanceof User) {
+            return Collections.singletonList((User) lockOwner);
+        }
+        return new TreeSet<>((TreeSet<User>) lockOwner);
     }
 
-    public Set<User> getLockUsers() {
-        return lockUsers;
+    private void updateParentCounters(int delta) {
+        Directory parent = getParent();
+        if (parent != null) {
+            parent.updateCounters(0, 0, delta);
+        }
     }
 
     @Override
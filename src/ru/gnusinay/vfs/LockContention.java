@@ -0,0 +1,122 @@
+package ru.gnusinay.vfs;
+
+import ru.gnusinay.server.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Класс накапливает статистику ожидания блокировок элементов файловой системы
+ * по путям за последние Config.LOCK_STATS_WINDOW секунд. Статистика хранится в
+ * кольце посекундных корзин: корзина прошедшей секунды заменяется новой при
+ * первой записи, поэтому устаревшие данные не требуют отдельной очистки.
+ * Учитываются только ожидания занятой блокировки, захват свободной блокировки
+ * статистику не изменяет
+ * */
+public class LockContention {
+    private static final AtomicReferenceArray<Bucket> buckets =
+            new AtomicReferenceArray<>(Math.max(1, Config.get().LOCK_STATS_WINDOW));
+
+    /** Метод учитывает ожидание блокировки элемента path длительностью wait нс.
+     * holder - команда, которая держала блокировку, timedOut - блокировка
+     * не была получена
+     * */
+    static void record(String path, String holder, long wait, boolean timedOut) {
+        long second = System.currentTimeMillis() / 1000;
+        int index = (int) (second % buckets.length());
+        Bucket bucket = buckets.get(index);
+        while (bucket == null || bucket.second < second) {
+            Bucket next = new Bucket(second);
+            if (buckets.compareAndSet(index, bucket, next)) {
+                bucket = next;
+            } else {
+                bucket = buckets.get(index);
+            }
+        }
+        if (bucket.second != second) {
+            return;
+        }
+        bucket.stats.computeIfAbsent(path, k -> new Stat()).add(holder, wait, timedOut);
+    }
+
+    /** Метод возвращает отчет о seconds последних секундах (не более
+     * Config.LOCK_STATS_WINDOW): Config.LOCK_REPORT_SIZE путей с наибольшим
+     * суммарным временем ожидания, по одному в строке
+     * */
+    public static String report(int seconds) {
+        seconds = Math.max(1, Math.min(seconds, buckets.length()));
+        long now = System.currentTimeMillis() / 1000;
+        Map<String, Stat> total = new HashMap<>();
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.second > now - seconds) {
+                for (Map.Entry<String, Stat> entry : bucket.stats.entrySet()) {
+                    total.computeIfAbsent(entry.getKey(), k -> new Stat()).merge(entry.getValue());
+                }
+            }
+        }
+        if (total.isEmpty()) {
+            return String.format(Config.get().CONTENTION_EMPTY_MESSAGE, seconds);
+        }
+        List<Map.Entry<String, Stat>> entries = new ArrayList<>(total.entrySet());
+        entries.sort((o1, o2) -> Long.compare(o2.getValue().wait, o1.getValue().wait));
+        StringBuilder builder = new StringBuilder(String.format(Config.get().CONTENTION_MESSAGE, seconds));
+        for (Map.Entry<String, Stat> entry : entries.subList(0, Math.min(entries.size(), Config.get().LOCK_REPORT_SIZE))) {
+            Stat stat = entry.getValue();
+            builder.append('\n').append(entry.getKey())
+                    .append(": waits ").append(stat.count)
+                    .append(", timeouts ").append(stat.timeouts)
+                    .append(String.format(Locale.ROOT, ", wait %.3f ms, max %.3f ms", stat.wait / 1e6, stat.maxWait / 1e6))
+                    .append(", holder ").append(stat.holder);
+        }
+        return builder.toString();
+    }
+
+    /** Класс описывает статистику путей за одну секунду
+     * */
+    private static class Bucket {
+        private final long second;
+        private final Map<String, Stat> stats = new ConcurrentHashMap<>();
+
+        Bucket(long second) {
+            this.second = second;
+        }
+    }
+
+    /** Класс описывает статистику ожидания блокировки одного пути. Для команды,
+     * которая держала блокировку, хранится последнее значение
+     * */
+    private static class Stat {
+        private long count;
+        private long timeouts;
+        private long wait;
+        private long maxWait;
+        private String holder;
+
+        synchronized void add(String holder, long wait, boolean timedOut) {
+            count++;
+            if (timedOut) {
+                timeouts++;
+            }
+            this.wait += wait;
+            maxWait = Math.max(maxWait, wait);
+            this.holder = holder;
+        }
+
+        void merge(Stat other) {
+            synchronized (other) {
+                count += other.count;
+                timeouts += other.timeouts;
+                wait += other.wait;
+                maxWait = Math.max(maxWait, other.maxWait);
+                if (other.holder != null) {
+                    holder = other.holder;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package ru.gnusinay.vfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/** Класс реализует вторичный индекс элементов диска по имени. Индекс хранит
+ * упорядоченную карту "имя в нижнем регистре - элементы с этим именем" и
+ * индекс триграмм "триграмма - имена, содержащие ее". Поиск по точному
+ * имени и по префиксу выполняется по карте имен, поиск по шаблону с
+ * фрагментом из трех и более символов - по пересечению списков имен для
+ * триграмм фрагмента, остальные шаблоны проверяются по списку различных
+ * имен, а не по всем элементам диска.
+ * Индекс изменяется файловой системой при добавлении и удалении элементов.
+ * Элементы разделяемых копий директорий (см. Directory.share) попадают в индекс
+ * только после их создания, а сами такие копии хранятся в отдельном наборе,
+ * чтобы поиск мог обойти их содержимое по источнику
+ * */
+class NameIndex {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, Object> names = new TreeMap<>();
+    private final Map<String, Set<String>> trigrams = new HashMap<>();
+    private final Set<Directory> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Метод добавляет в индекс элемент и всех его потомков
+     * */
+    void addTree(Node node) {
+        lock.writeLock().lock();
+        try {
+            _addTree(node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Метод удаляет из индекса элемент и всех его потомков
+     * */
+    void removeTree(Node node) {
+        lock.writeLock().lock();
+        try {
+            _removeTree(node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Метод добавляет в индекс элементы, созданные при развертывании разделяемой
+     * копии directory. Если копия уже удалена из индекса, элементы не добавляются
+     * */
+    void expand(Directory directory, Collection<Node> added) {
+        lock.writeLock().lock();
+        try {
+            if (shared.remove(directory)) {
+                for (Node node : added) {
+                    _addTree(node);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Метод возвращает разделяемые копии директорий, элементы которых еще не
+     * добавлены в индекс
+     * */
+    List<Directory> getSharedDirectories() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(shared);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Метод заменяет содержимое индекса элементами nodes и всеми их потомками.
+     * Замена выполняется под одной блокировкой записи, поэтому поиск видит либо
+     * прежнее, либо новое содержимое
+     * */
+    void reset(Collection<Node> nodes) {
+        lock.writeLock().lock();
+        try {
+            names.clear();
+            trigrams.clear();
+            shared.clear();
+            for (Node node : nodes) {
+                _addTree(node);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            names.clear();
+            trigrams.clear();
+            shared.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Метод обходит элементы, имена которых соответствуют шаблону, в порядке
+     * индекса: по имени в нижнем регистре, элементы с одинаковым именем - по пути
+     * (см. getFindKey). Шаблон может содержать символы '*' (любая
+     * последовательность) и '?' (любой символ). Обход начинается после элемента
+     * с путем after (с начала, если after равен null): имена до имени after
+     * пропускаются по упорядоченной карте имен без проверки. Обход прекращается,
+     * когда visitor возвращает false
+     * */
+    void find(String pattern, boolean caseSensitive, String after, Predicate<Node> visitor) {
+        String lower = pattern.toLowerCase();
+        String afterKey = after == null ? null : getFindKey(after);
+        String afterName = afterKey == null ? null : afterKey.substring(0, afterKey.indexOf('\0'));
+        Pattern caseRegex = caseSensitive ? compile(pattern, true) : null;
+        lock.readLock().lock();
+        try {
+            int wildcard = indexOfWildcard(lower, 0);
+            Pattern regex = null;
+            NavigableSet<String> candidates;
+            if (wildcard < 0) {
+                candidates = new TreeSet<>(Collections.singleton(lower));
+            } else if (wildcard == lower.length() - 1 && lower.charAt(wildcard) == '*') {
+                String prefix = lower.substring(0, wildcard);
+                candidates = names.subMap(prefix, true, prefix + Character.MAX_VALUE, true).navigableKeySet();
+            } else {
+                regex = compile(lower, false);
+                Collection<String> found = getCandidateNames(lower);
+                candidates = found instanceof NavigableSet ? (NavigableSet<String>) found : new TreeSet<>(found);
+            }
+            if (afterName != null) {
+                candidates = candidates.tailSet(afterName, true);
+            }
+            for (String name : candidates) {
+                if (regex != null && !regex.matcher(name).matches()) {
+                    continue;
+                }
+                for (Node node : getSortedNodes(names.get(name))) {
+                    if (caseRegex != null && !caseRegex.matcher(node.getName()).matches()) {
+                        continue;
+                    }
+                    if (name.equals(afterName) && getFindKey(node.toString()).compareTo(afterKey) <= 0) {
+                        continue;
+                    }
+                    if (!visitor.test(node)) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Метод возвращает ключ порядка результатов поиска для пути path: имя
+     * элемента и путь в нижнем регистре, разделенные символом '\0'
+     * */
+    static String getFindKey(String path) {
+        String lower = path.toLowerCase();
+        return lower.substring(lower.lastIndexOf('\\') + 1) + '\0' + lower;
+    }
+
+    /** Метод выбирает имена-кандидаты для шаблона по самому длинному фрагменту
+     * шаблона без подстановочных символов
+     * */
+    private Collection<String> getCandidateNames(String pattern) {
+        String literal = "";
+        for (String part : pattern.split("[*?]")) {
+            if (part.length() > literal.length()) {
+                literal = part;
+            }
+        }
+        if (literal.length() < 3) {
+            return names.keySet();
+        }
+        Set<String> candidates = null;
+        for (int i = 0; i + 3 <= literal.length(); i++) {
+            Set<String> set = trigrams.get(literal.substring(i, i + 3));
+            if (set == null) {
+                return Collections.emptySet();
+            }
+            if (candidates == null) {
+                candidates = new HashSet<>(set);
+            } else {
+                candidates.retainAll(set);
+            }
+        }
+        return candidates;
+    }
+
+    private void _addTree(Node node) {
+        String name = node.getName().toLowerCase();
+        Object nodes = names.get(name);
+        if (nodes == null) {
+            names.put(name, node);
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                trigrams.computeIfAbsent(name.substring(i, i + 3), k -> new HashSet<>()).add(name);
+            }
+        } else if (nodes instanceof Node) {
+            if (nodes != node) {
+                Set<Node> set = Collections.newSetFromMap(new IdentityHashMap<>());
+                set.add((Node) nodes);
+                set.add(node);
+                names.put(name, set);
+            }
+        } else {
+            getSet(nodes).add(node);
+        }
+        if (node.getType() == NodeType.DIRECTORY) {
+            Directory directory = (Directory) node;
+            if (directory.isShared()) {
+                shared.add(directory);
+            }
+            for (Node child : directory.getLoadedChildren()) {
+                _addTree(child);
+            }
+        }
+    }
+
+    private void _removeTree(Node node) {
+        String name = node.getName().toLowerCase();
+        Object nodes = names.get(name);
+        boolean last = false;
+        if (nodes == node) {
+            last = true;
+        } else if (nodes != null && !(nodes instanceof Node)) {
+            Set<Node> set = getSet(nodes);
+            set.remove(node);
+            if (set.size() == 1) {
+                names.put(name, set.iterator().next());
+            }
+        }
+        if (last) {
+            names.remove(name);
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                String trigram = name.substring(i, i + 3);
+                Set<String> set = trigrams.get(trigram);
+                if (set != null) {
+                    set.remove(name);
+                    if (set.isEmpty()) {
+                        trigrams.remove(trigram);
+                    }
+                }
+            }
+        }
+        if (node.getType() == NodeType.DIRECTORY) {
+            shared.remove(node);
+            for (Node child : ((Directory) node).getLoadedChildren()) {
+                _removeTree(child);
+            }
+        }
+    }
+
+    /** Метод возвращает элементы с одним именем, упорядоченные по пути
+     * */
+    private static List<Node> getSortedNodes(Object nodes) {
+        if (nodes == null) {
+            return Collections.emptyList();
+        }
+        if (nodes instanceof Node) {
+            return Collections.singletonList((Node) nodes);
+        }
+        List<Node> sorted = new ArrayList<>(getSet(nodes));
+        Map<Node, String> keys = new IdentityHashMap<>();
+        for (Node node : sorted) {
+            keys.put(node, getFindKey(node.toString()));
+        }
+        sorted.sort(Comparator.comparing(keys::get));
+        return sorted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Node> getSet(Object nodes) {
+        return (Set<Node>) nodes;
+    }
+
+    private static int indexOfWildcard(String pattern, int from) {
+        for (int i = from; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Метод преобразует шаблон с символами '*' и '?' в регулярное выражение
+     * */
+    static Pattern compile(String glob, boolean caseSensitive) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString(), caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+}
@@ -0,0 +1,221 @@
+package ru.gnusinay.vfs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/** Класс описывает архив содержимого директории - текстовый файл, который
+ * записывается и читается потоком, без построения промежуточного дерева.
+ * Первая строка архива - заголовок "#VFS-ARCHIVE<TAB>версия", далее элементы
+ * в порядке обхода дерева (директория раньше своих потомков) строками
+ * "глубина<TAB>D|F<TAB>имя". Элементы верхнего уровня имеют глубину 0.
+ * При чтении элементы верхнего уровня вместе с их поддеревьями собираются
+ * в пакеты, и каждый пакет строится отдельным потоком в отсоединенное
+ * дерево, которое затем передается получателю
+ * */
+public class NamespaceArchive {
+    private static final String HEADER = "#VFS-ARCHIVE";
+    private static final int VERSION = 1;
+    private static final int BATCH_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Метод записывает содержимое директории в файл. Запись выполняется во
+     * временный файл, который затем заменяет существующий. Разделяемые копии
+     * директорий записываются по содержимому источника без создания их элементов
+     *
+     * @return количество записанных элементов
+     * */
+    public static long write(Directory directory, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long count;
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temp), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            writer.write(HEADER + '\t' + VERSION + '\n');
+            count = writeChildren(directory, 0, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private static long writeChildren(Directory directory, int depth, BufferedWriter writer) throws IOException {
+        long count = 0;
+        for (Node node : directory.getContent()) {
+            boolean isDirectory = node.getType() == NodeType.DIRECTORY;
+            writer.write(Integer.toString(depth));
+            writer.write(isDirectory ? "\tD\t" : "\tF\t");
+            writer.write(node.getName());
+            writer.write('\n');
+            count++;
+            if (isDirectory) {
+                count += writeChildren((Directory) node, depth + 1, writer);
+            }
+        }
+        return count;
+    }
+
+    /** Метод читает архив и передает получателю каждый элемент верхнего уровня
+     * вместе с его поддеревом. Поддеревья строятся потоками пула из workers потоков,
+     * получатель вызывается в этих потоках. Ошибка формата архива или получателя
+     * прерывает чтение, при этом уже переданные получателю элементы остаются.
+     * Метод завершается только после завершения всех потоков пула
+     * */
+    public static void read(Path file, int workers, Consumer<Node> consumer) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers));
+        Semaphore slots = new Semaphore(Math.max(1, workers) * 2);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String header = reader.readLine();
+            if (header == null || !header.equals(HEADER + '\t' + VERSION)) {
+                throw new IOException("Unsupported archive format");
+            }
+            Batch batch = new Batch();
+            int maxDepth = 0;
+            int number = 1;
+            String line;
+            while ((line = reader.readLine()) != null && failure.get() == null) {
+                number++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int first = line.indexOf('\t');
+                int depth = parseDepth(line, first);
+                if (depth < 0 || depth > maxDepth || line.length() < first + 4 || line.charAt(first + 2) != '\t') {
+                    throw new IOException("Archive line " + number + " is malformed");
+                }
+                char type = line.charAt(first + 1);
+                if (type != 'D' && type != 'F') {
+                    throw new IOException("Archive line " + number + " is malformed");
+                }
+                if (depth == 0 && batch.size >= BATCH_SIZE) {
+                    futures.add(submit(executor, slots, batch, consumer, failure));
+                    batch = new Batch();
+                }
+                batch.add(depth, type == 'D', line.substring(first + 3));
+                maxDepth = type == 'D' ? depth + 1 : depth;
+            }
+            if (batch.size > 0 && failure.get() == null) {
+                futures.add(submit(executor, slots, batch, consumer, failure));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Archive reading is interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static Future<?> submit(ExecutorService executor, Semaphore slots, Batch batch, Consumer<Node> consumer,
+                                    AtomicReference<RuntimeException> failure) throws InterruptedException {
+        slots.acquire();
+        return executor.submit(() -> {
+            try {
+                batch.build(consumer);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    private static int parseDepth(String line, int end) {
+        if (end <= 0) {
+            return -1;
+        }
+        int depth = 0;
+        for (int i = 0; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9' || depth > 100000) {
+                return -1;
+            }
+            depth = depth * 10 + (c - '0');
+        }
+        return depth;
+    }
+
+    /** Класс описывает пакет строк архива, начинающийся с элемента верхнего уровня
+     * */
+    private static class Batch {
+        private int[] depths = new int[BATCH_SIZE];
+        private boolean[] directories = new boolean[BATCH_SIZE];
+        private String[] names = new String[BATCH_SIZE];
+        private int size;
+
+        void add(int depth, boolean directory, String name) {
+            if (size == names.length) {
+                depths = Arrays.copyOf(depths, size * 2);
+                directories = Arrays.copyOf(directories, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+            }
+            depths[size] = depth;
+            directories[size] = directory;
+            names[size] = name;
+            size++;
+        }
+
+        /** Метод строит поддеревья пакета. Для каждой глубины хранится открытая
+         * директория и список ее элементов. Директория заполняется целиком (см.
+         * Directory.load), когда встречается элемент той же или меньшей глубины
+         * */
+        void build(Consumer<Node> consumer) {
+            List<Directory> open = new ArrayList<>();
+            List<List<Node>> contents = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                int depth = depths[i];
+                close(open, contents, depth, consumer);
+                Node node = directories[i] ? new Directory(names[i], null) : new File(names[i], null);
+                if (depth > 0) {
+                    contents.get(depth - 1).add(node);
+                } else if (!directories[i]) {
+                    consumer.accept(node);
+                }
+                if (directories[i]) {
+                    open.add((Directory) node);
+                    contents.add(new ArrayList<>());
+                }
+            }
+            close(open, contents, 0, consumer);
+        }
+
+        private static void close(List<Directory> open, List<List<Node>> contents, int depth, Consumer<Node> consumer) {
+            while (open.size() > depth) {
+                int last = open.size() - 1;
+                Directory directory = open.remove(last);
+                directory.load(contents.remove(last));
+                if (last == 0) {
+                    consumer.accept(directory);
+                }
+            }
+        }
+    }
+}
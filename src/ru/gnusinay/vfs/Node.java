@@ -1,20 +1,24 @@
 package ru.gnusinay.vfs;
 
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /** Класс описывает элементы файловой системы и
- * хранит их основные характеристики
+ * хранит их основные характеристики. Для экономии памяти
+ * имена элементов интернируются, а блокировка элемента создается
+ * только при первом обращении к ней (см. getLock): большинство
+ * элементов никогда не блокируется и хранит только пустую ссылку
  */
 public abstract class Node {
+    private static final AtomicReferenceFieldUpdater<Node, NodeLock> LOCK =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, NodeLock.class, "lock");
+
     private String name;
     private Node parent;
-    private ReentrantLock lock;
+    private volatile NodeLock lock;
 
     Node (String name, Node  parent) {
-        this.name = name;
+        this.name = name.intern();
         this.parent = parent;
-        this.lock = new ReentrantLock();
     }
 
     public String getName() {
@@ -30,18 +34,6 @@ public abstract class Node {
         this.parent = parent;
     }
 
-    public boolean isLockedNode() throws InterruptedException {
-        return lock.isLocked();
-    }
-
-    public boolean lockNode() throws InterruptedException {
-        return lock.tryLock(1000, TimeUnit.MILLISECONDS);
-    }
-
-    public void unlockNode() throws InterruptedException {
-        lock.unlock();
-    }
-
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder(this.getName());
@@ -54,5 +46,18 @@ public abstract class Node {
         return builder.toString();
     }
 
+    /** Метод возвращает блокировку элемента, создавая ее при первом обращении.
+     * Блокировка не удаляется после освобождения: поток, получивший ее ссылку,
+     * мог бы ждать блокировку, которую уже заменила новая
+     * */
+    NodeLock getLock() {
+        NodeLock current = lock;
+        if (current == null) {
+            LOCK.compareAndSet(this, null, new NodeLock());
+            current = lock;
+        }
+        return current;
+    }
+
     abstract NodeType getType();
 }
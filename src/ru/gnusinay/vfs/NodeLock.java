@@ -0,0 +1,23 @@
+package ru.gnusinay.vfs;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Класс описывает блокировку элемента файловой системы (см.
+ * Node.getLock). Блокировка запоминает команду потока,
+ * который захватил ее последним, чтобы ожидающий поток мог сообщить,
+ * какая команда его задержала. Поле читается без синхронизации и служит
+ * только для диагностики
+ * */
+class NodeLock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
+
+    private transient RunningCommand holder;
+
+    RunningCommand getHolder() {
+        return holder;
+    }
+
+    void setHolder(RunningCommand holder) {
+        this.holder = holder;
+    }
+}
@@ -0,0 +1,16 @@
+package ru.gnusinay.vfs;
+
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Захват свободной блокировки без ожидания. Событие возникает при каждом
+ * обращении к элементу, поэтому по умолчанию выключено
+ * */
+@Name("ru.gnusinay.NodeLockAcquire")
+@Label("Node Lock Acquire")
+@Description("Node lock acquired without waiting")
+@Enabled(false)
+class NodeLockAcquireEvent extends NodeLockEvent {
+}
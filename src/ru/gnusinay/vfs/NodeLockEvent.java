@@ -0,0 +1,21 @@
+package ru.gnusinay.vfs;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+
+/** Базовое событие Java Flight Recorder о блокировке элемента файловой системы.
+ * Поля содержат путь элемента, команду текущего потока и команду потока,
+ * который держал блокировку в момент начала ожидания (см.
+ * VirtualFileSystem.setCurrentCommand). Длительность события - время ожидания
+ * */
+@Category({"VFS Server", "Node Locks"})
+abstract class NodeLockEvent extends jdk.jfr.Event {
+    @Label("Path")
+    String path;
+
+    @Label("Command")
+    String command;
+
+    @Label("Holder Command")
+    String holder;
+}
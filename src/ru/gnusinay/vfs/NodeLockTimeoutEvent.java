@@ -0,0 +1,14 @@
+package ru.gnusinay.vfs;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Блокировка не освободилась за Config.NODE_LOCK_TIMEOUT, команда
+ * завершилась ошибкой Config.RUN_COMMAND_INTERRUPTED_EXCEPTION
+ * */
+@Name("ru.gnusinay.NodeLockTimeout")
+@Label("Node Lock Timeout")
+@Description("Node lock was not acquired within NODE_LOCK_TIMEOUT")
+class NodeLockTimeoutEvent extends NodeLockEvent {
+}
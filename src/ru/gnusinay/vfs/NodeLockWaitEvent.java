@@ -0,0 +1,13 @@
+package ru.gnusinay.vfs;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Захват блокировки, которая была занята другим потоком
+ * */
+@Name("ru.gnusinay.NodeLockWait")
+@Label("Node Lock Wait")
+@Description("Node lock acquired after waiting for another command")
+class NodeLockWaitEvent extends NodeLockEvent {
+}
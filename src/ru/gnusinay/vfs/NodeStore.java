@@ -0,0 +1,325 @@
+package ru.gnusinay.vfs;
+
+import ru.gnusinay.protocol.Protocol;
+import ru.gnusinay.server.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Класс описывает колоночный снимок элементов диска в файле. Рабочее дерево
+ * диска хранится в куче (Directory, File), хранилище служит только для
+ * сохранения и загрузки снимка. Элементы нумеруются в порядке обхода дерева
+ * (родитель всегда раньше потомков, корень имеет номер 0). Для каждого
+ * элемента хранятся номер родителя, номер первого потомка, номер следующего
+ * элемента той же директории, смещение имени в области имен, флаги и смещение
+ * имен пользователей, заблокировавших файл (имена разделяются
+ * Protocol.SEPARATOR). Одинаковые имена хранятся в области имен один раз. Файл отображается в память, поэтому снимок читается
+ * и записывается без копирования колонок в кучу.
+ *
+ * Формат файла: заголовок (сигнатура, версия, количество элементов, размер
+ * области имен, номер последней записи журнала изменений, содержащейся в
+ * снимке), колонки parent, firstChild, nextSibling, nameOffset,
+ * lockOwner по 4 байта на элемент, колонка flags по 1 байту на элемент и
+ * область имен (2 байта длины и байты имени в UTF-8)
+ * */
+public class NodeStore {
+    public static final int NONE = -1;
+    private static final int MAGIC = 0x56465331;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final byte FLAG_DIRECTORY = 1;
+    private static final byte FLAG_LOCKED = 2;
+
+    private final int count;
+    private final long seq;
+    private final IntBuffer parent;
+    private final IntBuffer firstChild;
+    private final IntBuffer nextSibling;
+    private final IntBuffer nameOffset;
+    private final IntBuffer lockOwner;
+    private final ByteBuffer flags;
+    private final ByteBuffer names;
+
+    private NodeStore(MappedByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported node store format");
+        }
+        count = buffer.getInt(8);
+        int namesSize = buffer.getInt(12);
+        seq = buffer.getLong(16);
+        int position = HEADER_SIZE;
+        parent = slice(buffer, position, count * 4).asIntBuffer();
+        position += count * 4;
+        firstChild = slice(buffer, position, count * 4).asIntBuffer();
+        position += count * 4;
+        nextSibling = slice(buffer, position, count * 4).asIntBuffer();
+        position += count * 4;
+        nameOffset = slice(buffer, position, count * 4).asIntBuffer();
+        position += count * 4;
+        lockOwner = slice(buffer, position, count * 4).asIntBuffer();
+        position += count * 4;
+        flags = slice(buffer, position, count);
+        position += count;
+        names = slice(buffer, position, namesSize);
+    }
+
+    /** Метод открывает хранилище из файла в режиме только для чтения
+     * */
+    public static NodeStore open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new NodeStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Метод записывает дерево с корнем root, содержащее записи журнала
+     * изменений с номерами до seq включительно, в файл без блокировок файлов
+     * (см. write(Directory, Map, Path, long))
+     * */
+    public static void write(Directory root, Path file, long seq) throws IOException {
+        write(root, Collections.emptyMap(), file, seq);
+    }
+
+    /** Метод записывает дерево с корнем root, содержащее записи журнала
+     * изменений с номерами до seq включительно, в файл. Запись выполняется во
+     * временный файл, который затем заменяет существующий. Дерево не должно
+     * изменяться во время записи, поэтому записываются разделяемые копии (см.
+     * VirtualFileSystem.shareRoot и снимки диска): они записываются по содержимому
+     * источника без создания их элементов. Разделяемые копии не переносят
+     * блокировки файлов, поэтому владельцы блокировок передаются отдельно в locks
+     * по полным путям файлов (см. VirtualFileSystem.getLockOwners)
+     * */
+    public static void write(Directory root, Map<String, Collection<String>> locks, Path file, long seq) throws IOException {
+        Writer layout = new Writer(locks);
+        layout.add(root, NONE);
+        int count = layout.next;
+        long size = HEADER_SIZE + (long) count * 21 + layout.namesSize;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(layout.namesSize).putLong(seq);
+            Writer writer = new Writer(layout, buffer);
+            writer.writeNames();
+            writer.add(root, NONE);
+            if (writer.next != count) {
+                throw new IOException("Tree is changed while the node store is written");
+            }
+            buffer.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /** Номер последней записи журнала изменений, содержащейся в снимке
+     * */
+    public long getSeq() {
+        return seq;
+    }
+
+    public int getParent(int id) {
+        return parent.get(id);
+    }
+
+    public int getFirstChild(int id) {
+        return firstChild.get(id);
+    }
+
+    public int getNextSibling(int id) {
+        return nextSibling.get(id);
+    }
+
+    public boolean isDirectory(int id) {
+        return (flags.get(id) & FLAG_DIRECTORY) != 0;
+    }
+
+    public boolean isLocked(int id) {
+        return (flags.get(id) & FLAG_LOCKED) != 0;
+    }
+
+    public String getName(int id) {
+        return readName(nameOffset.get(id));
+    }
+
+    /** Метод возвращает имена пользователей, заблокировавших файл
+     * */
+    public List<String> getLockOwners(int id) {
+        int offset = lockOwner.get(id);
+        return offset == NONE ? Collections.emptyList() : Arrays.asList(readName(offset).split(Protocol.SEPARATOR));
+    }
+
+    /** Метод создает в куче дерево элементов по хранилищу вместе с блокировками
+     * файлов. Блокировки восстанавливаются за пользователями с сохраненными
+     * именами, чтобы записи журнала после снимка (UNLOCK, QUIT) снимали их так же,
+     * как до перезапуска
+     * */
+    public Directory toTree() {
+        Directory root = new Directory(getName(0), null);
+        if (count > 0) {
+            fill(root, 0);
+        }
+        return root;
+    }
+
+    private void fill(Directory directory, int id) {
+        for (int child = getFirstChild(id); child != NONE; child = getNextSibling(child)) {
+            if (isDirectory(child)) {
+                Directory node = new Directory(getName(child), directory);
+                directory.addChild(node);
+                fill(node, child);
+            } else {
+                File file = new File(getName(child), null);
+                if (isLocked(child)) {
+                    for (String owner : getLockOwners(child)) {
+                        file.lock(new User(owner, null));
+                    }
+                }
+                directory.addChild(file);
+            }
+        }
+    }
+
+    private String readName(int offset) {
+        int length = names.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = names.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position).limit(position + length);
+        return duplicate.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /** Класс записывает колонки хранилища при обходе дерева. Запись выполняется
+     * в два прохода по неизменяемому дереву: первый проход (buffer равен null)
+     * считает элементы и размещает имена в области имен, второй записывает
+     * колонки и имена прямо в отображенный в память файл по вычисленным
+     * смещениям. Если дерево изменилось между проходами, запись завершается
+     * ошибкой, а не пропускает элементы
+     * */
+    private static class Writer {
+        private static final int PARENT = 0;
+        private static final int FIRST_CHILD = 1;
+        private static final int NEXT_SIBLING = 2;
+        private static final int NAME_OFFSET = 3;
+        private static final int LOCK_OWNER = 4;
+
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private final Map<String, Integer> nameOffsets;
+        private final Map<String, Collection<String>> locks;
+        private int namesSize;
+        private int next;
+
+        /** Создает первый проход записи
+         * */
+        Writer(Map<String, Collection<String>> locks) {
+            buffer = null;
+            capacity = 0;
+            nameOffsets = new HashMap<>();
+            this.locks = locks;
+        }
+
+        /** Создает второй проход записи в буфер buffer по результатам первого
+         * прохода layout
+         * */
+        Writer(Writer layout, ByteBuffer buffer) {
+            this.buffer = buffer;
+            capacity = layout.next;
+            nameOffsets = layout.nameOffsets;
+            namesSize = layout.namesSize;
+            locks = layout.locks;
+        }
+
+        int add(Node node, int parentId) throws IOException {
+            if (buffer != null && next >= capacity) {
+                throw new IOException("Tree is changed while the node store is written");
+            }
+            int id = next++;
+            putInt(PARENT, id, parentId);
+            putInt(FIRST_CHILD, id, NONE);
+            putInt(NEXT_SIBLING, id, NONE);
+            putInt(NAME_OFFSET, id, addName(node.getName()));
+            putInt(LOCK_OWNER, id, NONE);
+            byte flag = 0;
+            if (node.getType() == NodeType.DIRECTORY) {
+                flag |= FLAG_DIRECTORY;
+                int previous = NONE;
+                Directory directory = (Directory) node;
+                for (Node child : directory.getContent()) {
+                    int childId = add(child, id);
+                    if (previous == NONE) {
+                        putInt(FIRST_CHILD, id, childId);
+                    } else {
+                        putInt(NEXT_SIBLING, previous, childId);
+                    }
+                    previous = childId;
+                }
+            } else if (!locks.isEmpty()) {
+                Collection<String> users = locks.get(node.toString());
+                if (users != null && !users.isEmpty()) {
+                    flag |= FLAG_LOCKED;
+                    putInt(LOCK_OWNER, id, addName(String.join(Protocol.SEPARATOR, users)));
+                }
+            }
+            if (buffer != null) {
+                buffer.put(HEADER_SIZE + capacity * 20 + id, flag);
+            }
+            return id;
+        }
+
+        /** Метод записывает в файл область имен, размещенных первым проходом
+         * */
+        void writeNames() {
+            int base = HEADER_SIZE + capacity * 21;
+            for (Map.Entry<String, Integer> entry : nameOffsets.entrySet()) {
+                byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                buffer.putShort(base + entry.getValue(), (short) bytes.length);
+                for (int i = 0; i < bytes.length; i++) {
+                    buffer.put(base + entry.getValue() + 2 + i, bytes[i]);
+                }
+            }
+        }
+
+        private void putInt(int column, int id, int value) {
+            if (buffer != null) {
+                buffer.putInt(HEADER_SIZE + (column * capacity + id) * 4, value);
+            }
+        }
+
+        private int addName(String name) throws IOException {
+            Integer offset = nameOffsets.get(name);
+            if (offset == null) {
+                if (buffer != null) {
+                    throw new IOException("Tree is changed while the node store is written");
+                }
+                offset = namesSize;
+                namesSize += name.getBytes(StandardCharsets.UTF_8).length + 2;
+                nameOffsets.put(name, offset);
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ru.gnusinay.vfs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Класс реализует сжатое префиксное дерево путей. Путь разбивается на
+ * части по разделителю '\', сравнение частей выполняется без учета регистра.
+ * Цепочки элементов дерева с единственным потомком объединяются в один
+ * элемент, поэтому высота дерева не превышает глубины самого длинного пути.
+ * Каждый элемент хранит количество значений в своем поддереве, что позволяет
+ * за O(длина префикса) проверить, есть ли значения внутри поддерева.
+ * Ключи поддерева перебираются в алфавитном порядке
+ * */
+public class PathTrie<V> {
+    private final TrieNode<V> root = new TrieNode<>(new String[0]);
+
+    /** Метод проверяет, находится ли путь path внутри поддерева prefix
+     * (или совпадает с ним)
+     * */
+    public static boolean isInside(String path, String prefix) {
+        String[] pathParts = split(path);
+        String[] prefixParts = split(prefix);
+        if (prefixParts.length > pathParts.length) {
+            return false;
+        }
+        for (int i = 0; i < prefixParts.length; i++) {
+            if (!pathParts[i].equals(prefixParts[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized V get(String path) {
+        TrieNode<V> node = find(split(path), false);
+        return node != null ? node.value : null;
+    }
+
+    public synchronized V put(String path, V value) {
+        String[] parts = split(path);
+        Deque<TrieNode<V>> visited = new ArrayDeque<>();
+        TrieNode<V> node = root;
+        int i = 0;
+        visited.push(node);
+        while (i < parts.length) {
+            TrieNode<V> child = node.children.get(parts[i]);
+            if (child == null) {
+                child = new TrieNode<>(Arrays.copyOfRange(parts, i, parts.length));
+                node.children.put(parts[i], child);
+                node = child;
+                visited.push(node);
+                break;
+            }
+            int common = commonLength(child.label, parts, i);
+            if (common < child.label.length) {
+                TrieNode<V> middle = new TrieNode<>(Arrays.copyOfRange(child.label, 0, common));
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                middle.children.put(child.label[0], child);
+                middle.size = child.size;
+                node.children.put(parts[i], middle);
+                child = middle;
+            }
+            node = child;
+            visited.push(node);
+            i += common;
+        }
+        V previous = node.value;
+        node.value = value;
+        node.key = path;
+        if (!node.hasValue) {
+            node.hasValue = true;
+            for (TrieNode<V> n : visited) {
+                n.size++;
+            }
+        }
+        return previous;
+    }
+
+    public synchronized V remove(String path) {
+        String[] parts = split(path);
+        List<TrieNode<V>> visited = new ArrayList<>();
+        TrieNode<V> node = root;
+        int i = 0;
+        visited.add(node);
+        while (i < parts.length) {
+            TrieNode<V> child = node.children.get(parts[i]);
+            if (child == null || commonLength(child.label, parts, i) < child.label.length) {
+                return null;
+            }
+            node = child;
+            visited.add(node);
+            i += child.label.length;
+        }
+        if (!node.hasValue) {
+            return null;
+        }
+        V previous = node.value;
+        node.value = null;
+        node.key = null;
+        node.hasValue = false;
+        for (TrieNode<V> n : visited) {
+            n.size--;
+        }
+        for (int j = visited.size() - 1; j > 0; j--) {
+            TrieNode<V> current = visited.get(j);
+            TrieNode<V> parent = visited.get(j - 1);
+            if (current.hasValue) {
+                break;
+            }
+            if (current.children.isEmpty()) {
+                parent.children.remove(current.label[0]);
+            } else if (current.children.size() == 1) {
+                TrieNode<V> only = current.children.values().iterator().next();
+                String[] label = new String[current.label.length + only.label.length];
+                System.arraycopy(current.label, 0, label, 0, current.label.length);
+                System.arraycopy(only.label, 0, label, current.label.length, only.label.length);
+                only.label = label;
+                parent.children.put(label[0], only);
+                break;
+            } else {
+                break;
+            }
+        }
+        return previous;
+    }
+
+    /** Метод проверяет, есть ли значения внутри поддерева prefix
+     * */
+    public synchronized boolean hasValuesInside(String prefix) {
+        TrieNode<V> node = find(split(prefix), true);
+        return node != null && node.size > 0;
+    }
+
+    /** Метод возвращает ключи поддерева prefix в алфавитном порядке
+     * */
+    public synchronized List<String> keysInside(String prefix) {
+        List<String> result = new ArrayList<>();
+        TrieNode<V> node = find(split(prefix), true);
+        if (node != null) {
+            collect(node, result);
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return root.size;
+    }
+
+    /** Метод находит элемент дерева по пути. Если partial = true, путь может
+     * заканчиваться внутри метки элемента, тогда возвращается этот элемент
+     * (все его ключи находятся внутри заданного префикса)
+     * */
+    private TrieNode<V> find(String[] parts, boolean partial) {
+        TrieNode<V> node = root;
+        int i = 0;
+        while (i < parts.length) {
+            TrieNode<V> child = node.children.get(parts[i]);
+            if (child == null) {
+                return null;
+            }
+            int common = commonLength(child.label, parts, i);
+            if (common < child.label.length) {
+                return partial && i + common == parts.length ? child : null;
+            }
+            node = child;
+            i += common;
+        }
+        return node;
+    }
+
+    private void collect(TrieNode<V> node, List<String> result) {
+        if (node.hasValue) {
+            result.add(node.key);
+        }
+        for (TrieNode<V> child : node.children.values()) {
+            collect(child, result);
+        }
+    }
+
+    private static int commonLength(String[] label, String[] parts, int from) {
+        int length = 0;
+        while (length < label.length && from + length < parts.length && label[length].equals(parts[from + length])) {
+            length++;
+        }
+        return length;
+    }
+
+    private static String[] split(String path) {
+        String[] parts = path.toLowerCase().split("\\\\");
+        if (parts.length == 1 && parts[0].isEmpty()) {
+            return new String[0];
+        }
+        return parts;
+    }
+
+    private static class TrieNode<V> {
+        private String[] label;
+        private final Map<String, TrieNode<V>> children = new TreeMap<>();
+        private V value;
+        private String key;
+        private boolean hasValue;
+        private int size;
+
+        TrieNode(String[] label) {
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.gnusinay.vfs;
+
+import ru.gnusinay.protocol.Protocol;
+
+/** Класс описывает команду, которую выполняет поток, для диагностики ожидания
+ * блокировок элементов (см. VirtualFileSystem.setCurrentCommand). Строка
+ * описания вида "ТИП параметры (пользователь)" строится при первом обращении -
+ * когда другой поток ждет блокировку или записывается событие JFR, поэтому
+ * команды, которые не встречают ожидания, ее не создают
+ * */
+public final class RunningCommand {
+    private final String type;
+    private final String params;
+    private final String userName;
+    private String description;
+
+    public RunningCommand(String type, String params, String userName) {
+        this.type = type;
+        this.params = params;
+        this.userName = userName;
+    }
+
+    @Override
+    public String toString() {
+        String result = description;
+        if (result == null) {
+            result = type.toUpperCase() + " " + params.replace(Protocol.SEPARATOR, " ") + " (" + userName + ")";
+            description = result;
+        }
+        return result;
+    }
+}
@@ -3,52 +3,308 @@ package ru.gnusinay.vfs;
 import ru.gnusinay.server.Config;
 import ru.gnusinay.server.User;
 
+import jdk.jfr.EventType;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
-/** Класс, реализующий файловую систему. Содержит корневой элемент системы и
- * карту заблокированных объектов в системе, для потокобезопасной работы.
+/** Класс, реализующий диск файловой системы. Содержит корневой элемент диска
+ * и список заблокированных каждым потоком элементов, для потокобезопасной
+ * работы. Каждый элемент имеет собственную блокировку, которая создается при
+ * первой блокировке элемента (см. Node.getLock), поэтому команды над разными
+ * элементами никогда не ждут одну и ту же блокировку.
  * Класс предоставляет методы для работы с файловой системой.
- * Реализует шаблон синглтон, т.к. файловая система должна существовать
- * только в одном экземпляре.
+ * Каждый диск из списка Config.DRIVES существует в единственном экземпляре со
+ * своим доменом блокировок, поэтому команды над разными дисками не конкурируют
+ * друг с другом. Экземпляр диска создается при первом обращении к нему.
+ * Если задан каталог Config.STORAGE_DIR, содержимое диска загружается из
+ * снимка этого диска (см. NodeStore) и сохраняется в него методом checkpoint.
+ * Поврежденный снимок не загружается: диск не создается (см. load).
+ * Снимок хранит номер последней записи журнала изменений, которую он содержит.
+ * Для поиска элементов по имени диск ведет вторичный индекс NameIndex, который
+ * обновляется при каждом добавлении и удалении элементов.
+ * Диск хранит именованные снимки (SNAPSHOT) - разделяемые копии корня диска
+ * (см. Directory.share). Снимок создается за O(1), а память расходуется только
+ * на директории, измененные после его создания. Снимки сохраняются вместе со
+ * снимком диска в файлы "диск@имя.vfs" каталога Config.STORAGE_DIR.
+ * Содержимое директорий можно выгрузить в архив и загрузить из архива
+ * (см. NamespaceArchive), архивы хранятся в каталоге Config.ARCHIVE_DIR.
  * */
 public class VirtualFileSystem {
-    private static VirtualFileSystem fileSystem = new VirtualFileSystem();
+    private static ConcurrentSkipListMap<String, VirtualFileSystem> drives = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
 
     private Directory rootNode;
-    private HashMap<String, List<Node>> lockNodes;
+    private static final ThreadLocal<RunningCommand> currentCommand = new ThreadLocal<>();
+    private static final EventType ACQUIRE_EVENT = EventType.getEventType(NodeLockAcquireEvent.class);
+    private ThreadLocal<List<Node>> lockNodes = ThreadLocal.withInitial(ArrayList::new);
+    private static final ThreadLocal<long[]> lockWaitTime = ThreadLocal.withInitial(() -> new long[1]);
+    private static final ThreadLocal<List<VirtualFileSystem>> heldDrives = new ThreadLocal<>();
+    private NameIndex nameIndex = new NameIndex();
+    private ConcurrentSkipListMap<String, Snapshot> snapshots = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private volatile long checkpointSeq;
 
-    private VirtualFileSystem() {
-        rootNode = new Directory(Config.ROOT, null);
-        lockNodes = new HashMap<>();
+    private VirtualFileSystem(String root) {
+        rootNode = load(root);
+        loadSnapshots(root);
+        for (Node node : rootNode.getChildren()) {
+            nameIndex.addTree(node);
+        }
     }
 
+    /** Метод возвращает диск по умолчанию, указанный в настройке ROOT
+     * */
     static public VirtualFileSystem getInstance() {
+        return getDrive(Config.get().ROOT);
+    }
+
+    /** Метод возвращает диск по его имени (например, "D:"). Если диск не
+     * объявлен в настройках сервера, возвращается null
+     * */
+    static public VirtualFileSystem getDrive(String name) {
+        VirtualFileSystem fileSystem = drives.get(name);
+        if (fileSystem == null && isDriveDeclared(name)) {
+            fileSystem = drives.computeIfAbsent(name.toUpperCase(), VirtualFileSystem::new);
+        }
         return fileSystem;
     }
 
+    /** Метод определяет диск по полному пути к элементу файловой системы
+     * */
+    static public VirtualFileSystem getDriveByPath(String path) throws VFSException {
+        int index = path.indexOf(':');
+        VirtualFileSystem fileSystem = index > 0 ? getDrive(path.substring(0, index + 1)) : null;
+        if (fileSystem == null) {
+            throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+        }
+        return fileSystem;
+    }
+
+    /** Метод возвращает все диски, к которым уже были обращения
+     * */
+    static public Collection<VirtualFileSystem> getLoadedDrives() {
+        return drives.values();
+    }
+
+    /** Метод возвращает все объявленные в настройках диски, создавая еще не загруженные
+     * */
+    static public List<VirtualFileSystem> getDrives() {
+        List<VirtualFileSystem> result = new ArrayList<>();
+        getDrive(Config.get().ROOT);
+        for (String drive : Config.get().DRIVES) {
+            getDrive(drive);
+        }
+        result.addAll(drives.values());
+        return result;
+    }
+
+    static private boolean isDriveDeclared(String name) {
+        if (name.equalsIgnoreCase(Config.get().ROOT)) {
+            return true;
+        }
+        for (String drive : Config.get().DRIVES) {
+            if (drive.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Метод возвращает разделяемую копию корня диска (см. Directory.share) для
+     * сохранения снимка методом checkpoint. Копия создается за O(1) и не меняется
+     * при последующих изменениях диска, поэтому вызывается под блокировкой диска,
+     * а снимок записывается уже без нее. Блокировки файлов в копию не переносятся,
+     * их нужно получить под той же блокировкой методом getLockOwners
+     * */
+    public Directory shareRoot() {
+        return Directory.share(rootNode, null);
+    }
+
+    /** Метод возвращает имена пользователей, заблокировавших файлы диска, по
+     * полным путям файлов. Обходятся только директории, содержащие заблокированные
+     * файлы (см. Directory.getLockedFileCount)
+     * */
+    public Map<String, Collection<String>> getLockOwners() {
+        Map<String, Collection<String>> locks = new HashMap<>();
+        addLockOwners(rootNode, locks);
+        return locks;
+    }
+
+    private void addLockOwners(Directory directory, Map<String, Collection<String>> locks) {
+        if (directory.getLockedFileCount() == 0) {
+            return;
+        }
+        for (Node node : directory.getContent()) {
+            if (node instanceof Directory) {
+                addLockOwners((Directory) node, locks);
+            } else if (((File) node).isLock()) {
+                List<String> users = new ArrayList<>();
+                for (User user : ((File) node).getLockUsers()) {
+                    users.add(user.getName());
+                }
+                locks.put(node.toString(), users);
+            }
+        }
+    }
+
+    /** Метод сохраняет копию корня диска root (см. shareRoot) вместе с
+     * блокировками файлов locks (см. getLockOwners) в каталог Config.STORAGE_DIR
+     * как снимок диска, содержащий записи журнала изменений с номерами до seq
+     * включительно
+     * */
+    public void checkpoint(Directory root, Map<String, Collection<String>> locks, long seq) throws IOException {
+        Path file = getStorageFile(rootNode.getName());
+        if (file != null) {
+            Files.createDirectories(file.getParent());
+            NodeStore.write(root, locks, file, seq);
+            saveSnapshots(file, seq);
+            checkpointSeq = seq;
+        }
+    }
+
+    /** Номер последней записи журнала изменений, содержащейся в сохраненном
+     * снимке диска (0, если снимка нет)
+     * */
+    public long getCheckpointSeq() {
+        return checkpointSeq;
+    }
+
+    /** Метод сохраняет еще не сохраненные снимки и удаляет файлы удаленных снимков.
+     * Снимок не изменяется после создания, поэтому сохраняется один раз
+     * */
+    private void saveSnapshots(Path file, long seq) throws IOException {
+        for (Map.Entry<String, Snapshot> entry : snapshots.entrySet()) {
+            Snapshot snapshot = entry.getValue();
+            if (!snapshot.saved) {
+                NodeStore.write(snapshot.root, getSnapshotFile(file, entry.getKey()), seq);
+                snapshot.saved = true;
+            }
+        }
+        for (Map.Entry<String, Path> entry : listSnapshotFiles(file).entrySet()) {
+            if (!snapshots.containsKey(entry.getKey())) {
+                Files.deleteIfExists(entry.getValue());
+            }
+        }
+    }
+
+    /** Метод загружает сохраненные снимки диска. Снимок, который не удалось
+     * прочитать, останавливает загрузку диска (см. load): иначе следующее
+     * сохранение удалило бы его файл как файл удаленного снимка
+     * */
+    private void loadSnapshots(String root) {
+        Path file = getStorageFile(root);
+        if (file == null || !Files.isDirectory(file.getParent())) {
+            return;
+        }
+        Map<String, Path> files;
+        try {
+            files = listSnapshotFiles(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Snapshots of drive " + root + " can not be loaded: " + e.getMessage(), e);
+        }
+        for (Map.Entry<String, Path> entry : files.entrySet()) {
+            try {
+                snapshots.put(entry.getKey(), new Snapshot(NodeStore.open(entry.getValue()).toTree(), true));
+            } catch (IOException | RuntimeException e) {
+                throw new IllegalStateException("Snapshot " + entry.getKey() + " can not be loaded from " + entry.getValue() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    static private Map<String, Path> listSnapshotFiles(Path file) throws IOException {
+        String prefix = getSnapshotFile(file, "").getFileName().toString().replace(".vfs", "");
+        Map<String, Path> files = new LinkedHashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.getParent(), prefix + "*.vfs")) {
+            for (Path snapshotFile : stream) {
+                String name = snapshotFile.getFileName().toString();
+                files.put(name.substring(prefix.length(), name.length() - 4), snapshotFile);
+            }
+        }
+        return files;
+    }
+
+    static private Path getSnapshotFile(Path file, String name) {
+        String driveFile = file.getFileName().toString();
+        return file.resolveSibling(driveFile.substring(0, driveFile.length() - 4) + "@" + name + ".vfs");
+    }
+
+    /** Метод загружает диск из снимка в каталоге Config.STORAGE_DIR. Если снимок
+     * не удалось прочитать, диск не создается пустым: следующее сохранение
+     * перезаписало бы единственную копию данных. Метод завершается исключением
+     * IllegalStateException, а файл снимка остается на месте
+     * */
+    private Directory load(String root) {
+        Path file = getStorageFile(root);
+        if (file == null || !Files.exists(file)) {
+            return new Directory(root, null);
+        }
+        try {
+            NodeStore store = NodeStore.open(file);
+            Directory directory = store.toTree();
+            if (!directory.getName().equalsIgnoreCase(root)) {
+                throw new IOException("the file contains drive " + directory.getName());
+            }
+            checkpointSeq = store.getSeq();
+            return directory;
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Drive " + root + " can not be loaded from " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    static private Path getStorageFile(String root) {
+        if (Config.get().STORAGE_DIR == null || Config.get().STORAGE_DIR.isEmpty()) {
+            return null;
+        }
+        return Paths.get(Config.get().STORAGE_DIR).toAbsolutePath().resolve(root.replace(":", "") + ".vfs");
+    }
+
     public String getRootName() {
         return rootNode.getName();
     }
 
+    public Directory getRootNode() {
+        return rootNode;
+    }
+
+    /** Метод удаляет все элементы диска. Применяется репликой перед
+     * загрузкой полного снимка файловой системы
+     * */
+    public void clear() {
+        rootNode.clear();
+        nameIndex.clear();
+    }
+
 
 
     public boolean addDirectory(String path) throws VFSException, InterruptedException {
         try {
+            lockRootFor(getParentPath(path));
             Directory directory = (Directory) findNode(path);
             if (directory == null) {
-                String name = path.substring(path.lastIndexOf("\\") + 1);
+                String name = checkName(path.substring(path.lastIndexOf("\\") + 1));
                 path = path.substring(0, path.lastIndexOf("\\"));
                 Directory parent = (Directory) findNode(path);
                     if (parent != null) {
-                        return parent.addChild(new Directory(name, parent));
+                        return addNode(parent, new Directory(name, parent));
                     } else {
-                        throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+                        throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
                     }
             }
-            throw new VFSException(String.format(Config.DOUBLE_DIRECTORY_EXCEPTION_MESSAGE, directory.toString()));
+            throw new VFSException(String.format(Config.get().DOUBLE_DIRECTORY_EXCEPTION_MESSAGE, directory.toString()));
         } finally {
             unlockNode();
         }
@@ -56,18 +312,19 @@ public class VirtualFileSystem {
 
     public boolean addFile(String path) throws VFSException, InterruptedException {
         try {
+            lockRootFor(getParentPath(path));
             File file = (File) findNode(path);
             if (file == null) {
-                String name = path.substring(path.lastIndexOf("\\") + 1);
+                String name = checkName(path.substring(path.lastIndexOf("\\") + 1));
                 path = path.substring(0, path.lastIndexOf("\\"));
                 Directory parent = (Directory) findNode(path);
                 if (parent != null) {
-                    return parent.addChild(new File(name, parent));
+                    return addNode(parent, new File(name, parent));
                 } else {
-                    throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+                    throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
                 }
             }
-            throw new VFSException(String.format(Config.DOUBLE_FILE_EXCEPTION_MESSAGE, file.toString()));
+            throw new VFSException(String.format(Config.get().DOUBLE_FILE_EXCEPTION_MESSAGE, file.toString()));
         } finally {
             unlockNode();
         }
@@ -75,15 +332,16 @@ public class VirtualFileSystem {
 
     public boolean deleteDirectory(String path) throws VFSException, InterruptedException {
         try {
+            lockRootFor(getParentPath(path));
             Directory node = (Directory) findNode(path);
             if (node != null) {
                 if (!node.hasChildrenDirectory()) {
-                    return _deleteDirectory(node);
+                    return removeNode(node, _deleteDirectory(node));
                 } else {
-                    throw new VFSException(String.format(Config.DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE, node.toString()));
+                    throw new VFSException(String.format(Config.get().DIRECTORY_HAS_OTHER_DIRECTORIES_EXCEPTION_MESSAGE, node.toString()));
                 }
             } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
             }
         } finally {
             unlockNode();
@@ -92,11 +350,12 @@ public class VirtualFileSystem {
 
     public boolean deleteFile(String path) throws VFSException, InterruptedException {
         try {
+            lockRootFor(getParentPath(path));
             File node = (File) findNode(path);
             if (node != null) {
-                return _deleteFile(node);
+                return removeNode(node, _deleteFile(node));
             } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
             }
         } finally {
             unlockNode();
@@ -106,48 +365,100 @@ public class VirtualFileSystem {
 
     public boolean deleteDirectoryTree(String path) throws VFSException, InterruptedException {
         try {
+            lockRootFor(getParentPath(path));
             Directory node = (Directory) findNode(path);
             if (node != null) {
-                return _deleteDirectory(node);
+                return removeNode(node, _deleteDirectory(node));
             } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
             }
         } finally {
             unlockNode();
         }
     }
 
-    public boolean lockFile(String path, User user) throws VFSException, InterruptedException {
+    /** Метод блокирует файлы paths пользователем user. Файлы группируются по
+     * родительской директории: путь к директории проходится один раз, а файлы
+     * находятся в ней по имени.
+     *
+     * @return пути файлов, которые не удалось заблокировать, с описанием ошибки
+     * */
+    public Map<String, String> lockFiles(List<String> paths, User user) throws InterruptedException {
+        return changeLocks(paths, user, true);
+    }
+
+    /** Метод снимает блокировку пользователя user с файлов paths, аналогично lockFiles
+     * */
+    public Map<String, String> unlockFiles(List<String> paths, User user) throws InterruptedException {
+        return changeLocks(paths, user, false);
+    }
+
+    /** Метод создает в директории parentPath директории или файлы (по типу type)
+     * с именами names. Путь к директории проходится и блокируется один раз для
+     * всех элементов.
+     *
+     * @return массив ошибок по элементам names, null - элемент создан
+     * */
+    public String[] addNodes(String parentPath, List<String> names, NodeType type) throws InterruptedException {
+        String[] errors = new String[names.size()];
         try {
-            File node = (File) findNode(path);
-            if (node != null) {
-                if (!node.isLock()) {
-                    return node.lock(user);
-                } else {
-                    throw new VFSException(String.format(Config.FILE_LOCKED_EXCEPTION_MESSAGE, path));
+            lockRootFor(parentPath);
+            Node parent = findNode(parentPath);
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    if (parent == null || parent.getType() != NodeType.DIRECTORY) {
+                        throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, parentPath));
+                    }
+                    Node node = findChild((Directory) parent, checkName(names.get(i)));
+                    if (node != null) {
+                        String message = type == NodeType.DIRECTORY ? Config.get().DOUBLE_DIRECTORY_EXCEPTION_MESSAGE : Config.get().DOUBLE_FILE_EXCEPTION_MESSAGE;
+                        throw new VFSException(String.format(message, node.toString()));
+                    }
+                    node = type == NodeType.DIRECTORY ? new Directory(names.get(i), (Directory) parent) : new File(names.get(i), (Directory) parent);
+                    if (!addNode((Directory) parent, node)) {
+                        errors[i] = Config.get().NOT_EXECUTED_COMMAND;
+                    }
+                } catch (VFSException e) {
+                    errors[i] = e.getMessage();
                 }
-            } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
             }
+        } catch (VFSException e) {
+            Arrays.fill(errors, e.getMessage());
         } finally {
             unlockNode();
         }
+        return errors;
     }
 
-    public boolean unlockFile(String path, User user) throws VFSException, InterruptedException {
+    /** Метод удаляет из директории parentPath файлы с именами names, аналогично addNodes
+     * */
+    public String[] deleteFiles(String parentPath, List<String> names) throws InterruptedException {
+        String[] errors = new String[names.size()];
         try {
-            File node = (File) findNode(path);
-            if (node != null) {
-                if (node.isLock()) {
-                    return node.unlock(user);
+            lockRootFor(parentPath);
+            Node parent = findNode(parentPath);
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    Node node = null;
+                    if (parent != null && parent.getType() == NodeType.DIRECTORY) {
+                        node = findChild((Directory) parent, names.get(i));
+                    }
+                    if (node == null || node.getType() != NodeType.FILE) {
+                        throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, parentPath + "\\" + names.get(i)));
+                    }
+                    if (!removeNode(node, _deleteFile((File) node))) {
+                        errors[i] = Config.get().NOT_EXECUTED_COMMAND;
+                    }
+                } catch (VFSException e) {
+                    errors[i] = e.getMessage();
                 }
-                throw new VFSException(String.format(Config.NOT_LOCKED_FILE_EXCEPTION_MESSAGE, node.toString()));
-            } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
             }
+        } catch (VFSException e) {
+            Arrays.fill(errors, e.getMessage());
         } finally {
             unlockNode();
         }
+        return errors;
     }
 
     /** Метод предназначен для разблокировки всех файлов пользователя. Применяется при отключении
@@ -157,21 +468,96 @@ public class VirtualFileSystem {
         _unlockAllFilesByUser(rootNode, user);
     }
 
-    public boolean copyNode(String pathFrom, String pathTo) throws VFSException, InterruptedException {
+    /** Метод создает снимок диска с именем name
+     * */
+    public void createSnapshot(String name) throws VFSException {
+        checkName(name);
+        if (snapshots.putIfAbsent(name, new Snapshot(Directory.share(rootNode, null), false)) != null) {
+            throw new VFSException(String.format(Config.get().DOUBLE_SNAPSHOT_EXCEPTION_MESSAGE, name));
+        }
+    }
+
+    public void deleteSnapshot(String name) throws VFSException {
+        if (snapshots.remove(name) == null) {
+            throw new VFSException(String.format(Config.get().NOT_FOUND_SNAPSHOT_EXCEPTION_MESSAGE, name));
+        }
+    }
+
+    /** Метод возвращает имена снимков диска в алфавитном порядке
+     * */
+    public List<String> getSnapshotNames() {
+        return new ArrayList<>(snapshots.keySet());
+    }
+
+    /** Метод заменяет содержимое диска содержимым снимка name. Корень диска
+     * становится разделяемой копией снимка, поэтому снимок остается неизменным
+     * и может быть восстановлен повторно. Содержимое корня и индекс имен
+     * заменяются целиком (см. Directory.restore и NameIndex.reset), поэтому
+     * читатели не видят пустой диск во время восстановления. Диск не должен
+     * содержать заблокированных файлов, а каждая директория из homeDirectories
+     * (текущие директории пользователей) должна быть в снимке
+     * */
+    public void restoreSnapshot(String name, Collection<String> homeDirectories) throws VFSException {
+        Snapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            throw new VFSException(String.format(Config.get().NOT_FOUND_SNAPSHOT_EXCEPTION_MESSAGE, name));
+        }
+        if (hasUserLockedFiles(rootNode)) {
+            throw new VFSException(String.format(Config.get().LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE, rootNode.getName()));
+        }
+        for (String directory : homeDirectories) {
+            if (!hasDirectory(snapshot.root, directory)) {
+                throw new VFSException(String.format(Config.get().RESTORE_HOME_DIRECTORY_EXCEPTION_MESSAGE, directory, name));
+            }
+        }
+        snapshot.root.expand();
+        nameIndex.reset(rootNode.restore(snapshot.root, nameIndex));
+    }
+
+    /** Метод проверяет, есть ли директория path в дереве с корнем root. Дерево
+     * снимка не изменяется: разделяемые копии не разворачиваются (см. Directory.peekChild)
+     * */
+    private boolean hasDirectory(Directory root, String path) {
+        String[] parts = path.split("\\\\");
+        if (parts.length == 0 || !parts[0].equalsIgnoreCase(root.getName())) {
+            return false;
+        }
+        Node node = root;
+        for (int i = 1; i < parts.length; i++) {
+            if (node.getType() != NodeType.DIRECTORY) {
+                return false;
+            }
+            node = ((Directory) node).peekChild(parts[i]);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.getType() == NodeType.DIRECTORY;
+    }
+
+    /** Метод копирует элемент pathFrom в директорию pathTo. Если share = true,
+     * директория копируется разделяемой копией (см. Directory.share) за O(1),
+     * без переноса блокировок файлов, иначе копируется все поддерево
+     * */
+    public boolean copyNode(String pathFrom, String pathTo, boolean share) throws VFSException, InterruptedException {
         try {
+            lockRootFor(pathTo);
             Node node = findNode(pathFrom);
             if (node != null) {
                 if (node.getType() == NodeType.DIRECTORY && ((Directory) node).isRoot()) {
-                    throw new VFSException(String.format(Config.ROOT_NODE_CHANGE_EXCEPTION_MESSAGE, node.toString()));
+                    throw new VFSException(String.format(Config.get().ROOT_NODE_CHANGE_EXCEPTION_MESSAGE, node.toString()));
                 }
                 Directory nodeTo = (Directory) findNode(pathTo);
                 if (nodeTo != null) {
-                    return nodeTo.addChild(cloneNode(node, nodeTo));
+                    if (share && node.getType() == NodeType.DIRECTORY) {
+                        return addNode(nodeTo, Directory.share((Directory) node, nameIndex));
+                    }
+                    return addNode(nodeTo, cloneNode(node));
                 } else {
-                    throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathTo));
+                    throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathTo));
                 }
             } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathFrom));
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathFrom));
             }
         } finally {
             unlockNode();
@@ -180,18 +566,23 @@ public class VirtualFileSystem {
 
     public boolean moveNode(String pathFrom, String pathTo) throws VFSException, InterruptedException {
         try {
+            lockRootFor(getParentPath(pathFrom));
+            lockRootFor(pathTo);
             Node node = findNode(pathFrom);
             if (node != null) {
+                Directory oldParent = (Directory) node.getParent();
                 if (node.getType() == NodeType.DIRECTORY) {
                     Directory directoryTo = (Directory) findNode(pathTo);
                     if (directoryTo != null) {
+                        for (Directory d = directoryTo; d != null; d = d.getParent()) {
+                            if (d == node) {
+                                return false;
+                            }
+                        }
                         if (_deleteDirectory((Directory) node)) {
-                            Directory oldParent = (Directory) node.getParent();
-                            node.setParent(directoryTo);
                             if (directoryTo.addChild(node)) {
                                 return true;
                             } else {
-                                node.setParent(oldParent);
                                 oldParent.addChild(node);
                                 return false;
                             }
@@ -200,24 +591,242 @@ public class VirtualFileSystem {
                         }
 
                     } else {
-                        throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathTo));
+                        throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathTo));
                     }
                 } else {
                     if (!((File) node).isLock()) {
                         Directory directoryTo = (Directory) findNode(pathTo);
                         if (directoryTo != null) {
-                            node.setParent(directoryTo);
-                            return directoryTo.addChild(node);
+                            if (directoryTo.getChild(node.getName()) != null || !oldParent.removeChild(node)) {
+                                return false;
+                            }
+                            if (directoryTo.addChild(node)) {
+                                return true;
+                            }
+                            oldParent.addChild(node);
+                            return false;
                         } else {
-                            throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathTo));
+                            throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathTo));
                         }
                     } else {
-                        throw new VFSException(String.format(Config.LOCKED_FILE_EXCEPTION_MESSAGE, node.toString()));
+                        throw new VFSException(String.format(Config.get().LOCKED_FILE_EXCEPTION_MESSAGE, node.toString()));
                     }
                 }
             } else {
-                throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathFrom));
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, pathFrom));
+            }
+        } finally {
+            unlockNode();
+        }
+    }
+
+    /** Метод возвращает количество директорий, файлов и заблокированных файлов
+     * внутри директории
+     * */
+    public int[] getUsage(String path) throws VFSException, InterruptedException {
+        try {
+            Node node = findNode(path);
+            if (node != null && node.getType() == NodeType.DIRECTORY) {
+                Directory directory = (Directory) node;
+                int directories = directory.getDescendantDirectoryCount();
+                return new int[] {directories, directory.getDescendantCount() - directories, directory.getLockedFileCount()};
             }
+            throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+        } finally {
+            unlockNode();
+        }
+    }
+
+    /** Метод возвращает содержимое директории path в алфавитном порядке: не более
+     * limit элементов, следующих за элементом с именем after (если он задан).
+     * Директории выводятся строкой "<DIR> имя", файлы - именем файла и списком
+     * заблокировавших его пользователей. Если задан тип type ("D" - только
+     * директории, "F" - только файлы), перечисляются только элементы этого типа
+     * (см. Directory.getChildrenAfter). Страница содержит имя последнего
+     * элемента для продолжения перечисления ключом /FROM
+     * */
+    public DirectoryPage list(String path, String type, String after, int limit) throws VFSException, InterruptedException {
+        try {
+            Node node = findNode(path);
+            if (node == null || node.getType() != NodeType.DIRECTORY) {
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+            }
+            NodeType nodeType = "D".equalsIgnoreCase(type) ? NodeType.DIRECTORY : "F".equalsIgnoreCase(type) ? NodeType.FILE : null;
+            List<String> lines = new ArrayList<>();
+            String last = null;
+            for (Node n : ((Directory) node).getChildrenAfter(after, nodeType)) {
+                if (lines.size() >= limit) {
+                    return new DirectoryPage(lines, last, true);
+                }
+                last = n.getName();
+                if (n.getType() == NodeType.DIRECTORY) {
+                    lines.add("<DIR> " + n.getName());
+                } else {
+                    StringBuilder builder = new StringBuilder("      ").append(n.getName());
+                    if (((File) n).isLock()) {
+                        builder.append(" [LOCKED");
+                        for (User user : ((File) n).getLockUsers()) {
+                            builder.append(" ").append(user.getName()).append(",");
+                        }
+                        builder.replace(builder.length() - 1, builder.length(), "]");
+                    }
+                    lines.add(builder.toString());
+                }
+            }
+            return new DirectoryPage(lines, last, false);
+        } finally {
+            unlockNode();
+        }
+    }
+
+    /** Метод ищет внутри директории path элементы, имена которых соответствуют
+     * шаблону pattern: точному имени, префиксу ("abc*") или шаблону с символами
+     * '*' и '?'. Без флага caseSensitive регистр имен не учитывается.
+     * Возвращаются не более limit путей в порядке индекса имен (по имени, затем
+     * по пути), следующих за путем after (если он задан), что позволяет получать
+     * результаты постранично. Обход индекса начинается с after и прекращается,
+     * как только страница заполнена
+     * */
+    public List<String> find(String path, String pattern, boolean caseSensitive, String after, int limit) throws VFSException, InterruptedException {
+        try {
+            Node node = findNode(path);
+            if (node == null || node.getType() != NodeType.DIRECTORY) {
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+            }
+            TreeMap<String, String> page = new TreeMap<>();
+            nameIndex.find(pattern, caseSensitive, after, found -> {
+                if (isInside(found, node)) {
+                    String foundPath = found.toString();
+                    page.put(NameIndex.getFindKey(foundPath), foundPath);
+                }
+                return page.size() < limit;
+            });
+            Pattern regex = null;
+            for (Directory shared : nameIndex.getSharedDirectories()) {
+                if (shared == node || isInside(shared, node)) {
+                    if (regex == null) {
+                        regex = NameIndex.compile(pattern, caseSensitive);
+                    }
+                    _findShared(shared, shared.toString(), regex, page, after, limit);
+                }
+            }
+            return new ArrayList<>(page.values());
+        } finally {
+            unlockNode();
+        }
+    }
+
+    /** Метод записывает содержимое директории path в архив с именем archive.
+     * Архив записывается без остановки работы диска, поэтому изменения,
+     * выполняемые во время записи, могут попасть в архив частично
+     *
+     * @return количество записанных элементов
+     * */
+    public long exportArchive(String path, String archive) throws VFSException, InterruptedException {
+        Path file = getArchiveFile(archive);
+        Node node;
+        try {
+            node = findNode(path);
+        } finally {
+            unlockNode();
+        }
+        if (node == null || node.getType() != NodeType.DIRECTORY) {
+            throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            return NamespaceArchive.write((Directory) node, file);
+        } catch (IOException e) {
+            throw new VFSException(String.format(Config.get().ARCHIVE_EXCEPTION_MESSAGE, archive, e.getMessage()));
+        }
+    }
+
+    /** Метод добавляет в директорию path содержимое архива archive. Элементы
+     * верхнего уровня архива строятся вместе с поддеревьями в Config.IMPORT_WORKER_COUNT
+     * потоков в отсоединенные деревья. Деревья добавляются в директорию только
+     * после чтения всего архива и только если ни одно имя верхнего уровня не
+     * занято, поэтому ошибка архива или конфликт имен не оставляет частично
+     * загруженного архива. Добавленные элементы записываются в added строками
+     * "D\tпуть" и "F\tпуть" с полными путями, родители раньше потомков
+     *
+     * @return количество добавленных элементов
+     * */
+    public long importArchive(String path, String archive, List<String> added) throws VFSException, InterruptedException {
+        Path file = getArchiveFile(archive);
+        try {
+            lockRootFor(path);
+            Node node = findNode(path);
+            if (node == null || node.getType() != NodeType.DIRECTORY) {
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+            }
+            Directory parent = (Directory) node;
+            List<Node> tops = Collections.synchronizedList(new ArrayList<>());
+            try {
+                NamespaceArchive.read(file, Config.get().IMPORT_WORKER_COUNT, tops::add);
+            } catch (IOException e) {
+                throw new VFSException(String.format(Config.get().ARCHIVE_EXCEPTION_MESSAGE, archive, e.getMessage()));
+            }
+            tops.sort((o1, o2) -> String.CASE_INSENSITIVE_ORDER.compare(o1.getName(), o2.getName()));
+            List<String> failures = new ArrayList<>();
+            for (int i = 0; i < tops.size(); i++) {
+                Node top = tops.get(i);
+                if (parent.getChild(top.getName()) != null || i > 0 && tops.get(i - 1).getName().equalsIgnoreCase(top.getName())) {
+                    String message = top.getType() == NodeType.DIRECTORY ? Config.get().DOUBLE_DIRECTORY_EXCEPTION_MESSAGE : Config.get().DOUBLE_FILE_EXCEPTION_MESSAGE;
+                    failures.add(String.format(message, parent + "\\" + top.getName()));
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new VFSException(String.join("\n", failures));
+            }
+            if (parent.isRoot()) {
+                for (Node top : tops) {
+                    lockNode(top);
+                }
+            }
+            int start = added.size();
+            for (Node top : tops) {
+                addNode(parent, top);
+                _exportNode(top, parent + "\\" + top.getName(), added);
+            }
+            return added.size() - start;
+        } finally {
+            unlockNode();
+        }
+    }
+
+    static private Path getArchiveFile(String archive) throws VFSException {
+        if (!archive.matches("\\w+")) {
+            throw new VFSException(Config.get().NOT_EXECUTED_COMMAND);
+        }
+        return Paths.get(Config.get().ARCHIVE_DIR).toAbsolutePath().resolve(archive + ".vfa");
+    }
+
+    /** Метод возвращает описание элемента и всех его потомков в виде строк
+     * "D\tпуть" для директорий и "F\tпуть" для файлов. Пути указываются
+     * относительно родителя элемента, родительские директории идут раньше
+     * своих потомков. Если checkLocks = true, элемент не должен содержать
+     * заблокированных файлов
+     * */
+    public List<String> exportNode(String path, boolean checkLocks) throws VFSException, InterruptedException {
+        try {
+            Node node = findNode(path);
+            if (node == null) {
+                throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+            }
+            if (node.getType() == NodeType.DIRECTORY) {
+                Directory directory = (Directory) node;
+                if (directory.isRoot()) {
+                    throw new VFSException(String.format(Config.get().ROOT_NODE_CHANGE_EXCEPTION_MESSAGE, node.toString()));
+                }
+                if (checkLocks && hasUserLockedFiles(directory)) {
+                    throw new VFSException(String.format(Config.get().LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE, node.toString()));
+                }
+            } else if (checkLocks && ((File) node).isLock()) {
+                throw new VFSException(String.format(Config.get().LOCKED_FILE_EXCEPTION_MESSAGE, node.toString()));
+            }
+            List<String> lines = new ArrayList<>();
+            _exportNode(node, node.getName(), lines);
+            return lines;
         } finally {
             unlockNode();
         }
@@ -232,6 +841,31 @@ public class VirtualFileSystem {
         return rootNode.getName() + '\n';
     }
 
+    /** Метод возвращает файл по пути path или null, если файла нет
+     * */
+    public File getFile(String path) throws VFSException, InterruptedException {
+        try {
+            Node node = findNode(path);
+            return node != null && node.getType() == NodeType.FILE ? (File) node : null;
+        } finally {
+            unlockNode();
+        }
+    }
+
+    /** Метод возвращает текущий путь элемента node или null, если элемент
+     * удален из дерева диска. Путь проверяется поиском элемента от корня
+     * */
+    public String getPath(Node node) throws InterruptedException {
+        String path = node.toString();
+        try {
+            return findNode(path) == node ? path : null;
+        } catch (VFSException e) {
+            return null;
+        } finally {
+            unlockNode();
+        }
+    }
+
     /** Метод проверяет наличие элемента в файловой системе по входному пути
      * */
     public String checkPath(String path) throws VFSException, InterruptedException {
@@ -240,39 +874,48 @@ public class VirtualFileSystem {
             if (node != null) {
                 return node.toString();
             }
-            throw new VFSException(String.format(Config.NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+            throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
         } finally {
             unlockNode();
         }
     }
 
-    private Node findNode(String path) throws VFSException, InterruptedException {
-        List<Node> lockNodeList = lockNodes.get(Thread.currentThread().getName());
-        if (lockNodeList == null) {
-            lockNodeList = new ArrayList<>();
-            lockNodes.put(Thread.currentThread().getName(), lockNodeList);
+    /** Метод добавляет путь разделяемой копии на страницу результатов поиска,
+     * если он следует за путем after в порядке индекса имен. Страница
+     * ограничивается limit путями
+     * */
+    private static void addToPage(TreeMap<String, String> page, String path, String after, int limit) {
+        String key = NameIndex.getFindKey(path);
+        if (after == null || key.compareTo(NameIndex.getFindKey(after)) > 0) {
+            page.put(key, path);
+            if (page.size() > limit) {
+                page.pollLastEntry();
+            }
+        }
+    }
+
+    /** Метод ищет элементы разделяемой копии по содержимому ее источника, не
+     * создавая элементы копии
+     * */
+    private static void _findShared(Directory directory, String path, Pattern regex, TreeMap<String, String> page, String after, int limit) {
+        for (Node node : directory.getContent()) {
+            String nodePath = path + "\\" + node.getName();
+            if (regex.matcher(node.getName()).matches()) {
+                addToPage(page, nodePath, after, limit);
+            }
+            if (node.getType() == NodeType.DIRECTORY) {
+                _findShared((Directory) node, nodePath, regex, page, after, limit);
+            }
         }
+    }
+
+    private Node findNode(String path) throws VFSException, InterruptedException {
         String[] parts = path.split("\\\\");
         Node curNode = rootNode;
         if (parts.length > 0 && parts[0].equalsIgnoreCase(rootNode.getName())) {
             for (int i = 1; i < parts.length; i++) {
-                if (curNode != null && curNode.getType() == NodeType.DIRECTORY && ((Directory) curNode).hasChildren()) {
-                    Iterator<Node> iterator = ((Directory) curNode).getChildren().iterator();
-                    curNode = null;
-                    while (iterator.hasNext()) {
-                        Node node = iterator.next();
-                        if (parts[i].equalsIgnoreCase(node.getName())) {
-                            curNode = node;
-                            if (!lockNodeList.contains(curNode)) {
-                                if (curNode.lockNode()) {
-                                    lockNodeList.add(curNode);
-                                    break;
-                                } else {
-                                    throw new VFSException(Config.RUN_COMMAND_INTERRUPTED_EXCEPTION);
-                                }
-                            }
-                        }
-                    }
+                if (curNode != null && curNode.getType() == NodeType.DIRECTORY) {
+                    curNode = findChild((Directory) curNode, parts[i]);
                 } else {
                     return null;
                 }
@@ -282,45 +925,264 @@ public class VirtualFileSystem {
         return null;
     }
 
-    private void unlockNode() throws InterruptedException {
-        List<Node> curLockedNodes = lockNodes.get(Thread.currentThread().getName());
-        if (curLockedNodes != null) {
-            Iterator<Node> nodeIterator = curLockedNodes.iterator();
-            while (nodeIterator.hasNext()) {
-                Node n = nodeIterator.next();
-                if (n.isLockedNode()) {
-                    n.unlockNode();
-                    nodeIterator.remove();
+    /** Метод находит элемент директории по имени и блокирует его (см. lockNode)
+     * */
+    private Node findChild(Directory directory, String name) throws VFSException, InterruptedException {
+        Node node = directory.getChild(name);
+        if (node != null) {
+            lockNode(node);
+        }
+        return node;
+    }
+
+    /** Метод блокирует элемент node, если он еще не заблокирован текущим потоком.
+     * Если блокировка занята, время ее ожидания добавляется к счетчику потока (см.
+     * takeLockWaitTime) и к статистике LockContention, а ожидание записывается
+     * событием JFR NodeLockWaitEvent или NodeLockTimeoutEvent
+     * */
+    private void lockNode(Node node) throws VFSException, InterruptedException {
+        List<Node> lockNodeList = lockNodes.get();
+        if (!lockNodeList.contains(node)) {
+            NodeLock lock = node.getLock();
+            if (lock.tryLock()) {
+                if (ACQUIRE_EVENT.isEnabled()) {
+                    NodeLockAcquireEvent event = new NodeLockAcquireEvent();
+                    event.begin();
+                    commitLockEvent(event, node.toString(), String.valueOf(lock.getHolder()));
                 }
+            } else if (!waitNodeLock(lock, node)) {
+                throw new VFSException(Config.get().RUN_COMMAND_INTERRUPTED_EXCEPTION);
             }
+            lock.setHolder(currentCommand.get());
+            lockNodeList.add(node);
         }
     }
 
-    private boolean hasUserLockedFiles(Directory node) {
-        for (Node n : node.getChildren()) {
-            if (n.getType() == NodeType.FILE) {
-                if (((File) n).isLock()) {
-                    return true;
+    /** Метод ожидает занятую блокировку элемента node не дольше Config.NODE_LOCK_TIMEOUT
+     *
+     * @return false, если блокировка не освободилась
+     * */
+    private boolean waitNodeLock(NodeLock lock, Node node) throws InterruptedException {
+        RunningCommand holderCommand = lock.getHolder();
+        NodeLockWaitEvent waitEvent = new NodeLockWaitEvent();
+        NodeLockTimeoutEvent timeoutEvent = new NodeLockTimeoutEvent();
+        waitEvent.begin();
+        timeoutEvent.begin();
+        long start = System.nanoTime();
+        boolean locked = false;
+        try {
+            locked = lock.tryLock(Config.get().NODE_LOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            long wait = System.nanoTime() - start;
+            lockWaitTime.get()[0] += wait;
+            String path = node.toString();
+            String holder = String.valueOf(holderCommand);
+            LockContention.record(path, holder, wait, !locked);
+            commitLockEvent(locked ? waitEvent : timeoutEvent, path, holder);
+        }
+        return locked;
+    }
+
+    private static void commitLockEvent(NodeLockEvent event, String path, String holder) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = path;
+            event.command = String.valueOf(currentCommand.get());
+            event.holder = holder;
+            event.commit();
+        }
+    }
+
+    /** Метод задает команду, которую выполняет текущий поток (или null после
+     * ее завершения). Команда сохраняется в захваченных потоком блокировках
+     * элементов, а ее описание попадает в события JFR и отчет LockContention
+     * ожидающих потоков
+     * */
+    public static void setCurrentCommand(RunningCommand command) {
+        currentCommand.set(command);
+    }
+
+    /** Метод возвращает время ожидания блокировок элементов текущим потоком
+     * на всех дисках с предыдущего вызова, нс. Используется трассировкой команд
+     * сервера
+     * */
+    public static long takeLockWaitTime() {
+        long[] time = lockWaitTime.get();
+        long result = time[0];
+        time[0] = 0;
+        return result;
+    }
+
+    private Map<String, String> changeLocks(List<String> paths, User user, boolean lock) throws InterruptedException {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String path : paths) {
+            String parentPath = path.substring(0, Math.max(0, path.lastIndexOf('\\')));
+            groups.computeIfAbsent(parentPath.toLowerCase(), k -> new ArrayList<>()).add(path);
+        }
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (List<String> group : groups.values()) {
+            try {
+                String first = group.get(0);
+                Node parent = findNode(first.substring(0, Math.max(0, first.lastIndexOf('\\'))));
+                for (String path : group) {
+                    try {
+                        Node node = null;
+                        if (parent != null && parent.getType() == NodeType.DIRECTORY) {
+                            node = findChild((Directory) parent, path.substring(path.lastIndexOf('\\') + 1));
+                        }
+                        if (node == null || node.getType() != NodeType.FILE) {
+                            throw new VFSException(String.format(Config.get().NOT_FOUND_NODE_EXCEPTION_MESSAGE, path));
+                        }
+                        File file = (File) node;
+                        if (lock && file.isLock()) {
+                            throw new VFSException(String.format(Config.get().FILE_LOCKED_EXCEPTION_MESSAGE, path));
+                        } else if (!lock && !file.isLock()) {
+                            throw new VFSException(String.format(Config.get().NOT_LOCKED_FILE_EXCEPTION_MESSAGE, file.toString()));
+                        }
+                        if (!(lock ? file.lock(user) : file.unlock(user))) {
+                            failures.put(path, Config.get().NOT_EXECUTED_COMMAND);
+                        }
+                    } catch (VFSException e) {
+                        failures.put(path, e.getMessage());
+                    }
                 }
-            } else {
-                return hasUserLockedFiles((Directory) n);
+            } catch (VFSException e) {
+                for (String path : group) {
+                    failures.putIfAbsent(path, e.getMessage());
+                }
+            } finally {
+                unlockNode();
+            }
+        }
+        return failures;
+    }
+
+    /** Метод начинает удержание блокировок элементов текущим потоком: до вызова
+     * releaseNodeLocks блокировки, захваченные методами дисков, не снимаются по
+     * завершении метода. Драйвер удерживает блокировки, пока записывает
+     * изменение в журнал, поэтому записи изменений одних и тех же элементов
+     * следуют в журнале в порядке выполнения без общей блокировки диска
+     *
+     * @return false, если блокировки уже удерживаются (удержание завершит
+     * вызвавший holdNodeLocks первым)
+     * */
+    public static boolean holdNodeLocks() {
+        if (heldDrives.get() != null) {
+            return false;
+        }
+        heldDrives.set(new ArrayList<>(2));
+        return true;
+    }
+
+    /** Метод снимает блокировки элементов, удержанные текущим потоком на всех
+     * дисках (см. holdNodeLocks)
+     * */
+    public static void releaseNodeLocks() {
+        List<VirtualFileSystem> held = heldDrives.get();
+        heldDrives.remove();
+        if (held != null) {
+            for (VirtualFileSystem fileSystem : held) {
+                fileSystem.unlockNode();
+            }
+        }
+    }
+
+    private void unlockNode() {
+        List<VirtualFileSystem> held = heldDrives.get();
+        if (held != null) {
+            if (!held.contains(this)) {
+                held.add(this);
+            }
+            return;
+        }
+        List<Node> curLockedNodes = lockNodes.get();
+        for (Node n : curLockedNodes) {
+            n.getLock().unlock();
+        }
+        curLockedNodes.clear();
+    }
+
+    /** Метод блокирует корень диска, если элементы добавляются в директорию
+     * parentPath или удаляются из нее и она - корень. При поиске элементов
+     * корень не блокируется (см. findNode), поэтому команды, изменяющие
+     * содержимое корня, блокируют его первым, до остальных элементов пути.
+     * Без этого удаление элемента корня и создание другой командой элемента с
+     * тем же именем могли бы попасть в журнал в обратном порядке
+     * */
+    private void lockRootFor(String parentPath) throws VFSException, InterruptedException {
+        if (parentPath.split("\\\\").length == 1) {
+            lockNode(rootNode);
+        }
+    }
+
+    private static String getParentPath(String path) {
+        int index = path.lastIndexOf('\\');
+        return index < 0 ? path : path.substring(0, index);
+    }
+
+    /** Метод добавляет элемент node в директорию parent. Корень диска не
+     * блокируется, поэтому новый элемент корня блокируется до добавления: до
+     * снятия блокировок команды другие команды не могут изменить его
+     * */
+    private boolean addNode(Directory parent, Node node) throws VFSException, InterruptedException {
+        if (parent.isRoot()) {
+            lockNode(node);
+        }
+        if (parent.addChild(node)) {
+            nameIndex.addTree(node);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean removeNode(Node node, boolean removed) {
+        if (removed) {
+            nameIndex.removeTree(node);
+        }
+        return removed;
+    }
+
+    /** Метод проверяет имя нового элемента или снимка. Управляющие символы
+     * (перевод строки, табуляция и т.п.) в имени запрещены: журнал изменений,
+     * архивы и строки изменений SYNC построчные и разделены табуляцией
+     *
+     * @return имя name
+     * */
+    static String checkName(String name) throws VFSException {
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                throw new VFSException(String.format(Config.get().INVALID_NAME_EXCEPTION_MESSAGE, name));
+            }
+        }
+        return name;
+    }
+
+    private static boolean isInside(Node node, Node directory) {
+        for (Node parent = node.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent == directory) {
+                return true;
             }
         }
         return false;
     }
 
-    private Node cloneNode(Node cloneNode, Directory newParent) {
+    private boolean hasUserLockedFiles(Directory node) {
+        return node.getLockedFileCount() > 0;
+    }
+
+    /** Метод создает копию элемента. Копия не присоединена к дереву, родитель
+     * назначается ей при добавлении в директорию
+     * */
+    private Node cloneNode(Node cloneNode) {
         switch (cloneNode.getType()) {
             case DIRECTORY:
-                Directory cloneDirectory = new Directory(cloneNode.getName(), newParent);
-                if (((Directory)cloneNode).hasChildrenDirectory()) {
-                    for (Node node : ((Directory) cloneNode).getChildren()) {
-                        cloneDirectory.addChild(cloneNode(node, cloneDirectory));
-                    }
+                Directory cloneDirectory = new Directory(cloneNode.getName(), null);
+                for (Node node : ((Directory) cloneNode).getChildren()) {
+                    cloneDirectory.addChild(cloneNode(node));
                 }
                 return cloneDirectory;
             case FILE:
-                File cloneFile = new File(cloneNode.getName(), newParent);
+                File cloneFile = new File(cloneNode.getName(), null);
                 for (User user : ((File) cloneNode).getLockUsers()) {
                     cloneFile.lock(user);
                 }
@@ -337,10 +1199,10 @@ public class VirtualFileSystem {
                 Directory parent = directory.getParent();
                 return parent.removeChild(directory);
             } else {
-                throw new VFSException(String.format(Config.LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE, directory.toString()));
+                throw new VFSException(String.format(Config.get().LOCKED_FILES_IN_DIRECTORY_EXCEPTION_MESSAGE, directory.toString()));
             }
         } else {
-            throw new VFSException(String.format(Config.ROOT_NODE_CHANGE_EXCEPTION_MESSAGE,  directory.toString()));
+            throw new VFSException(String.format(Config.get().ROOT_NODE_CHANGE_EXCEPTION_MESSAGE,  directory.toString()));
         }
     }
 
@@ -349,20 +1211,31 @@ public class VirtualFileSystem {
             Directory parent = file.getParent();
             return parent.removeChild(file);
         } else {
-            throw new VFSException(String.format(Config.LOCKED_FILE_EXCEPTION_MESSAGE, file.toString()));
+            throw new VFSException(String.format(Config.get().LOCKED_FILE_EXCEPTION_MESSAGE, file.toString()));
         }
     }
 
     private void _unlockAllFilesByUser(Node node, User user) {
         if (node.getType() == NodeType.FILE) {
             ((File) node).unlock(user);
-        } else {
+        } else if (hasUserLockedFiles((Directory) node)) {
             for (Node n : ((Directory) node).getChildren()) {
                 _unlockAllFilesByUser(n, user);
             }
         }
     }
 
+    private void _exportNode(Node node, String path, List<String> lines) {
+        if (node.getType() == NodeType.FILE) {
+            lines.add("F\t" + path);
+        } else {
+            lines.add("D\t" + path);
+            for (Node n : ((Directory) node).getChildren()) {
+                _exportNode(n, path + "\\" + n.getName(), lines);
+            }
+        }
+    }
+
     private void _print(Directory node, StringBuilder builder, int level) {
         for (Node n : node.getChildren()) {
             for (int i = 0; i < level; i++) {
@@ -385,4 +1258,17 @@ public class VirtualFileSystem {
             }
         }
     }
+
+    /** Класс описывает снимок диска: разделяемую копию корня и признак того,
+     * что снимок уже сохранен в файл
+     * */
+    private static class Snapshot {
+        private final Directory root;
+        private volatile boolean saved;
+
+        Snapshot(Directory root, boolean saved) {
+            this.root = root;
+            this.saved = saved;
+        }
+    }
 }
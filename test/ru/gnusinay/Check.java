@@ -0,0 +1,34 @@
+package ru.gnusinay;
+
+import java.util.Objects;
+
+/** Класс содержит проверки тестов. Тесты запускаются методом main без
+ * тестовых библиотек, поэтому невыполненная проверка завершает тест
+ * исключением AssertionError
+ * */
+public class Check {
+
+    public static void isTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected <" + expected + ">, actual <" + actual + ">");
+        }
+    }
+
+    public static void contains(String text, String part, String message) {
+        if (text == null || !text.contains(part)) {
+            throw new AssertionError(message + ": <" + part + "> not found in <" + text + ">");
+        }
+    }
+
+    public static void notContains(String text, String part, String message) {
+        if (text != null && text.contains(part)) {
+            throw new AssertionError(message + ": <" + part + "> found in <" + text + ">");
+        }
+    }
+}
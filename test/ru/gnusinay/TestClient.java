@@ -0,0 +1,70 @@
+package ru.gnusinay;
+
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.protocol.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/** Класс описывает синхронное подключение пользователя к серверу для тестов.
+ * Команда возвращает первый ответ сервера, служебные сообщения
+ * (SERVER_MESSAGE, CHANGE_NOTIFY) пропускаются
+ * */
+public class TestClient implements AutoCloseable {
+    private static final int TIMEOUT = 10000;
+
+    private final String userName;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    public TestClient(int port, String userName) throws IOException {
+        this.userName = userName;
+        socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(TIMEOUT);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = socket.getOutputStream();
+        Packet response = command(CommandType.CONNECT_TO_SERVER, userName);
+        Check.equal(CommandType.CONNECT_OK, response.getCommandType(), "connect " + userName + ": " + response.getText());
+    }
+
+    public Packet command(CommandType type, String text) throws IOException {
+        out.write(Protocol.encode(new Packet(type, userName, text)));
+        out.flush();
+        while (true) {
+            Packet packet = Protocol.readPacket(in);
+            if (packet.getCommandType() != CommandType.SERVER_MESSAGE && packet.getCommandType() != CommandType.CHANGE_NOTIFY) {
+                return packet;
+            }
+        }
+    }
+
+    /** Метод выполняет команду, которая должна завершиться успешно, и
+     * возвращает текст ответа
+     * */
+    public String ok(CommandType type, String text) throws IOException {
+        Packet response = command(type, text);
+        Check.isTrue(response.getCommandType() != CommandType.SERVER_ERROR,
+                type.getName() + " " + text + " failed: " + response.getText());
+        return response.getText();
+    }
+
+    /** Метод выполняет команду, которая должна завершиться ошибкой, и
+     * возвращает текст ошибки
+     * */
+    public String error(CommandType type, String text) throws IOException {
+        Packet response = command(type, text);
+        Check.equal(CommandType.SERVER_ERROR, response.getCommandType(),
+                type.getName() + " " + text + " must fail, got: " + response.getText());
+        return response.getText();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
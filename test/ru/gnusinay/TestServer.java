@@ -0,0 +1,123 @@
+package ru.gnusinay;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Класс запускает сервер в отдельном процессе для тестов. Процесс получает
+ * classpath теста и настройки в виде аргументов --КЛЮЧ=значение, вывод
+ * процесса записывается в файл server-ПОРТ.log каталога теста. Аварийная
+ * остановка (kill) завершает процесс без выполнения обработчиков остановки,
+ * обычная остановка (stop) выполняет их, как при завершении сервера сигналом
+ * */
+public class TestServer {
+    private static final long START_TIMEOUT = 15000;
+
+    private final Path directory;
+    private final int port;
+    private final List<String> arguments;
+    private Process process;
+
+    public TestServer(Path directory, int port, String... arguments) {
+        this.directory = directory;
+        this.port = port;
+        this.arguments = new ArrayList<>(Arrays.asList(arguments));
+        this.arguments.add("--SERVER_PORT=" + port);
+    }
+
+    /** Метод возвращает свободный порт для сервера
+     * */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /** Метод создает временный каталог теста
+     * */
+    public static Path tempDirectory(String name) throws IOException {
+        return Files.createTempDirectory("vfs-" + name);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Метод запускает процесс сервера и ждет, пока сервер начнет принимать
+     * подключения
+     *
+     * @throws AssertionError если сервер не запустился
+     * */
+    public TestServer start() throws IOException, InterruptedException {
+        if (!tryStart()) {
+            throw new AssertionError("Server on port " + port + " is not started:\n" + readLog());
+        }
+        return this;
+    }
+
+    /** Метод запускает процесс сервера и ждет, пока сервер начнет принимать
+     * подключения или завершится
+     *
+     * @return false, если сервер завершился или не запустился за START_TIMEOUT
+     * */
+    public boolean tryStart() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("ru.gnusinay.server.Server");
+        command.addAll(arguments);
+        process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(getLog().toFile()))
+                .start();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline && process.isAlive()) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return true;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        kill();
+        return false;
+    }
+
+    /** Метод аварийно останавливает сервер
+     * */
+    public void kill() throws InterruptedException {
+        if (process != null) {
+            process.destroyForcibly();
+            process.waitFor(START_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Метод останавливает сервер с выполнением обработчиков остановки
+     * */
+    public void stop() throws InterruptedException {
+        if (process != null) {
+            process.destroy();
+            if (!process.waitFor(START_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                kill();
+            }
+        }
+    }
+
+    public Path getLog() {
+        return directory.resolve("server-" + port + ".log");
+    }
+
+    public String readLog() throws IOException {
+        return Files.exists(getLog()) ? new String(Files.readAllBytes(getLog()), StandardCharsets.UTF_8) : "";
+    }
+}
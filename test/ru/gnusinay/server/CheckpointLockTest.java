@@ -0,0 +1,77 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+
+/** Тест проверяет, что снимок диска сохраняет блокировки файлов: записи
+ * журнала после снимка, снимающие блокировку, применяются при запуске сервера,
+ * а блокировки переживают обычную остановку сервера
+ * */
+public class CheckpointLockTest {
+
+    public static void main(String[] args) throws Exception {
+        lockCheckpointUnlockCrash();
+        lockSurvivesShutdown();
+        System.out.println("CheckpointLockTest passed");
+    }
+
+    /** Блокировка -> снимок -> снятие блокировки -> авария -> запуск
+     * */
+    private static void lockCheckpointUnlockCrash() throws Exception {
+        Path directory = TestServer.tempDirectory("checkpoint-lock");
+        TestServer server = newServer(directory);
+        server.start();
+        try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+            bob.ok(CommandType.MD, "C:\\a");
+            bob.ok(CommandType.MF, "C:\\a\\f.txt");
+            bob.ok(CommandType.LOCK, "C:\\a\\f.txt");
+            server.kill();
+        }
+        // при запуске запись LOCK применяется из журнала и сохраняется в снимок
+        server.start();
+        try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+            Check.contains(bob.ok(CommandType.PRINT, ""), "[LOCKED", "lock is replayed");
+            bob.ok(CommandType.UNLOCK, "C:\\a\\f.txt");
+            server.kill();
+        }
+        server.start();
+        try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+            String tree = bob.ok(CommandType.PRINT, "");
+            Check.contains(tree, "f.txt", "file is restored");
+            Check.notContains(tree, "[LOCKED", "unlock after checkpoint is replayed");
+        } finally {
+            server.kill();
+        }
+    }
+
+    /** Блокировка -> остановка сервера со снимком -> запуск
+     * */
+    private static void lockSurvivesShutdown() throws Exception {
+        Path directory = TestServer.tempDirectory("shutdown-lock");
+        TestServer server = newServer(directory);
+        server.start();
+        try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+            bob.ok(CommandType.MF, "C:\\f.txt");
+            bob.ok(CommandType.LOCK, "C:\\f.txt");
+            server.stop();
+        }
+        server.start();
+        try (TestClient alice = new TestClient(server.getPort(), "alice")) {
+            Check.contains(alice.ok(CommandType.PRINT, ""), "[LOCKED bob]", "lock survives shutdown checkpoint");
+            alice.error(CommandType.DEL, "C:\\f.txt");
+        } finally {
+            server.kill();
+        }
+    }
+
+    private static TestServer newServer(Path directory) throws Exception {
+        return new TestServer(directory, TestServer.freePort(),
+                "--STORAGE_DIR=" + directory.resolve("storage"),
+                "--CHECKPOINT_INTERVAL=0",
+                "--DURABILITY=SYNC");
+    }
+}
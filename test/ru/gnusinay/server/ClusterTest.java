@@ -0,0 +1,78 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/** Тест запускает кластер из двух узлов в отдельных процессах. Проверяется,
+ * что директорию, которая является текущей для пользователя другого узла,
+ * нельзя удалить или переместить, а после выхода пользователя из нее
+ * директория перемещается на другой узел в две фазы. Перемещение заблокированного
+ * файла отклоняется без копии на целевом узле
+ * */
+public class ClusterTest {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("cluster");
+        int portA = TestServer.freePort();
+        int portB = TestServer.freePort();
+        String nodeA = "127.0.0.1:" + portA;
+        String nodeB = "127.0.0.1:" + portB;
+        List<String> nodes = Arrays.asList(nodeA, nodeB);
+        String[] settings = {"--CLUSTER_NODES=" + nodeA + "," + nodeB, "--CLUSTER_SECRET=secret"};
+        TestServer serverA = new TestServer(directory, portA, settings);
+        TestServer serverB = new TestServer(directory, portB, settings);
+        serverA.start();
+        try {
+            serverB.start();
+            ConsistentHashRing ring = new ConsistentHashRing(nodes, Config.get().CLUSTER_VIRTUAL_NODES);
+            String onA = "C:\\" + nameOwnedBy(ring, nodeA);
+            String onB = "C:\\" + nameOwnedBy(ring, nodeB);
+            try (TestClient alice = new TestClient(portA, "alice");
+                 TestClient bob = new TestClient(portB, "bob")) {
+                alice.ok(CommandType.MD, onA);
+                alice.ok(CommandType.MD, onB);
+                alice.ok(CommandType.MD, onB + "\\inner");
+                alice.ok(CommandType.MF, onB + "\\inner\\f.txt");
+                alice.ok(CommandType.CD, onB + "\\inner");
+
+                bob.error(CommandType.DELTREE, onB);
+                bob.error(CommandType.RD, onB + "\\inner");
+                bob.error(CommandType.MOVE, onB + "%" + onA);
+                Check.contains(bob.ok(CommandType.DIR, onB), "inner", "home directory of a user of another node is kept");
+
+                alice.ok(CommandType.CD, "C:");
+                alice.ok(CommandType.LOCK, onB + "\\inner\\f.txt");
+                bob.error(CommandType.MOVE, onB + "%" + onA);
+                Check.notContains(bob.ok(CommandType.DIR, onA), "inner", "rejected move leaves no copy on the target node");
+                Check.contains(bob.ok(CommandType.DIR, onB + "\\inner"), "f.txt", "rejected move keeps the source");
+                alice.ok(CommandType.UNLOCK, onB + "\\inner\\f.txt");
+                bob.ok(CommandType.MOVE, onB + "%" + onA);
+                Check.contains(alice.ok(CommandType.DIR, onA + "\\" + onB.substring(3) + "\\inner"), "f.txt",
+                        "subtree is moved to the other node");
+                bob.error(CommandType.DIR, onB);
+                bob.ok(CommandType.DELTREE, onA);
+            }
+        } finally {
+            serverB.kill();
+            serverA.kill();
+        }
+        System.out.println("ClusterTest passed");
+    }
+
+    /** Метод подбирает имя директории верхнего уровня, которой владеет узел node
+     * */
+    private static String nameOwnedBy(ConsistentHashRing ring, String node) {
+        for (int i = 0; ; i++) {
+            String name = "d" + i;
+            if (ring.getNode(ClusterDriver.getPartitionKey("C:\\" + name)).equals(node)) {
+                return name;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Тест проверяет порядок записей журнала при параллельных изменениях одного
+ * диска: пользователи одновременно создают, перемещают, блокируют и удаляют
+ * одни и те же элементы, после аварийной остановки журнал должен применяться
+ * без ошибок и восстанавливать то же дерево
+ * */
+public class ConcurrentJournalTest {
+    private static final int USERS = 8;
+    private static final int ITERATIONS = 300;
+    private static final int NAMES = 4;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("concurrent-journal");
+        TestServer server = new TestServer(directory, TestServer.freePort(),
+                "--STORAGE_DIR=" + directory.resolve("storage"),
+                "--CHECKPOINT_INTERVAL=0",
+                "--DURABILITY=GROUP",
+                "--TASK_WORKER_COUNT=" + USERS);
+        server.start();
+        List<TestClient> clients = new ArrayList<>();
+        String before;
+        try {
+            for (int i = 0; i < USERS; i++) {
+                clients.add(new TestClient(server.getPort(), "user" + i));
+            }
+            clients.get(0).ok(CommandType.MD, "C:\\s");
+            ExecutorService executor = Executors.newFixedThreadPool(USERS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < USERS; i++) {
+                TestClient client = clients.get(i);
+                long seed = i;
+                futures.add(executor.submit(() -> {
+                    mutate(client, new Random(seed));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            before = clients.get(0).ok(CommandType.PRINT, "");
+            server.kill();
+        } finally {
+            for (TestClient client : clients) {
+                client.close();
+            }
+        }
+        server.start();
+        try (TestClient client = new TestClient(server.getPort(), "checker")) {
+            Check.equal(before, client.ok(CommandType.PRINT, ""), "tree after journal replay");
+        } finally {
+            server.kill();
+        }
+        System.out.println("ConcurrentJournalTest passed");
+    }
+
+    /** Команды пользователя над общими элементами. Часть команд завершается
+     * ошибкой (элемент уже создан, удален или заблокирован другим пользователем),
+     * в журнал записываются только выполненные
+     * */
+    private static void mutate(TestClient client, Random random) throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            int name = random.nextInt(NAMES);
+            switch (random.nextInt(8)) {
+                case 0:
+                    client.command(CommandType.MD, "C:\\r" + name);
+                    break;
+                case 1:
+                    client.command(CommandType.RD, "C:\\r" + name);
+                    break;
+                case 2:
+                    client.command(CommandType.MF, "C:\\s\\f" + name);
+                    break;
+                case 3:
+                    client.command(CommandType.DEL, "C:\\s\\f" + name);
+                    break;
+                case 4:
+                    client.command(CommandType.LOCK, "C:\\s\\f" + name);
+                    break;
+                case 5:
+                    client.command(CommandType.UNLOCK, "C:\\s\\f" + name);
+                    break;
+                case 6:
+                    client.command(CommandType.MOVE, "C:\\s\\f" + name + "%C:\\r" + random.nextInt(NAMES));
+                    break;
+                default:
+                    client.command(CommandType.COPY, "C:\\r" + name + "%C:\\s");
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Тест проверяет чтение настроек: ключи, которых нет в файле, получают
+ * значения из ресурса config.properties, о переопределениях с неизвестными
+ * ключами сообщается один раз, а RELOAD применяет настройки и тогда, когда
+ * при загрузке класса их прочитать не удалось
+ * */
+public class ConfigTest {
+
+    public static void main(String[] args) throws Exception {
+        Path file = TestServer.tempDirectory("config").resolve("partial.properties");
+        Files.write(file, "DIR_PAGE_SIZE=5\n".getBytes(StandardCharsets.ISO_8859_1));
+        System.setProperty("VFS_CONFIG", file.toString());
+        System.setProperty("FIND_PAGE_SIZ", "3");
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true, "UTF-8"));
+        List<String> changed;
+        List<String> restartRequired = new ArrayList<>();
+        try {
+            Config.setArguments(new String[]{"--SERVER_PORT=4321", "--TASK_WORKERS=2"});
+
+            Field current = Config.class.getDeclaredField("current");
+            current.setAccessible(true);
+            current.set(null, null);
+            changed = Config.reload(restartRequired);
+            Config.reload(restartRequired);
+        } finally {
+            System.setOut(out);
+        }
+        String messages = output.toString("UTF-8");
+
+        Config config = Config.get();
+        Check.equal(5, config.DIR_PAGE_SIZE, "value from the file");
+        Check.equal(4321, config.SERVER_PORT, "value from the argument");
+        Check.equal(100, config.FIND_PAGE_SIZE, "default for a key missing from the file");
+        Check.equal("", config.STORAGE_DIR, "default for a key missing from the file");
+        Check.contains(messages, "'FIND_PAGE_SIZ' of system property -DFIND_PAGE_SIZ", "unknown system property is reported");
+        Check.contains(messages, "'TASK_WORKERS' of argument --TASK_WORKERS", "unknown argument is reported");
+        Check.equal(messages.indexOf("'TASK_WORKERS'"), messages.lastIndexOf("'TASK_WORKERS'"), "unknown key is reported once");
+        Check.notContains(messages, "'SERVER_PORT'", "known argument is not reported");
+        Check.isTrue(changed.contains("SERVER_PORT") && changed.contains("DIR_PAGE_SIZE"), "reload without settings applies all keys");
+        Check.isTrue(restartRequired.isEmpty(), "reload without settings requires no restart");
+        System.out.println("ConfigTest passed");
+    }
+}
@@ -0,0 +1,44 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+
+/** Тест проверяет постраничный вывод DIR для имен с пробелами: ключ /FROM
+ * из подсказки о следующей странице содержит имя последнего элемента
+ * целиком, поэтому страницы не повторяются и не пропускают элементы
+ * */
+public class DirPageTest {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("dir-page");
+        TestServer server = new TestServer(directory, TestServer.freePort(), "--DIR_PAGE_SIZE=2");
+        server.start();
+        try (TestClient alice = new TestClient(server.getPort(), "alice")) {
+            alice.ok(CommandType.MD, "C:\\d");
+            alice.ok(CommandType.MD, "C:\\d\\a b");
+            alice.ok(CommandType.MF, "C:\\d\\a c");
+            alice.ok(CommandType.LOCK, "C:\\d\\a c");
+            alice.ok(CommandType.MF, "C:\\d\\a d");
+            alice.ok(CommandType.MF, "C:\\d\\b");
+
+            String first = alice.ok(CommandType.DIR, "C:\\d");
+            Check.contains(first, "<DIR> a b", "first page");
+            Check.contains(first, "a c [LOCKED alice]", "first page");
+            Check.contains(first, "/FROM:a c", "cursor is the whole name of the last element");
+
+            String second = alice.ok(CommandType.DIR, "C:\\d%/FROM:a c");
+            Check.notContains(second, "a b", "second page does not repeat the first one");
+            Check.notContains(second, "a c", "second page does not repeat the first one");
+            Check.contains(second, "a d", "second page");
+            Check.contains(second, "b", "second page");
+            Check.notContains(second, "/FROM:", "last page has no cursor");
+        } finally {
+            server.kill();
+        }
+        System.out.println("DirPageTest passed");
+    }
+}
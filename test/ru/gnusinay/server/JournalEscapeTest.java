@@ -0,0 +1,59 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+
+/** Тест проверяет, что переводы строк в командах не повреждают журнал
+ * изменений: имена элементов и снимков с управляющими символами отклоняются,
+ * а имя пользователя с переводом строки записывается в журнал одной строкой
+ * и восстанавливается при запуске сервера вместе со следующими записями
+ * */
+public class JournalEscapeTest {
+
+    public static void main(String[] args) throws Exception {
+        escapeRoundTrip();
+        replayAfterLineBreaks();
+        System.out.println("JournalEscapeTest passed");
+    }
+
+    private static void escapeRoundTrip() {
+        String[] texts = {"", "C:\\a\\b", "a\nb", "\r\n", "x\u0010n", "\u0010\u0010\n\u0010"};
+        for (String text : texts) {
+            String escaped = MutationJournal.escape(text);
+            Check.isTrue(escaped.indexOf('\n') < 0 && escaped.indexOf('\r') < 0, "escaped text has no line breaks: " + escaped);
+            Check.equal(text, MutationJournal.unescape(escaped), "escape round trip");
+        }
+        Check.isTrue(MutationJournal.escape("C:\\a\\b") == "C:\\a\\b", "plain text is not copied");
+    }
+
+    private static void replayAfterLineBreaks() throws Exception {
+        Path directory = TestServer.tempDirectory("journal-escape");
+        TestServer server = new TestServer(directory, TestServer.freePort(),
+                "--STORAGE_DIR=" + directory.resolve("storage"),
+                "--CHECKPOINT_INTERVAL=0",
+                "--DURABILITY=SYNC");
+        server.start();
+        try (TestClient user = new TestClient(server.getPort(), "line\nuser")) {
+            user.error(CommandType.MD, "C:\\a\nb");
+            user.error(CommandType.MF, "C:\\f\r.txt");
+            user.error(CommandType.SNAPSHOT, "C:%/NAME:s\nx");
+            user.ok(CommandType.MF, "C:\\f.txt");
+            user.ok(CommandType.LOCK, "C:\\f.txt");
+            user.ok(CommandType.MD, "C:\\after");
+            server.kill();
+        }
+        server.start();
+        try (TestClient client = new TestClient(server.getPort(), "checker")) {
+            String tree = client.ok(CommandType.PRINT, "");
+            Check.contains(tree, "f.txt [LOCKED line\nuser]", "lock of the user with a line break is replayed");
+            Check.contains(tree, "after", "records after the escaped record are replayed");
+            Check.notContains(tree, "a\nb", "name with a line break is rejected");
+        } finally {
+            server.kill();
+        }
+    }
+}
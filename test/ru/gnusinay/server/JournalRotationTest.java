@@ -0,0 +1,78 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Тест проверяет смену поколений журнала: после сохранения снимков старое
+ * поколение удаляется, а после аварийной остановки к снимку применяются
+ * только записи нового поколения, в том числе снятие блокировки, взятой до
+ * снимка. Перезапуск повторяется дважды, чтобы номера записей после
+ * восстановления продолжали сохраненные
+ * */
+public class JournalRotationTest {
+    private static final long WAIT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("journal-rotation");
+        Path storage = directory.resolve("storage");
+        TestServer server = new TestServer(directory, TestServer.freePort(),
+                "--STORAGE_DIR=" + storage,
+                "--CHECKPOINT_INTERVAL=200",
+                "--DURABILITY=SYNC");
+        server.start();
+        String before;
+        try (TestClient alice = new TestClient(server.getPort(), "alice")) {
+            alice.ok(CommandType.MD, "C:\\g1");
+            alice.ok(CommandType.MF, "C:\\g1\\f.txt");
+            alice.ok(CommandType.LOCK, "C:\\g1\\f.txt");
+            waitForRotation(storage, "journal-1.log");
+            alice.ok(CommandType.MD, "C:\\g2");
+            alice.ok(CommandType.UNLOCK, "C:\\g1\\f.txt");
+            alice.ok(CommandType.DEL, "C:\\g1\\f.txt");
+            before = alice.ok(CommandType.PRINT, "");
+            server.kill();
+        }
+        for (int i = 0; i < 2; i++) {
+            server.start();
+            try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+                String tree = bob.ok(CommandType.PRINT, "");
+                Check.equal(before, tree, "tree after restart " + (i + 1));
+                bob.ok(CommandType.MD, "C:\\r" + i);
+                before = bob.ok(CommandType.PRINT, "");
+                server.kill();
+            }
+        }
+        System.out.println("JournalRotationTest passed");
+    }
+
+    /** Метод ждет, пока поколение журнала first не будет удалено после
+     * сохранения снимков
+     * */
+    private static void waitForRotation(Path storage, String first) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        List<String> journals = journals(storage);
+        while (journals.contains(first) || journals.isEmpty()) {
+            Check.isTrue(System.currentTimeMillis() < deadline, "journal is not rotated: " + journals);
+            Thread.sleep(50);
+            journals = journals(storage);
+        }
+        Check.isTrue(Files.exists(storage.resolve("C.vfs")), "drive snapshot is saved");
+    }
+
+    private static List<String> journals(Path storage) throws IOException {
+        try (Stream<Path> files = Files.list(storage)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith("journal-"))
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+
+/** Тест проверяет аренду блокировок: блокировка с /LEASE снимается по
+ * истечении срока, RENEW продлевает аренду, а снятие блокировки по истечении
+ * аренды записывается в журнал и не возвращается после аварийной остановки
+ * */
+public class LeaseTest {
+    private static final long WAIT = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("lease");
+        TestServer server = new TestServer(directory, TestServer.freePort(),
+                "--STORAGE_DIR=" + directory.resolve("storage"),
+                "--CHECKPOINT_INTERVAL=0",
+                "--DURABILITY=SYNC");
+        server.start();
+        try (TestClient alice = new TestClient(server.getPort(), "alice");
+             TestClient carol = new TestClient(server.getPort(), "carol")) {
+            alice.ok(CommandType.MD, "C:\\d");
+            alice.ok(CommandType.MF, "C:\\d\\short.txt");
+            alice.ok(CommandType.MF, "C:\\d\\renewed.txt");
+            alice.ok(CommandType.LOCK, "C:\\d\\short.txt%/LEASE:1");
+            carol.ok(CommandType.LOCK, "C:\\d\\renewed.txt%/LEASE:1");
+            Check.contains(alice.ok(CommandType.PRINT, ""), "short.txt [LOCKED alice]", "leased lock is taken");
+
+            Thread.sleep(500);
+            Check.contains(carol.ok(CommandType.RENEW, "/LEASE:4"), "1", "one lease is renewed");
+            awaitUnlocked(alice, "short.txt");
+            Check.contains(alice.ok(CommandType.PRINT, ""), "renewed.txt [LOCKED carol]", "renewed lease is kept");
+            alice.ok(CommandType.DEL, "C:\\d\\short.txt");
+            server.kill();
+        }
+        server.start();
+        try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+            String tree = bob.ok(CommandType.PRINT, "");
+            Check.notContains(tree, "short.txt", "file deleted after lease expiry is replayed");
+            Check.contains(tree, "renewed.txt [LOCKED carol]", "renewed lock is replayed");
+        } finally {
+            server.kill();
+        }
+        System.out.println("LeaseTest passed");
+    }
+
+    private static void awaitUnlocked(TestClient client, String name) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (client.ok(CommandType.PRINT, "").contains(name + " [LOCKED")) {
+            Check.isTrue(System.currentTimeMillis() < deadline, "lease of " + name + " is not expired");
+            Thread.sleep(100);
+        }
+    }
+}
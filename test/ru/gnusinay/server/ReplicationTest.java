@@ -0,0 +1,92 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+
+/** Тест проверяет, что реплика догоняет основной сервер: по журналу при
+ * постоянном подключении, после перезапуска основного сервера (новая эпоха
+ * журнала, реплика загружает снимок заново) и при подключении новой реплики,
+ * когда начальные записи уже вытеснены из журнала. Текущая директория
+ * пользователя реплики не мешает реплике применить удаление этой директории
+ * */
+public class ReplicationTest {
+    private static final long WAIT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("replication");
+        int replicationPort = TestServer.freePort();
+        TestServer primary = new TestServer(directory, TestServer.freePort(),
+                "--REPLICATION_MODE=PRIMARY",
+                "--REPLICATION_PORT=" + replicationPort,
+                "--REPLICATION_LOG_SIZE=5",
+                "--STORAGE_DIR=" + directory.resolve("storage"),
+                "--CHECKPOINT_INTERVAL=0",
+                "--DURABILITY=SYNC");
+        String[] replicaSettings = {
+                "--REPLICATION_MODE=REPLICA",
+                "--REPLICATION_PRIMARY_PORT=" + replicationPort,
+                "--REPLICATION_HEARTBEAT=100"};
+        TestServer replica = new TestServer(directory, TestServer.freePort(), replicaSettings);
+        TestServer lateReplica = new TestServer(directory, TestServer.freePort(), replicaSettings);
+        primary.start();
+        try {
+            replica.start();
+            try (TestClient alice = new TestClient(primary.getPort(), "alice");
+                 TestClient reader = new TestClient(replica.getPort(), "reader")) {
+                alice.ok(CommandType.MD, "C:\\a");
+                alice.ok(CommandType.MD, "C:\\a\\gone");
+                alice.ok(CommandType.MF, "C:\\a\\f.txt");
+                alice.ok(CommandType.LOCK, "C:\\a\\f.txt");
+                String tree = awaitSame(alice, reader, "replica follows the journal");
+
+                reader.ok(CommandType.CD, "C:\\a\\gone");
+                alice.ok(CommandType.RD, "C:\\a\\gone");
+                Check.notContains(awaitSame(alice, reader, "replica removes the directory of its user"), "gone",
+                        "directory is removed");
+                Check.contains(tree, "gone", "directory was replicated");
+            }
+
+            primary.kill();
+            primary.start();
+            try (TestClient alice = new TestClient(primary.getPort(), "alice");
+                 TestClient reader = new TestClient(replica.getPort(), "reader")) {
+                alice.ok(CommandType.MD, "C:\\after");
+                alice.ok(CommandType.UNLOCK, "C:\\a\\f.txt");
+                awaitSame(alice, reader, "replica catches up after the primary restart");
+                for (int i = 0; i < 10; i++) {
+                    alice.ok(CommandType.MF, "C:\\after\\f" + i + ".txt");
+                }
+                lateReplica.start();
+                try (TestClient late = new TestClient(lateReplica.getPort(), "late")) {
+                    Check.contains(awaitSame(alice, late, "new replica loads the snapshot"), "f9.txt",
+                            "new replica has records evicted from the journal");
+                }
+            }
+        } finally {
+            lateReplica.kill();
+            replica.kill();
+            primary.kill();
+        }
+        System.out.println("ReplicationTest passed");
+    }
+
+    /** Метод ждет, пока дерево реплики не совпадет с деревом основного сервера
+     *
+     * @return дерево основного сервера
+     * */
+    private static String awaitSame(TestClient primary, TestClient replica, String message) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT;
+        String expected = primary.ok(CommandType.PRINT, "");
+        String actual = replica.ok(CommandType.PRINT, "");
+        while (!expected.equals(actual) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            actual = replica.ok(CommandType.PRINT, "");
+        }
+        Check.equal(expected, actual, message);
+        return expected;
+    }
+}
@@ -0,0 +1,47 @@
+package ru.gnusinay.server;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Path;
+
+/** Тест проверяет, что RESTORE, как и RD, не удаляет текущую директорию
+ * подключенного пользователя: восстановление снимка, в котором нет текущей
+ * директории другого пользователя, отклоняется и не изменяет диск, а
+ * директория внутри разделяемой копии снимка считается существующей
+ * */
+public class RestoreHomeTest {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("restore-home");
+        TestServer server = new TestServer(directory, TestServer.freePort());
+        server.start();
+        try (TestClient alice = new TestClient(server.getPort(), "alice");
+             TestClient bob = new TestClient(server.getPort(), "bob")) {
+            alice.ok(CommandType.MD, "C:\\kept");
+            alice.ok(CommandType.MD, "C:\\kept\\inner");
+            alice.ok(CommandType.MD, "C:\\shared");
+            alice.ok(CommandType.COPY, "C:\\kept%C:\\shared%/SHARE");
+            alice.ok(CommandType.SNAPSHOT, "C:%/NAME:s1");
+            alice.ok(CommandType.MD, "C:\\added");
+
+            bob.ok(CommandType.CD, "C:\\added");
+            Check.contains(alice.error(CommandType.RESTORE, "C:%/NAME:s1"), "C:\\added",
+                    "restore is rejected while another user is in a directory missing from the snapshot");
+            Check.contains(alice.ok(CommandType.PRINT, ""), "added", "rejected restore keeps the drive");
+
+            bob.ok(CommandType.CD, "C:\\shared\\kept\\inner");
+            alice.ok(CommandType.RESTORE, "C:%/NAME:s1");
+            String tree = alice.ok(CommandType.PRINT, "");
+            Check.notContains(tree, "added", "drive is restored");
+            Check.contains(tree, "inner", "directory of the shared copy is restored");
+            bob.ok(CommandType.MD, "C:\\shared\\kept\\inner\\after");
+            Check.contains(alice.ok(CommandType.PRINT, ""), "after", "home directory is usable after restore");
+        } finally {
+            server.kill();
+        }
+        System.out.println("RestoreHomeTest passed");
+    }
+}
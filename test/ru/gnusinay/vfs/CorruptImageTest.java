@@ -0,0 +1,54 @@
+package ru.gnusinay.vfs;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/** Тест проверяет, что сервер не запускается с поврежденным снимком диска
+ * или именованным снимком и не изменяет их файлы, а после восстановления
+ * файла запускается с прежним содержимым диска
+ * */
+public class CorruptImageTest {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("corrupt-image");
+        Path storage = directory.resolve("storage");
+        TestServer server = new TestServer(directory, TestServer.freePort(),
+                "--STORAGE_DIR=" + storage,
+                "--CHECKPOINT_INTERVAL=0");
+        server.start();
+        try (TestClient bob = new TestClient(server.getPort(), "bob")) {
+            bob.ok(CommandType.MD, "C:\\kept");
+            bob.ok(CommandType.SNAPSHOT, "C:%/NAME:s1");
+            server.stop();
+        }
+        corrupt(server, storage.resolve("C.vfs"));
+        corrupt(server, storage.resolve("C@s1.vfs"));
+        System.out.println("CorruptImageTest passed");
+    }
+
+    /** Метод портит файл file, проверяет, что сервер не запускается и не
+     * изменяет файл, и возвращает исходное содержимое файла
+     * */
+    private static void corrupt(TestServer server, Path file) throws Exception {
+        byte[] original = Files.readAllBytes(file);
+        byte[] broken = Arrays.copyOf(original, original.length / 2);
+        Files.write(file, broken);
+        Check.isTrue(!server.tryStart(), "server must not start with corrupt " + file.getFileName());
+        Check.contains(server.readLog(), "can not be loaded from", "load error is reported");
+        Check.isTrue(Arrays.equals(broken, Files.readAllBytes(file)), "corrupt " + file.getFileName() + " is kept as is");
+        Files.write(file, original);
+        server.start();
+        try (TestClient alice = new TestClient(server.getPort(), "alice")) {
+            Check.contains(alice.ok(CommandType.PRINT, ""), "kept", "drive is loaded from the restored file");
+            Check.contains(alice.ok(CommandType.SNAPSHOT, "C:"), "s1", "snapshot is loaded from the restored file");
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ru.gnusinay.vfs;
+
+import ru.gnusinay.Check;
+import ru.gnusinay.TestClient;
+import ru.gnusinay.TestServer;
+import ru.gnusinay.client.CommandType;
+import ru.gnusinay.protocol.Packet;
+import ru.gnusinay.server.Config;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Тест проверяет, что команды над непересекающимися поддеревьями не ждут
+ * блокировки друг друга: пользователи параллельно перемещают, копируют,
+ * блокируют и удаляют элементы каждый в своей директории, поэтому ни одна
+ * команда не должна завершиться по истечении NODE_LOCK_TIMEOUT
+ * */
+public class NodeLockTest {
+    private static final int USERS = 8;
+    private static final int FILES = 32;
+    private static final int ITERATIONS = 400;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestServer.tempDirectory("node-lock");
+        TestServer server = new TestServer(directory, TestServer.freePort(),
+                "--NODE_LOCK_TIMEOUT=100",
+                "--TASK_WORKER_COUNT=" + USERS);
+        server.start();
+        List<TestClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < USERS; i++) {
+                TestClient client = new TestClient(server.getPort(), "user" + i);
+                clients.add(client);
+                String home = "C:\\u" + i;
+                client.ok(CommandType.MD, home);
+                client.ok(CommandType.MD, home + "\\a");
+                client.ok(CommandType.MD, home + "\\b");
+                for (int j = 0; j < FILES; j++) {
+                    client.ok(CommandType.MF, home + "\\a\\f" + j);
+                }
+            }
+            String interrupted = Config.get().RUN_COMMAND_INTERRUPTED_EXCEPTION;
+            ExecutorService executor = Executors.newFixedThreadPool(USERS);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < USERS; i++) {
+                TestClient client = clients.get(i);
+                String home = "C:\\u" + i;
+                Random random = new Random(i);
+                futures.add(executor.submit(() -> mutate(client, home, random, interrupted)));
+            }
+            int timeouts = 0;
+            for (Future<Integer> future : futures) {
+                timeouts += future.get();
+            }
+            executor.shutdown();
+            Check.equal(0, timeouts, "commands on disjoint subtrees timed out waiting for node locks");
+        } finally {
+            for (TestClient client : clients) {
+                client.close();
+            }
+            server.kill();
+        }
+        System.out.println("NodeLockTest passed");
+    }
+
+    /** Команды пользователя в его директории home: файл перемещается между
+     * поддиректориями a и b (две блокировки путей в разном порядке), копируется,
+     * блокируется и снимается блокировка
+     *
+     * @return количество команд, не дождавшихся блокировки элемента
+     * */
+    private static int mutate(TestClient client, String home, Random random, String interrupted) throws Exception {
+        int timeouts = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            String file = "f" + random.nextInt(FILES);
+            boolean toB = random.nextBoolean();
+            String from = home + (toB ? "\\a\\" : "\\b\\") + file;
+            String to = home + (toB ? "\\b" : "\\a");
+            Packet response;
+            switch (random.nextInt(4)) {
+                case 0:
+                    response = client.command(CommandType.MOVE, from + "%" + to);
+                    break;
+                case 1:
+                    response = client.command(CommandType.COPY, from + "%" + to);
+                    break;
+                case 2:
+                    response = client.command(CommandType.LOCK, from);
+                    break;
+                default:
+                    response = client.command(CommandType.UNLOCK, from);
+            }
+            if (response.getText().contains(interrupted)) {
+                timeouts++;
+            }
+        }
+        return timeouts;
+    }
+}
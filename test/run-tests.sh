@@ -0,0 +1,22 @@
+#!/bin/bash
+# Компилирует сервер и тесты и запускает каждый тест (класс *Test с методом
+# main) в отдельной JVM. Тест, завершившийся ошибкой, останавливает запуск.
+# Использование: test/run-tests.sh [ИмяТеста...]
+cd "$(dirname "$0")/.." || exit 1
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -nowarn -encoding UTF-8 -d "$out" $(find src test -name '*.java') || exit 1
+cp src/ru/gnusinay/server/config.properties "$out/ru/gnusinay/server/"
+if [ $# -gt 0 ]; then
+    tests="$*"
+else
+    tests=$(cd test && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g' | sort)
+fi
+for test in $tests; do
+    case $test in
+        *.*) ;;
+        *) test=$(cd test && find . -name "$test.java" | sed 's|^\./||; s|\.java$||; s|/|.|g') ;;
+    esac
+    echo "== $test"
+    java -cp "$out" "$test" || { echo "FAILED: $test"; exit 1; }
+done